@@ -0,0 +1,273 @@
+/**
+ * @file   AdmissionController.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class AdmissionController
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Limit the number of concurrent calls to a remote service, adapting
+ * the limit to the observed latency.
+ * <p>
+ * The concurrency limit follows an AIMD (additive increase,
+ * multiplicative decrease) rule: each call completing within the
+ * latency target raises the limit by {@code 1/limit}, i.e., by about
+ * one per round of calls; a call exceeding the target, or failing
+ * because of an I/O error, multiplies the limit by {@value
+ * #BACKOFF_RATIO}, at most once per round (calls started before the
+ * last decrease do not decrease it again).  The limit always stays
+ * between the configured minimum and maximum.
+ * <p>
+ * Callers that find the limit reached wait in a bounded queue for a
+ * bounded time; when the queue is full or the wait times out, {@link
+ * #acquire} throws an {@link OverloadedError}.
+ * <p>
+ * The following properties (all optional) configure an instance:
+ * <dl>
+ * <dt>{@code gridcertlib.admission.initialLimit   }<dd>initial concurrency limit (default: 10)
+ * <dt>{@code gridcertlib.admission.minLimit       }<dd>lower bound for the limit (default: 1)
+ * <dt>{@code gridcertlib.admission.maxLimit       }<dd>upper bound for the limit (default: 50)
+ * <dt>{@code gridcertlib.admission.maxQueue       }<dd>maximum number of waiting callers (default: 50)
+ * <dt>{@code gridcertlib.admission.queueTimeout   }<dd>maximum wait for admission, in milliseconds (default: 5000)
+ * <dt>{@code gridcertlib.admission.latencyTarget  }<dd>calls slower than this, in milliseconds, decrease the limit (default: 15000)
+ * </dl>
+ * Waiting uses a {@link ReentrantLock} rather than an object monitor,
+ * so that a waiting virtual thread does not pin its carrier thread.
+ */
+public class AdmissionController {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(AdmissionController.class);
+
+    /** Factor applied to the limit on overload. */
+    public static final double BACKOFF_RATIO = 0.9;
+
+    /** Weight of a new sample in the average latency. */
+    protected static final double LATENCY_WEIGHT = 0.2;
+
+    protected final int minLimit_;
+    protected final int maxLimit_;
+    protected final int maxQueue_;
+    protected final long queueTimeout_;
+    protected final long latencyTarget_;
+
+    private double limit_;
+    private int inFlight_ = 0;
+    private int waiting_ = 0;
+    private double avgLatency_ = 0;
+    private long lastDecrease_ = System.nanoTime();
+    private long admitted_ = 0;
+    private long rejected_ = 0;
+
+    private final ReentrantLock lock_ = new ReentrantLock();
+    private final Condition released_ = lock_.newCondition();
+
+
+    /**
+     * Constructor.
+     *
+     * @param initialLimit  initial concurrency limit
+     * @param minLimit      lower bound for the limit; at least 1
+     * @param maxLimit      upper bound for the limit
+     * @param maxQueue      maximum number of callers waiting for admission
+     * @param queueTimeout  maximum time a caller waits for admission, in milliseconds
+     * @param latencyTarget calls slower than this (in milliseconds) decrease the limit
+     *
+     * @throws IllegalArgumentException if the arguments are inconsistent
+     */
+    public AdmissionController(final int initialLimit,
+                               final int minLimit,
+                               final int maxLimit,
+                               final int maxQueue,
+                               final long queueTimeout,
+                               final long latencyTarget)
+    {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit)
+            throw new IllegalArgumentException("AdmissionController: must have 1 <= minLimit <= initialLimit <= maxLimit,"
+                                               + " but got minLimit=" + minLimit
+                                               + ", initialLimit=" + initialLimit
+                                               + ", maxLimit=" + maxLimit);
+        if (maxQueue < 0 || queueTimeout < 0 || latencyTarget <= 0)
+            throw new IllegalArgumentException("AdmissionController: maxQueue and queueTimeout must be non-negative,"
+                                               + " and latencyTarget positive");
+        limit_ = initialLimit;
+        minLimit_ = minLimit;
+        maxLimit_ = maxLimit;
+        maxQueue_ = maxQueue;
+        queueTimeout_ = queueTimeout;
+        latencyTarget_ = latencyTarget;
+    }
+
+
+    /**
+     * Constructor taking the configuration from a properties object;
+     * see the class description for the property names.
+     *
+     * @throws IllegalArgumentException if a property has an invalid value
+     */
+    public AdmissionController(final Properties props)
+    {
+        this(Integer.parseInt(props.getProperty("gridcertlib.admission.initialLimit", "10")),
+             Integer.parseInt(props.getProperty("gridcertlib.admission.minLimit", "1")),
+             Integer.parseInt(props.getProperty("gridcertlib.admission.maxLimit", "50")),
+             Integer.parseInt(props.getProperty("gridcertlib.admission.maxQueue", "50")),
+             Long.parseLong(props.getProperty("gridcertlib.admission.queueTimeout", "5000")),
+             Long.parseLong(props.getProperty("gridcertlib.admission.latencyTarget", "15000")));
+    }
+
+
+    /**
+     * Wait until a call may proceed; return a token (the admission
+     * time) that must be passed to {@link #release} when the call is
+     * done, whatever its outcome.
+     *
+     * @throws OverloadedError if the waiting queue is full, or the call could not be admitted in time
+     * @throws OperationsError if interrupted while waiting
+     */
+    public long acquire()
+        throws OverloadedError
+    {
+        lock_.lock();
+        try {
+            if (inFlight_ >= getLimit()) {
+                if (waiting_ >= maxQueue_) {
+                    rejected_++;
+                    throw new OverloadedError("Too many concurrent requests (" + inFlight_ + " running, "
+                                              + waiting_ + " waiting)", getRetryAfter());
+                }
+                final long deadline = System.currentTimeMillis() + queueTimeout_;
+                waiting_++;
+                try {
+                    while (inFlight_ >= getLimit()) {
+                        final long left = deadline - System.currentTimeMillis();
+                        if (left <= 0) {
+                            rejected_++;
+                            throw new OverloadedError("Timed out after " + queueTimeout_
+                                                      + "ms waiting for admission", getRetryAfter());
+                        }
+                        released_.await(left, TimeUnit.MILLISECONDS);
+                    }
+                }
+                catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                    throw new OperationsError("Interrupted while waiting for admission", x);
+                }
+                finally {
+                    waiting_--;
+                }
+            }
+            inFlight_++;
+            admitted_++;
+        }
+        finally {
+            lock_.unlock();
+        }
+        return System.nanoTime();
+    }
+
+
+    /**
+     * Signal that an admitted call is done, and adjust the limit.
+     *
+     * @param token      value returned by the matching {@link #acquire} call
+     * @param overloaded {@code true} if the call failed in a way that
+     *                   signals overload of the remote service (e.g., timeout)
+     */
+    public void release(final long token, final boolean overloaded)
+    {
+        lock_.lock();
+        try {
+            doRelease(token, overloaded);
+            released_.signalAll();
+        }
+        finally {
+            lock_.unlock();
+        }
+    }
+
+    /** Must be called with the lock held. */
+    private void doRelease(final long token, final boolean overloaded)
+    {
+        inFlight_--;
+        final double latency = (System.nanoTime() - token) / 1e6;
+        avgLatency_ = (0 == avgLatency_) ? latency
+            : (1 - LATENCY_WEIGHT) * avgLatency_ + LATENCY_WEIGHT * latency;
+
+        if (overloaded || latency > latencyTarget_) {
+            if (token > lastDecrease_) {
+                limit_ = Math.max(minLimit_, limit_ * BACKOFF_RATIO);
+                lastDecrease_ = System.nanoTime();
+                LOG.info("AdmissionController: decreased limit to " + getLimit()
+                         + " (call took " + (long)latency + "ms" + (overloaded ? ", overloaded" : "") + ")");
+            }
+        }
+        else
+            limit_ = Math.min(maxLimit_, limit_ + 1.0 / limit_);
+    }
+
+
+    /** Return the current concurrency limit. */
+    public int getLimit()
+    {
+        lock_.lock();
+        try {
+            return Math.max(minLimit_, (int) Math.floor(limit_));
+        }
+        finally {
+            lock_.unlock();
+        }
+    }
+
+    public int getInFlight()  { lock_.lock(); try { return inFlight_; } finally { lock_.unlock(); } }
+    public int getWaiting()   { lock_.lock(); try { return waiting_; }  finally { lock_.unlock(); } }
+    public long getAdmitted() { lock_.lock(); try { return admitted_; } finally { lock_.unlock(); } }
+    public long getRejected() { lock_.lock(); try { return rejected_; } finally { lock_.unlock(); } }
+
+    /** Return the exponentially weighted average duration of admitted calls, in milliseconds. */
+    public double getAverageLatency() { lock_.lock(); try { return avgLatency_; } finally { lock_.unlock(); } }
+
+
+    /**
+     * Return the suggested delay (in seconds) before retrying a
+     * rejected call: the time to drain the current queue at the
+     * current limit and average latency, and at least 1 second.
+     */
+    public int getRetryAfter()
+    {
+        lock_.lock();
+        try {
+            final double rounds = 1.0 + (double) waiting_ / getLimit();
+            return (int) Math.max(1, Math.ceil(rounds * avgLatency_ / 1000.0));
+        }
+        finally {
+            lock_.unlock();
+        }
+    }
+}
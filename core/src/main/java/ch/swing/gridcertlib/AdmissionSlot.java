@@ -0,0 +1,67 @@
+/**
+ * @file   AdmissionSlot.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class AdmissionSlot
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.swing.gridcertlib;
+
+
+/**
+ * The admission slot of one issuance: it is held while remote
+ * services are called, and given back during CPU-bound stages, so
+ * that key generation does not count against the concurrency limit
+ * of the {@link AdmissionController}.  Acquiring a held slot, or
+ * releasing a free one, does nothing.  Not thread-safe.
+ */
+final class AdmissionSlot {
+    private final AdmissionController admission_;
+    private long token_;
+    private boolean held_ = false;
+
+    /** If {@code admission} is {@code null}, there is no limit. */
+    AdmissionSlot(final AdmissionController admission) {
+        admission_ = admission;
+    }
+
+    /**
+     * Wait for a slot, unless one is already held.
+     *
+     * @throws OverloadedError if the limit is reached
+     * @throws DeadlineExceededError if {@code deadline} (if not {@code null}) has passed
+     */
+    void acquire(final Deadline deadline) {
+        if (null == admission_ || held_)
+            return;
+        if (null != deadline)
+            deadline.check("admission");
+        token_ = admission_.acquire();
+        held_ = true;
+    }
+
+    /** Give the slot back, if held; see {@link AdmissionController#release}. */
+    void release(final boolean overloaded) {
+        if (! held_)
+            return;
+        held_ = false;
+        admission_.release(token_, overloaded);
+    }
+}
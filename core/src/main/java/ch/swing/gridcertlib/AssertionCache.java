@@ -0,0 +1,147 @@
+/**
+ * @file   AssertionCache.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class AssertionCache
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.swing.gridcertlib;
+
+import org.opensaml.saml2.core.Assertion;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Recently retrieved assertions, keyed by URL; kept until they
+ * expire, so that the pre-flight check (see {@link
+ * SLCSFactory#checkAssertion}) and the issuance that follows it
+ * retrieve an assertion only once.  Only their XML form is kept, as
+ * OpenSAML objects are mutable and not thread-safe: each call to
+ * {@link #get} unmarshals its own copy.  Assertions without an
+ * expiration time are not kept.
+ */
+public class AssertionCache {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(AssertionCache.class);
+
+    /** Default maximum number of assertions kept. */
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    /** XML form of a retrieved assertion, and its expiration time. */
+    private static final class Entry {
+        final byte[] xml;
+        final long notOnOrAfter;
+
+        Entry(final byte[] xml, final long notOnOrAfter) {
+            this.xml = xml;
+            this.notOnOrAfter = notOnOrAfter;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= notOnOrAfter;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> entries_ =
+        new ConcurrentHashMap<String, Entry>();
+
+    /** Parses the copies handed out. */
+    private final AssertionParser parser_;
+
+    /** Maximum number of assertions kept. */
+    private final int maxSize_;
+
+
+    /** Constructor, parsing copies with {@code parser}. */
+    public AssertionCache(final AssertionParser parser)
+    {
+        this(parser, DEFAULT_MAX_SIZE);
+    }
+
+    /** Constructor, keeping at most {@code maxSize} assertions. */
+    public AssertionCache(final AssertionParser parser, final int maxSize)
+    {
+        assert(null != parser);
+        parser_ = parser;
+        maxSize_ = maxSize;
+    }
+
+
+    /**
+     * Return a copy of the assertion kept for {@code samlAssertionUrl},
+     * or {@code null} if there is none or it has expired.
+     *
+     * @throws IOException if the kept copy cannot be parsed
+     */
+    public Assertion get(final String samlAssertionUrl)
+        throws IOException
+    {
+        final Entry entry = entries_.get(samlAssertionUrl);
+        if (null == entry)
+            return null;
+        if (entry.isExpired()) {
+            entries_.remove(samlAssertionUrl, entry);
+            return null;
+        }
+        return parser_.parse(new ByteArrayInputStream(entry.xml), samlAssertionUrl);
+    }
+
+
+    /**
+     * Keep {@code assertion}, retrieved from {@code samlAssertionUrl},
+     * until it expires; expired assertions are dropped to make room,
+     * and nothing is kept if there is still none.
+     */
+    public void put(final String samlAssertionUrl, final Assertion assertion)
+    {
+        if (null == assertion.getConditions() || null == assertion.getConditions().getNotOnOrAfter())
+            return;
+        if (entries_.size() >= maxSize_)
+            for (Iterator<Entry> it = entries_.values().iterator(); it.hasNext(); )
+                if (it.next().isExpired())
+                    it.remove();
+        if (entries_.size() >= maxSize_)
+            return;
+        try {
+            entries_.put(samlAssertionUrl,
+                         new Entry(AssertionParser.serialize(assertion),
+                                   assertion.getConditions().getNotOnOrAfter().getMillis()));
+        }
+        catch (IOException x) {
+            LOG.warn("AssertionCache: cannot keep assertion '" + samlAssertionUrl + "': " + x.getMessage());
+        }
+    }
+
+
+    /** Return the number of assertions kept. */
+    public int size()
+    {
+        return entries_.size();
+    }
+}
@@ -0,0 +1,429 @@
+/**
+ * @file   AssertionParser.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class AssertionParser
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.swing.gridcertlib;
+
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.Marshaller;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.util.XMLHelper;
+import org.w3c.dom.Element;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+
+/**
+ * Unmarshals SAML2 assertions from their XML form, using a bounded
+ * pool of DOM parsers; for use on assertion content that is not
+ * fetched by the ID-WSF resolver, e.g., exported inline by the SP, or
+ * retrieved by {@link BlockingTransport} or {@link NioTransport}.
+ * <p>
+ * At most {@code poolSize} parsers exist, and each is reset and
+ * reused after a parse, so a login peak does not build a new parser
+ * (and its internal tables) per assertion.  Callers finding all
+ * parsers in use wait up to {@code maxWait} milliseconds, and then
+ * get an {@link OverloadedError}.  Parsers are namespace-aware, and
+ * reject DTDs and external entities.  The OpenSAML unmarshaller for
+ * each root element name is looked up once, and then reused.
+ * <p>
+ * The following properties (all optional) configure an instance:
+ * <dl>
+ * <dt>{@code gridcertlib.parser.poolSize }<dd>maximum number of parsers (default: number of processors)
+ * <dt>{@code gridcertlib.parser.maxWait  }<dd>maximum time (in milliseconds) to wait for a free parser (default: 1000)
+ * </dl>
+ * Instances are thread-safe; {@link SLCSFactory} creates one and
+ * shares it among all the requests it makes.  The OpenSAML library
+ * must have been bootstrapped before {@link #parse} is called.
+ */
+public class AssertionParser {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(AssertionParser.class);
+
+    /** Report parse errors by exceptions only, instead of printing them to {@code System.err}. */
+    private static final ErrorHandler ERROR_HANDLER = new ErrorHandler() {
+            public void warning(final SAXParseException x) {
+                LOG.debug("AssertionParser: " + x.getMessage());
+            }
+            public void error(final SAXParseException x) throws SAXException {
+                throw x;
+            }
+            public void fatalError(final SAXParseException x) throws SAXException {
+                throw x;
+            }
+        };
+
+    protected final int poolSize_;
+    protected final long maxWait_;
+    protected final DocumentBuilderFactory builderFactory_;
+
+    /** Permits for parsers in use; at most {@link #poolSize_}. */
+    private final Semaphore permits_;
+
+    /** Parsers not in use. */
+    private final Queue<DocumentBuilder> idle_ = new ConcurrentLinkedQueue<DocumentBuilder>();
+
+    /** Unmarshallers by root element name; see {@link #getUnmarshaller}. */
+    private final ConcurrentMap<QName, Unmarshaller> unmarshallers_ =
+        new ConcurrentHashMap<QName, Unmarshaller>();
+
+    private final AtomicLong created_ = new AtomicLong(0);
+    private final AtomicLong parsed_ = new AtomicLong(0);
+    private final AtomicLong failed_ = new AtomicLong(0);
+    private final AtomicLong waited_ = new AtomicLong(0);
+    private final AtomicLong rejected_ = new AtomicLong(0);
+    private final AtomicLong waitNanos_ = new AtomicLong(0);
+
+
+    /** Constructor for a pool with the default settings. */
+    public AssertionParser()
+    {
+        this(new Properties());
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param poolSize maximum number of parsers
+     * @param maxWait  maximum time (in milliseconds) to wait for a free parser
+     */
+    public AssertionParser(final int poolSize, final long maxWait)
+    {
+        if (poolSize < 1 || maxWait < 0)
+            throw new IllegalArgumentException("AssertionParser: poolSize must be positive,"
+                                               + " and maxWait must not be negative");
+        poolSize_ = poolSize;
+        maxWait_ = maxWait;
+        permits_ = new Semaphore(poolSize, true);
+        builderFactory_ = newSecureBuilderFactory();
+    }
+
+
+    /**
+     * Constructor taking the configuration from a properties object;
+     * see the class description for the property names.
+     *
+     * @throws IllegalArgumentException if a property has an invalid value
+     */
+    public AssertionParser(final Properties props)
+    {
+        this(Integer.parseInt(props.getProperty("gridcertlib.parser.poolSize",
+                                                Integer.toString(Runtime.getRuntime().availableProcessors()))),
+             Long.parseLong(props.getProperty("gridcertlib.parser.maxWait", "1000")));
+    }
+
+
+    /**
+     * Return a factory for namespace-aware parsers that do not load
+     * DTDs or external entities (an assertion has no use for either).
+     */
+    protected static DocumentBuilderFactory newSecureBuilderFactory()
+    {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setValidating(false);
+        factory.setExpandEntityReferences(false);
+        factory.setIgnoringComments(true);
+        factory.setCoalescing(true);
+        factory.setXIncludeAware(false);
+        try {
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+        }
+        catch (ParserConfigurationException x) {
+            LOG.warn("AssertionParser: XML parser " + factory.getClass().getName()
+                     + " does not support all security features: " + x.getMessage());
+        }
+        return factory;
+    }
+
+
+    /**
+     * Unmarshal the assertion read from {@code in}.
+     *
+     * @param in     XML form of the assertion; not closed
+     * @param source description of where the assertion comes from, for error messages
+     *
+     * @throws IOException if {@code in} cannot be read, or does not hold a SAML2 assertion
+     * @throws AssertionExpiredError if the assertion has expired
+     * @throws OverloadedError if no parser becomes free within {@code maxWait} milliseconds
+     */
+    public Assertion parse(final InputStream in, final String source)
+        throws IOException, AssertionExpiredError, OverloadedError
+    {
+        final Assertion assertion;
+        try {
+            final Element root = parseDocument(in, source);
+            final Unmarshaller unmarshaller = getUnmarshaller(root);
+            if (null == unmarshaller)
+                throw new IOException("Unexpected element '" + root.getTagName() + "' in " + source);
+            final XMLObject object = unmarshaller.unmarshall(root);
+            if (! (object instanceof Assertion))
+                throw new IOException(source + " is not a SAML2 assertion");
+            assertion = (Assertion) object;
+        }
+        catch (UnmarshallingException x) {
+            failed_.incrementAndGet();
+            final IOException error = new IOException("Malformed assertion in " + source + ": " + x.getMessage());
+            error.initCause(x);
+            throw error;
+        }
+        catch (IOException x) {
+            failed_.incrementAndGet();
+            throw x;
+        }
+        parsed_.incrementAndGet();
+        if (null != assertion.getConditions()
+            && null != assertion.getConditions().getNotOnOrAfter()
+            && assertion.getConditions().getNotOnOrAfter().isBeforeNow())
+            throw new AssertionExpiredError("Assertion expired, please log out and then in again");
+        return assertion;
+    }
+
+
+    /** Same as {@link #parse(InputStream,String)}, for an assertion given as a string. */
+    public Assertion parse(final String xml, final String source)
+        throws IOException, AssertionExpiredError, OverloadedError
+    {
+        try {
+            return parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), source);
+        }
+        catch (UnsupportedEncodingException x) {
+            // cannot happen: UTF-8 is always supported
+            throw new IllegalStateException(x.getMessage());
+        }
+    }
+
+
+    /**
+     * Return a copy of {@code assertion} that shares no state with
+     * it: OpenSAML objects are not thread-safe, so each thread working
+     * on the same assertion (e.g., concurrent logins building their
+     * own delegation context) needs its own copy.  {@code assertion}
+     * must not be in use by another thread while it is copied.
+     *
+     * @throws IOException if {@code assertion} cannot be marshalled
+     */
+    public Assertion copy(final Assertion assertion)
+        throws IOException, AssertionExpiredError, OverloadedError
+    {
+        return parse(new ByteArrayInputStream(serialize(assertion)), "copy of assertion " + assertion.getID());
+    }
+
+
+    /**
+     * Return the XML form of {@code assertion}, encoded in UTF-8; it
+     * is marshalled first if it has no DOM.  {@code assertion} must
+     * not be in use by another thread meanwhile.
+     *
+     * @throws IOException if {@code assertion} cannot be marshalled
+     */
+    public static byte[] serialize(final Assertion assertion)
+        throws IOException
+    {
+        Element dom = assertion.getDOM();
+        if (null == dom) {
+            final Marshaller marshaller = Configuration.getMarshallerFactory().getMarshaller(assertion);
+            if (null == marshaller)
+                throw new IOException("No marshaller for SAML2 assertions; has OpenSAML been bootstrapped?");
+            try {
+                dom = marshaller.marshall(assertion);
+            }
+            catch (MarshallingException x) {
+                final IOException error = new IOException("Cannot marshall assertion "
+                                                          + assertion.getID() + ": " + x.getMessage());
+                error.initCause(x);
+                throw error;
+            }
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Writer writer = new OutputStreamWriter(out, "UTF-8");
+        XMLHelper.writeNode(dom, writer);
+        writer.flush();
+        return out.toByteArray();
+    }
+
+
+    /** Parse {@code in} with a pooled parser, and return the document element. */
+    protected Element parseDocument(final InputStream in, final String source)
+        throws IOException, OverloadedError
+    {
+        final DocumentBuilder builder = acquire();
+        try {
+            // `reset()` also drops the error handler
+            builder.setErrorHandler(ERROR_HANDLER);
+            return builder.parse(in).getDocumentElement();
+        }
+        catch (SAXException x) {
+            final IOException error = new IOException("Malformed XML in " + source + ": " + x.getMessage());
+            error.initCause(x);
+            throw error;
+        }
+        finally {
+            release(builder);
+        }
+    }
+
+
+    /**
+     * Return the unmarshaller for {@code root}.  Elements carrying an
+     * {@code xsi:type} are looked up by type, and bypass the cache.
+     */
+    protected Unmarshaller getUnmarshaller(final Element root)
+    {
+        if (root.hasAttributeNS(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "type"))
+            return Configuration.getUnmarshallerFactory().getUnmarshaller(root);
+        final QName name = new QName(root.getNamespaceURI(), root.getLocalName());
+        Unmarshaller unmarshaller = unmarshallers_.get(name);
+        if (null == unmarshaller) {
+            unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(name);
+            if (null != unmarshaller)
+                unmarshallers_.putIfAbsent(name, unmarshaller);
+        }
+        return unmarshaller;
+    }
+
+
+    /** Take a parser from the pool, creating it if none is idle. */
+    private DocumentBuilder acquire()
+        throws OverloadedError
+    {
+        if (! permits_.tryAcquire()) {
+            waited_.incrementAndGet();
+            final long start = System.nanoTime();
+            try {
+                final boolean acquired = permits_.tryAcquire(maxWait_, TimeUnit.MILLISECONDS);
+                waitNanos_.addAndGet(System.nanoTime() - start);
+                if (! acquired) {
+                    rejected_.incrementAndGet();
+                    throw new OverloadedError("All " + poolSize_ + " XML parsers busy for "
+                                              + maxWait_ + "ms", 1);
+                }
+            }
+            catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                throw new OperationsError("Interrupted while waiting for an XML parser", x);
+            }
+        }
+        final DocumentBuilder builder = idle_.poll();
+        if (null != builder)
+            return builder;
+        try {
+            final DocumentBuilder created = builderFactory_.newDocumentBuilder();
+            created_.incrementAndGet();
+            return created;
+        }
+        catch (ParserConfigurationException x) {
+            permits_.release();
+            throw new OperationsError("Cannot create XML parser: " + x.getMessage(), x);
+        }
+        catch (RuntimeException x) {
+            permits_.release();
+            throw x;
+        }
+    }
+
+
+    /** Return {@code builder} to the pool. */
+    private void release(final DocumentBuilder builder)
+    {
+        try {
+            builder.reset();
+            idle_.offer(builder);
+        }
+        catch (UnsupportedOperationException x) {
+            // parser cannot be reset: drop it, a new one is created when needed
+        }
+        finally {
+            permits_.release();
+        }
+    }
+
+
+    /** Return the maximum number of parsers. */
+    public int getPoolSize()     { return poolSize_; }
+    /** Return the maximum time (in milliseconds) a caller waits for a free parser. */
+    public long getMaxWait()     { return maxWait_; }
+    /** Number of parsers in use. */
+    public int getActive()       { return poolSize_ - permits_.availablePermits(); }
+    /** Number of parsers created and now idle. */
+    public int getIdle()         { return idle_.size(); }
+    /** Number of parsers created so far; with reuse, this stays close to the pool size. */
+    public long getCreated()     { return created_.get(); }
+    /** Number of assertions successfully unmarshalled. */
+    public long getParsed()      { return parsed_.get(); }
+    /** Number of inputs that could not be read, or did not hold an assertion. */
+    public long getFailed()      { return failed_.get(); }
+    /** Number of callers that found all parsers in use. */
+    public long getWaited()      { return waited_.get(); }
+    /** Number of callers that got no parser within the maximum wait time. */
+    public long getRejected()    { return rejected_.get(); }
+
+    /** Return the average time (in milliseconds) callers finding all parsers in use waited. */
+    public double getAverageWait()
+    {
+        final long n = waited_.get();
+        return (0 == n) ? 0.0 : waitNanos_.get() / 1e6 / n;
+    }
+
+    public String toString()
+    {
+        return String.format("AssertionParser: poolSize=%d, active=%d, idle=%d, created=%d, parsed=%d,"
+                             + " failed=%d, waited=%d (avg %.1fms), rejected=%d",
+                             poolSize_, getActive(), getIdle(), getCreated(), getParsed(),
+                             getFailed(), getWaited(), getAverageWait(), getRejected());
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * @file   AssertionSelector.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class AssertionSelector
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.swing.gridcertlib;
+
+import org.opensaml.saml2.core.Assertion;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Decides whether an assertion is fresh enough to start an issuance
+ * with, and picks the freshest of several assertions (e.g., all the
+ * {@code Shib-Assertion-NN} URLs exported by the SP), retrieving
+ * them in parallel.
+ * <p>
+ * The following properties are read by {@link #AssertionSelector(Properties)}:
+ * <dl>
+ * <dt>{@code gridcertlib.assertion.minValidity }<dd>time (in milliseconds) an assertion must still be valid for, for issuance to start (default: 30000)
+ * <dt>{@code gridcertlib.assertion.raceGrace   }<dd>time (in milliseconds) {@link #select} waits for fresher assertions once one usable assertion has been retrieved (default: 100)
+ * </dl>
+ */
+public class AssertionSelector {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(AssertionSelector.class);
+
+    /** Retrieves the assertions to select from. */
+    public static interface Source {
+        /** Return the assertion at {@code samlAssertionUrl}. */
+        Assertion getAssertion(String samlAssertionUrl, Deadline deadline) throws Exception;
+    }
+
+    /** Time (in milliseconds) an assertion must still be valid for, for issuance to start. */
+    private volatile long minValidity_ = 30000;
+
+    /** Time (in milliseconds) {@link #select} waits for fresher assertions after the first usable one. */
+    private volatile long raceGrace_ = 100;
+
+
+    /** Constructor, with the default configuration. */
+    public AssertionSelector()
+    {
+        // nothing to do
+    }
+
+
+    /**
+     * Constructor, taking the configuration from a property list;
+     * see the class description for the property names.
+     *
+     * @throws InvalidConfigurationException if a property has an invalid value
+     */
+    public AssertionSelector(final Properties props)
+        throws InvalidConfigurationException
+    {
+        setMinValidity(ConfigProperties.getLongProperty(props, "gridcertlib.assertion.minValidity", 30000, 0));
+        setRaceGrace(ConfigProperties.getLongProperty(props, "gridcertlib.assertion.raceGrace", 100, 0));
+    }
+
+
+    /**
+     * Retrieve the assertions at {@code samlAssertionUrls} from {@code
+     * source} in parallel on {@code executor}, and return the URL of
+     * the freshest usable one: the one with the latest expiration
+     * time among those that have an issuer and pass {@link
+     * #checkValidity}.  Once the first usable assertion arrives, the
+     * others are waited for at most {@link #getRaceGrace}
+     * milliseconds, and then cancelled.
+     *
+     * @throws AssertionExpiredError if no usable assertion was retrieved, and at least one expires too soon
+     * @throws OperationsError if no usable assertion could be retrieved
+     * @throws DeadlineExceededError if {@code deadline} (if not {@code null}) passes before any usable assertion arrives
+     */
+    public String select(final List<String> samlAssertionUrls,
+                         final Deadline deadline,
+                         final ExecutorService executor,
+                         final Source source)
+        throws OperationsError
+    {
+        final ExecutorCompletionService<Assertion> completion =
+            new ExecutorCompletionService<Assertion>(executor);
+        final Map<Future<Assertion>, String> fetches = new HashMap<Future<Assertion>, String>();
+        for (final String samlAssertionUrl : samlAssertionUrls)
+            fetches.put(completion.submit(new Callable<Assertion>() {
+                    public Assertion call() throws Exception {
+                        return source.getAssertion(samlAssertionUrl, deadline);
+                    }
+                }), samlAssertionUrl);
+
+        String best = null;
+        long bestRemaining = Long.MIN_VALUE;
+        long graceEnd = 0;
+        AssertionExpiredError expired = null;
+        Throwable error = null;
+        try {
+            for (int pending = fetches.size(); pending > 0; pending--) {
+                Future<Assertion> done = null;
+                if (null == best) {
+                    if (null == deadline)
+                        done = completion.take();
+                    else
+                        while (null == done) {
+                            deadline.check("assertion selection");
+                            done = completion.poll(deadline.getRemaining(), TimeUnit.MILLISECONDS);
+                        }
+                }
+                else {
+                    long wait = graceEnd - System.currentTimeMillis();
+                    if (null != deadline)
+                        wait = Math.min(wait, deadline.getRemaining());
+                    done = completion.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                    if (null == done)
+                        break;
+                }
+                final String samlAssertionUrl = fetches.get(done);
+                try {
+                    final Assertion assertion = done.get();
+                    if (null == assertion.getIssuer() || null == assertion.getIssuer().getValue()
+                        || "".equals(assertion.getIssuer().getValue().trim())) {
+                        LOG.debug("AssertionSelector: assertion at '" + samlAssertionUrl + "' has no issuer, ignoring it.");
+                        if (null == error)
+                            error = new OperationsError("Assertion at '" + samlAssertionUrl + "' has no issuer");
+                        continue;
+                    }
+                    final long remaining = checkValidity(assertion);
+                    if (remaining > bestRemaining) {
+                        best = samlAssertionUrl;
+                        bestRemaining = remaining;
+                    }
+                    if (0 == graceEnd)
+                        graceEnd = System.currentTimeMillis() + raceGrace_;
+                }
+                catch (AssertionExpiredError x) {
+                    expired = x;
+                }
+                catch (ExecutionException x) {
+                    LOG.debug("AssertionSelector: cannot retrieve assertion at '" + samlAssertionUrl + "': "
+                              + x.getCause().getMessage());
+                    if (x.getCause() instanceof AssertionExpiredError)
+                        expired = (AssertionExpiredError) x.getCause();
+                    else if (null == error)
+                        error = x.getCause();
+                }
+            }
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new OperationsError("Interrupted while waiting for assertions", x);
+        }
+        finally {
+            // cancel the fetches still running
+            for (Future<Assertion> fetch : fetches.keySet())
+                fetch.cancel(true);
+        }
+
+        if (null != best) {
+            LOG.debug("AssertionSelector: selected assertion at '" + best + "', valid for another "
+                      + (bestRemaining / 1000) + " s.");
+            return best;
+        }
+        if (null != expired)
+            throw expired;
+        if (error instanceof RuntimeException)
+            throw (RuntimeException) error;
+        throw new OperationsError("Cannot retrieve any of " + samlAssertionUrls.size() + " assertions: "
+                                  + error.getMessage(), error);
+    }
+
+
+    /**
+     * Return the time (in milliseconds) {@code assertion} is still
+     * valid for.
+     *
+     * @throws AssertionExpiredError if that is less than {@link #getMinValidity}
+     */
+    public long checkValidity(final Assertion assertion)
+        throws AssertionExpiredError
+    {
+        final long minValidity = minValidity_;
+        final long remaining = getRemainingValidity(assertion);
+        if (remaining < minValidity)
+            throw new AssertionExpiredError("Assertion expires in " + Math.max(0, remaining / 1000)
+                                            + " s, less than the " + (minValidity / 1000)
+                                            + " s needed for issuance; please log out and then in again");
+        return remaining;
+    }
+
+    /**
+     * Return the time (in milliseconds) {@code assertion} is still
+     * valid for, or {@link Long#MAX_VALUE} if it has no expiration time.
+     */
+    public static long getRemainingValidity(final Assertion assertion)
+    {
+        if (null == assertion.getConditions() || null == assertion.getConditions().getNotOnOrAfter())
+            return Long.MAX_VALUE;
+        return assertion.getConditions().getNotOnOrAfter().getMillis() - System.currentTimeMillis();
+    }
+
+
+    /** Return the time (in milliseconds) an assertion must still be valid for, for issuance to start. */
+    public long getMinValidity()
+    {
+        return minValidity_;
+    }
+
+    /** Set the time (in milliseconds) an assertion must still be valid for, for issuance to start; 0 only rejects expired ones. */
+    public void setMinValidity(final long validity)
+    {
+        if (validity < 0)
+            throw new IllegalArgumentException("AssertionSelector: minimum assertion validity must not be negative");
+        minValidity_ = validity;
+    }
+
+    /** Return the time (in milliseconds) {@link #select} waits for fresher assertions after the first usable one. */
+    public long getRaceGrace()
+    {
+        return raceGrace_;
+    }
+
+    /** Set the time (in milliseconds) {@link #select} waits for fresher assertions after the first usable one. */
+    public void setRaceGrace(final long grace)
+    {
+        if (grace < 0)
+            throw new IllegalArgumentException("AssertionSelector: race grace time must not be negative");
+        raceGrace_ = grace;
+    }
+}
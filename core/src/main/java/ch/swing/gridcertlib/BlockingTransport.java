@@ -0,0 +1,297 @@
+/**
+ * @file   BlockingTransport.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class BlockingTransport
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import ch.SWITCH.aai.idwsf.ecp.DelegationContext;
+import ch.SWITCH.aai.idwsf.ecp.WebServiceClient;
+import ch.SWITCH.aai.idwsf.token.SAML2AssertionURLResolver;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.opensaml.saml2.core.Assertion;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * The original GridCertLib transport: requests are made through the
+ * commons-httpclient client inside an ID-WSF {@link
+ * WebServiceClient}, which authenticates with the SP certificate as
+ * configured in its {@link ch.SWITCH.httpclient.tls.PEMTLSCredentials}.
+ * <p>
+ * Requests block a thread for their whole duration: the returned
+ * futures do nothing until {@link Future#get} is called, and then
+ * run the request in the calling thread (the timeout argument to
+ * {@code get} is not honoured, the commons-httpclient socket
+ * timeouts apply instead).
+ */
+public class BlockingTransport implements SLCSTransport {
+
+    protected final WebServiceClient wsc_;
+
+    /** Parses retrieved assertions; if {@code null}, the ID-WSF resolver fetches and parses them. */
+    protected final AssertionParser parser_;
+
+
+    /** Constructor; assertions are retrieved with the ID-WSF {@link SAML2AssertionURLResolver}. */
+    public BlockingTransport(final WebServiceClient wsc)
+    {
+        this(wsc, null);
+    }
+
+
+    /**
+     * Constructor; assertions are retrieved through {@code wsc}, and
+     * parsed with {@code parser}.
+     *
+     * @param parser parser for retrieved assertions, or {@code null} to use the ID-WSF resolver
+     */
+    public BlockingTransport(final WebServiceClient wsc, final AssertionParser parser)
+    {
+        assert(null != wsc);
+        wsc_ = wsc;
+        parser_ = parser;
+    }
+
+
+    public Future<Assertion> fetchAssertion(final String assertionUrl)
+    {
+        if (null == parser_)
+            return new Deferred<Assertion>(null) {
+                protected Assertion compute() throws Exception {
+                    return new SAML2AssertionURLResolver(assertionUrl).resolveToken();
+                }
+            };
+        final GetMethod method = new GetMethod(assertionUrl);
+        return new Deferred<Assertion>(method) {
+            protected Assertion compute() throws Exception {
+                wsc_.executeMethod(method);
+                final TransportResponse response = toResponse(method);
+                if (200 != response.getStatus())
+                    throw new IOException("Cannot retrieve assertion from '" + assertionUrl + "': "
+                                          + response.getStatusLine());
+                // the body is read in full, so no parser waits on the network
+                return parser_.parse(new ByteArrayInputStream(response.getBody()),
+                                     "response from '" + assertionUrl + "'");
+            }
+        };
+    }
+
+
+    public Future<TransportResponse> login(final DelegationContext context, final String slcsLoginUrl)
+    {
+        final GetMethod method = new GetMethod(slcsLoginUrl);
+        return new Deferred<TransportResponse>(method) {
+            protected TransportResponse compute() throws Exception {
+                wsc_.executeMethod(context, method);
+                return toResponse(method);
+            }
+        };
+    }
+
+
+    public Future<TransportResponse> post(final String url, final Map<String, String> parameters)
+    {
+        final PostMethod method = new PostMethod(url);
+        for (Map.Entry<String, String> param : parameters.entrySet())
+            method.addParameter(param.getKey(), param.getValue());
+        return new Deferred<TransportResponse>(method) {
+            protected TransportResponse compute() throws Exception {
+                wsc_.executeMethod(method);
+                return toResponse(method);
+            }
+        };
+    }
+
+
+    public void warmUp(final String url)
+        throws IOException
+    {
+        final GetMethod method = new GetMethod(url);
+        try {
+            wsc_.executeMethod(method);
+            method.getResponseBody();
+        }
+        catch (IOException x) {
+            throw x;
+        }
+        catch (Exception x) {
+            final IOException error = new IOException("Cannot retrieve '" + url + "': " + x.getMessage());
+            error.initCause(x);
+            throw error;
+        }
+        finally {
+            method.releaseConnection();
+        }
+    }
+
+
+    /** Nothing to do: the {@code WebServiceClient} is owned by the caller. */
+    public void close()
+    {
+        // nothing to do
+    }
+
+
+    /** Read status, headers and body off a completed {@code method}. */
+    protected static TransportResponse toResponse(final HttpMethod method)
+        throws IOException
+    {
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+        for (Header header : method.getResponseHeaders())
+            headers.put(header.getName().toLowerCase(), header.getValue());
+        byte[] body = method.getResponseBody();
+        if (null == body)
+            body = new byte[0];
+        return new TransportResponse(method.getStatusCode(),
+                                     method.getStatusLine().toString(),
+                                     headers, body);
+    }
+
+
+    /**
+     * A computation run in the first thread that calls {@link #get};
+     * other threads calling {@code get} wait for it.  Cancelling
+     * aborts the HTTP method, if any.  Waiting uses a {@link
+     * ReentrantLock}, so that virtual threads do not pin their
+     * carrier thread.
+     */
+    protected abstract static class Deferred<T> implements Future<T> {
+        private final HttpMethod method_;
+        private final ReentrantLock lock_ = new ReentrantLock();
+        private final Condition finished_ = lock_.newCondition();
+        private boolean started_ = false;
+        private boolean done_ = false;
+        private boolean cancelled_ = false;
+        private T result_ = null;
+        private Throwable error_ = null;
+
+        protected Deferred(final HttpMethod method) {
+            method_ = method;
+        }
+
+        protected abstract T compute() throws Exception;
+
+        public T get() throws InterruptedException, ExecutionException {
+            lock_.lock();
+            try {
+                while (started_ && ! done_)
+                    finished_.await();
+                if (done_)
+                    return outcome();
+                started_ = true;
+            }
+            finally {
+                lock_.unlock();
+            }
+            T result = null;
+            Throwable error = null;
+            try {
+                result = compute();
+            }
+            catch (Throwable x) {
+                error = x;
+            }
+            finally {
+                if (null != method_)
+                    method_.releaseConnection();
+            }
+            lock_.lock();
+            try {
+                if (! done_) {
+                    result_ = result;
+                    error_ = error;
+                    done_ = true;
+                }
+                finished_.signalAll();
+                return outcome();
+            }
+            finally {
+                lock_.unlock();
+            }
+        }
+
+        public T get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException
+        {
+            return get();
+        }
+
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            lock_.lock();
+            try {
+                if (done_)
+                    return false;
+                cancelled_ = true;
+                done_ = true;
+                finished_.signalAll();
+            }
+            finally {
+                lock_.unlock();
+            }
+            if (null != method_)
+                method_.abort();
+            return true;
+        }
+
+        public boolean isCancelled() {
+            lock_.lock();
+            try {
+                return cancelled_;
+            }
+            finally {
+                lock_.unlock();
+            }
+        }
+
+        public boolean isDone() {
+            lock_.lock();
+            try {
+                return done_;
+            }
+            finally {
+                lock_.unlock();
+            }
+        }
+
+        /** Must be called with the lock held. */
+        private T outcome() throws ExecutionException {
+            if (cancelled_)
+                throw new CancellationException("Request cancelled");
+            if (null != error_)
+                throw new ExecutionException(error_);
+            return result_;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * @file   BoundedResponseConsumer.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class BoundedResponseConsumer
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.swing.gridcertlib;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Collect an HTTP response of {@link NioHttpClient} into a {@link
+ * TransportResponse}, enforcing a maximum body size and a maximum
+ * duration: a response exceeding either fails with an {@link
+ * IOException} (a {@link SocketTimeoutException} for the duration),
+ * and its connection is closed.  Content arrives in the I/O threads
+ * of the client, so each chunk is only copied, never parsed.
+ */
+public class BoundedResponseConsumer extends AbstractAsyncResponseConsumer<TransportResponse> {
+
+    protected final String url_;
+    protected final int maxSize_;
+    protected final long expires_;
+    private final ByteBuffer buffer_ = ByteBuffer.allocate(8192);
+    private HttpResponse response_;
+    private ByteArrayOutputStream body_;
+
+
+    /**
+     * Constructor.
+     *
+     * @param url      request URL, for error messages
+     * @param maxSize  maximum size (in bytes) of the response body
+     * @param expires  time (as returned by {@link System#currentTimeMillis}) by which the response must be complete
+     */
+    public BoundedResponseConsumer(final String url, final int maxSize, final long expires)
+    {
+        url_ = url;
+        maxSize_ = maxSize;
+        expires_ = expires;
+    }
+
+
+    protected void onResponseReceived(final HttpResponse response)
+        throws IOException
+    {
+        checkExpired();
+        response_ = response;
+        body_ = new ByteArrayOutputStream();
+    }
+
+    protected void onEntityEnclosed(final HttpEntity entity, final ContentType contentType)
+        throws IOException
+    {
+        final long length = entity.getContentLength();
+        if (length > maxSize_)
+            throw tooLarge();
+        if (length > 0)
+            body_ = new ByteArrayOutputStream((int) length);
+    }
+
+    protected void onContentReceived(final ContentDecoder decoder, final IOControl control)
+        throws IOException
+    {
+        checkExpired();
+        int n;
+        while ((n = decoder.read(buffer_)) > 0) {
+            if (body_.size() + n > maxSize_)
+                throw tooLarge();
+            body_.write(buffer_.array(), 0, n);
+            buffer_.clear();
+        }
+        buffer_.clear();
+    }
+
+    protected TransportResponse buildResult(final HttpContext context)
+    {
+        final Map<String, String> headers = new HashMap<String, String>();
+        for (Header header : response_.getAllHeaders()) {
+            final String name = header.getName().toLowerCase();
+            final String previous = headers.get(name);
+            headers.put(name, (null == previous) ? header.getValue() : previous + ", " + header.getValue());
+        }
+        return new TransportResponse(response_.getStatusLine().getStatusCode(),
+                                     response_.getStatusLine().toString(),
+                                     headers,
+                                     body_.toByteArray());
+    }
+
+    protected void releaseResources()
+    {
+        response_ = null;
+        body_ = null;
+    }
+
+
+    private void checkExpired()
+        throws SocketTimeoutException
+    {
+        if (System.currentTimeMillis() >= expires_)
+            throw new SocketTimeoutException("Request to '" + url_ + "' timed out");
+    }
+
+    private IOException tooLarge()
+    {
+        return new IOException("Response from '" + url_ + "' is larger than " + maxSize_ + " bytes");
+    }
+}
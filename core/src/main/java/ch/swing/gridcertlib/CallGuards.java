@@ -0,0 +1,171 @@
+/**
+ * @file   CallGuards.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class CallGuards
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.swing.gridcertlib;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * Guards on the calls to remote services (assertion URLs, WSP and
+ * SLCS endpoints): a {@link CircuitBreaker} for each endpoint, and
+ * the {@link RetryPolicy} of idempotent calls.
+ * <p>
+ * The following properties are read by {@link #CallGuards(Properties)}:
+ * <dl>
+ * <dt>{@code gridcertlib.circuitBreaker.failureThreshold }<dd>consecutive failures after which calls to an endpoint fail fast (default: 5)
+ * <dt>{@code gridcertlib.circuitBreaker.openTimeout      }<dd>time (in milliseconds) before a failing endpoint is tried again (default: 30000)
+ * <dt>{@code gridcertlib.retry.*                         }<dd>see {@link RetryPolicy}
+ * </dl>
+ */
+public class CallGuards {
+
+    /** Circuit breakers for the remote endpoints, keyed by URL protocol, host and port. */
+    private final ConcurrentMap<String, CircuitBreaker> breakers_ =
+        new ConcurrentHashMap<String, CircuitBreaker>();
+
+    /** Listeners added to every circuit breaker. */
+    private final List<CircuitBreaker.Listener> listeners_ =
+        new CopyOnWriteArrayList<CircuitBreaker.Listener>();
+
+    /** Consecutive failures that open a circuit breaker. */
+    private volatile int failureThreshold_ = 5;
+
+    /** Time (in milliseconds) an open circuit breaker waits before letting a trial call through. */
+    private volatile long openTimeout_ = 30000;
+
+    /** Retry policy for idempotent calls; {@code null} means no retries. */
+    private volatile RetryPolicy retry_;
+
+
+    /** Constructor, with the default configuration. */
+    public CallGuards()
+    {
+        retry_ = new RetryPolicy(new Properties());
+    }
+
+
+    /**
+     * Constructor, taking the configuration from a property list;
+     * see the class description for the property names.
+     *
+     * @throws InvalidConfigurationException if a property has an invalid value
+     */
+    public CallGuards(final Properties props)
+        throws InvalidConfigurationException
+    {
+        setCircuitBreakerConfiguration(ConfigProperties.getIntProperty(props, "gridcertlib.circuitBreaker.failureThreshold", 5, 1),
+                                       ConfigProperties.getLongProperty(props, "gridcertlib.circuitBreaker.openTimeout", 30000, 0));
+        try {
+            retry_ = new RetryPolicy(props);
+        }
+        catch (IllegalArgumentException x) {
+            throw new InvalidConfigurationException("Invalid value in 'gridcertlib.retry.*' properties: "
+                                                    + x.getMessage(), x);
+        }
+    }
+
+
+    /**
+     * Return the circuit breaker guarding the endpoint of {@code url}.
+     * URLs with the same protocol, host and port share the same
+     * breaker; it is created on first use.
+     */
+    public CircuitBreaker getCircuitBreaker(final String url)
+    {
+        final String endpoint = endpointOf(url);
+        CircuitBreaker breaker = breakers_.get(endpoint);
+        if (null == breaker) {
+            final CircuitBreaker created =
+                new CircuitBreaker(endpoint, failureThreshold_, openTimeout_);
+            for (CircuitBreaker.Listener listener : listeners_)
+                created.addListener(listener);
+            breaker = breakers_.putIfAbsent(endpoint, created);
+            if (null == breaker)
+                breaker = created;
+        }
+        return breaker;
+    }
+
+    /** Return all circuit breakers created so far, e.g., for monitoring. */
+    public Collection<CircuitBreaker> getCircuitBreakers()
+    {
+        return Collections.unmodifiableCollection(breakers_.values());
+    }
+
+    /** Add {@code listener} to all present and future circuit breakers. */
+    public void addCircuitBreakerListener(final CircuitBreaker.Listener listener)
+    {
+        listeners_.add(listener);
+        for (CircuitBreaker breaker : breakers_.values())
+            breaker.addListener(listener);
+    }
+
+    /**
+     * Set the configuration of circuit breakers created from now on.
+     *
+     * @throws IllegalArgumentException if {@code failureThreshold} is not positive, or {@code openTimeout} is negative
+     */
+    public void setCircuitBreakerConfiguration(final int failureThreshold, final long openTimeout)
+    {
+        if (failureThreshold < 1 || openTimeout < 0)
+            throw new IllegalArgumentException("Circuit breaker failureThreshold must be positive"
+                                               + " and openTimeout non-negative");
+        failureThreshold_ = failureThreshold;
+        openTimeout_ = openTimeout;
+    }
+
+    /** Return the retry policy for idempotent calls, or {@code null} if they are not retried. */
+    public RetryPolicy getRetryPolicy()
+    {
+        return retry_;
+    }
+
+    /** Set the retry policy for idempotent calls; {@code null} disables retries. */
+    public void setRetryPolicy(final RetryPolicy retry)
+    {
+        retry_ = retry;
+    }
+
+    /** Return the "protocol://host:port" part of {@code url}, or {@code url} itself if it cannot be parsed. */
+    protected static String endpointOf(final String url)
+    {
+        try {
+            final URL u = new URL(url);
+            final int port = (-1 == u.getPort()) ? u.getDefaultPort() : u.getPort();
+            return u.getProtocol() + "://" + u.getHost().toLowerCase() + ":" + port;
+        }
+        catch (MalformedURLException x) {
+            return url;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * @file   CircuitBreaker.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class CircuitBreaker
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * Circuit breaker guarding calls to a single remote endpoint.
+ * <p>
+ * In the {@link State#CLOSED} state, calls go through; after {@code
+ * failureThreshold} consecutive failures, the breaker goes {@link
+ * State#OPEN} and rejects all calls with a {@link CircuitOpenError}.
+ * When {@code openTimeout} milliseconds have passed, the next call
+ * is let through as a trial ({@link State#HALF_OPEN}; concurrent
+ * calls are still rejected): if it succeeds, the breaker closes
+ * again, otherwise it re-opens for another {@code openTimeout}.
+ * <p>
+ * Usage: call {@link #acquirePermission} before contacting the
+ * endpoint, then exactly one of {@link #onSuccess}, {@link
+ * #onFailure} or {@link #onIgnored} when done.  Only failures that
+ * indicate an endpoint problem (network errors, timeouts, HTTP 5xx)
+ * should be reported with {@link #onFailure}; an error response
+ * caused by the request itself (e.g., authorization denied) shows
+ * the endpoint is working, and should count as success.
+ * <p>
+ * State transitions are logged, and signalled to registered {@link
+ * Listener}s; counters are available for monitoring.
+ */
+public class CircuitBreaker {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public static enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /** Receives notification of state transitions. */
+    public static interface Listener {
+        /** Called after {@code breaker} has moved from state {@code from} to state {@code to}. */
+        void stateChanged(CircuitBreaker breaker, State from, State to);
+    }
+
+    protected final String name_;
+    protected final int failureThreshold_;
+    protected final long openTimeout_;
+    protected final List<Listener> listeners_ = new CopyOnWriteArrayList<Listener>();
+
+    private State state_ = State.CLOSED;
+    private int consecutiveFailures_ = 0;
+    private long openedAt_ = 0;
+    private boolean trialInProgress_ = false;
+
+    private long successes_ = 0;
+    private long failures_ = 0;
+    private long rejected_ = 0;
+    private long timesOpened_ = 0;
+
+
+    /**
+     * Constructor.
+     *
+     * @param name             name of the guarded endpoint, used in messages
+     * @param failureThreshold number of consecutive failures that opens the breaker
+     * @param openTimeout      time (in milliseconds) the breaker stays open before a trial call is let through
+     */
+    public CircuitBreaker(final String name, final int failureThreshold, final long openTimeout)
+    {
+        if (failureThreshold < 1 || openTimeout < 0)
+            throw new IllegalArgumentException("CircuitBreaker: failureThreshold must be positive"
+                                               + " and openTimeout non-negative");
+        name_ = name;
+        failureThreshold_ = failureThreshold;
+        openTimeout_ = openTimeout;
+    }
+
+
+    public String getName() { return name_; }
+
+    public void addListener(final Listener listener)    { listeners_.add(listener); }
+    public void removeListener(final Listener listener) { listeners_.remove(listener); }
+
+
+    /**
+     * Check whether a call may proceed.
+     *
+     * @throws CircuitOpenError if the breaker is open, or half-open with a trial call in progress
+     */
+    public void acquirePermission()
+        throws CircuitOpenError
+    {
+        State from = null;
+        synchronized (this) {
+            if (State.OPEN == state_) {
+                final long left = openedAt_ + openTimeout_ - System.currentTimeMillis();
+                if (left > 0) {
+                    rejected_++;
+                    throw new CircuitOpenError("Endpoint '" + name_ + "' unavailable after "
+                                               + consecutiveFailures_ + " consecutive failures",
+                                               (int) Math.max(1, (left + 999) / 1000));
+                }
+                from = transition(State.HALF_OPEN);
+            }
+            else if (State.HALF_OPEN == state_ && trialInProgress_) {
+                rejected_++;
+                throw new CircuitOpenError("Endpoint '" + name_ + "' unavailable, recovery trial in progress", 1);
+            }
+            if (State.HALF_OPEN == state_)
+                trialInProgress_ = true;
+        }
+        if (null != from)
+            fireStateChanged(from, State.HALF_OPEN);
+    }
+
+
+    /** Report that a call permitted by {@link #acquirePermission} succeeded. */
+    public void onSuccess()
+    {
+        State from = null;
+        synchronized (this) {
+            successes_++;
+            consecutiveFailures_ = 0;
+            trialInProgress_ = false;
+            if (State.CLOSED != state_)
+                from = transition(State.CLOSED);
+        }
+        if (null != from)
+            fireStateChanged(from, State.CLOSED);
+    }
+
+
+    /** Report that a call permitted by {@link #acquirePermission} failed because of an endpoint problem. */
+    public void onFailure()
+    {
+        State from = null;
+        synchronized (this) {
+            failures_++;
+            consecutiveFailures_++;
+            trialInProgress_ = false;
+            if (State.HALF_OPEN == state_
+                || (State.CLOSED == state_ && consecutiveFailures_ >= failureThreshold_)) {
+                openedAt_ = System.currentTimeMillis();
+                timesOpened_++;
+                from = transition(State.OPEN);
+            }
+        }
+        if (null != from)
+            fireStateChanged(from, State.OPEN);
+    }
+
+
+    /** Report that a call permitted by {@link #acquirePermission}
+     * did not reach the endpoint (e.g., an earlier step failed), so
+     * it says nothing about the endpoint health.
+     */
+    public synchronized void onIgnored()
+    {
+        trialInProgress_ = false;
+    }
+
+
+    public synchronized State getState()          { return state_; }
+    public synchronized int getConsecutiveFailures() { return consecutiveFailures_; }
+    public synchronized long getSuccessCount()    { return successes_; }
+    public synchronized long getFailureCount()    { return failures_; }
+    public synchronized long getRejectedCount()   { return rejected_; }
+    public synchronized long getTimesOpened()     { return timesOpened_; }
+
+
+    public synchronized String toString()
+    {
+        return "CircuitBreaker(" + name_ + ": " + state_
+            + ", successes=" + successes_ + ", failures=" + failures_
+            + ", rejected=" + rejected_ + ", opened=" + timesOpened_ + ")";
+    }
+
+
+    /** Change state; must be called with the lock held.  Returns the previous state. */
+    private State transition(final State to)
+    {
+        final State from = state_;
+        state_ = to;
+        return from;
+    }
+
+
+    private void fireStateChanged(final State from, final State to)
+    {
+        if (State.OPEN == to)
+            LOG.warn("CircuitBreaker: endpoint '" + name_ + "' went " + from + " -> " + to);
+        else
+            LOG.info("CircuitBreaker: endpoint '" + name_ + "' went " + from + " -> " + to);
+        for (Listener listener : listeners_) {
+            try {
+                listener.stateChanged(this, from, to);
+            }
+            catch (RuntimeException x) {
+                LOG.error("CircuitBreaker: listener " + listener + " failed: " + x.getMessage(), x);
+            }
+        }
+    }
+}
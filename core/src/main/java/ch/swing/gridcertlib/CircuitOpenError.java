@@ -0,0 +1,52 @@
+/**
+ * @file   CircuitOpenError.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class CircuitOpenError
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+
+/**
+ * Thrown when a remote endpoint is not contacted because its {@link
+ * CircuitBreaker} is open, i.e., recent calls to it have failed.
+ * This is a kind of {@link OverloadedError}: the request may be
+ * retried after {@link #getRetryAfter} seconds, and servlets answer
+ * it with {@code 503 Service Unavailable}.
+ *
+ * @author  riccardo.murri@gmail.com
+ * @version $Revision$
+ */
+public class CircuitOpenError
+    extends OverloadedError
+{
+    public CircuitOpenError(final String explanation,
+                            final int retryAfter) 
+    {
+        super(explanation, retryAfter);
+    }
+
+    public CircuitOpenError(final String explanation, 
+                            final int retryAfter,
+                            final Throwable cause) 
+    {
+        super(explanation, retryAfter, cause);
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * @file   ConfigProperties.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class ConfigProperties
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.swing.gridcertlib;
+
+import java.util.Properties;
+
+
+/**
+ * Parsing and validation of the {@code gridcertlib.*} configuration
+ * properties, shared by the core classes and the servlets, so that a
+ * bad value is reported the same way wherever it is read: as an
+ * {@link InvalidConfigurationException} naming the property and the
+ * offending value.
+ * <p>
+ * The properties themselves are documented by the classes reading
+ * them.
+ */
+public final class ConfigProperties {
+
+    /** Not instantiable. */
+    private ConfigProperties() { }
+
+
+    /**
+     * Return the value of property {@code name}.
+     *
+     * @throws InvalidConfigurationException if the property is not set
+     */
+    public static String getRequiredProperty(final Properties props, final String name)
+        throws InvalidConfigurationException
+    {
+        final String value = props.getProperty(name);
+        if (null == value)
+            throw new InvalidConfigurationException("Missing required property '" + name + "'");
+        return value;
+    }
+
+
+    /**
+     * Return the value of integer property {@code name}, or {@code
+     * defaultValue} if it is not set.
+     *
+     * @throws InvalidConfigurationException if the value is not an integer, or is less than {@code minValue}
+     */
+    public static int getIntProperty(final Properties props, final String name,
+                                     final int defaultValue, final int minValue)
+        throws InvalidConfigurationException
+    {
+        return parseInt(name, props.getProperty(name), defaultValue, minValue);
+    }
+
+
+    /**
+     * Return the value of integer property {@code name}, or {@code
+     * defaultValue} if it is not set.
+     *
+     * @throws InvalidConfigurationException if the value is not an integer, or is less than {@code minValue}
+     */
+    public static long getLongProperty(final Properties props, final String name,
+                                       final long defaultValue, final long minValue)
+        throws InvalidConfigurationException
+    {
+        return parseLong(name, props.getProperty(name), defaultValue, minValue);
+    }
+
+
+    /**
+     * Return the value of boolean property {@code name} ({@code true}
+     * or {@code false}, in any case), or {@code defaultValue} if it
+     * is not set.
+     *
+     * @throws InvalidConfigurationException if the value is neither {@code true} nor {@code false}
+     */
+    public static boolean getBooleanProperty(final Properties props, final String name,
+                                             final boolean defaultValue)
+        throws InvalidConfigurationException
+    {
+        final String text = props.getProperty(name);
+        if (null == text)
+            return defaultValue;
+        if ("true".equalsIgnoreCase(text.trim()))
+            return true;
+        if ("false".equalsIgnoreCase(text.trim()))
+            return false;
+        throw new InvalidConfigurationException("Invalid value '" + text + "' for property '"
+                                                + name + "': must be one of 'true' or 'false'");
+    }
+
+
+    /**
+     * Return the value of property {@code name}, or {@code
+     * defaultValue} if it is not set; the value must be one of {@code
+     * choices}.
+     *
+     * @throws InvalidConfigurationException if the value is not one of {@code choices}
+     */
+    public static String getChoiceProperty(final Properties props, final String name,
+                                           final String defaultValue, final String... choices)
+        throws InvalidConfigurationException
+    {
+        final String value = props.getProperty(name, defaultValue).trim();
+        final StringBuilder allowed = new StringBuilder();
+        for (String choice : choices) {
+            if (choice.equals(value))
+                return value;
+            allowed.append((0 == allowed.length()) ? "'" : ", '").append(choice).append("'");
+        }
+        throw new InvalidConfigurationException("Invalid value '" + value + "' for property '"
+                                                + name + "': must be one of " + allowed);
+    }
+
+
+    /**
+     * Return {@code text} (e.g., a servlet init parameter called
+     * {@code name}) as an integer, or {@code defaultValue} if it is
+     * {@code null}.
+     *
+     * @throws InvalidConfigurationException if {@code text} is not an integer, or is less than {@code minValue} or larger than {@link Integer#MAX_VALUE}
+     */
+    public static int parseInt(final String name, final String text,
+                               final int defaultValue, final int minValue)
+        throws InvalidConfigurationException
+    {
+        final long value = parseLong(name, text, defaultValue, minValue);
+        if (value > Integer.MAX_VALUE)
+            throw new InvalidConfigurationException("Invalid value '" + text + "' for property '"
+                                                    + name + "': must be at most " + Integer.MAX_VALUE);
+        return (int) value;
+    }
+
+
+    /**
+     * Return {@code text} (e.g., a servlet init parameter called
+     * {@code name}) as an integer, or {@code defaultValue} if it is
+     * {@code null}.
+     *
+     * @throws InvalidConfigurationException if {@code text} is not an integer, or is less than {@code minValue}
+     */
+    public static long parseLong(final String name, final String text,
+                                 final long defaultValue, final long minValue)
+        throws InvalidConfigurationException
+    {
+        if (null == text)
+            return defaultValue;
+        final long value;
+        try {
+            value = Long.parseLong(text.trim());
+        }
+        catch (NumberFormatException x) {
+            throw new InvalidConfigurationException("Invalid value '" + text + "' for property '"
+                                                    + name + "': not an integer", x);
+        }
+        if (value < minValue)
+            throw new InvalidConfigurationException("Invalid value '" + text + "' for property '"
+                                                    + name + "': must be at least " + minValue);
+        return value;
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * @file   Deadline.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class Deadline
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Point in time by which an operation must be completed.
+ * <p>
+ * A deadline is created once, by the caller of {@link
+ * SLCSFactory#newSLCS(String,String,String,String,Deadline)} or
+ * {@link GridProxyFactory#newProxy(String,String,String,String[],Deadline)},
+ * and passed down to every phase, each of which gets the remaining
+ * time as its budget.  {@link #await} cancels the awaited request
+ * when the deadline passes, also when the future itself does not
+ * honour timeouts (as the {@link BlockingTransport} ones do not);
+ * any phase overrunning the deadline throws a {@link
+ * DeadlineExceededError}.  A deadline can also be made to pass early
+ * with {@link #cancel}, e.g., when the client has stopped waiting.
+ * <p>
+ * Servlets take the time allowed for a request from property {@code
+ * gridcertlib.deadline} (in milliseconds; default: 0, no limit); see
+ * {@link #getTimeout}.
+ */
+public class Deadline {
+
+    /** Cancels requests whose deadline has passed. */
+    private static final ScheduledExecutorService timer_ =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "gridcertlib-deadline");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** Expiration time, as a {@link System#nanoTime} value. */
+    private final long expires_;
+    private final long timeout_;
+
+    /** Set by {@link #cancel}. */
+    private volatile boolean cancelled_ = false;
+
+    /** Requests currently in {@link #await}, cancelled by {@link #cancel}. */
+    private final Queue<Future<?>> awaited_ = new ConcurrentLinkedQueue<Future<?>>();
+
+
+    /** Constructor for a deadline {@code timeout} milliseconds from now. */
+    public Deadline(final long timeout)
+    {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Deadline: timeout must not be negative");
+        timeout_ = timeout;
+        expires_ = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+
+    /**
+     * Return the time (in milliseconds) allowed for a request by
+     * property {@code gridcertlib.deadline}, or 0 for no limit.
+     *
+     * @throws InvalidConfigurationException if the property has an invalid value
+     */
+    public static long getTimeout(final Properties props)
+        throws InvalidConfigurationException
+    {
+        return ConfigProperties.getLongProperty(props, "gridcertlib.deadline", 0, 0);
+    }
+
+
+    /** Return the time (in milliseconds) left before the deadline, or 0 if it has passed. */
+    public long getRemaining()
+    {
+        if (cancelled_)
+            return 0;
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expires_ - System.nanoTime()));
+    }
+
+    public boolean isExpired()
+    {
+        return cancelled_ || System.nanoTime() - expires_ >= 0;
+    }
+
+
+    /**
+     * Make the deadline pass now: the requests being awaited are
+     * cancelled, and the next phase to start throws a {@link
+     * DeadlineExceededError}.
+     */
+    public void cancel()
+    {
+        cancelled_ = true;
+        for (Future<?> future : awaited_)
+            future.cancel(true);
+    }
+
+    /** Return {@code true} if {@link #cancel} has been called. */
+    public boolean isCancelled()
+    {
+        return cancelled_;
+    }
+
+
+    /**
+     * Throw a {@link DeadlineExceededError} if the deadline has
+     * passed; {@code phase} names the step about to start, for the
+     * error message.
+     */
+    public void check(final String phase)
+        throws DeadlineExceededError
+    {
+        if (isExpired())
+            throw exceeded(phase, null);
+    }
+
+
+    /**
+     * Wait for {@code future} until the deadline, and return its
+     * result; if the deadline passes first, cancel {@code future} and
+     * throw a {@link DeadlineExceededError}.
+     *
+     * @throws ExecutionException wrapping the exception thrown by the computation
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public <T> T await(final Future<T> future, final String phase)
+        throws ExecutionException, InterruptedException
+    {
+        // registered before reading the remaining time, so that a
+        // concurrent `cancel()` is never missed
+        awaited_.add(future);
+        try {
+            return awaitRegistered(future, phase);
+        }
+        finally {
+            awaited_.remove(future);
+        }
+    }
+
+
+    private <T> T awaitRegistered(final Future<T> future, final String phase)
+        throws ExecutionException, InterruptedException
+    {
+        final long remaining = getRemaining();
+        if (0 == remaining) {
+            future.cancel(true);
+            throw exceeded(phase, null);
+        }
+        // the watchdog may fire a little before `isExpired()` turns true
+        final AtomicBoolean fired = new AtomicBoolean(false);
+        final ScheduledFuture<?> watchdog = timer_.schedule(new Runnable() {
+                public void run() {
+                    fired.set(true);
+                    future.cancel(true);
+                }
+            }, remaining, TimeUnit.MILLISECONDS);
+        try {
+            return future.get(remaining, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException x) {
+            future.cancel(true);
+            throw exceeded(phase, x);
+        }
+        catch (CancellationException x) {
+            if (fired.get() || isExpired())
+                throw exceeded(phase, x);
+            throw x;
+        }
+        catch (ExecutionException x) {
+            // the request may have failed because it was cancelled
+            if ((fired.get() || isExpired()) && future.isCancelled())
+                throw exceeded(phase, x.getCause());
+            throw x;
+        }
+        finally {
+            watchdog.cancel(false);
+        }
+    }
+
+
+    private DeadlineExceededError exceeded(final String phase, final Throwable cause)
+    {
+        if (cancelled_)
+            return new DeadlineExceededError("Deadline of " + timeout_ + "ms cancelled during " + phase, cause);
+        return new DeadlineExceededError("Deadline of " + timeout_ + "ms exceeded during " + phase, cause);
+    }
+
+    public String toString()
+    {
+        return "Deadline(" + getRemaining() + "ms left of " + timeout_ + "ms)";
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * @file   DeadlineExceededError.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class DeadlineExceededError
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+
+/**
+ * Thrown when an operation could not be completed before its {@link
+ * Deadline}; the request in progress, if any, has been cancelled.
+ * Servlets should translate this into a {@code 504 Gateway Timeout}
+ * response.
+ *
+ * @author  riccardo.murri@gmail.com
+ * @version $Revision$
+ */
+public class DeadlineExceededError
+    extends OperationsError
+{
+    public DeadlineExceededError(final String explanation) 
+    {
+        super(explanation);
+    }
+
+    public DeadlineExceededError(final String explanation, 
+                                 final Throwable cause) 
+    {
+        super(explanation, cause);
+    }
+}
@@ -0,0 +1,316 @@
+/**
+ * @file   FederatedSLCSFactory.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class FederatedSLCSFactory
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import ch.SWITCH.aai.idwsf.token.TokenResolverException;
+import org.glite.slcs.SLCSException;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Issuer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+
+/**
+ * An {@link SLCSFactory} serving users from several federations,
+ * each with its own SLCS endpoints and SP credentials.
+ * <p>
+ * The assertion is retrieved first; its issuer (the IdP entity ID)
+ * selects the federation, and the certificate is requested by that
+ * federation's {@code SLCSFactory}, which is built on first use and
+ * then reused; assertions from IdPs not listed in any federation are
+ * served by this factory itself, with the un-prefixed configuration.
+ * <p>
+ * In addition to the properties read by {@link
+ * SLCSFactory#SLCSFactory(Properties,boolean)}, the following
+ * properties configure an instance:
+ * <dl>
+ * <dt>{@code gridcertlib.federations                }<dd>comma-separated list of federation names
+ * <dt>{@code gridcertlib.federation.NAME.issuers    }<dd>comma-separated list of the entity IDs of the IdPs of federation {@code NAME}
+ * <dt>{@code gridcertlib.federation.NAME.X          }<dd>value of property {@code gridcertlib.X} for federation {@code NAME}; properties not given this way are shared with the default configuration
+ * </dl>
+ * For example:
+ * <pre>
+ *   gridcertlib.federations = switch, edugain
+ *   gridcertlib.federation.switch.issuers = https://aai-logon.uzh.ch/idp/shibboleth, https://aai-logon.ethz.ch/idp/shibboleth
+ *   gridcertlib.federation.edugain.issuers = https://idp.example.org/idp/shibboleth
+ *   gridcertlib.federation.edugain.slcsLoginURL = https://slcs.example.org/SLCS/login
+ *   gridcertlib.federation.edugain.providerId = https://portal.example.org/shibboleth
+ * </pre>
+ * Federation factories never bootstrap OpenSAML nor warm up in the
+ * background, and run their issuance stages on the thread pools of
+ * this factory.
+ */
+public class FederatedSLCSFactory extends SLCSFactory {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(FederatedSLCSFactory.class);
+
+    /** Prefix of the per-federation properties. */
+    public static final String PREFIX = "gridcertlib.federation.";
+
+    protected final Properties props_;
+
+    /** Federation names, in configuration order. */
+    protected final List<String> federations_ = new ArrayList<String>();
+
+    /** Federation name, by IdP entity ID. */
+    protected final Map<String, String> issuers_ = new HashMap<String, String>();
+
+    /** Federation factories built so far, by federation name. */
+    private final Map<String, SLCSFactory> factories_ = new HashMap<String, SLCSFactory>();
+
+
+    /**
+     * Constructor, taking configuration parameters from a property
+     * list; same as calling {@link
+     * #FederatedSLCSFactory(Properties,boolean)} with {@code true} as
+     * the second argument.
+     */
+    public FederatedSLCSFactory(final Properties props)
+        throws InitializationException, InvalidConfigurationException
+    {
+        this(props, true);
+    }
+
+
+    /**
+     * Constructor, taking configuration parameters from a property
+     * list; see the class description for the property names.
+     *
+     * @throws InitializationException wrapping the causing exception
+     * @throws InvalidConfigurationException if a federation has no issuers, or an issuer is listed in several federations
+     */
+    public FederatedSLCSFactory(final Properties props, final boolean doOpenSamlBootstrap)
+        throws InitializationException, InvalidConfigurationException
+    {
+        super(props, doOpenSamlBootstrap);
+        props_ = props;
+        for (String name : props.getProperty("gridcertlib.federations", "").split(",")) {
+            name = name.trim();
+            if (0 == name.length())
+                continue;
+            final String issuers = props.getProperty(PREFIX + name + ".issuers", "").trim();
+            if (0 == issuers.length())
+                throw new InvalidConfigurationException("Missing required property '"
+                                                        + PREFIX + name + ".issuers'");
+            for (String issuer : issuers.split(",")) {
+                issuer = issuer.trim();
+                if (0 == issuer.length())
+                    continue;
+                final String other = issuers_.put(issuer, name);
+                if (null != other && ! other.equals(name))
+                    throw new InvalidConfigurationException("Issuer '" + issuer + "' listed in both federations '"
+                                                            + other + "' and '" + name + "'");
+            }
+            federations_.add(name);
+        }
+        LOG.info("FederatedSLCSFactory: routing assertions from " + issuers_.size()
+                 + " issuers to " + federations_.size() + " federations.");
+    }
+
+
+    /**
+     * Retrieve the assertion, and request the certificate from the
+     * factory of the federation of its issuer.
+     *
+     * @see SLCSFactory#newSLCS(String,String,String,String,Deadline)
+     */
+    public CredentialsPathInfo newSLCS(final String samlAssertionUrl,
+                                       final String certificatePath,
+                                       final String privateKeyPath,
+                                       final String privateKeyPassword,
+                                       final Deadline deadline)
+        throws OperationsError
+    {
+        awaitBootstrap(deadline);
+        final Assertion assertion = retrieveAssertion(samlAssertionUrl, deadline);
+        return getFactory(assertion).newSLCS(assertion, certificatePath,
+                                             privateKeyPath, privateKeyPassword, deadline);
+    }
+
+
+    /**
+     * Same as {@link SLCSFactory#newSLCS(Assertion,String,String,String,Deadline)},
+     * but request the certificate from the factory of the federation
+     * of the assertion issuer.
+     */
+    public CredentialsPathInfo newSLCS(final Assertion assertion,
+                                       final String certificatePath,
+                                       final String privateKeyPath,
+                                       final String privateKeyPassword,
+                                       final Deadline deadline)
+        throws OperationsError
+    {
+        final SLCSFactory factory = getFactory(assertion);
+        if (this == factory)
+            return super.newSLCS(assertion, certificatePath, privateKeyPath, privateKeyPassword, deadline);
+        return factory.newSLCS(assertion, certificatePath, privateKeyPath, privateKeyPassword, deadline);
+    }
+
+
+    /**
+     * Retrieve the assertion at {@code samlAssertionUrl} (or reuse
+     * the one retrieved by {@link #checkAssertion}), with the
+     * transport, circuit breaker and retry policy of this factory.
+     *
+     * @throws OperationsError if the assertion cannot be retrieved
+     */
+    protected Assertion retrieveAssertion(final String samlAssertionUrl, final Deadline deadline)
+        throws OperationsError
+    {
+        try {
+            return getAssertion(samlAssertionUrl, deadline);
+        }
+        catch (SLCSException x) {
+            throw new OperationsError("Error performing SLCS operations "
+                                      + "(SLCSException): " + x.getMessage(), x);
+        }
+        catch (TokenResolverException x) {
+            throw new OperationsError("Error performing SLCS operations "
+                                      + "(TokenResolverException): " + x.getMessage(), x);
+        }
+        catch (GeneralSecurityException x) {
+            throw new OperationsError("Error performing SLCS operations "
+                                      + "(GeneralSecurityException): " + x.getMessage(), x);
+        }
+        catch (IOException x) {
+            throw new OperationsError("Error performing SLCS operations "
+                                      + "(IOException): " + x.getMessage(), x);
+        }
+    }
+
+
+    /** Return the names of the configured federations. */
+    public List<String> getFederations()
+    {
+        return Collections.unmodifiableList(federations_);
+    }
+
+
+    /**
+     * Return the name of the federation of IdP {@code issuer}, or
+     * {@code null} if it is not listed in any.
+     */
+    public String getFederation(final String issuer)
+    {
+        return issuers_.get(issuer);
+    }
+
+
+    /**
+     * Return the factory serving assertions like {@code assertion}:
+     * the one of the federation of its issuer, or this factory.
+     */
+    public SLCSFactory getFactory(final Assertion assertion)
+        throws OperationsError
+    {
+        final Issuer issuer = assertion.getIssuer();
+        final String name = (null == issuer) ? null : getFederation(issuer.getValue());
+        if (null == name) {
+            LOG.debug("FederatedSLCSFactory: issuer '" + ((null == issuer) ? null : issuer.getValue())
+                      + "' not in any federation, using default configuration.");
+            return this;
+        }
+        return getFederationFactory(name);
+    }
+
+
+    /**
+     * Return the factory of federation {@code name}, building it on
+     * the first call.
+     *
+     * @throws IllegalArgumentException if {@code name} is not a configured federation
+     * @throws OperationsError if the federation configuration is invalid, or the factory cannot be initialized
+     */
+    public SLCSFactory getFederationFactory(final String name)
+        throws OperationsError
+    {
+        if (! federations_.contains(name))
+            throw new IllegalArgumentException("No federation named '" + name + "'");
+        synchronized (factories_) {
+            SLCSFactory factory = factories_.get(name);
+            if (null == factory) {
+                LOG.info("FederatedSLCSFactory: creating SLCSFactory for federation '" + name + "'");
+                try {
+                    // issuance stages of all federations share this factory's threads
+                    factory = new SLCSFactory(getFederationProperties(name), false,
+                                              pools_.getCpuPool(), pools_.getIoPool());
+                }
+                catch (InvalidConfigurationException x) {
+                    throw new OperationsError("Invalid configuration for federation '" + name + "': "
+                                              + x.getMessage(), x);
+                }
+                catch (InitializationException x) {
+                    throw new OperationsError("Cannot initialize SLCSFactory for federation '" + name + "': "
+                                              + x.getMessage(), x);
+                }
+                factories_.put(name, factory);
+            }
+            return factory;
+        }
+    }
+
+
+    /**
+     * Return the configuration of federation {@code name}: properties
+     * {@code gridcertlib.federation.NAME.X} replace {@code
+     * gridcertlib.X}, and background warm-up is turned off.
+     */
+    protected Properties getFederationProperties(final String name)
+    {
+        final String prefix = PREFIX + name + ".";
+        final Properties props = new Properties();
+        props.putAll(props_);
+        for (Enumeration<?> names = props_.propertyNames(); names.hasMoreElements(); ) {
+            final String key = (String) names.nextElement();
+            if (key.startsWith(prefix))
+                props.setProperty("gridcertlib." + key.substring(prefix.length()), props_.getProperty(key));
+        }
+        props.setProperty("gridcertlib.warmup", "off");
+        return props;
+    }
+
+
+    /** Shut down the federation factories, then this factory. */
+    public void shutdown()
+    {
+        synchronized (factories_) {
+            for (SLCSFactory factory : factories_.values())
+                factory.shutdown();
+            factories_.clear();
+        }
+        super.shutdown();
+    }
+}
@@ -24,8 +24,15 @@
 package ch.swing.gridcertlib;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -33,7 +40,12 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -72,6 +84,13 @@ import org.glite.voms.contact.VOMSRequestOptions;
  * Since System Properties cannot be set programmatically, it is the
  * deployer's responsibility to ensure that these parameters are set
  * to a correct value.
+ * <p>
+ * Identical requests (same certificate, private key and password,
+ * VOMS arguments, lifetime and proxy type) issued while one of them
+ * is being processed are coalesced: the VOMS servers are contacted
+ * and the proxy signed only once, and every caller gets its own copy
+ * of the resulting proxy file.  Proxy files hold an unencrypted
+ * private key, so they are readable by their owner only.
  */
 public class GridProxyFactory {
 
@@ -118,6 +137,93 @@ public class GridProxyFactory {
     }
 
 
+    /** Identifies equivalent proxy requests; see {@link #newProxy(String,String,String,String[])}. */
+    protected static final class ProxyRequest {
+        private final String certificatePath_;
+        private final String privateKeyPath_;
+        private final String privateKeyPassword_;
+        private final String vomsArgs_;
+        private final int lifetime_;
+        private final int proxyType_;
+
+        ProxyRequest(final String certificatePath,
+                     final String privateKeyPath,
+                     final String privateKeyPassword,
+                     final String[] vomsArgs,
+                     final int lifetime,
+                     final int proxyType)
+        {
+            certificatePath_ = SLCSFactory.canonicalPath(certificatePath);
+            privateKeyPath_ = SLCSFactory.canonicalPath(privateKeyPath);
+            privateKeyPassword_ = (null == privateKeyPassword) ? "" : privateKeyPassword;
+            vomsArgs_ = normalizeVomsArgs(vomsArgs);
+            lifetime_ = lifetime;
+            proxyType_ = proxyType;
+        }
+
+        /** Return VOMS arguments, trimmed, without duplicates and
+         * sorted, as a single string; {@code null} (no VOMS
+         * extensions) is kept distinct from an empty list.
+         */
+        static String normalizeVomsArgs(final String[] vomsArgs)
+        {
+            if (null == vomsArgs)
+                return null;
+            TreeSet<String> args = new TreeSet<String>();
+            for (String arg : vomsArgs)
+                if (null != arg && arg.trim().length() > 0)
+                    args.add(arg.trim());
+            return args.toString();
+        }
+
+        public boolean equals(final Object other)
+        {
+            if (! (other instanceof ProxyRequest))
+                return false;
+            final ProxyRequest that = (ProxyRequest) other;
+            return certificatePath_.equals(that.certificatePath_)
+                && privateKeyPath_.equals(that.privateKeyPath_)
+                && privateKeyPassword_.equals(that.privateKeyPassword_)
+                && (null == vomsArgs_ ? null == that.vomsArgs_ : vomsArgs_.equals(that.vomsArgs_))
+                && lifetime_ == that.lifetime_
+                && proxyType_ == that.proxyType_;
+        }
+
+        public int hashCode()
+        {
+            int h = certificatePath_.hashCode();
+            h = 31*h + privateKeyPath_.hashCode();
+            h = 31*h + privateKeyPassword_.hashCode();
+            h = 31*h + (null == vomsArgs_ ? 0 : vomsArgs_.hashCode());
+            h = 31*h + lifetime_;
+            h = 31*h + proxyType_;
+            return h;
+        }
+
+        /** Used in log messages, so the password is omitted. */
+        public String toString()
+        {
+            return certificatePath_ + " " + vomsArgs_ + " lifetime=" + lifetime_ + " type=" + proxyType_;
+        }
+    }
+
+
+    /**
+     * Serializes calls into the VOMS API, whose {@code VOMSProxyInit}
+     * is a JVM-wide singleton.  This is a {@link ReentrantLock}, not
+     * a {@code synchronized} block, so that a virtual thread waiting
+     * for the VOMS servers does not pin its carrier thread.
+     */
+    private static final ReentrantLock vomsLock_ = new ReentrantLock();
+
+    /** Permissions of the proxy files: read and write for the owner only. */
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    /** In-flight proxy requests; the result is the proxy file content. */
+    protected final SingleFlight<ProxyRequest, byte[]> inFlight_ =
+        new SingleFlight<ProxyRequest, byte[]>();
+
+
     /**
      * Constructor taking the configuration as a properties object.
      * The following properties set the configuration:
@@ -242,8 +348,13 @@ public class GridProxyFactory {
      * deleted as soon as the JVM exists: if you need to store the
      * proxy in a persistent way, copy its contents.
      * <p>
-     * This method is {@code synchronized} as the VOMS Java API (as of version 1.9.x)
-     * implements the {@code VOMSProxyInit} class as a singleton.
+     * Proxy generation is serialized, as the VOMS Java API (as of
+     * version 1.9.x) implements the {@code VOMSProxyInit} class as a
+     * singleton; callers with an identical request (same credentials,
+     * VOMS arguments, lifetime and proxy type) to one already in
+     * progress do not queue up, but wait for it and get a copy of
+     * its result in their own temporary file.  Failures are shared
+     * the same way.
      * <p>
      * <em>Note:</em> the {@link org.glite.voms.contact.VOMSProxyInit}
      * class reads some parameters from the following Java System
@@ -263,26 +374,182 @@ public class GridProxyFactory {
      * @param vomsArgs  list of VOMS commands in the form {@code <voms>}[:{@code <command>}] (identical to "-voms" arguments of the {@code glite-voms-proxy-init} command). If {@code null}, then a non-VOMS proxy is created.
      *
      * @return full path of the created proxy
+     *
+     * @see #newProxy(String,String,String,String[],Deadline)
+     */
+    public String newProxy(final String certificatePath,
+                           final String privateKeyPath,
+                           final String privateKeyPassword,
+                           final String[] vomsArgs)
+        throws IOException 
+    {
+        return newProxy(certificatePath, privateKeyPath, privateKeyPassword, vomsArgs, null);
+    }
+
+
+    /**
+     * Same as {@link #newProxy(String,String,String,String[])}, but
+     * give up when {@code deadline} passes: waiting for an identical
+     * request in progress, and waiting for other proxy generations to
+     * release the VOMS API, are bounded by the remaining time.  The
+     * VOMS API offers no way to interrupt a call to the VOMS servers
+     * in progress: that is bounded by the VOMS API socket timeouts
+     * only.
+     *
+     * @param deadline  deadline for generating the proxy, or {@code null} for none
+     *
+     * @return full path of the created proxy
+     *
+     * @throws DeadlineExceededError if the deadline passes
+     */
+    public String newProxy(final String certificatePath,
+                           final String privateKeyPath,
+                           final String privateKeyPassword,
+                           final String[] vomsArgs,
+                           final Deadline deadline)
+        throws IOException 
+    {
+        final byte[] proxy = newProxyContent(certificatePath, privateKeyPath, privateKeyPassword,
+                                             vomsArgs, deadline);
+        final File tempFile = createPrivateTempFile("proxy", ".pem");
+        OutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(proxy);
+        }
+        finally {
+            out.close();
+        }
+        return tempFile.getAbsolutePath();
+    }
+
+
+    /**
+     * Same as {@link #newProxy(String,String,String,String[],Deadline)},
+     * but return the content of the proxy file (PEM format) instead
+     * of storing it in a file.  Use this when the proxy is to be sent
+     * elsewhere, so that no copy of its private key is left on disk.
+     *
+     * @param deadline  deadline for generating the proxy, or {@code null} for none
+     *
+     * @return the proxy certificate and private key, in PEM format
+     *
+     * @throws DeadlineExceededError if the deadline passes
      */
-    public synchronized String newProxy(final String certificatePath,
-                                        final String privateKeyPath,
-                                        final String privateKeyPassword,
-                                        final String[] vomsArgs)
+    public byte[] newProxyContent(final String certificatePath,
+                                  final String privateKeyPath,
+                                  final String privateKeyPassword,
+                                  final String[] vomsArgs,
+                                  final Deadline deadline)
+        throws IOException 
+    {
+        // read configuration once, so that the request key and the
+        // generated proxy agree even if it is changed concurrently
+        final int lifetime = lifetime_;
+        final int proxyType = proxyType_;
+        final ProxyRequest request = new ProxyRequest(certificatePath, privateKeyPath, privateKeyPassword,
+                                                      vomsArgs, lifetime, proxyType);
+        try {
+            return inFlight_.execute(request, new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        final File tempFile = new File(generateProxy(certificatePath, privateKeyPath,
+                                                                     privateKeyPassword, vomsArgs,
+                                                                     lifetime, proxyType, deadline));
+                        try {
+                            return readFile(tempFile);
+                        }
+                        finally {
+                            tempFile.delete();
+                        }
+                    }
+                }, deadline);
+        }
+        catch (DeadlineExceededError x) {
+            throw x;
+        }
+        catch (OperationsError x) {
+            // `SingleFlight` wraps checked exceptions
+            if (x.getCause() instanceof IOException)
+                throw (IOException) x.getCause();
+            throw x;
+        }
+    }
+
+
+    /**
+     * Do the actual work of {@link #newProxy(String,String,String,String[])}:
+     * contact the VOMS servers, create a new proxy and store it in a
+     * temporary file, whose path is returned.
+     */
+    protected String generateProxy(final String certificatePath,
+                                   final String privateKeyPath,
+                                   final String privateKeyPassword,
+                                   final String[] vomsArgs,
+                                   final int lifetime,
+                                   final int proxyType)
+        throws IOException 
+    {
+        return generateProxy(certificatePath, privateKeyPath, privateKeyPassword,
+                             vomsArgs, lifetime, proxyType, null);
+    }
+
+    /**
+     * Same as {@link #generateProxy(String,String,String,String[],int,int)},
+     * but wait for the VOMS API to be available only until {@code
+     * deadline}, if not {@code null}.
+     *
+     * @throws DeadlineExceededError if the deadline passes before the VOMS API is available
+     */
+    protected String generateProxy(final String certificatePath,
+                                   final String privateKeyPath,
+                                   final String privateKeyPassword,
+                                   final String[] vomsArgs,
+                                   final int lifetime,
+                                   final int proxyType,
+                                   final Deadline deadline)
+        throws IOException 
+    {
+        if (null == deadline)
+            vomsLock_.lock();
+        else
+            try {
+                do
+                    deadline.check("wait for the VOMS API");
+                while (! vomsLock_.tryLock(deadline.getRemaining(), TimeUnit.MILLISECONDS));
+            }
+            catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                throw new OperationsError("Interrupted while waiting for the VOMS API", x);
+            }
+        try {
+            return doGenerateProxy(certificatePath, privateKeyPath, privateKeyPassword,
+                                   vomsArgs, lifetime, proxyType);
+        }
+        finally {
+            vomsLock_.unlock();
+        }
+    }
+
+    /** Must be called with {@link #vomsLock_} held. */
+    private String doGenerateProxy(final String certificatePath,
+                                   final String privateKeyPath,
+                                   final String privateKeyPassword,
+                                   final String[] vomsArgs,
+                                   final int lifetime,
+                                   final int proxyType)
         throws IOException 
     {
         // generate a random file name; it will be deleted when
         // the Java VM exits
-        File tempFile = File.createTempFile("proxy", ".pem");
-        tempFile.deleteOnExit();
+        File tempFile = createPrivateTempFile("proxy", ".pem");
         String proxyPath = tempFile.getAbsolutePath();
 
         // parts of the following code were adapted from the jLite library,
         // see http://code.google.com/p/jlite/
         UserCredentials userCredentials = UserCredentials.instance(certificatePath, privateKeyPath, privateKeyPassword);
         VOMSProxyInit vomsProxyInit = VOMSProxyInit.instance(userCredentials);
-        vomsProxyInit.setProxyLifetime(lifetime_);
+        vomsProxyInit.setProxyLifetime(lifetime);
         vomsProxyInit.setProxyOutputFile(proxyPath);
-        vomsProxyInit.setProxyType(proxyType_);
+        vomsProxyInit.setProxyType(proxyType);
         vomsProxyInit.setDelegationType(VOMSProxyConstants.DELEGATION_FULL); // there's no use for limited proxies in a portal
 
         if (null != vomsArgs) {
@@ -301,7 +568,7 @@ public class GridProxyFactory {
                 } else { // no other FQANs for this VO
                     options = new VOMSRequestOptions();
                     options.setVoName(vo);
-                    options.setLifetime(lifetime_);
+                    options.setLifetime(lifetime);
                 }
                 if (fqan != null) {
                     options.addFQAN(fqan);
@@ -318,5 +585,55 @@ public class GridProxyFactory {
         return proxyPath;
     }
 
+
+    /**
+     * Create an empty temporary file that only its owner may read or
+     * write; it is deleted when the JVM exits.  On POSIX file systems
+     * the file is created with mode 0600, so there is no moment in
+     * which other users could open it.
+     *
+     * @throws IOException if the file cannot be created, or its permissions cannot be restricted
+     */
+    protected static File createPrivateTempFile(final String prefix, final String suffix)
+        throws IOException
+    {
+        File file;
+        try {
+            file = Files.createTempFile(prefix, suffix, PosixFilePermissions.asFileAttribute(OWNER_ONLY)).toFile();
+        }
+        catch (UnsupportedOperationException x) {
+            // not a POSIX file system: restrict access right after creation
+            file = File.createTempFile(prefix, suffix);
+            if (! (file.setReadable(false, false) && file.setReadable(true, true)
+                   && file.setWritable(false, false) && file.setWritable(true, true))) {
+                file.delete();
+                throw new IOException("Cannot restrict access to temporary file '" + file + "'");
+            }
+        }
+        file.deleteOnExit();
+        return file;
+    }
+
+
+    protected static byte[] readFile(final File file)
+        throws IOException
+    {
+        final byte[] content = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int done = 0;
+            while (done < content.length) {
+                final int n = in.read(content, done, content.length - done);
+                if (n < 0)
+                    throw new IOException("Unexpected end of file '" + file + "'");
+                done += n;
+            }
+        }
+        finally {
+            in.close();
+        }
+        return content;
+    }
+
 }
 
@@ -0,0 +1,290 @@
+/**
+ * @file   HedgedLogin.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class HedgedLogin
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.swing.gridcertlib;
+
+import org.glite.slcs.AuthException;
+import org.glite.slcs.SLCSException;
+import org.opensaml.saml2.core.Assertion;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * SLCS login, "hedged" according to a {@link HedgingPolicy}: a login
+ * that is slower than usual is duplicated to an alternate endpoint,
+ * and the first to succeed wins.  The {@code gridcertlib.hedge.*}
+ * properties read by {@link #HedgedLogin(Properties,AssertionParser,IssuancePools,RequestorFactory)}
+ * are described in {@link HedgingPolicy}.
+ */
+public class HedgedLogin {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(HedgedLogin.class);
+
+    /** Creates the requestor logging in to an endpoint. */
+    public static interface RequestorFactory {
+        /** Return a new SLCSRequestor for {@code endpoint}, working on {@code assertion}. */
+        SLCSRequestor newRequestor(Assertion assertion, SLCSEndpoint endpoint)
+            throws GeneralSecurityException, IOException;
+    }
+
+    /** An SLCS login to one endpoint. */
+    public static final class Attempt implements Callable<Attempt> {
+        final SLCSEndpoint endpoint;
+        final SLCSRequestor requestor;
+        long started = System.currentTimeMillis();
+
+        Attempt(final SLCSEndpoint endpoint, final SLCSRequestor requestor) {
+            this.endpoint = endpoint;
+            this.requestor = requestor;
+        }
+
+        public Attempt call() throws SLCSException {
+            started = System.currentTimeMillis();
+            requestor.login();
+            return this;
+        }
+
+        /** Return the endpoint this login went to. */
+        public SLCSEndpoint getEndpoint()   { return endpoint; }
+        /** Return the requestor that logged in. */
+        public SLCSRequestor getRequestor() { return requestor; }
+        /** Return the time (in milliseconds since the epoch) this login started. */
+        public long getStarted()            { return started; }
+
+        /** Record the outcome of the issuance this login was for against its endpoint; see {@link SLCSEndpoint#record}. */
+        void record(final boolean failed) {
+            endpoint.record(System.currentTimeMillis() - started, failed);
+        }
+
+        /** Record the failure of this login with {@code error}; an {@link AuthException} means the endpoint works. */
+        void recordFailure(final SLCSException error) {
+            record(! (error instanceof AuthException));
+        }
+    }
+
+    /** Hedging policy; {@code null} means no hedging. */
+    private volatile HedgingPolicy hedging_;
+
+    /** Parses the copies of the assertion made for hedged logins. */
+    private final AssertionParser parser_;
+
+    /** Provides the threads hedged logins run on. */
+    private final IssuancePools pools_;
+
+    private final RequestorFactory requestors_;
+
+
+    /**
+     * Constructor.
+     *
+     * @param hedging     Hedging policy, or {@code null} for none
+     * @param parser      Parses the copies of the assertion made for hedged logins
+     * @param pools       Provides the threads hedged logins run on; see {@link IssuancePools#getRaceExecutor}
+     * @param requestors  Creates the requestors logging in
+     */
+    public HedgedLogin(final HedgingPolicy hedging,
+                       final AssertionParser parser,
+                       final IssuancePools pools,
+                       final RequestorFactory requestors)
+    {
+        assert(null != parser);
+        assert(null != pools);
+        assert(null != requestors);
+        hedging_ = hedging;
+        parser_ = parser;
+        pools_ = pools;
+        requestors_ = requestors;
+    }
+
+
+    /**
+     * Constructor, taking the hedging policy from a property list.
+     *
+     * @throws InvalidConfigurationException if a {@code gridcertlib.hedge.*} property has an invalid value
+     */
+    public HedgedLogin(final Properties props,
+                       final AssertionParser parser,
+                       final IssuancePools pools,
+                       final RequestorFactory requestors)
+        throws InvalidConfigurationException
+    {
+        this(newHedgingPolicy(props), parser, pools, requestors);
+    }
+
+
+    private static HedgingPolicy newHedgingPolicy(final Properties props)
+        throws InvalidConfigurationException
+    {
+        try {
+            return new HedgingPolicy(props);
+        }
+        catch (IllegalArgumentException x) {
+            throw new InvalidConfigurationException("Invalid value in 'gridcertlib.hedge.*' properties: "
+                                                    + x.getMessage(), x);
+        }
+    }
+
+
+    /** Return the hedging policy, or {@code null} if logins are not hedged. */
+    public HedgingPolicy getHedgingPolicy()
+    {
+        return hedging_;
+    }
+
+    /** Set the hedging policy; {@code null} disables hedging. */
+    public void setHedgingPolicy(final HedgingPolicy hedging)
+    {
+        hedging_ = hedging;
+    }
+
+
+    /**
+     * Log in to the SLCS service at {@code endpoint}.  If hedging is
+     * enabled and the login takes longer than the hedging delay, also
+     * log in to {@code alternate} (if not {@code null}); return the
+     * first login that succeeds, and abort the other one.  If both
+     * fail, the error from {@code endpoint} is thrown.  Failed
+     * logins are recorded against the endpoint that served them (see
+     * {@link SLCSEndpoint#record}); successful ones are left to the
+     * caller, who knows whether the issuance succeeded.  If {@code
+     * deadline} is not {@code null}, logins still running when it
+     * passes are aborted, and a {@link DeadlineExceededError} is thrown.
+     * <p>
+     * When hedging is possible, each login works on its own copy of
+     * {@code assertion}, as OpenSAML objects are not thread-safe and
+     * an aborted login may still be running when this returns.
+     */
+    public Attempt login(final Assertion assertion,
+                         final SLCSEndpoint endpoint,
+                         final SLCSEndpoint alternate,
+                         final Deadline deadline)
+        throws SLCSException, IOException, GeneralSecurityException
+    {
+        final HedgingPolicy hedging = hedging_;
+        final long delay = (null == hedging || null == alternate) ? -1 : hedging.startRequest();
+        if (delay < 0) {
+            final Attempt first = new Attempt(endpoint, requestors_.newRequestor(assertion, endpoint));
+            first.requestor.setDeadline(deadline);
+            try {
+                first.call();
+            }
+            catch (SLCSException x) {
+                first.recordFailure(x);
+                throw x;
+            }
+            if (null != hedging)
+                hedging.recordLatency(System.currentTimeMillis() - first.started);
+            return first;
+        }
+
+        // copies are made from the XML form, serialized once here,
+        // before any login thread starts
+        final byte[] xml = AssertionParser.serialize(assertion);
+        final Attempt first = new Attempt(endpoint, requestors_.newRequestor(copy(xml, assertion), endpoint));
+        first.requestor.setDeadline(deadline);
+        final ExecutorCompletionService<Attempt> completion =
+            new ExecutorCompletionService<Attempt>(pools_.getRaceExecutor());
+        final Future<Attempt> firstFuture = completion.submit(first);
+        Attempt second = null;
+        Future<Attempt> secondFuture = null;
+        Attempt winner = null;
+        try {
+            Future<Attempt> done =
+                completion.poll((null == deadline) ? delay : Math.min(delay, deadline.getRemaining()),
+                                TimeUnit.MILLISECONDS);
+            int pending = 1;
+            if (null == done && (null == deadline || ! deadline.isExpired()) && hedging.tryHedge()) {
+                LOG.info("HedgedLogin: login to " + endpoint.getSlcsLoginUrl() + " still running after "
+                         + delay + "ms, hedging with " + alternate.getSlcsLoginUrl());
+                second = new Attempt(alternate, requestors_.newRequestor(copy(xml, assertion), alternate));
+                second.requestor.setDeadline(deadline);
+                secondFuture = completion.submit(second);
+                pending = 2;
+            }
+            Throwable error = null;
+            for (; pending > 0; pending--) {
+                if (null == done && null == deadline)
+                    done = completion.take();
+                else
+                    while (null == done) {
+                        deadline.check("SLCS login");
+                        done = completion.poll(deadline.getRemaining(), TimeUnit.MILLISECONDS);
+                    }
+                try {
+                    winner = done.get();
+                    hedging.recordLatency(System.currentTimeMillis() - winner.started);
+                    return winner;
+                }
+                catch (ExecutionException x) {
+                    if (x.getCause() instanceof SLCSException)
+                        ((done == secondFuture) ? second : first).recordFailure((SLCSException) x.getCause());
+                    if (done == firstFuture || null == error)
+                        error = x.getCause();
+                }
+                done = null;
+            }
+            if (error instanceof SLCSException)
+                throw (SLCSException) error;
+            if (error instanceof RuntimeException)
+                throw (RuntimeException) error;
+            if (error instanceof Error)
+                throw (Error) error;
+            throw new OperationsError("Error in SLCS login: " + error.getMessage(), error);
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new OperationsError("Interrupted while waiting for SLCS login", x);
+        }
+        finally {
+            // cancel the losers
+            if (winner != first) {
+                first.requestor.abort();
+                firstFuture.cancel(true);
+            }
+            if (null != second && winner != second)
+                second.requestor.abort();
+        }
+    }
+
+
+    /** Return a copy of {@code assertion}, parsed from its XML form {@code xml}. */
+    private Assertion copy(final byte[] xml, final Assertion assertion)
+        throws IOException
+    {
+        return parser_.parse(new ByteArrayInputStream(xml), "copy of assertion " + assertion.getID());
+    }
+}
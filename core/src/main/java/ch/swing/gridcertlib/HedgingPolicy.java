@@ -0,0 +1,145 @@
+/**
+ * @file   HedgingPolicy.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class HedgingPolicy
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+
+/**
+ * When to send a second, "hedge" request to another endpoint while
+ * the first one has not answered yet.
+ * <p>
+ * The hedging delay is the configured percentile of the last {@value
+ * #WINDOW} successful request durations (but not less than the
+ * configured minimum); no hedge is sent until {@value #MIN_SAMPLES}
+ * durations have been recorded.  Hedges are rate-limited by a token
+ * bucket: each request adds {@code maxExtraLoad} tokens (up to
+ * {@value #MAX_TOKENS}), and each hedge takes one, so hedges add at
+ * most a fraction {@code maxExtraLoad} of extra requests, apart from
+ * short bursts.
+ * <p>
+ * The following properties (all optional) configure an instance:
+ * <dl>
+ * <dt>{@code gridcertlib.hedge.maxExtraLoad }<dd>maximum fraction of requests that may be hedged (default: 0, i.e., no hedging)
+ * <dt>{@code gridcertlib.hedge.percentile   }<dd>percentile of recent durations after which a hedge is sent (default: 95)
+ * <dt>{@code gridcertlib.hedge.minDelay     }<dd>minimum hedging delay, in milliseconds (default: 100)
+ * </dl>
+ */
+public class HedgingPolicy {
+
+    /** Number of recent durations the delay is computed from. */
+    public static final int WINDOW = 200;
+
+    /** Number of durations needed before hedging starts. */
+    public static final int MIN_SAMPLES = 20;
+
+    /** Maximum number of accumulated hedge tokens. */
+    public static final double MAX_TOKENS = 10.0;
+
+    protected final double maxExtraLoad_;
+    protected final double percentile_;
+    protected final long minDelay_;
+
+    private final long[] samples_ = new long[WINDOW];
+    private int count_ = 0;
+    private int next_ = 0;
+    private double tokens_ = 0;
+    private long hedges_ = 0;
+
+
+    public HedgingPolicy(final double maxExtraLoad, final double percentile, final long minDelay)
+    {
+        if (maxExtraLoad < 0 || maxExtraLoad > 1 || percentile <= 0 || percentile > 100 || minDelay < 0)
+            throw new IllegalArgumentException("HedgingPolicy: must have 0 <= maxExtraLoad <= 1,"
+                                               + " 0 < percentile <= 100, and minDelay >= 0");
+        maxExtraLoad_ = maxExtraLoad;
+        percentile_ = percentile;
+        minDelay_ = minDelay;
+    }
+
+
+    /**
+     * Constructor taking the configuration from a properties object;
+     * see the class description for the property names.
+     *
+     * @throws IllegalArgumentException if a property has an invalid value
+     */
+    public HedgingPolicy(final Properties props)
+    {
+        this(Double.parseDouble(props.getProperty("gridcertlib.hedge.maxExtraLoad", "0")),
+             Double.parseDouble(props.getProperty("gridcertlib.hedge.percentile", "95")),
+             Long.parseLong(props.getProperty("gridcertlib.hedge.minDelay", "100")));
+    }
+
+
+    /** Return {@code true} if this policy may ever send a hedge. */
+    public boolean isEnabled()
+    {
+        return maxExtraLoad_ > 0;
+    }
+
+
+    /** Record the duration (in milliseconds) of a successful request. */
+    public synchronized void recordLatency(final long latency)
+    {
+        samples_[next_] = latency;
+        next_ = (next_ + 1) % WINDOW;
+        if (count_ < WINDOW)
+            count_++;
+    }
+
+
+    /**
+     * Signal that a new request is starting; return the delay (in
+     * milliseconds) after which it should be hedged, or -1 if it
+     * should not be hedged at all.
+     */
+    public synchronized long startRequest()
+    {
+        tokens_ = Math.min(MAX_TOKENS, tokens_ + maxExtraLoad_);
+        if (! isEnabled() || count_ < MIN_SAMPLES)
+            return -1;
+        final long[] sorted = new long[count_];
+        System.arraycopy(samples_, 0, sorted, 0, count_);
+        Arrays.sort(sorted);
+        final int index = Math.min(count_ - 1, (int) Math.ceil(percentile_ / 100.0 * count_) - 1);
+        return Math.max(minDelay_, sorted[Math.max(0, index)]);
+    }
+
+
+    /** Return {@code true} and take a token if a hedge may be sent now. */
+    public synchronized boolean tryHedge()
+    {
+        if (tokens_ < 1.0)
+            return false;
+        tokens_ -= 1.0;
+        hedges_++;
+        return true;
+    }
+
+
+    /** Return the number of hedges sent so far. */
+    public synchronized long getHedgeCount() { return hedges_; }
+}
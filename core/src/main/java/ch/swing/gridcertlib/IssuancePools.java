@@ -0,0 +1,180 @@
+/**
+ * @file   IssuancePools.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class IssuancePools
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.swing.gridcertlib;
+
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * The threads an {@link SLCSFactory} runs issuances on: a {@link
+ * StagePool} for the CPU-bound stages (key generation, CSR signing,
+ * storing the encrypted key), one for the stages waiting on remote
+ * services (assertion fetch, login, certificate request), and an
+ * executor for the calls raced against each other (hedged logins,
+ * assertion fetches in {@link AssertionSelector}), created on first use.
+ * <p>
+ * The following properties are read by {@link #IssuancePools(Properties)}:
+ * <dl>
+ * <dt>{@code gridcertlib.pipeline.cpuThreads }<dd>threads for the CPU-bound stages (default: number of processors; 0 runs them in the calling thread)
+ * <dt>{@code gridcertlib.pipeline.ioThreads  }<dd>threads for the stages waiting on remote services (default: 50; 0 runs them in the calling thread); ignored with virtual threads
+ * <dt>{@code gridcertlib.workers.mode        }<dd>if {@code virtual}, the remote stages and raced calls run on virtual threads, where available; see {@link WorkerPool}
+ * </dl>
+ */
+public class IssuancePools {
+
+    private final StagePool cpuPool_;
+    private final StagePool ioPool_;
+
+    /** If {@code true}, raced calls run on virtual threads (where available). */
+    private final boolean virtualThreads_;
+
+    /** Runs raced calls; created on first use. */
+    private ExecutorService raceExecutor_ = null;
+
+
+    /**
+     * Constructor, taking the configuration from a property list;
+     * see the class description for the property names.
+     *
+     * @throws InvalidConfigurationException if a property has an invalid value
+     */
+    public IssuancePools(final Properties props)
+        throws InvalidConfigurationException
+    {
+        this(newCpuPool(props), newIoPool(props), isVirtualMode(props));
+    }
+
+
+    /**
+     * Constructor, taking the stage pools.
+     *
+     * @param cpuPool         Runs the CPU-bound issuance stages
+     * @param ioPool          Runs the issuance stages waiting on remote services
+     * @param virtualThreads  If {@code true}, raced calls run on virtual threads, where available
+     */
+    public IssuancePools(final StagePool cpuPool, final StagePool ioPool, final boolean virtualThreads)
+    {
+        assert(null != cpuPool);
+        assert(null != ioPool);
+        cpuPool_ = cpuPool;
+        ioPool_ = ioPool;
+        virtualThreads_ = virtualThreads;
+    }
+
+
+    /**
+     * Return {@code true} if {@code props} select virtual threads;
+     * see {@link WorkerPool#isVirtualMode}.
+     *
+     * @throws InvalidConfigurationException if {@code gridcertlib.workers.mode} has an invalid value
+     */
+    public static boolean isVirtualMode(final Properties props)
+        throws InvalidConfigurationException
+    {
+        try {
+            return WorkerPool.isVirtualMode(props);
+        }
+        catch (IllegalArgumentException x) {
+            throw new InvalidConfigurationException("Invalid value in 'gridcertlib.workers.*' properties: "
+                                                    + x.getMessage(), x);
+        }
+    }
+
+
+    /**
+     * Return a new pool for the CPU-bound issuance stages, sized by
+     * property {@code gridcertlib.pipeline.cpuThreads}.
+     *
+     * @throws InvalidConfigurationException if the property has an invalid value
+     */
+    public static StagePool newCpuPool(final Properties props)
+        throws InvalidConfigurationException
+    {
+        return new StagePool("gridcertlib-cpu",
+                             ConfigProperties.getIntProperty(props, "gridcertlib.pipeline.cpuThreads",
+                                                             Runtime.getRuntime().availableProcessors(), 0));
+    }
+
+
+    /**
+     * Return a new pool for the issuance stages waiting on remote
+     * services: virtual threads if {@code props} select them and they
+     * are available, or else as many threads as property {@code
+     * gridcertlib.pipeline.ioThreads} says.
+     *
+     * @throws InvalidConfigurationException if a property has an invalid value
+     */
+    public static StagePool newIoPool(final Properties props)
+        throws InvalidConfigurationException
+    {
+        if (isVirtualMode(props) && VirtualThreads.isAvailable())
+            return new StagePool("gridcertlib-io", VirtualThreads.newExecutor("gridcertlib-io"));
+        return new StagePool("gridcertlib-io",
+                             ConfigProperties.getIntProperty(props, "gridcertlib.pipeline.ioThreads", 50, 0));
+    }
+
+
+    /** Return the pool running the CPU-bound issuance stages. */
+    public StagePool getCpuPool()
+    {
+        return cpuPool_;
+    }
+
+    /** Return the pool running the issuance stages that wait on remote services. */
+    public StagePool getIoPool()
+    {
+        return ioPool_;
+    }
+
+    /** Return the executor running raced calls, creating it on the first call. */
+    public synchronized ExecutorService getRaceExecutor()
+    {
+        if (null == raceExecutor_ && virtualThreads_ && VirtualThreads.isAvailable())
+            raceExecutor_ = VirtualThreads.newExecutor("gridcertlib-slcs-login");
+        if (null == raceExecutor_)
+            raceExecutor_ = Executors.newCachedThreadPool(new ThreadFactory() {
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "gridcertlib-slcs-login");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        return raceExecutor_;
+    }
+
+    /** Shut down the stage pools and the raced calls executor. */
+    public void shutdown()
+    {
+        cpuPool_.shutdown();
+        ioPool_.shutdown();
+        synchronized (this) {
+            if (null != raceExecutor_)
+                raceExecutor_.shutdown();
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/**
+ * @file   NioHttpClient.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class NioHttpClient
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+
+
+/**
+ * Non-blocking HTTP client for {@link NioTransport}: a thin layer on
+ * Apache HttpAsyncClient, whose few I/O threads drive any number of
+ * requests.
+ * <p>
+ * {@code https} URLs use the {@link SSLContext} given to the
+ * constructor (which carries the client certificate, if any).  The
+ * certificate chain is validated by the context's trust managers, and
+ * the server certificate must match the host name in the URL, unless
+ * {@link #setHostnameVerification} turns that off.  (The blocking
+ * transport, on commons-httpclient 3.x, does not check host names.)
+ * Redirects are not followed, and cookies are not kept.
+ * <p>
+ * {@link #execute} returns at once: host name resolution and
+ * connection set-up are started from a small dispatcher pool, so that
+ * neither the caller nor the I/O threads wait on DNS.  Responses are
+ * collected by a {@link BoundedResponseConsumer}; responses larger
+ * than {@link #getMaxResponseSize} bytes, or not complete within the
+ * configured timeout, fail with an {@link IOException}.  Cancelling
+ * the returned {@link Future} aborts the request, and {@link #close}
+ * fails every request still in flight.
+ */
+public class NioHttpClient {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(NioHttpClient.class);
+
+    /** Default maximum size (in bytes) of a response body. */
+    public static final int DEFAULT_MAX_RESPONSE_SIZE = 4 * 1024 * 1024;
+
+    /** Number of threads starting requests (and resolving host names). */
+    protected static final int DISPATCH_THREADS = 4;
+
+    protected final SSLContext sslContext_;
+    protected final long timeout_;
+    protected final CloseableHttpAsyncClient client_;
+    private final ThreadPoolExecutor dispatcher_;
+    private final Set<Exchange> inFlight_ =
+        Collections.newSetFromMap(new ConcurrentHashMap<Exchange, Boolean>());
+    private volatile boolean closed_ = false;
+    private volatile boolean verifyHostname_ = true;
+    private volatile int maxResponseSize_ = DEFAULT_MAX_RESPONSE_SIZE;
+
+
+    /**
+     * Constructor; starts the I/O threads.
+     *
+     * @param sslContext context for {@code https} connections, or {@code null} to only allow {@code http}
+     * @param threads    number of I/O threads
+     * @param timeout    maximum duration of a request, in milliseconds
+     */
+    public NioHttpClient(final SSLContext sslContext, final int threads, final long timeout)
+    {
+        if (threads < 1 || timeout < 1)
+            throw new IllegalArgumentException("NioHttpClient: threads and timeout must be positive");
+        sslContext_ = sslContext;
+        timeout_ = timeout;
+        final int socketTimeout = (int) Math.min(timeout, Integer.MAX_VALUE);
+        final HostnameVerifier defaultVerifier = new DefaultHostnameVerifier();
+        client_ = HttpAsyncClients.custom()
+            .setSSLContext(sslContext)
+            .setSSLHostnameVerifier(new HostnameVerifier() {
+                    public boolean verify(final String host, final SSLSession session) {
+                        return ! verifyHostname_ || defaultVerifier.verify(host, session);
+                    }
+                })
+            .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                                       .setIoThreadCount(threads)
+                                       .setConnectTimeout(socketTimeout)
+                                       .setSoTimeout(socketTimeout)
+                                       .build())
+            .setDefaultRequestConfig(RequestConfig.custom()
+                                     .setRedirectsEnabled(false)
+                                     .setConnectTimeout(socketTimeout)
+                                     .setSocketTimeout(socketTimeout)
+                                     .setConnectionRequestTimeout(socketTimeout)
+                                     .build())
+            // concurrency is limited by the `AdmissionController`, not here
+            .setMaxConnTotal(Integer.MAX_VALUE)
+            .setMaxConnPerRoute(Integer.MAX_VALUE)
+            .disableCookieManagement()
+            .setThreadFactory(newThreadFactory("gridcertlib-nio"))
+            .build();
+        client_.start();
+        dispatcher_ = new ThreadPoolExecutor(DISPATCH_THREADS, DISPATCH_THREADS, 60, TimeUnit.SECONDS,
+                                             new LinkedBlockingQueue<Runnable>(),
+                                             newThreadFactory("gridcertlib-nio-dispatch"));
+        dispatcher_.allowCoreThreadTimeOut(true);
+    }
+
+
+    /**
+     * Start an HTTP request; return immediately.
+     *
+     * @param method  HTTP method: {@code GET} or {@code POST}
+     * @param url     request URL ({@code http} or {@code https})
+     * @param headers additional request headers, or {@code null}
+     * @param body    request body, or {@code null}
+     *
+     * @throws IOException if the URL or method is not supported, or the client is closed
+     */
+    public Future<TransportResponse> execute(final String method,
+                                             final String url,
+                                             final Map<String, String> headers,
+                                             final byte[] body)
+        throws IOException
+    {
+        final Exchange exchange = new Exchange(url, newRequest(method, url, headers, body));
+        inFlight_.add(exchange);
+        try {
+            // checked after registering: `close` either sees the
+            // exchange and fails it, or has already set `closed_`
+            if (closed_)
+                throw new IOException("NioHttpClient is closed");
+            dispatcher_.execute(exchange);
+        }
+        catch (RejectedExecutionException x) {
+            inFlight_.remove(exchange);
+            throw new IOException("NioHttpClient is closed");
+        }
+        catch (IOException x) {
+            inFlight_.remove(exchange);
+            throw x;
+        }
+        return exchange.future;
+    }
+
+
+    /** Start a {@code GET} request for {@code url}. */
+    public Future<TransportResponse> get(final String url)
+        throws IOException
+    {
+        return execute("GET", url, null, null);
+    }
+
+
+    /** Start a {@code POST} request for {@code url}, with {@code parameters} form-encoded in the body. */
+    public Future<TransportResponse> postForm(final String url, final Map<String, String> parameters)
+        throws IOException
+    {
+        final StringBuilder form = new StringBuilder();
+        for (Map.Entry<String, String> param : parameters.entrySet()) {
+            if (form.length() > 0)
+                form.append('&');
+            form.append(URLEncoder.encode(param.getKey(), "UTF-8"))
+                .append('=')
+                .append(URLEncoder.encode(param.getValue(), "UTF-8"));
+        }
+        return execute("POST", url, null, form.toString().getBytes("US-ASCII"));
+    }
+
+
+    /** Return the number of requests started and not yet completed. */
+    public int getInFlightCount() { return inFlight_.size(); }
+
+    public long getTimeout() { return timeout_; }
+
+    /** Return {@code true} if server certificates are checked against the host name. */
+    public boolean isHostnameVerification() { return verifyHostname_; }
+
+    /**
+     * Check (the default) or do not check server certificates against
+     * the host name of the URL, for connections opened afterwards; not
+     * checking is only safe if the trusted CAs sign nothing but the
+     * servers contacted.
+     */
+    public void setHostnameVerification(final boolean verify) { verifyHostname_ = verify; }
+
+    public int getMaxResponseSize() { return maxResponseSize_; }
+
+    /** Set the maximum size (in bytes) of a response body, for requests started afterwards. */
+    public void setMaxResponseSize(final int size)
+    {
+        if (size < 1)
+            throw new IllegalArgumentException("NioHttpClient: maximum response size must be positive");
+        maxResponseSize_ = size;
+    }
+
+
+    /** Stop the I/O threads; requests still in flight fail with an {@link IOException}. */
+    public void close()
+    {
+        closed_ = true;
+        dispatcher_.shutdown();
+        try {
+            client_.close();
+        }
+        catch (IOException x) {
+            LOG.warn("NioHttpClient: error closing HTTP client: " + x.getMessage());
+        }
+        final IOException closed = new IOException("NioHttpClient closed");
+        for (Exchange exchange : inFlight_)
+            exchange.failed(closed);
+    }
+
+
+    /** Return a request for {@code url}; only {@code GET} and {@code POST} are supported. */
+    protected HttpRequestBase newRequest(final String method,
+                                         final String url,
+                                         final Map<String, String> headers,
+                                         final byte[] body)
+        throws IOException
+    {
+        final URI uri;
+        try {
+            uri = new URI(url);
+        }
+        catch (URISyntaxException x) {
+            throw new IOException("Invalid URL '" + url + "': " + x.getMessage());
+        }
+        if ("https".equalsIgnoreCase(uri.getScheme())) {
+            if (null == sslContext_)
+                throw new IOException("No SSL context configured, cannot request '" + url + "'");
+        }
+        else if (! "http".equalsIgnoreCase(uri.getScheme()))
+            throw new IOException("Unsupported protocol in URL '" + url + "'");
+        if (null == uri.getHost())
+            throw new IOException("No host name in URL '" + url + "'");
+
+        final HttpRequestBase request;
+        if ("GET".equals(method))
+            request = new HttpGet(uri);
+        else if ("POST".equals(method)) {
+            final HttpPost post = new HttpPost(uri);
+            if (null != body)
+                post.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_FORM_URLENCODED));
+            request = post;
+        }
+        else
+            throw new IOException("Unsupported HTTP method '" + method + "'");
+        if (null != headers)
+            for (Map.Entry<String, String> header : headers.entrySet())
+                request.setHeader(header.getKey(), header.getValue());
+        return request;
+    }
+
+
+    /** Return a factory of daemon threads named {@code prefix-N}. */
+    private static ThreadFactory newThreadFactory(final String prefix)
+    {
+        final AtomicInteger count = new AtomicInteger(0);
+        return new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+
+    /** A single request/response exchange; runs on the dispatcher pool, then completes from the I/O threads. */
+    private final class Exchange implements Runnable, FutureCallback<TransportResponse> {
+        final String url;
+        final HttpRequestBase request;
+        final int maxResponseSize = maxResponseSize_;
+        final long expires = System.currentTimeMillis() + timeout_;
+        volatile Future<TransportResponse> running = null;
+        final BasicFuture<TransportResponse> future = new BasicFuture<TransportResponse>(null) {
+            public boolean cancel(final boolean mayInterruptIfRunning) {
+                final boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled)
+                    abort();
+                return cancelled;
+            }
+        };
+
+        Exchange(final String url, final HttpRequestBase request) {
+            this.url = url;
+            this.request = request;
+        }
+
+        public void run() {
+            if (future.isDone())
+                return;
+            try {
+                running = client_.execute(HttpAsyncMethods.create(request),
+                                          new BoundedResponseConsumer(url, maxResponseSize, expires),
+                                          this);
+            }
+            catch (RuntimeException x) {
+                // e.g., the I/O reactor has been shut down
+                failed(new IOException("Cannot start request to '" + url + "': " + x.getMessage()));
+                return;
+            }
+            // a cancellation while starting may have missed `running`
+            if (future.isCancelled())
+                abort();
+        }
+
+        void abort() {
+            inFlight_.remove(this);
+            request.abort();
+            final Future<TransportResponse> started = running;
+            if (null != started)
+                started.cancel(true);
+        }
+
+        public void completed(final TransportResponse response) {
+            inFlight_.remove(this);
+            future.completed(response);
+        }
+
+        public void failed(final Exception error) {
+            inFlight_.remove(this);
+            future.failed(error);
+        }
+
+        public void cancelled() {
+            inFlight_.remove(this);
+            future.cancel();
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/**
+ * @file   NioTransport.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class NioTransport
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import ch.SWITCH.aai.idwsf.ecp.DelegationContext;
+import org.bouncycastle.openssl.PEMReader;
+import org.bouncycastle.openssl.PasswordFinder;
+import org.opensaml.saml2.core.Assertion;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+
+/**
+ * Transport driving requests from the few I/O threads of a {@link
+ * NioHttpClient}, so that waiting for the SLCS service does not tie
+ * up a thread per request.
+ * <p>
+ * The assertion fetch and the certificate request {@code POST} go
+ * through the NIO client; the SAML2 assertion is unmarshalled with
+ * OpenSAML (which must have been bootstrapped) when the caller
+ * retrieves it.  The login {@code GET} requires the ECP delegation
+ * protocol, which is only implemented inside the ID-WSF library on
+ * top of commons-httpclient, so it is passed on to a {@link
+ * BlockingTransport}.
+ * <p>
+ * Use {@link #createSSLContext} to build a TLS context presenting
+ * the same SP certificate and trusting the same CA certificates as
+ * the {@link ch.SWITCH.httpclient.tls.PEMTLSCredentials} of the
+ * blocking transport; the assertion URL, too, must then present a
+ * certificate signed by one of those CAs.  Unlike the blocking
+ * transport, the NIO client also checks that server certificates
+ * match the host name of the URL (see {@link
+ * NioHttpClient#setHostnameVerification}): an assertion URL on {@code
+ * localhost} needs a certificate for that name, or the check turned
+ * off with {@code gridcertlib.transport.nio.verifyHostname = false}.
+ * <p>
+ * The following properties are read by {@link #create}:
+ * <dl>
+ * <dt>{@code gridcertlib.transport                     }<dd>{@code blocking} (default; see {@link BlockingTransport}) or {@code nio}
+ * <dt>{@code gridcertlib.transport.nio.threads         }<dd>number of I/O threads (default: 2)
+ * <dt>{@code gridcertlib.transport.nio.timeout         }<dd>maximum duration (in milliseconds) of a request (default: 60000)
+ * <dt>{@code gridcertlib.transport.nio.verifyHostname  }<dd>whether server certificates are checked against host names (default: true)
+ * <dt>{@code gridcertlib.transport.nio.maxResponseSize }<dd>maximum size (in bytes) of a response body (default: 4194304)
+ * </dl>
+ * The SP credentials are taken from the {@code gridcertlib.pem*}
+ * properties, as described in {@link SLCSFactory#SLCSFactory(Properties,boolean)}.
+ */
+public class NioTransport implements SLCSTransport {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(NioTransport.class);
+
+    /** Password protecting the private key in the in-memory key store. */
+    private static final char[] KEYSTORE_PASSWORD = "gridcertlib".toCharArray();
+
+    protected final NioHttpClient client_;
+    protected final SLCSTransport loginDelegate_;
+    protected final AssertionParser parser_;
+
+
+    /**
+     * Constructor.
+     *
+     * @param client        the NIO client making the requests; closed by {@link #close}
+     * @param loginDelegate transport for the ECP-delegated login
+     * @param parser        parser for retrieved assertions
+     */
+    public NioTransport(final NioHttpClient client,
+                        final SLCSTransport loginDelegate,
+                        final AssertionParser parser)
+    {
+        assert(null != client);
+        assert(null != loginDelegate);
+        assert(null != parser);
+        client_ = client;
+        loginDelegate_ = loginDelegate;
+        parser_ = parser;
+    }
+
+
+    public Future<Assertion> fetchAssertion(final String assertionUrl)
+        throws IOException
+    {
+        final Future<TransportResponse> response = client_.get(assertionUrl);
+        return new Future<Assertion>() {
+            public Assertion get()
+                throws InterruptedException, ExecutionException
+            {
+                return parseAssertion(assertionUrl, response.get());
+            }
+            public Assertion get(final long timeout, final TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException
+            {
+                return parseAssertion(assertionUrl, response.get(timeout, unit));
+            }
+            public boolean cancel(final boolean mayInterruptIfRunning) {
+                return response.cancel(mayInterruptIfRunning);
+            }
+            public boolean isCancelled() { return response.isCancelled(); }
+            public boolean isDone()      { return response.isDone(); }
+        };
+    }
+
+
+    public Future<TransportResponse> login(final DelegationContext context, final String slcsLoginUrl)
+        throws IOException
+    {
+        return loginDelegate_.login(context, slcsLoginUrl);
+    }
+
+
+    public Future<TransportResponse> post(final String url, final Map<String, String> parameters)
+        throws IOException
+    {
+        return client_.postForm(url, parameters);
+    }
+
+
+    /** Warm up both this transport and the one used for logins. */
+    public void warmUp(final String url)
+        throws IOException
+    {
+        loginDelegate_.warmUp(url);
+        try {
+            client_.get(url).get();
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            final IOException error = new IOException("Interrupted while retrieving '" + url + "'");
+            error.initCause(x);
+            throw error;
+        }
+        catch (ExecutionException x) {
+            if (x.getCause() instanceof IOException)
+                throw (IOException) x.getCause();
+            final IOException error = new IOException("Cannot retrieve '" + url + "': " + x.getCause().getMessage());
+            error.initCause(x.getCause());
+            throw error;
+        }
+    }
+
+
+    public void close()
+    {
+        client_.close();
+        loginDelegate_.close();
+    }
+
+
+    public NioHttpClient getClient() { return client_; }
+
+
+    /**
+     * Return the transport selected by {@code props}: {@code
+     * blocking} itself, or a new NIO transport passing the login on to
+     * {@code blocking}; see the class description for the properties.
+     *
+     * @param blocking  Blocking transport, with the SP credentials
+     * @param parser    Parser for retrieved assertions
+     *
+     * @throws InvalidConfigurationException if a property has an invalid value
+     * @throws InitializationException if the TLS context of the NIO client cannot be created
+     */
+    public static SLCSTransport create(final Properties props,
+                                       final SLCSTransport blocking,
+                                       final AssertionParser parser)
+        throws InitializationException
+    {
+        if ("blocking".equals(ConfigProperties.getChoiceProperty(props, "gridcertlib.transport", "blocking",
+                                                                 "blocking", "nio")))
+            return blocking;
+        final int threads = ConfigProperties.getIntProperty(props, "gridcertlib.transport.nio.threads", 2, 1);
+        final long timeout = ConfigProperties.getLongProperty(props, "gridcertlib.transport.nio.timeout", 60000, 1);
+        final boolean verifyHostname =
+            ConfigProperties.getBooleanProperty(props, "gridcertlib.transport.nio.verifyHostname", true);
+        final int maxResponseSize =
+            ConfigProperties.getIntProperty(props, "gridcertlib.transport.nio.maxResponseSize",
+                                            NioHttpClient.DEFAULT_MAX_RESPONSE_SIZE, 1);
+        try {
+            final NioHttpClient client =
+                new NioHttpClient(createSSLContext(props.getProperty("gridcertlib.pemCertificatePath"),
+                                                   props.getProperty("gridcertlib.pemPrivateKeyPath"),
+                                                   props.getProperty("gridcertlib.pemPrivateKeyPassword", ""),
+                                                   props.getProperty("gridcertlib.pemCACertificatesPath")),
+                                  threads, timeout);
+            client.setHostnameVerification(verifyHostname);
+            client.setMaxResponseSize(maxResponseSize);
+            return new NioTransport(client, blocking, parser);
+        }
+        catch (GeneralSecurityException x) {
+            throw new InitializationException("Failed creating NIO transport (GeneralSecurityException): "
+                                              + x.getMessage(), x);
+        }
+        catch (IOException x) {
+            throw new InitializationException("Failed creating NIO transport (IOException): "
+                                              + x.getMessage(), x);
+        }
+    }
+
+
+    /**
+     * Unmarshal the assertion in {@code response}.
+     *
+     * @throws ExecutionException wrapping an {@link IOException} if the response is not a valid assertion,
+     *         or an {@link AssertionExpiredError} if the assertion has expired.
+     */
+    protected Assertion parseAssertion(final String assertionUrl, final TransportResponse response)
+        throws ExecutionException
+    {
+        try {
+            if (200 != response.getStatus())
+                throw new IOException("Cannot retrieve assertion from '" + assertionUrl + "': "
+                                      + response.getStatusLine());
+            return parser_.parse(response.getBodyAsStream(), "response from '" + assertionUrl + "'");
+        }
+        catch (IOException x) {
+            throw new ExecutionException(x);
+        }
+        catch (AssertionExpiredError x) {
+            throw new ExecutionException(x);
+        }
+    }
+
+
+    /**
+     * Return a TLS context presenting the certificate and private key
+     * found in the given PEM files, and trusting the CA certificates
+     * in {@code pemCACertificatesPath}; the arguments are the same as
+     * for {@link ch.SWITCH.httpclient.tls.PEMTLSCredentials}.
+     *
+     * @param pemCertificatePath    filesystem path to the SP SSL certificate (in PEM format)
+     * @param pemPrivateKeyPath     filesystem path to the SP SSL private key (in PEM format)
+     * @param pemPrivateKeyPassword string used to decrypt the SSL private key; empty if the key is not encrypted
+     * @param pemCACertificatesPath filesystem path to trusted CA certificates (all in a single PEM-format file)
+     */
+    public static SSLContext createSSLContext(final String pemCertificatePath,
+                                              final String pemPrivateKeyPath,
+                                              final String pemPrivateKeyPassword,
+                                              final String pemCACertificatesPath)
+        throws GeneralSecurityException, IOException
+    {
+        final Certificate[] chain = readCertificates(pemCertificatePath).toArray(new Certificate[0]);
+        if (0 == chain.length)
+            throw new GeneralSecurityException("No certificate found in file '" + pemCertificatePath + "'");
+
+        final PasswordFinder password = (null == pemPrivateKeyPassword || "".equals(pemPrivateKeyPassword))
+            ? null
+            : new PasswordFinder() {
+                    public char[] getPassword() { return pemPrivateKeyPassword.toCharArray(); }
+                };
+        final PEMReader reader = new PEMReader(new FileReader(pemPrivateKeyPath), password);
+        final Object key;
+        try {
+            key = reader.readObject();
+        }
+        finally {
+            reader.close();
+        }
+        final PrivateKey privateKey;
+        if (key instanceof KeyPair)
+            privateKey = ((KeyPair) key).getPrivate();
+        else if (key instanceof PrivateKey)
+            privateKey = (PrivateKey) key;
+        else
+            throw new GeneralSecurityException("No private key found in file '" + pemPrivateKeyPath + "'");
+
+        final KeyStore keys = KeyStore.getInstance(KeyStore.getDefaultType());
+        keys.load(null, null);
+        keys.setKeyEntry("gridcertlib", privateKey, KEYSTORE_PASSWORD, chain);
+        final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keys, KEYSTORE_PASSWORD);
+
+        final KeyStore trusted = KeyStore.getInstance(KeyStore.getDefaultType());
+        trusted.load(null, null);
+        int n = 0;
+        for (Certificate ca : readCertificates(pemCACertificatesPath))
+            trusted.setCertificateEntry("ca-" + (n++), ca);
+        final TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trusted);
+
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        LOG.debug("NioTransport: created TLS context with certificate from '" + pemCertificatePath
+                  + "' and " + n + " trusted CA certificates from '" + pemCACertificatesPath + "'");
+        return context;
+    }
+
+
+    private static Collection<? extends Certificate> readCertificates(final String path)
+        throws GeneralSecurityException, IOException
+    {
+        final InputStream in = new FileInputStream(path);
+        try {
+            return CertificateFactory.getInstance("X.509").generateCertificates(in);
+        }
+        finally {
+            in.close();
+        }
+    }
+}
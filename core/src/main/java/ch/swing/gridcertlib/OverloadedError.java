@@ -0,0 +1,63 @@
+/**
+ * @file   OverloadedError.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class OverloadedError
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+
+/**
+ * Thrown when a request is rejected without being attempted, because
+ * too many requests are already in progress (see {@link
+ * AdmissionController}).  Clients may retry after the number of
+ * seconds given by {@link #getRetryAfter}; servlets should translate
+ * this into a {@code 503 Service Unavailable} response with a {@code
+ * Retry-After} header.
+ *
+ * @author  riccardo.murri@gmail.com
+ * @version $Revision$
+ */
+public class OverloadedError
+    extends OperationsError
+{
+    private final int retryAfter_;
+
+    public OverloadedError(final String explanation,
+                           final int retryAfter) 
+    {
+        super(explanation);
+        retryAfter_ = retryAfter;
+    }
+
+    public OverloadedError(final String explanation, 
+                           final int retryAfter,
+                           final Throwable cause) 
+    {
+        super(explanation, cause);
+        retryAfter_ = retryAfter;
+    }
+
+    /** Return the suggested delay before retrying, in seconds. */
+    public int getRetryAfter()
+    {
+        return retryAfter_;
+    }
+}
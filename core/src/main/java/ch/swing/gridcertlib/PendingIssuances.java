@@ -0,0 +1,172 @@
+/**
+ * @file   PendingIssuances.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class PendingIssuances
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.swing.gridcertlib;
+
+import org.glite.slcs.pki.CertificateKeys;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * State of failed issuances, kept for a while so that a retry for the
+ * same certificate path restarts from the failed step instead of from
+ * scratch: the key pair is always reused, and a certificate request
+ * ready to send, or a certificate ready to store, is picked up.
+ * <p>
+ * The following property is read by {@link #PendingIssuances(Properties)}:
+ * <dl>
+ * <dt>{@code gridcertlib.resume.window }<dd>time (in milliseconds) the state of a failed issuance is kept (default: 300000; 0 disables resuming)
+ * </dl>
+ */
+public class PendingIssuances {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(PendingIssuances.class);
+
+    /**
+     * State of a failed issuance: the key pair is always reused; the
+     * requestor, if any, has a certificate request ready to send, or
+     * a certificate ready to store.
+     */
+    public static final class Pending {
+        final CertificateKeys keys;
+        final SLCSRequestor requestor;
+        final String privateKeyPassword;
+        final long expires;
+
+        Pending(final CertificateKeys keys,
+                final SLCSRequestor requestor,
+                final String privateKeyPassword,
+                final long expires)
+        {
+            this.keys = keys;
+            this.requestor = requestor;
+            this.privateKeyPassword = privateKeyPassword;
+            this.expires = expires;
+        }
+
+        /** Return the key pair of the failed issuance. */
+        public CertificateKeys getKeys()           { return keys; }
+        /** Return the requestor to resume from, or {@code null} if a new login is needed. */
+        public SLCSRequestor getRequestor()        { return requestor; }
+    }
+
+    /** State of failed issuances, keyed by canonical certificate path. */
+    private final ConcurrentMap<String, Pending> pending_ =
+        new ConcurrentHashMap<String, Pending>();
+
+    /** Time (in milliseconds) the state of a failed issuance is kept; 0 disables resuming. */
+    private volatile long window_ = 300000;
+
+
+    /** Constructor, with the default resume window. */
+    public PendingIssuances()
+    {
+        // nothing to do
+    }
+
+
+    /**
+     * Constructor, taking the resume window from a property list;
+     * see the class description for the property name.
+     *
+     * @throws InvalidConfigurationException if the property has an invalid value
+     */
+    public PendingIssuances(final Properties props)
+        throws InvalidConfigurationException
+    {
+        setWindow(ConfigProperties.getLongProperty(props, "gridcertlib.resume.window", 300000, 0));
+    }
+
+
+    /**
+     * Remove and return the state of a failed issuance of the
+     * certificate at canonical path {@code key}, or return {@code
+     * null} if there is none, it has expired, or it used a different
+     * private key password.
+     */
+    public Pending take(final String key, final String privateKeyPassword)
+    {
+        final Pending pending = pending_.remove(key);
+        if (null == pending)
+            return null;
+        if (pending.expires < System.currentTimeMillis()) {
+            LOG.debug("PendingIssuances: state of failed issuance for '" + key + "' has expired.");
+            return null;
+        }
+        if (! pending.privateKeyPassword.equals(privateKeyPassword)) {
+            LOG.debug("PendingIssuances: discarding state of failed issuance for '" + key
+                      + "': different private key password.");
+            return null;
+        }
+        return pending;
+    }
+
+    /**
+     * Keep the state of a failed issuance of the certificate at
+     * canonical path {@code key} for the resume window, so that a
+     * retry restarts from the failed step.
+     *
+     * @param requestor  Requestor with a certificate request or certificate ready, or {@code null}
+     */
+    public void suspend(final String key,
+                        final CertificateKeys keys,
+                        final SLCSRequestor requestor,
+                        final String privateKeyPassword)
+    {
+        final long window = window_;
+        if (window <= 0)
+            return;
+        final long now = System.currentTimeMillis();
+        for (Iterator<Pending> it = pending_.values().iterator(); it.hasNext(); )
+            if (it.next().expires < now)
+                it.remove();
+        pending_.put(key, new Pending(keys, requestor, privateKeyPassword, now + window));
+        LOG.info("PendingIssuances: keeping state of failed issuance for '" + key
+                 + "' for " + window + " ms.");
+    }
+
+    /** Return the time (in milliseconds) the state of a failed issuance is kept for resuming it. */
+    public long getWindow()
+    {
+        return window_;
+    }
+
+    /** Set the time (in milliseconds) the state of a failed issuance is kept for resuming it; 0 disables resuming. */
+    public void setWindow(final long window)
+    {
+        if (window < 0)
+            throw new IllegalArgumentException("PendingIssuances: resume window must not be negative");
+        window_ = window;
+        if (0 == window)
+            pending_.clear();
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * @file   RetryPolicy.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class RetryPolicy
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import java.util.Properties;
+import java.util.Random;
+
+
+/**
+ * How often, and after how long, idempotent steps are retried.
+ * <p>
+ * Uses exponential backoff with "full jitter": before attempt {@code
+ * n+1}, wait a random time between 0 and {@code min(maxDelay,
+ * baseDelay * 2^(n-1))} milliseconds, so that clients failing
+ * together do not retry together.
+ * <p>
+ * The following properties (all optional) configure an instance:
+ * <dl>
+ * <dt>{@code gridcertlib.retry.maxAttempts }<dd>total number of attempts, including the first one (default: 3; 1 disables retries)
+ * <dt>{@code gridcertlib.retry.baseDelay   }<dd>maximum wait before the first retry, in milliseconds (default: 200)
+ * <dt>{@code gridcertlib.retry.maxDelay    }<dd>upper bound for the wait before any retry, in milliseconds (default: 5000)
+ * </dl>
+ */
+public class RetryPolicy {
+
+    protected final int maxAttempts_;
+    protected final long baseDelay_;
+    protected final long maxDelay_;
+    private final Random random_ = new Random();
+
+
+    public RetryPolicy(final int maxAttempts, final long baseDelay, final long maxDelay)
+    {
+        if (maxAttempts < 1 || baseDelay < 0 || maxDelay < baseDelay)
+            throw new IllegalArgumentException("RetryPolicy: must have maxAttempts >= 1"
+                                               + " and 0 <= baseDelay <= maxDelay");
+        maxAttempts_ = maxAttempts;
+        baseDelay_ = baseDelay;
+        maxDelay_ = maxDelay;
+    }
+
+
+    /**
+     * Constructor taking the configuration from a properties object;
+     * see the class description for the property names.
+     *
+     * @throws IllegalArgumentException if a property has an invalid value
+     */
+    public RetryPolicy(final Properties props)
+    {
+        this(Integer.parseInt(props.getProperty("gridcertlib.retry.maxAttempts", "3")),
+             Long.parseLong(props.getProperty("gridcertlib.retry.baseDelay", "200")),
+             Long.parseLong(props.getProperty("gridcertlib.retry.maxDelay", "5000")));
+    }
+
+
+    public int getMaxAttempts() { return maxAttempts_; }
+
+
+    /** Return whether another attempt may be made after {@code attempt} failed ones. */
+    public boolean canRetry(final int attempt)
+    {
+        return attempt < maxAttempts_;
+    }
+
+
+    /** Return a random delay (in milliseconds) to wait after the {@code attempt}-th failure. */
+    public long getDelay(final int attempt)
+    {
+        final int shift = Math.min(Math.max(attempt - 1, 0), 30);
+        final long cap = Math.min(maxDelay_, baseDelay_ << shift);
+        synchronized (random_) {
+            return (long) (random_.nextDouble() * cap);
+        }
+    }
+
+
+    /**
+     * Sleep for {@link #getDelay}{@code (attempt)} milliseconds.
+     *
+     * @throws OperationsError if interrupted
+     */
+    public void backoff(final int attempt)
+        throws OperationsError
+    {
+        try {
+            Thread.sleep(getDelay(attempt));
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new OperationsError("Interrupted while waiting to retry", x);
+        }
+    }
+}
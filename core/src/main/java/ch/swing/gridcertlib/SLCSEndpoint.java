@@ -0,0 +1,125 @@
+/**
+ * @file   SLCSEndpoint.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class SLCSEndpoint
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+
+/**
+ * An SLCS deployment: SLCS login URL and WSP Session Initiator URL,
+ * together with statistics on past requests.
+ * <p>
+ * The latency and error rate of requests are tracked as
+ * exponentially weighted moving averages; the error rate also decays
+ * with time, so that an endpoint that failed in the past is
+ * eventually tried again.  {@link #getScore} combines the two into
+ * an expected cost in milliseconds, counting each failure as {@value
+ * #ERROR_COST}ms: lower is better.  An endpoint that has never been
+ * used has score 0, so each endpoint is tried at least once.
+ */
+public class SLCSEndpoint {
+
+    /** Weight of a new sample in the moving averages. */
+    protected static final double WEIGHT = 0.2;
+
+    /** Cost (in milliseconds) attributed to a failed request. */
+    public static final double ERROR_COST = 60000.0;
+
+    /** Time (in milliseconds) over which the error rate decays by a factor {@code e}. */
+    protected static final long ERROR_DECAY = 60000;
+
+    protected final String slcsLoginUrl_;
+    protected final String wspSessionInitiatorUrl_;
+
+    private double avgLatency_ = 0;
+    private double errorRate_ = 0;
+    private long lastUpdate_ = 0;
+    private long requests_ = 0;
+    private long errors_ = 0;
+
+
+    public SLCSEndpoint(final String slcsLoginUrl, final String wspSessionInitiatorUrl)
+    {
+        assert(null != slcsLoginUrl);
+        assert(null != wspSessionInitiatorUrl);
+        slcsLoginUrl_ = slcsLoginUrl;
+        wspSessionInitiatorUrl_ = wspSessionInitiatorUrl;
+    }
+
+
+    public String getSlcsLoginUrl()           { return slcsLoginUrl_; }
+    public String getWspSessionInitiatorUrl() { return wspSessionInitiatorUrl_; }
+
+
+    /**
+     * Record the outcome of a request to this endpoint.
+     *
+     * @param latency duration of the request, in milliseconds
+     * @param failed  {@code true} if the request failed because of an endpoint problem
+     */
+    public synchronized void record(final long latency, final boolean failed)
+    {
+        final long now = System.currentTimeMillis();
+        errorRate_ = (1 - WEIGHT) * decayedErrorRate(now) + WEIGHT * (failed ? 1.0 : 0.0);
+        // failed requests may end early, and would make the endpoint look fast
+        if (! failed)
+            avgLatency_ = (0 == avgLatency_) ? latency
+                : (1 - WEIGHT) * avgLatency_ + WEIGHT * latency;
+        lastUpdate_ = now;
+        requests_++;
+        if (failed)
+            errors_++;
+    }
+
+
+    /** Return the expected cost of a request to this endpoint; lower is better. */
+    public synchronized double getScore()
+    {
+        return avgLatency_ + ERROR_COST * decayedErrorRate(System.currentTimeMillis());
+    }
+
+    /** Return the moving average of successful request duration, in milliseconds. */
+    public synchronized double getAverageLatency() { return avgLatency_; }
+
+    /** Return the moving average of the error rate, between 0 and 1. */
+    public synchronized double getErrorRate() { return decayedErrorRate(System.currentTimeMillis()); }
+
+    public synchronized long getRequestCount() { return requests_; }
+    public synchronized long getErrorCount()   { return errors_; }
+
+
+    public synchronized String toString()
+    {
+        return "SLCSEndpoint(" + slcsLoginUrl_ + " via " + wspSessionInitiatorUrl_
+            + ": latency=" + (long)avgLatency_ + "ms, errorRate="
+            + decayedErrorRate(System.currentTimeMillis()) + ")";
+    }
+
+
+    /** Must be called with the lock held. */
+    private double decayedErrorRate(final long now)
+    {
+        if (0 == lastUpdate_)
+            return errorRate_;
+        return errorRate_ * Math.exp(- (double)(now - lastUpdate_) / ERROR_DECAY);
+    }
+}
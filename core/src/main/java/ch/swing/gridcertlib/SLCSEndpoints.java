@@ -0,0 +1,127 @@
+/**
+ * @file   SLCSEndpoints.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class SLCSEndpoints
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.swing.gridcertlib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The SLCS deployments a factory can request certificates from, and
+ * the order to try them in: lowest expected cost first (see {@link
+ * SLCSEndpoint#getScore}), then the others for failover.
+ */
+public class SLCSEndpoints {
+
+    /** SLCS endpoints, in configuration order. */
+    private final List<SLCSEndpoint> endpoints_;
+
+
+    /**
+     * Constructor, pairing up the comma-separated lists of SLCS login
+     * URLs and WSP Session Initiator URLs; a single WSP URL is shared
+     * by all SLCS login URLs.
+     *
+     * @throws InitializationException if the lists are empty, or their lengths do not match
+     */
+    public SLCSEndpoints(final String slcsLoginUrls, final String wspSessionInitiatorUrls)
+        throws InitializationException
+    {
+        final List<String> logins = splitList(slcsLoginUrls);
+        final List<String> wsps = splitList(wspSessionInitiatorUrls);
+        if (logins.isEmpty() || wsps.isEmpty())
+            throw new InitializationException("No SLCS login URL or WSP Session Initiator URL given");
+        if (wsps.size() != 1 && wsps.size() != logins.size())
+            throw new InitializationException("Got " + logins.size() + " SLCS login URLs but "
+                                              + wsps.size() + " WSP Session Initiator URLs");
+        endpoints_ = new ArrayList<SLCSEndpoint>(logins.size());
+        for (int n = 0; n < logins.size(); n++)
+            endpoints_.add(new SLCSEndpoint(logins.get(n), wsps.get((1 == wsps.size()) ? 0 : n)));
+    }
+
+
+    /** Return the endpoints, in configuration order. */
+    public List<SLCSEndpoint> getEndpoints()
+    {
+        return Collections.unmodifiableList(endpoints_);
+    }
+
+    /** Return the first endpoint in configuration order. */
+    public SLCSEndpoint getPrimary()
+    {
+        return endpoints_.get(0);
+    }
+
+    /** Return the endpoints, lowest {@link SLCSEndpoint#getScore score} first. */
+    public List<SLCSEndpoint> getByPreference()
+    {
+        final List<SLCSEndpoint> result = new ArrayList<SLCSEndpoint>(endpoints_);
+        if (result.size() > 1) {
+            // compute scores once, since they change concurrently; the sort is stable,
+            // so configuration order breaks ties
+            final Map<SLCSEndpoint, Double> scores = new HashMap<SLCSEndpoint, Double>();
+            for (SLCSEndpoint endpoint : result)
+                scores.put(endpoint, endpoint.getScore());
+            Collections.sort(result, new Comparator<SLCSEndpoint>() {
+                    public int compare(final SLCSEndpoint a, final SLCSEndpoint b) {
+                        return scores.get(a).compareTo(scores.get(b));
+                    }
+                });
+        }
+        return result;
+    }
+
+    /**
+     * Return {@code true} if no endpoint is left to fail over to after
+     * {@code candidates[n]}; a hedged login may have used (and been
+     * served by) the next endpoint as well.
+     *
+     * @param served  Endpoint that served the login, or {@code null} if none did
+     */
+    public static boolean isLastCandidate(final List<SLCSEndpoint> candidates,
+                                          final int n,
+                                          final SLCSEndpoint served)
+    {
+        final int used = (null != served && n + 1 < candidates.size()
+                          && served == candidates.get(n + 1)) ? n + 1 : n;
+        return used + 1 >= candidates.size();
+    }
+
+    /** Split a comma-separated list, trimming whitespace and skipping empty items. */
+    protected static List<String> splitList(final String list)
+    {
+        final List<String> result = new ArrayList<String>();
+        for (String item : list.split(",")) {
+            item = item.trim();
+            if (item.length() > 0)
+                result.add(item);
+        }
+        return result;
+    }
+}
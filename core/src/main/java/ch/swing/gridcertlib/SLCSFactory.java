@@ -25,27 +25,32 @@
 package ch.swing.gridcertlib;
 
 import ch.SWITCH.aai.idwsf.ecp.WebServiceClient;
-import ch.SWITCH.aai.idwsf.token.SAML2AssertionURLResolver;
 import ch.SWITCH.aai.idwsf.token.TokenResolverException;
 import ch.SWITCH.aai.idwsf.xml.OpenSAML;
 import ch.SWITCH.httpclient.tls.PEMTLSCredentials;
 //import org.opensaml.DefaultBootstrap;
-import org.opensaml.xml.ConfigurationException;
-import org.bouncycastle.openssl.PEMWriter;
+import org.bouncycastle.openssl.PEMReader;
+import org.bouncycastle.openssl.PasswordFinder;
+import org.glite.slcs.AuthException;
 import org.glite.slcs.SLCSException;
+import org.glite.slcs.pki.CertificateKeys;
+import org.opensaml.saml2.core.Assertion;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.GeneralSecurityException;
+import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.SecureRandom;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 
 /**
@@ -58,7 +63,21 @@ import java.util.Properties;
  * <p>
  * Several instances of the same class can operate at the same time,
  * allowing one to get SLCS certificates from different endpoints, or
- * to serve users from different federations.
+ * to serve users from different federations; {@link
+ * FederatedSLCSFactory} does the latter, choosing the instance by the
+ * issuer of the assertion.
+ * <p>
+ * Several SLCS deployments (e.g., a primary and a backup) can be
+ * configured: each request goes to the one with the lowest expected
+ * cost (see {@link SLCSEndpoint}), and fails over to the others in
+ * order if that fails.  Optionally, a login that is slower than usual
+ * is "hedged" with a login to the next endpoint, and the first to
+ * answer wins (see {@link HedgingPolicy}).
+ * <p>
+ * Concurrent requests for a certificate to be stored into the same
+ * file (e.g., from a double-click or several browser tabs) are
+ * coalesced: only one of them contacts the SLCS service, the others
+ * wait for it to finish and share its outcome.
  * 
  * @see #SLCSFactory(String,String,String,String,String,String,String,String,int,boolean)
  * @see #SLCSFactory(Properties,boolean)
@@ -79,15 +98,62 @@ public class SLCSFactory {
     /** Default private key size. */
     protected final int defaultPrivateKeySize_;
 
-    /** URL to the SLCS service login. */
+    /** URL to the SLCS service login (of the first endpoint, if several are configured). */
     protected final String slcsLoginUrl_;
 
-    /** URL to the WSP Session Initiator (typically ends with `.../Shibboleth.sso/WSP`) */
+    /** URL to the WSP Session Initiator (typically ends with `.../Shibboleth.sso/WSP`; of the first endpoint, if several are configured) */
     protected final String wspSessionInitiatorUrl_;
 
+    /** SLCS endpoints, and the order to try them in. */
+    protected final SLCSEndpoints endpoints_;
+
     /** ID-WSF ECP Web Service Client */
     protected WebServiceClient wsc_;
 
+    /** HTTP transport for the assertion fetch, SLCS login and certificate request. */
+    protected SLCSTransport transport_;
+
+    /** Parses the assertions retrieved or passed inline; shared by all requests of this factory. */
+    protected AssertionParser parser_;
+
+    /** Limits concurrent calls to the SLCS service; {@code null} means no limit. */
+    protected AdmissionController admission_;
+
+    /** Circuit breakers and retry policy for the calls to remote services. */
+    protected CallGuards guards_;
+
+    /** Threads running the issuance stages and the raced calls. */
+    protected IssuancePools pools_;
+
+    /** Logs in to the SLCS service, hedging slow logins. */
+    protected HedgedLogin hedgedLogin_;
+
+    /** Checks the validity of assertions, and picks the freshest of several. */
+    protected AssertionSelector selector_;
+
+    /** Recently retrieved assertions. */
+    protected AssertionCache assertions_;
+
+    /** State of failed issuances, for resuming them. */
+    protected PendingIssuances pending_;
+
+    /** Readiness of a factory; see {@link #getReadiness}. */
+    public static enum Readiness {
+        /** Bootstrap or warm-up still running in the background. */
+        WARMING_UP,
+        /** Ready to issue certificates. */
+        READY,
+        /** Bootstrapping OpenSAML failed: no certificate can be issued. */
+        FAILED
+    }
+
+    /** Background bootstrap and warm-up, if any. */
+    protected final WarmUp warmUp_ = new WarmUp();
+
+    /** In-flight certificate requests, keyed by canonical certificate path. */
+    protected final SingleFlight<String, CredentialsPathInfo> inFlight_ =
+        new SingleFlight<String, CredentialsPathInfo>();
+
 
     /**
      * Random password generation.
@@ -148,8 +214,8 @@ public class SLCSFactory {
      * The following properties are read off the {@code props}
      * parameter (prefix names with {@code gridcertlib.}:
      * <dl>
-     * <dt>{@code slcsLoginUrl           }<dd>URL to the SLCS service login
-     * <dt>{@code wspSessionInitiatorUrl }<dd>URL to the WSP Session Initiator (typically ends in `.../Shibboleth.sso/WSP`)
+     * <dt>{@code slcsLoginUrl           }<dd>URL to the SLCS service login; a comma-separated list for several SLCS endpoints
+     * <dt>{@code wspSessionInitiatorUrl }<dd>URL to the WSP Session Initiator (typically ends in `.../Shibboleth.sso/WSP`); a comma-separated list, with one URL for each SLCS login URL, or a single URL shared by all
      * <dt>{@code providerId             }<dd>SP "entity Id" (must match the one in `/etc/shibboleth/shibboleth2.xml`)
      * <dt>{@code pemCertificatePath     }<dd>filesystem path to the SP SSL certificate (in PEM format)
      * <dt>{@code pemPrivateKeyPath      }<dd>filesystem path to the SP SSL private key (in PEM format)
@@ -158,10 +224,23 @@ public class SLCSFactory {
      * <dt>{@code slcsStoreDirectory     }<dd>Filesystem path to a directory where the SLCS certificates and private keys will be saved (unless overridden in the {@link #newSLCS(String,String,String)} call).
      * <dt>{@code slcsPrivateKeySize     }<dd>Default size (in bits) of the requested private key.
      * </dl>
+     * The other properties are read, and described, by the
+     * collaborators of the factory:
+     * {@code admission.*} by {@link AdmissionController},
+     * {@code circuitBreaker.*} and {@code retry.*} by {@link CallGuards},
+     * {@code hedge.*} by {@link HedgingPolicy},
+     * {@code transport*} by {@link NioTransport#create},
+     * {@code workers.mode} and {@code pipeline.*} by {@link IssuancePools},
+     * {@code warmup*} by {@link WarmUp},
+     * {@code parser.*} by {@link AssertionParser},
+     * {@code assertion.*} by {@link AssertionSelector}, and
+     * {@code resume.window} by {@link PendingIssuances}.
      * <p>
      * If second argument {@code doOpenSamlBootstrap} is {@code true},
      * then initialize the OpenSAML library by calling {@link
-     * ch.SWITCH.aai.idwsf.xml.OpenSAML#bootstrap}.
+     * ch.SWITCH.aai.idwsf.xml.OpenSAML#bootstrap}; with {@code
+     * gridcertlib.warmup = background}, this is done by the
+     * background warm-up, and certificate requests wait for it.
      * <p>
      * On error, throws an {@link InitializationException} instance
      * wrapping the causing exception; this can be one of:<ul>
@@ -180,26 +259,67 @@ public class SLCSFactory {
     public SLCSFactory(final Properties props, final boolean doOpenSamlBootstrap) 
         throws InitializationException, InvalidConfigurationException
     {
-        // chain constructor
-        this(getRequiredProperty(props, "gridcertlib.slcsLoginURL"),
-             getRequiredProperty(props, "gridcertlib.wspSessionInitiatorURL"),
-             getRequiredProperty(props, "gridcertlib.providerId"),
-             getRequiredProperty(props, "gridcertlib.pemCertificatePath"),
-             getRequiredProperty(props, "gridcertlib.pemPrivateKeyPath"),
-             getRequiredProperty(props, "gridcertlib.pemCACertificatesPath"),
-             props.getProperty("gridcertlib.pemPrivateKeyPassword", ""),
-             props.getProperty("gridcertlib.slcsStoreDirectory", "/tmp"),
-             Integer.parseInt(props.getProperty("gridcertlib.slcsPrivateKeySize", "1024")),
-             doOpenSamlBootstrap);
+        this(props, doOpenSamlBootstrap, IssuancePools.newCpuPool(props), IssuancePools.newIoPool(props));
     }
 
-    protected static String getRequiredProperty(final Properties props, final String name)
-        throws InvalidConfigurationException
+
+    /**
+     * Constructor, taking configuration parameters from a property
+     * list, and running the issuance stages on the given pools
+     * instead of creating them from the {@code gridcertlib.pipeline.*}
+     * properties.  See {@link #SLCSFactory(Properties,boolean)} for
+     * the other properties read.
+     *
+     * @param props                Server-wide configuration parameters
+     * @param doOpenSamlBootstrap  If {@code true}, initialize the OpenSAML library
+     * @param cpuPool              Runs the CPU-bound issuance stages
+     * @param ioPool               Runs the issuance stages waiting on remote services
+     *
+     * @throws InitializationException wrapping the causing exception
+     * @throws InvalidConfigurationException if any required property is missing, or any property has an invalid value
+     */
+    protected SLCSFactory(final Properties props, final boolean doOpenSamlBootstrap,
+                          final StagePool cpuPool, final StagePool ioPool)
+        throws InitializationException, InvalidConfigurationException
     {
-        String value = props.getProperty(name);
-        if (null == value)
-            throw new InvalidConfigurationException("Missing required property '" + name + "'");
-        return value;
+        // chain constructor
+        this(ConfigProperties.getRequiredProperty(props, "gridcertlib.slcsLoginURL"),
+             ConfigProperties.getRequiredProperty(props, "gridcertlib.wspSessionInitiatorURL"),
+             ConfigProperties.getRequiredProperty(props, "gridcertlib.providerId"),
+             ConfigProperties.getRequiredProperty(props, "gridcertlib.pemCertificatePath"),
+             ConfigProperties.getRequiredProperty(props, "gridcertlib.pemPrivateKeyPath"),
+             ConfigProperties.getRequiredProperty(props, "gridcertlib.pemCACertificatesPath"),
+             props.getProperty("gridcertlib.pemPrivateKeyPassword", ""),
+             props.getProperty("gridcertlib.slcsStoreDirectory", "/tmp"),
+             ConfigProperties.getIntProperty(props, "gridcertlib.slcsPrivateKeySize", 1024, 1),
+             doOpenSamlBootstrap && ! WarmUp.isBackground(props),
+             cpuPool,
+             ioPool);
+        try {
+            admission_ = new AdmissionController(props);
+        }
+        catch (IllegalArgumentException x) {
+            throw new InvalidConfigurationException("Invalid value in 'gridcertlib.admission.*' properties: "
+                                                    + x.getMessage(), x);
+        }
+        try {
+            parser_ = new AssertionParser(props);
+        }
+        catch (IllegalArgumentException x) {
+            throw new InvalidConfigurationException("Invalid value in 'gridcertlib.parser.*' properties: "
+                                                    + x.getMessage(), x);
+        }
+        guards_ = new CallGuards(props);
+        pools_ = new IssuancePools(cpuPool, ioPool, IssuancePools.isVirtualMode(props));
+        hedgedLogin_ = new HedgedLogin(props, parser_, pools_, newRequestorFactory());
+        selector_ = new AssertionSelector(props);
+        assertions_ = new AssertionCache(parser_);
+        pending_ = new PendingIssuances(props);
+        // retrieved assertions are parsed by the pooled parsers of this factory
+        transport_ = NioTransport.create(props, new BlockingTransport(wsc_, parser_), parser_);
+        if (WarmUp.isBackground(props))
+            warmUp_.start(doOpenSamlBootstrap, defaultPrivateKeySize_,
+                          endpoints_.getEndpoints(), transport_, WarmUp.isConnect(props));
     }
 
 
@@ -213,8 +333,8 @@ public class SLCSFactory {
      * <li>{@link java.io.IOException}  when creating web service client for secure WSP access
      * </ul>
      *
-     * @param slcsLoginUrl           URL to the SLCS service login
-     * @param wspSessionInitiatorUrl URL to the WSP Session Initiator (typically ends in `.../Shibboleth.sso/WSP`)
+     * @param slcsLoginUrl           URL to the SLCS service login, or a comma-separated list of them
+     * @param wspSessionInitiatorUrl URL to the WSP Session Initiator (typically ends in `.../Shibboleth.sso/WSP`), or a comma-separated list with one for each SLCS login URL
      * @param providerId             SP "entity Id" (must match the one in `/etc/shibboleth/shibboleth2.xml`)
      * @param pemCertificatePath     filesystem path to the SP SSL certificate (in PEM format)
      * @param pemPrivateKeyPath      filesystem path to the SP SSL private key (in PEM format)
@@ -237,6 +357,39 @@ public class SLCSFactory {
                        final int defaultPrivateKeySize,
                        final boolean doOpenSamlBootstrap) 
         throws InitializationException
+    {
+        this(slcsLoginUrl, wspSessionInitiatorUrl, providerId,
+             pemCertificatePath, pemPrivateKeyPath, pemCACertificatesPath, pemPrivateKeyPassword,
+             storeDirectory, defaultPrivateKeySize, doOpenSamlBootstrap,
+             new StagePool("gridcertlib-cpu", Runtime.getRuntime().availableProcessors()),
+             new StagePool("gridcertlib-io", 50));
+    }
+
+
+    /**
+     * Constructor, taking server-wide configuration parameters as
+     * explicit arguments, and the pools running the issuance stages.
+     * See {@link #SLCSFactory(String,String,String,String,String,String,String,String,int,boolean)}
+     * for the other parameters.
+     *
+     * @param cpuPool  Runs the CPU-bound issuance stages
+     * @param ioPool   Runs the issuance stages waiting on remote services
+     *
+     * @throws InitializationException wrapping the causing exception
+     */
+    protected SLCSFactory(final String slcsLoginUrl,
+                          final String wspSessionInitiatorUrl,
+                          final String providerId,
+                          final String pemCertificatePath,
+                          final String pemPrivateKeyPath,
+                          final String pemCACertificatesPath,
+                          final String pemPrivateKeyPassword,
+                          final String storeDirectory,
+                          final int defaultPrivateKeySize,
+                          final boolean doOpenSamlBootstrap,
+                          final StagePool cpuPool,
+                          final StagePool ioPool)
+        throws InitializationException
     {
         assert(null != slcsLoginUrl);
         assert(null != wspSessionInitiatorUrl);
@@ -246,11 +399,22 @@ public class SLCSFactory {
         assert(null != pemPrivateKeyPassword);
         assert(null != pemCACertificatesPath);
         assert(null != storeDirectory);
+        assert(null != cpuPool);
+        assert(null != ioPool);
 
-        slcsLoginUrl_ = slcsLoginUrl;                      LOG.debug("SLCSFactory: initialized with slcsLoginUrl='" + slcsLoginUrl + "'");
-        wspSessionInitiatorUrl_ = wspSessionInitiatorUrl;  LOG.debug("SLCSFactory: initialized with wspSessionInitiatorUrl='" + wspSessionInitiatorUrl + "'");
+        endpoints_ = new SLCSEndpoints(slcsLoginUrl, wspSessionInitiatorUrl);
+        slcsLoginUrl_ = endpoints_.getPrimary().getSlcsLoginUrl();                      LOG.debug("SLCSFactory: initialized with slcsLoginUrl='" + slcsLoginUrl + "'");
+        wspSessionInitiatorUrl_ = endpoints_.getPrimary().getWspSessionInitiatorUrl();  LOG.debug("SLCSFactory: initialized with wspSessionInitiatorUrl='" + wspSessionInitiatorUrl + "'");
         defaultStoreDirectory_ = storeDirectory;           LOG.debug("SLCSFactory: initialized with storeDirectory='" + storeDirectory + "'");
         defaultPrivateKeySize_ = defaultPrivateKeySize;    LOG.debug("SLCSFactory: initialized with defaultPrivateKeySize='" + defaultPrivateKeySize + "'");
+        admission_ = new AdmissionController(new Properties());
+        parser_ = new AssertionParser(new Properties());
+        guards_ = new CallGuards();
+        pools_ = new IssuancePools(cpuPool, ioPool, false);
+        hedgedLogin_ = new HedgedLogin(new HedgingPolicy(new Properties()), parser_, pools_, newRequestorFactory());
+        selector_ = new AssertionSelector();
+        assertions_ = new AssertionCache(parser_);
+        pending_ = new PendingIssuances();
         // create WebServiceClient; will be re-used by all `SLCSRequestor` instances
         LOG.debug("SLCSFactory: creating WebServiceClient with pemCertificatePath='" + pemCertificatePath + "'");
         LOG.debug("SLCSFactory: creating WebServiceClient with pemPrivateKeyPath='" + pemPrivateKeyPath + "'");
@@ -272,6 +436,7 @@ public class SLCSFactory {
             throw new InitializationException("Failed creating WebServiceClient (IOException): " 
                                               + x.getMessage(), x);
         };
+        transport_ = new BlockingTransport(wsc_, parser_);
 
         try {
             // bootstrapping OpenSAML libraries is needed by Valery's IDWSF-ECP lib
@@ -338,27 +503,564 @@ public class SLCSFactory {
     /**
      * Generate a new SLCS certificate and save its public and
      * private keys in the given files.
+     * <p>
+     * If another thread is already requesting a certificate to be
+     * stored in {@code certificatePath}, wait for it to complete and
+     * return its result instead of contacting the SLCS service
+     * again; if the other request is for a different private key
+     * file or password, then its result cannot be shared and a new
+     * certificate is requested after it has completed.
      *
      * @param samlAssertionUrl   URL of the SAML2 Assertion provided by the Shibboleth IdP; this is generally available from HTTP header {@code Shib-Assertion-01}
      * @param certificatePath    Path to a file where the SLCS public certificate will be stored
      * @param privateKeyPath     Path to a file where the SLCS private key will be stored
      * @param privateKeyPassword Password to use to encrypt the SLCS private key
      *
-     * @see #newSLCS(String,String,String,String)
+     * @see #newSLCS(String,String,String,String,Deadline)
+     */
+    public CredentialsPathInfo newSLCS(final String samlAssertionUrl,
+                                       final String certificatePath,
+                                       final String privateKeyPath,
+                                       final String privateKeyPassword)
+        throws OperationsError
+    {
+        return newSLCS(samlAssertionUrl, certificatePath, privateKeyPath, privateKeyPassword, null);
+    }
+
+
+    /**
+     * Same as {@link #newSLCS(String,String,String,String)}, but give
+     * up when {@code deadline} passes.  Every network phase (assertion
+     * retrieval, SLCS login, certificate request) gets the remaining
+     * time as its budget, and the request in progress when the
+     * deadline passes is cancelled.  The state of the issuance is
+     * kept, so that a retry resumes it (see {@link PendingIssuances}).
+     *
+     * @param deadline           Deadline for the whole issuance, or {@code null} for none
+     *
+     * @throws DeadlineExceededError if the deadline passes
      */
     public CredentialsPathInfo newSLCS(final String samlAssertionUrl,
                                        final String certificatePath,
+                                       final String privateKeyPath,
+                                       final String privateKeyPassword,
+                                       final Deadline deadline)
+        throws OperationsError
+    {
+        return issue(samlAssertionUrl, null, certificatePath, privateKeyPath, privateKeyPassword, deadline);
+    }
+
+
+    /**
+     * Same as {@link #newSLCS(String,String,String,String,Deadline)},
+     * but use an assertion that has already been retrieved (e.g., to
+     * inspect its issuer) instead of fetching it again.
+     *
+     * @param assertion          SAML2 assertion provided by the Shibboleth IdP
+     *
+     * @see FederatedSLCSFactory
+     */
+    public CredentialsPathInfo newSLCS(final Assertion assertion,
+                                       final String certificatePath,
+                                       final String privateKeyPath,
+                                       final String privateKeyPassword,
+                                       final Deadline deadline)
+        throws OperationsError
+    {
+        return issue(null, assertion, certificatePath, privateKeyPath, privateKeyPassword, deadline);
+    }
+
+
+    /**
+     * Same as {@link #newSLCS(Assertion,String,String,String,Deadline)},
+     * but take the XML form of the assertion, e.g., as exported inline
+     * by the Shibboleth SP in a request header or attribute; this
+     * skips the round-trip to the SP's assertion URL.  The XML is
+     * unmarshalled with this factory's {@link AssertionParser}, and the
+     * assertion is checked as in {@link #checkAssertion}.
+     *
+     * @param assertionXml       XML form of the SAML2 assertion provided by the Shibboleth IdP; not closed
+     *
+     * @throws AssertionExpiredError if the assertion has expired, or expires too soon
+     * @throws OperationsError if {@code assertionXml} cannot be read, or does not hold a SAML2 assertion
+     */
+    public CredentialsPathInfo newSLCS(final InputStream assertionXml,
+                                       final String certificatePath,
+                                       final String privateKeyPath,
+                                       final String privateKeyPassword,
+                                       final Deadline deadline)
+        throws OperationsError
+    {
+        // OpenSAML must be initialized before any unmarshalling
+        awaitBootstrap(deadline);
+        final Assertion assertion;
+        try {
+            assertion = parser_.parse(assertionXml, "inline assertion");
+        }
+        catch (IOException x) {
+            throw new OperationsError("Cannot read inline assertion: " + x.getMessage(), x);
+        }
+        return newSLCS(assertion, certificatePath, privateKeyPath, privateKeyPassword, deadline);
+    }
+
+
+    /**
+     * Return the credentials already issued into {@code
+     * certificatePath}, if they can be used instead of requesting a
+     * new certificate; else return {@code null}.  If another thread
+     * is requesting a certificate to be stored in {@code
+     * certificatePath} (e.g., {@link
+     * ch.swing.gridcertlib.servlet.EagerIssuanceFilter}), wait for it
+     * and return its result, provided it is for the same private key
+     * file and password; otherwise, see {@link #getStoredSLCS}.
+     * Failure of the other request is not reported: the caller is
+     * expected to call {@code newSLCS} when {@code null} is returned.
+     *
+     * @param maxAge             Age (in milliseconds) after which a stored certificate is no longer used
+     * @param deadline           Deadline for waiting on another request, or {@code null} for none
+     *
+     * @throws DeadlineExceededError if the deadline passes while waiting for another request
+     */
+    public CredentialsPathInfo findSLCS(final String certificatePath,
+                                        final String privateKeyPath,
+                                        final String privateKeyPassword,
+                                        final long maxAge,
+                                        final Deadline deadline)
+        throws OperationsError
+    {
+        try {
+            final CredentialsPathInfo result = inFlight_.join(canonicalPath(certificatePath), deadline);
+            if (null != result && isSameKey(result, privateKeyPath, privateKeyPassword))
+                return result;
+        }
+        catch (DeadlineExceededError x) {
+            throw x;
+        }
+        catch (OperationsError x) {
+            LOG.debug("SLCSFactory: concurrent request for '" + certificatePath
+                      + "' failed: " + x.getMessage());
+        }
+        return getStoredSLCS(certificatePath, privateKeyPath, privateKeyPassword, maxAge);
+    }
+
+
+    /**
+     * Return the credentials stored in {@code certificatePath} and
+     * {@code privateKeyPath}, if the certificate is reusable (see
+     * {@link #isReusable}) and the private key can be decrypted with
+     * {@code privateKeyPassword}; else return {@code null}.
+     * Issuances in progress are not waited for.
+     *
+     * @param maxAge             Age (in milliseconds) after which a stored certificate is no longer used
+     */
+    public CredentialsPathInfo getStoredSLCS(final String certificatePath,
+                                             final String privateKeyPath,
+                                             final String privateKeyPassword,
+                                             final long maxAge)
+    {
+        final X509Certificate certificate = readCertificate(certificatePath);
+        if (null == certificate || ! isReusable(certificate, maxAge, System.currentTimeMillis()))
+            return null;
+        if (! canDecryptPrivateKey(privateKeyPath, privateKeyPassword)) {
+            LOG.debug("SLCSFactory: cannot decrypt private key '" + privateKeyPath
+                      + "' with the given password; not reusing certificate '" + certificatePath + "'");
+            return null;
+        }
+        return new CredentialsPathInfo(certificatePath, privateKeyPath, privateKeyPassword);
+    }
+
+
+    /**
+     * Return the age (in milliseconds) after which a stored
+     * certificate is no longer reused, from property {@code
+     * gridcertlib.reuse.maxAge}: if positive (in seconds), {@code
+     * findSLCS} callers such as the servlets reuse a certificate
+     * issued less than that long ago (according to its validity
+     * dates) and not yet expired, whose private key their password
+     * decrypts.  The default, 0, never reuses a certificate.
+     *
+     * @throws InvalidConfigurationException if the property has an invalid value
+     */
+    public static long getReuseMaxAge(final Properties props)
+        throws InvalidConfigurationException
+    {
+        return 1000 * ConfigProperties.getLongProperty(props, "gridcertlib.reuse.maxAge", 0, 0);
+    }
+
+
+    /**
+     * Return {@code true} if {@code certificate} was issued less than
+     * {@code maxAge} milliseconds before {@code now} and has not
+     * expired.  Both are decided from the certificate validity dates,
+     * not from the file modification time: a certificate copied or
+     * touched later does not look any younger.
+     */
+    protected static boolean isReusable(final X509Certificate certificate, final long maxAge, final long now)
+    {
+        return now < certificate.getNotAfter().getTime()
+            && now - certificate.getNotBefore().getTime() < maxAge;
+    }
+
+
+    /** Return the first certificate in PEM file {@code certificatePath}, or {@code null} if there is none. */
+    protected static X509Certificate readCertificate(final String certificatePath)
+    {
+        try {
+            final InputStream in = new FileInputStream(certificatePath);
+            try {
+                return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException x) {
+            return null;
+        }
+        catch (GeneralSecurityException x) {
+            return null;
+        }
+    }
+
+
+    /** Return {@code true} if the PEM file {@code privateKeyPath} holds a private key encrypted with {@code privateKeyPassword}. */
+    protected static boolean canDecryptPrivateKey(final String privateKeyPath, final String privateKeyPassword)
+    {
+        try {
+            final PEMReader reader = new PEMReader(new FileReader(privateKeyPath), new PasswordFinder() {
+                    public char[] getPassword() { return privateKeyPassword.toCharArray(); }
+                });
+            try {
+                final Object key = reader.readObject();
+                return (key instanceof KeyPair || key instanceof PrivateKey);
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (IOException x) {
+            return false;
+        }
+        catch (RuntimeException x) {
+            // BouncyCastle reports some decryption errors this way
+            return false;
+        }
+    }
+
+
+    /** Return {@code true} if {@code credentials} use the private key file {@code privateKeyPath} and password {@code privateKeyPassword}. */
+    protected static boolean isSameKey(final CredentialsPathInfo credentials,
                                        final String privateKeyPath,
                                        final String privateKeyPassword)
+    {
+        return canonicalPath(credentials.getPrivateKeyPath()).equals(canonicalPath(privateKeyPath))
+            && credentials.getPrivateKeyPassword().equals(privateKeyPassword);
+    }
+
+
+    /**
+     * Common implementation of the {@code newSLCS} methods: coalesce
+     * concurrent requests for the same certificate path, and run
+     * {@link #doNewSLCS} for one of them.  Exactly one of {@code
+     * samlAssertionUrl} and {@code assertion} must be non-{@code null}.
+     */
+    protected CredentialsPathInfo issue(final String samlAssertionUrl,
+                                        final Assertion assertion,
+                                        final String certificatePath,
+                                        final String privateKeyPath,
+                                        final String privateKeyPassword,
+                                        final Deadline deadline)
+        throws OperationsError
+    {
+        awaitBootstrap(deadline);
+        final String key = canonicalPath(certificatePath);
+        while (true) {
+            final CredentialsPathInfo result =
+                inFlight_.execute(key, new Callable<CredentialsPathInfo>() {
+                        public CredentialsPathInfo call() {
+                            return doNewSLCS(samlAssertionUrl, assertion, certificatePath,
+                                             privateKeyPath, privateKeyPassword, deadline);
+                        }
+                    }, deadline);
+            if (isSameKey(result, privateKeyPath, privateKeyPassword))
+                return result;
+            LOG.debug("SLCSFactory: concurrent request for '" + certificatePath
+                      + "' used a different private key file or password; requesting a new certificate.");
+        }
+    }
+
+
+    /**
+     * Do the actual work of {@link #newSLCS(String,String,String,String,Deadline)},
+     * without coalescing concurrent requests.  If {@code resolved}
+     * is not {@code null}, it is used instead of the assertion at
+     * {@code samlAssertionUrl}.
+     * <p>
+     * If an earlier issuance of the same certificate failed less than
+     * the resume window ago (see {@link PendingIssuances}), resume it: re-send
+     * its certificate request, or store its certificate, and reuse
+     * its key pair if a new login is needed.
+     */
+    protected CredentialsPathInfo doNewSLCS(final String samlAssertionUrl,
+                                            final Assertion resolved,
+                                            final String certificatePath,
+                                            final String privateKeyPath,
+                                            final String privateKeyPassword,
+                                            final Deadline deadline)
         throws OperationsError
     {
-        SLCSRequestor slcs;
+        final String key = canonicalPath(certificatePath);
+        final PendingIssuances.Pending pending = pending_.take(key, privateKeyPassword);
+        // key pair to reuse, and last requestor with a certificate request ready
+        CertificateKeys keys = (null == pending) ? null : pending.keys;
+        SLCSRequestor resumable = (null == pending) ? null : pending.requestor;
+        SLCSRequestor slcs = null;
+        if (null != resumable && null != resumable.getCertificate()) {
+            LOG.info("SLCSFactory: resuming issuance for '" + certificatePath + "': certificate already issued.");
+            slcs = resumable;
+        }
+
+        if (null == slcs) {
+            // admission covers only the calls to remote services: the
+            // slot is given back while keys are generated; if the
+            // limit is reached, this throws `OverloadedError`
+            final AdmissionSlot admission = new AdmissionSlot(admission_);
+            admission.acquire(deadline);
+            boolean overloaded = false;
+            try {
+                if (null != resumable && resumable.hasCertificateRequest()) {
+                    LOG.info("SLCSFactory: resuming issuance for '" + certificatePath
+                             + "' from the certificate request.");
+                    final SLCSRequestor requestor = resumable;
+                    requestor.setDeadline(deadline);
+                    try {
+                        runStage(pools_.getIoPool(), "certificate", deadline, new Callable<Object>() {
+                                public Object call() throws Exception {
+                                    requestor.requestSlcsCertificate();
+                                    return null;
+                                }
+                            });
+                        slcs = requestor;
+                    }
+                    catch (SLCSException x) {
+                        // e.g., the authorization token has expired
+                        LOG.warn("SLCSFactory: resumed certificate request for '" + certificatePath
+                                 + "' failed (" + x.getMessage() + "), logging in again.");
+                        resumable = null;
+                    }
+                }
+                if (null == slcs) {
+                    final Assertion assertion = (null != resolved) ? resolved
+                        : getAssertion(samlAssertionUrl, deadline);
+                    // do not start delegation with an assertion that will not last
+                    selector_.checkValidity(assertion);
+                    // try endpoints from the best to the worst, until one succeeds
+                    final List<SLCSEndpoint> candidates = endpoints_.getByPreference();
+                    for (int n = 0; null == slcs; n++) {
+                        final SLCSEndpoint endpoint = candidates.get(n);
+                        final SLCSEndpoint alternate = (n + 1 < candidates.size()) ? candidates.get(n + 1) : null;
+                        HedgedLogin.Attempt login = null;
+                        try {
+                            login = runStage(pools_.getIoPool(), "login", deadline, new Callable<HedgedLogin.Attempt>() {
+                                    public HedgedLogin.Attempt call() throws Exception {
+                                        return hedgedLogin_.login(assertion, endpoint, alternate, deadline);
+                                    }
+                                });
+                            final SLCSRequestor requestor = login.getRequestor();
+                            // key generation is the most expensive step: never repeat it
+                            final CertificateKeys reused = keys;
+                            admission.release(false);
+                            runStage(pools_.getCpuPool(), "keys", deadline, new Callable<Object>() {
+                                    public Object call() throws Exception {
+                                        if (null == reused)
+                                            requestor.generateCertificateKeys(privateKeyPassword.toCharArray());
+                                        else
+                                            requestor.setCertificateKeys(reused);
+                                        requestor.generateCertificateRequest();
+                                        return null;
+                                    }
+                                });
+                            keys = requestor.getCertificateKeys();
+                            resumable = requestor;
+                            admission.acquire(deadline);
+                            runStage(pools_.getIoPool(), "certificate", deadline, new Callable<Object>() {
+                                    public Object call() throws Exception {
+                                        requestor.requestSlcsCertificate();
+                                        return null;
+                                    }
+                                });
+                            login.record(false);
+                            slcs = requestor;
+                        }
+                        catch (AuthException x) {
+                            // the endpoint works, but the user is not authorized: no use trying elsewhere
+                            if (null != login)
+                                login.record(false);
+                            throw x;
+                        }
+                        catch (SLCSException x) {
+                            // a failed login was recorded by `login()`, against the endpoint that served it
+                            if (null != login)
+                                login.record(true);
+                            if (SLCSEndpoints.isLastCandidate(candidates, n, (null == login) ? null : login.getEndpoint()))
+                                throw x;
+                            LOG.warn("SLCSFactory: request to " + endpoint.getSlcsLoginUrl()
+                                     + " failed (" + x.getMessage() + "), failing over.");
+                        }
+                        catch (IOException x) {
+                            // before login, no endpoint was contacted
+                            if (null != login)
+                                login.record(true);
+                            if (SLCSEndpoints.isLastCandidate(candidates, n, (null == login) ? null : login.getEndpoint()))
+                                throw x;
+                            LOG.warn("SLCSFactory: request to " + endpoint.getSlcsLoginUrl()
+                                     + " failed (" + x.getMessage() + "), failing over.");
+                        }
+                        catch (CircuitOpenError x) {
+                            // endpoint not contacted, nothing to record
+                            if (SLCSEndpoints.isLastCandidate(candidates, n, (null == login) ? null : login.getEndpoint()))
+                                throw x;
+                            LOG.debug("SLCSFactory: skipping " + endpoint.getSlcsLoginUrl()
+                                      + ": " + x.getMessage());
+                        }
+                        // skip the alternate endpoint if a hedged login already used it
+                        if (null != login && login.getEndpoint() == alternate)
+                            n++;
+                        admission.acquire(deadline);
+                    }
+                }
+            }
+            // re-throw various exceptions wrapped into an `OperationsError`
+            catch (SLCSException x) {
+                throw new OperationsError("Error performing SLCS operations "
+                                          + "(SLCSException): " + x.getMessage(), x);
+            }
+            catch (TokenResolverException x) {
+                throw new OperationsError("Error performing SLCS operations "
+                                          + "(TokenResolverException): " + x.getMessage(), x);
+            }
+            catch (GeneralSecurityException x) {
+                throw new OperationsError("Error performing SLCS operations "
+                                          + "(GeneralSecurityException): " + x.getMessage(), x);
+            }
+            catch (IOException x) {
+                // network errors and timeouts are taken as a sign of overload
+                overloaded = true;
+                throw new OperationsError("Error performing SLCS operations "
+                                          + "(IOException): " + x.getMessage(), x);
+            }
+            catch (DeadlineExceededError x) {
+                // so is running out of time in a remote stage; if the
+                // deadline passed during key generation, the slot is
+                // not held and nothing is recorded
+                overloaded = true;
+                throw x;
+            }
+            finally {
+                admission.release(overloaded);
+                if (null == slcs && null != keys)
+                    pending_.suspend(key, keys, resumable, privateKeyPassword);
+            };
+        }
+
+        // encrypting the private key is CPU-bound
+        final SLCSRequestor issued = slcs;
+        boolean stored = false;
         try {
-            slcs = new SLCSRequestor(wsc_, samlAssertionUrl, 
-                                     wspSessionInitiatorUrl_, slcsLoginUrl_);
-            slcs.performSlcsInit(privateKeyPassword);
+            pools_.getCpuPool().run("store", new Callable<Object>() {
+                    public Object call() {
+                        try {
+                            storeCertificate(issued, certificatePath);
+                        }
+                        catch (IOException x) {
+                            throw new OperationsError("Got IOException while saving certificate to file '"
+                                                      + certificatePath +
+                                                      "': " + x.getMessage(), x);
+                        };
+
+                        try {
+                            storePrivateKey(issued, privateKeyPath);
+                        }
+                        catch (IOException x) {
+                            throw new OperationsError("Got IOException while saving private key to file '"
+                                                      + privateKeyPath +
+                                                      "': " + x.getMessage(), x);
+                        };
+                        return null;
+                    }
+                });
+            stored = true;
+        }
+        catch (ExecutionException x) {
+            if (x.getCause() instanceof RuntimeException)
+                throw (RuntimeException) x.getCause();
+            throw new OperationsError("Error storing SLCS credentials: " + x.getCause(), x.getCause());
+        }
+        finally {
+            // keep the certificate, so that a retry need only store it
+            if (! stored)
+                pending_.suspend(key, slcs.getCertificateKeys(), slcs, privateKeyPassword);
+        }
+
+        return new CredentialsPathInfo(certificatePath, privateKeyPath, privateKeyPassword);
+    }
+
+    /**
+     * Run {@code task} as stage {@code stage} on {@code pool} (until
+     * {@code deadline}, if not {@code null}), and return its result; exceptions thrown by {@code task} are
+     * re-thrown unchanged, except checked ones of other types, which
+     * are wrapped into an {@link OperationsError}.
+     */
+    protected static <T> T runStage(final StagePool pool,
+                                    final String stage,
+                                    final Deadline deadline,
+                                    final Callable<T> task)
+        throws SLCSException, TokenResolverException, GeneralSecurityException, IOException
+    {
+        try {
+            return pool.run(stage, task, deadline);
+        }
+        catch (ExecutionException x) {
+            final Throwable cause = x.getCause();
+            if (cause instanceof SLCSException)
+                throw (SLCSException) cause;
+            if (cause instanceof TokenResolverException)
+                throw (TokenResolverException) cause;
+            if (cause instanceof GeneralSecurityException)
+                throw (GeneralSecurityException) cause;
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new OperationsError("Error in SLCS issuance stage '" + stage + "': "
+                                      + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Pre-flight check of the assertion at {@code samlAssertionUrl}:
+     * throw {@link AssertionExpiredError} if it expires too soon (see
+     * {@link AssertionSelector#checkValidity}), so that callers
+     * can have it renewed (see {@link
+     * ch.swing.gridcertlib.servlet.RenewAssertion}) before any
+     * delegation or key generation work is done.  The assertion is
+     * kept, and a following {@code newSLCS} call for the same URL
+     * does not retrieve it again.
+     *
+     * @return the time (in milliseconds) the assertion is still valid for, or {@link Long#MAX_VALUE} if it has no expiration time
+     *
+     * @throws AssertionExpiredError if the assertion expires too soon
+     * @throws OperationsError if the assertion cannot be retrieved
+     */
+    public long checkAssertion(final String samlAssertionUrl, final Deadline deadline)
+        throws OperationsError
+    {
+        awaitBootstrap(deadline);
+        try {
+            return selector_.checkValidity(getAssertion(samlAssertionUrl, deadline));
         }
-        // re-throw various exceptions wrapped into an `OperationsError`
         catch (SLCSException x) {
             throw new OperationsError("Error performing SLCS operations "
                                       + "(SLCSException): " + x.getMessage(), x);
@@ -374,27 +1076,242 @@ public class SLCSFactory {
         catch (IOException x) {
             throw new OperationsError("Error performing SLCS operations "
                                       + "(IOException): " + x.getMessage(), x);
-        };
+        }
+    }
 
-        try {
-            storeCertificate(slcs, certificatePath);
+    /**
+     * Retrieve the assertions at {@code samlAssertionUrls} in
+     * parallel (e.g., all the {@code Shib-Assertion-NN} URLs exported
+     * by the SP), and return the URL of the freshest usable one: the
+     * one with the latest expiration time among those that have an
+     * issuer and are valid long enough; see {@link
+     * AssertionSelector#select}.
+     * <p>
+     * The selected assertion is kept, so that a following {@code
+     * newSLCS} call for the returned URL does not retrieve it again;
+     * the pre-flight check of {@link #checkAssertion} is thus done
+     * on all URLs at once.
+     *
+     * @throws AssertionExpiredError if no usable assertion was retrieved, and at least one expires too soon
+     * @throws OperationsError if no usable assertion could be retrieved
+     */
+    public String selectAssertion(final List<String> samlAssertionUrls, final Deadline deadline)
+        throws OperationsError
+    {
+        if (samlAssertionUrls.isEmpty())
+            throw new IllegalArgumentException("SLCSFactory.selectAssertion: no assertion URL given");
+        awaitBootstrap(deadline);
+        if (1 == samlAssertionUrls.size()) {
+            final String samlAssertionUrl = samlAssertionUrls.get(0);
+            checkAssertion(samlAssertionUrl, deadline);
+            return samlAssertionUrl;
         }
-        catch (IOException x) {
-            throw new OperationsError("Got IOException while saving certificate to file '"
-                                      + certificatePath +
-                                      "': " + x.getMessage(), x);
+        return selector_.select(samlAssertionUrls, deadline, pools_.getRaceExecutor(),
+                                new AssertionSelector.Source() {
+                                    public Assertion getAssertion(final String samlAssertionUrl,
+                                                                  final Deadline deadline)
+                                        throws Exception
+                                    {
+                                        return SLCSFactory.this.getAssertion(samlAssertionUrl, deadline);
+                                    }
+                                });
+    }
+
+    /**
+     * Return the assertion at {@code samlAssertionUrl}: a copy of a
+     * kept one, if it has not expired yet, or else a freshly retrieved
+     * one.  Every call returns a distinct object, which the caller
+     * may use without synchronization.
+     */
+    protected Assertion getAssertion(final String samlAssertionUrl, final Deadline deadline)
+        throws SLCSException, TokenResolverException, GeneralSecurityException, IOException
+    {
+        final Assertion cached = assertions_.get(samlAssertionUrl);
+        if (null != cached)
+            return cached;
+        final Assertion assertion =
+            runStage(pools_.getIoPool(), "assertion", deadline, new Callable<Assertion>() {
+                    public Assertion call() throws Exception {
+                        return SLCSRequestor.resolveAssertion(transport_,
+                                                              samlAssertionUrl,
+                                                              guards_.getCircuitBreaker(samlAssertionUrl),
+                                                              guards_.getRetryPolicy(),
+                                                              deadline);
+                    }
+                });
+        assertions_.put(samlAssertionUrl, assertion);
+        return assertion;
+    }
+
+
+    /**
+     * Wait for the background bootstrap of OpenSAML, if any.
+     *
+     * @throws OperationsError if the bootstrap failed
+     * @throws DeadlineExceededError if {@code deadline} passes first
+     */
+    protected void awaitBootstrap(final Deadline deadline)
+        throws OperationsError
+    {
+        warmUp_.awaitBootstrap(deadline);
+    }
+
+
+    /**
+     * Return the readiness of this factory: {@link
+     * Readiness#WARMING_UP} while a background warm-up (see {@link
+     * WarmUp}) is running, then {@link Readiness#READY} (or {@link
+     * Readiness#FAILED}).  Without background warm-up, a factory is
+     * ready once constructed.
+     */
+    public Readiness getReadiness()
+    {
+        return warmUp_.getReadiness();
+    }
+
+    public boolean isReady()
+    {
+        return Readiness.READY == getReadiness();
+    }
+
+
+    /**
+     * Wait up to {@code timeout} milliseconds for this factory to be
+     * ready; servlets can call this to hold requests during warm-up.
+     *
+     * @throws OverloadedError if still warming up after {@code timeout} milliseconds
+     * @throws OperationsError if the warm-up failed
+     */
+    public void awaitReady(final long timeout)
+        throws OperationsError
+    {
+        warmUp_.awaitReady(timeout);
+    }
+
+
+    /**
+     * Release the threads and connections held by this factory: the
+     * stage pools, the hedged login threads and the transport.
+     * Certificate requests in progress may fail.
+     */
+    public void shutdown()
+    {
+        pools_.shutdown();
+        transport_.close();
+    }
+
+
+    /** Return the pool of parsers for the assertions handled by this factory. */
+    public AssertionParser getAssertionParser()
+    {
+        return parser_;
+    }
+
+    /** Return the threads running the issuance stages, e.g., for their statistics. */
+    public IssuancePools getIssuancePools()
+    {
+        return pools_;
+    }
+
+    /** Return the controller limiting concurrent calls to the SLCS service, or {@code null} if there is none. */
+    public AdmissionController getAdmissionController()
+    {
+        return admission_;
+    }
+
+    /** Set the controller limiting concurrent calls to the SLCS
+     * service; {@code null} disables admission control.
+     */
+    public void setAdmissionController(final AdmissionController admission)
+    {
+        admission_ = admission;
+    }
+
+    /** Return the circuit breakers and retry policy guarding calls to remote services. */
+    public CallGuards getCallGuards()
+    {
+        return guards_;
+    }
+
+    /** Return the SLCS login, e.g., to change its hedging policy. */
+    public HedgedLogin getHedgedLogin()
+    {
+        return hedgedLogin_;
+    }
+
+    /** Return the selector checking the validity of assertions. */
+    public AssertionSelector getAssertionSelector()
+    {
+        return selector_;
+    }
+
+    /** Return the state of failed issuances, e.g., to change the resume window. */
+    public PendingIssuances getPendingIssuances()
+    {
+        return pending_;
+    }
+
+    /** Return the configured SLCS endpoints, in configuration order. */
+    public List<SLCSEndpoint> getEndpoints()
+    {
+        return endpoints_.getEndpoints();
+    }
+
+
+    /** Return the factory {@link HedgedLogin} gets requestors from: {@link #newRequestor}. */
+    private HedgedLogin.RequestorFactory newRequestorFactory()
+    {
+        return new HedgedLogin.RequestorFactory() {
+            public SLCSRequestor newRequestor(final Assertion assertion, final SLCSEndpoint endpoint)
+                throws GeneralSecurityException, IOException
+            {
+                return SLCSFactory.this.newRequestor(assertion, endpoint);
+            }
         };
+    }
 
+
+    /** Return a new SLCSRequestor for {@code endpoint}. */
+    protected SLCSRequestor newRequestor(final Assertion assertion, final SLCSEndpoint endpoint)
+        throws GeneralSecurityException, IOException
+    {
+        return new SLCSRequestor(wsc_, assertion,
+                                 endpoint.getWspSessionInitiatorUrl(),
+                                 endpoint.getSlcsLoginUrl(),
+                                 guards_.getCircuitBreaker(endpoint.getWspSessionInitiatorUrl()),
+                                 guards_.getCircuitBreaker(endpoint.getSlcsLoginUrl()),
+                                 guards_.getRetryPolicy(),
+                                 transport_);
+    }
+
+
+    /** Return the HTTP transport used for SLCS requests. */
+    public SLCSTransport getTransport()
+    {
+        return transport_;
+    }
+
+    /**
+     * Set the HTTP transport used for SLCS requests; the previous
+     * transport is not closed.
+     */
+    public void setTransport(final SLCSTransport transport)
+    {
+        assert(null != transport);
+        transport_ = transport;
+    }
+
+
+    /** Return the canonical form of {@code path}, or its absolute form if that fails. */
+    protected static String canonicalPath(final String path)
+    {
+        final File file = new File(path);
         try {
-            storePrivateKey(slcs, privateKeyPath);
+            return file.getCanonicalPath();
         }
         catch (IOException x) {
-            throw new OperationsError("Got IOException while saving private key to file '"
-                                      + privateKeyPath +
-                                      "': " + x.getMessage(), x);
-        };
-
-        return new CredentialsPathInfo(certificatePath, privateKeyPath, privateKeyPassword);
+            return file.getAbsolutePath();
+        }
     }
 
     /**
@@ -26,8 +26,6 @@ import ch.SWITCH.aai.idwsf.token.SAML2AssertionURLResolver;
 import ch.SWITCH.aai.idwsf.token.TokenResolverException;
 import ch.SWITCH.httpclient.tls.PEMTLSCredentials;
 import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.methods.PostMethod;
 import org.opensaml.saml2.core.Assertion;
 import org.glite.slcs.AuthException;
 import org.glite.slcs.SLCSException;
@@ -54,8 +52,13 @@ import java.security.cert.X509Certificate;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 
 /**
@@ -128,6 +131,38 @@ class SLCSRequestor {
      * SLCS service login URL
      */
     private final String slcsLoginUrl_;
+    /**
+     * WSP Session Initiator URL
+     */
+    private final String wspSessionInitiatorUrl_;
+    /**
+     * The delegated assertion; a new delegation context is created from it for each login attempt
+     */
+    private Assertion assertion_ = null;
+    /**
+     * Circuit breakers guarding the WSP and SLCS endpoints; either
+     * may be {@code null}.  The SLCS breaker also guards the
+     * certificate request URL returned by login.
+     */
+    private final CircuitBreaker wspBreaker_;
+    private final CircuitBreaker slcsBreaker_;
+    /**
+     * Retry policy for idempotent steps; {@code null} means no retries.
+     */
+    private final RetryPolicy retry_;
+    /**
+     * HTTP transport for the login {@code GET} and the certificate request {@code POST}
+     */
+    private final SLCSTransport transport_;
+    /**
+     * Set by {@link #abort}; the login {@code GET} in progress, if any
+     */
+    private volatile boolean aborted_ = false;
+    private volatile Future<TransportResponse> currentLogin_ = null;
+    /**
+     * Deadline for the login and the certificate request; {@code null} means none
+     */
+    private volatile Deadline deadline_ = null;
 
 
     /**
@@ -148,37 +183,320 @@ class SLCSRequestor {
                          final String wspSessionInitiatorUrl,
                          final String slcsLoginUrl)
         throws GeneralSecurityException, IOException, TokenResolverException, AssertionExpiredError
+    {
+        this(wsc, assertionUrl, wspSessionInitiatorUrl, slcsLoginUrl,
+             null, null, null, null);
+    }
+
+
+    /**
+     * Constructor, additionally taking circuit breakers for the
+     * remote endpoints and a retry policy for idempotent steps
+     * (resolving the assertion, and the login {@code GET}).
+     * <p>
+     * A step whose endpoint has an open circuit breaker fails
+     * immediately with a {@link CircuitOpenError}.  Steps are retried
+     * only on errors that may be transient: network errors, HTTP 5xx
+     * status, or ECP/delegation failures.
+     *
+     * @param wsc                    A {@link ch.SWITCH.aai.idwsf.ecp.WebServiceClient} instance to use for Shibboleth/HTTP negotiations
+     * @param assertionUrl           URL to the SAML assertion resulting from the Shibboleth login process.
+     * @param wspSessionInitiatorUrl URL to the WSP Session Initiator (typically ends in `.../Shibboleth.sso/WSP`)
+     * @param slcsLoginUrl           URL to the SLCS service login
+     * @param assertionBreaker       circuit breaker for the assertion URL endpoint, or {@code null}
+     * @param wspBreaker             circuit breaker for the WSP endpoint, or {@code null}
+     * @param slcsBreaker            circuit breaker for the SLCS endpoints, or {@code null}
+     * @param retry                  retry policy, or {@code null} to never retry
+     */
+    public SLCSRequestor(final WebServiceClient wsc,
+                         final String assertionUrl,
+                         final String wspSessionInitiatorUrl,
+                         final String slcsLoginUrl,
+                         final CircuitBreaker assertionBreaker,
+                         final CircuitBreaker wspBreaker,
+                         final CircuitBreaker slcsBreaker,
+                         final RetryPolicy retry)
+        throws GeneralSecurityException, IOException, TokenResolverException, AssertionExpiredError
     {
         // get the delegated client through the idwsf library
-        SAML2AssertionURLResolver resolver = new SAML2AssertionURLResolver(assertionUrl);
-        Assertion assertion;
-        try {
-            assertion = resolver.resolveToken();
-        }
-        catch (ch.SWITCH.aai.idwsf.token.AssertionException x) {
-            // XXX: are there other cases where `AssertionException` can be thrown?
-           throw new AssertionExpiredError("Assertion expired, please log out and then in again");
-        }
+        this(wsc, resolveAssertion(assertionUrl, assertionBreaker, retry),
+             wspSessionInitiatorUrl, slcsLoginUrl, wspBreaker, slcsBreaker, retry);
+    }
+
+
+    /**
+     * Constructor, taking an assertion already retrieved with {@link
+     * #resolveAssertion}; this allows trying several SLCS endpoints
+     * with the same assertion.
+     *
+     * @param wsc                    A {@link ch.SWITCH.aai.idwsf.ecp.WebServiceClient} instance to use for Shibboleth/HTTP negotiations
+     * @param assertion              SAML assertion resulting from the Shibboleth login process.
+     * @param wspSessionInitiatorUrl URL to the WSP Session Initiator (typically ends in `.../Shibboleth.sso/WSP`)
+     * @param slcsLoginUrl           URL to the SLCS service login
+     * @param wspBreaker             circuit breaker for the WSP endpoint, or {@code null}
+     * @param slcsBreaker            circuit breaker for the SLCS endpoints, or {@code null}
+     * @param retry                  retry policy, or {@code null} to never retry
+     */
+    public SLCSRequestor(final WebServiceClient wsc,
+                         final Assertion assertion,
+                         final String wspSessionInitiatorUrl,
+                         final String slcsLoginUrl,
+                         final CircuitBreaker wspBreaker,
+                         final CircuitBreaker slcsBreaker,
+                         final RetryPolicy retry)
+        throws GeneralSecurityException, IOException
+    {
+        this(wsc, assertion, wspSessionInitiatorUrl, slcsLoginUrl,
+             wspBreaker, slcsBreaker, retry, new BlockingTransport(wsc));
+    }
+
+
+    /**
+     * Constructor, taking the XML form of the assertion instead of its
+     * URL, e.g., when the Shibboleth SP exports it inline in a request
+     * header or attribute; this saves the round-trip to the SP's
+     * assertion URL.
+     *
+     * @param wsc                    A {@link ch.SWITCH.aai.idwsf.ecp.WebServiceClient} instance to use for Shibboleth/HTTP negotiations
+     * @param assertionXml           XML form of the SAML assertion resulting from the Shibboleth login process; not closed
+     * @param wspSessionInitiatorUrl URL to the WSP Session Initiator (typically ends in `.../Shibboleth.sso/WSP`)
+     * @param slcsLoginUrl           URL to the SLCS service login
+     * @param parser                 parser unmarshalling {@code assertionXml}, e.g., {@link SLCSFactory#getAssertionParser}
+     *
+     * @throws IOException if {@code assertionXml} cannot be read, or does not hold a SAML2 assertion
+     * @throws AssertionExpiredError if the assertion has expired
+     */
+    public SLCSRequestor(final WebServiceClient wsc,
+                         final InputStream assertionXml,
+                         final String wspSessionInitiatorUrl,
+                         final String slcsLoginUrl,
+                         final AssertionParser parser)
+        throws GeneralSecurityException, IOException, AssertionExpiredError
+    {
+        this(wsc, parser.parse(assertionXml, "inline assertion"),
+             wspSessionInitiatorUrl, slcsLoginUrl, null, null, null);
+    }
+
+
+    /**
+     * Constructor, additionally taking the HTTP transport used for the
+     * SLCS login and certificate request.
+     *
+     * @param wsc                    A {@link ch.SWITCH.aai.idwsf.ecp.WebServiceClient} instance to use for Shibboleth/HTTP negotiations
+     * @param assertion              SAML assertion resulting from the Shibboleth login process.
+     * @param wspSessionInitiatorUrl URL to the WSP Session Initiator (typically ends in `.../Shibboleth.sso/WSP`)
+     * @param slcsLoginUrl           URL to the SLCS service login
+     * @param wspBreaker             circuit breaker for the WSP endpoint, or {@code null}
+     * @param slcsBreaker            circuit breaker for the SLCS endpoints, or {@code null}
+     * @param retry                  retry policy, or {@code null} to never retry
+     * @param transport              HTTP transport; see {@link SLCSTransport}
+     */
+    public SLCSRequestor(final WebServiceClient wsc,
+                         final Assertion assertion,
+                         final String wspSessionInitiatorUrl,
+                         final String slcsLoginUrl,
+                         final CircuitBreaker wspBreaker,
+                         final CircuitBreaker slcsBreaker,
+                         final RetryPolicy retry,
+                         final SLCSTransport transport)
+        throws GeneralSecurityException, IOException
+    {
+        assert(null != transport);
+        transport_ = transport;
+        wspBreaker_ = wspBreaker;
+        slcsBreaker_ = slcsBreaker;
+        retry_ = retry;
+
         LOG.debug("SLCSRequestor: retrieved assertion ID: " 
                   + assertion.getID());
         LOG.debug("SLCSRequestor: retrieved assertion for subject: " 
                   + assertion.getSubject().getNameID().getValue());
         LOG.debug("SLCSRequestor: retrieved assertion issued by: " 
                   + assertion.getIssuer().getValue());
-        LOG.debug("SLCSRequestor: retrieved assertion is valid until: " 
-                  + assertion.getConditions().getNotOnOrAfter().toLocalDateTime().toString());
+        if (null != assertion.getConditions() && null != assertion.getConditions().getNotOnOrAfter())
+            LOG.debug("SLCSRequestor: retrieved assertion is valid until: " 
+                      + assertion.getConditions().getNotOnOrAfter().toLocalDateTime().toString());
+        else
+            LOG.debug("SLCSRequestor: retrieved assertion has no expiration time");
+        assertion_ = assertion;
         // create the delegation context
-        DelegationContext context = new DelegationContext(assertion);
-        // set the WSP session initiator URL
         LOG.debug("SLCSRequestor: using WSP session initiator URL '" + wspSessionInitiatorUrl + "'");
-        context.setWSPSessionIntiatorURL(wspSessionInitiatorUrl);
-        setContext(context);
+        wspSessionInitiatorUrl_ = wspSessionInitiatorUrl;
+        setContext(newDelegationContext());
         setWsc(wsc);
         // remember the SLCS login URL for use in `login()`
         slcsLoginUrl_ = slcsLoginUrl;
     }
 
 
+    /**
+     * Retrieve the assertion from {@code assertionUrl}, retrying
+     * according to {@code retry} on errors other than an expired
+     * assertion.
+     *
+     * @param assertionUrl     URL to the SAML assertion resulting from the Shibboleth login process.
+     * @param assertionBreaker circuit breaker for the assertion URL endpoint, or {@code null}
+     * @param retry            retry policy, or {@code null} to never retry
+     */
+    public static Assertion resolveAssertion(final String assertionUrl,
+                                             final CircuitBreaker assertionBreaker,
+                                             final RetryPolicy retry)
+        throws TokenResolverException, IOException, AssertionExpiredError
+    {
+        return resolveAssertion(null, assertionUrl, assertionBreaker, retry);
+    }
+
+
+    /**
+     * Same as {@link #resolveAssertion(String,CircuitBreaker,RetryPolicy)},
+     * but retrieve the assertion through {@code transport}.
+     *
+     * @param transport        HTTP transport, or {@code null} to use the ID-WSF resolver directly
+     * @param assertionUrl     URL to the SAML assertion resulting from the Shibboleth login process.
+     * @param assertionBreaker circuit breaker for the assertion URL endpoint, or {@code null}
+     * @param retry            retry policy, or {@code null} to never retry
+     */
+    public static Assertion resolveAssertion(final SLCSTransport transport,
+                                             final String assertionUrl,
+                                             final CircuitBreaker assertionBreaker,
+                                             final RetryPolicy retry)
+        throws TokenResolverException, IOException, AssertionExpiredError
+    {
+        return resolveAssertion(transport, assertionUrl, assertionBreaker, retry, null);
+    }
+
+
+    /**
+     * Same as {@link #resolveAssertion(SLCSTransport,String,CircuitBreaker,RetryPolicy)},
+     * but give up (cancelling the request in progress) when {@code
+     * deadline} passes.
+     *
+     * @param deadline         deadline for retrieving the assertion, or {@code null} for none
+     *
+     * @throws DeadlineExceededError if the deadline passes
+     */
+    public static Assertion resolveAssertion(final SLCSTransport transport,
+                                             final String assertionUrl,
+                                             final CircuitBreaker assertionBreaker,
+                                             final RetryPolicy retry,
+                                             final Deadline deadline)
+        throws TokenResolverException, IOException, AssertionExpiredError, DeadlineExceededError
+    {
+        for (int attempt = 1; ; attempt++) {
+            if (null != deadline)
+                deadline.check("assertion retrieval");
+            acquirePermission(assertionBreaker);
+            try {
+                final Assertion assertion = fetchAssertion(transport, assertionUrl, deadline);
+                succeeded(assertionBreaker);
+                return assertion;
+            }
+            catch (ch.SWITCH.aai.idwsf.token.AssertionException x) {
+                // the endpoint is working, the assertion is not
+                succeeded(assertionBreaker);
+                // XXX: are there other cases where `AssertionException` can be thrown?
+                throw new AssertionExpiredError("Assertion expired, please log out and then in again");
+            }
+            catch (AssertionExpiredError x) {
+                succeeded(assertionBreaker);
+                throw x;
+            }
+            catch (TokenResolverException x) {
+                failed(assertionBreaker);
+                if (null == retry || ! retry.canRetry(attempt))
+                    throw x;
+                LOG.warn("SLCSRequestor: attempt " + attempt + " at retrieving assertion failed ("
+                         + x.getMessage() + "), retrying.");
+                retry.backoff(attempt);
+            }
+            catch (IOException x) {
+                failed(assertionBreaker);
+                if (null == retry || ! retry.canRetry(attempt))
+                    throw x;
+                LOG.warn("SLCSRequestor: attempt " + attempt + " at retrieving assertion failed ("
+                         + x.getMessage() + "), retrying.");
+                retry.backoff(attempt);
+            }
+            catch (RuntimeException x) {
+                ignored(assertionBreaker);
+                throw x;
+            }
+        }
+    }
+
+
+    /** Single attempt at retrieving the assertion; see {@link #resolveAssertion}. */
+    private static Assertion fetchAssertion(final SLCSTransport transport,
+                                            final String assertionUrl,
+                                            final Deadline deadline)
+        throws TokenResolverException, IOException
+    {
+        if (null == transport)
+            return new SAML2AssertionURLResolver(assertionUrl).resolveToken();
+        try {
+            return await(transport.fetchAssertion(assertionUrl), deadline, "assertion retrieval");
+        }
+        catch (ExecutionException x) {
+            if (x.getCause() instanceof TokenResolverException)
+                throw (TokenResolverException) x.getCause();
+            throw asIOException(x.getCause());
+        }
+    }
+
+
+    /**
+     * Wait for {@code future} (until {@code deadline}, if not {@code
+     * null}) and return its result; unwrap I/O and runtime exceptions,
+     * and report cancellation as an I/O error.
+     *
+     * @throws ExecutionException wrapping any other (checked) exception
+     * @throws DeadlineExceededError if the deadline passes; {@code future} is cancelled
+     */
+    private static <T> T await(final Future<T> future, final Deadline deadline, final String phase)
+        throws ExecutionException, IOException
+    {
+        try {
+            if (null == deadline)
+                return future.get();
+            return deadline.await(future, phase);
+        }
+        catch (InterruptedException x) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new OperationsError("Interrupted while waiting for HTTP response", x);
+        }
+        catch (CancellationException x) {
+            throw asIOException(x);
+        }
+        catch (ExecutionException x) {
+            final Throwable cause = x.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw x;
+        }
+    }
+
+    private static IOException asIOException(final Throwable cause)
+    {
+        final IOException x = new IOException(cause.getMessage());
+        x.initCause(cause);
+        return x;
+    }
+
+
+    /** Return a new delegation context for the assertion and WSP of this requestor. */
+    private DelegationContext newDelegationContext()
+    {
+        DelegationContext context = new DelegationContext(assertion_);
+        context.setWSPSessionIntiatorURL(wspSessionInitiatorUrl_);
+        return context;
+    }
+
+
     /**
      * Constructor, taking the SAML assertion URL and a properties object with server-wide configuration parameters.
      * <p>
@@ -213,10 +531,7 @@ class SLCSRequestor {
     protected static String getRequiredProperty(final Properties props, final String name)
         throws InvalidConfigurationException
     {
-        String value = props.getProperty(name);
-        if (null == value)
-            throw new InvalidConfigurationException("Missing required property '" + name + "'");
-        return value;
+        return ConfigProperties.getRequiredProperty(props, name);
     }
 
 
@@ -236,62 +551,227 @@ class SLCSRequestor {
         throws SLCSException, GeneralSecurityException 
     {
         login();
+        completeSlcsInit(password);
+    }
+
+
+    /**
+     * Carry out the SLCS negotiation steps following {@link #login}:
+     * generate the key pair and certificate request, and request
+     * the certificate.
+     *
+     * @param password
+     * @throws java.security.GeneralSecurityException
+     *
+     * @throws org.glite.slcs.SLCSException
+     */
+    public void completeSlcsInit(final String password) 
+        throws SLCSException, GeneralSecurityException 
+    {
         generateCertificateKeys(password.toCharArray());
         generateCertificateRequest();
         requestSlcsCertificate();
     }
 
 
+    /**
+     * Abort a {@link #login} running in another thread, e.g.,
+     * because a hedged login to another endpoint has already
+     * succeeded; the aborted login throws an {@link SLCSException},
+     * which is not blamed on the endpoint.
+     */
+    public void abort()
+    {
+        aborted_ = true;
+        final Future<TransportResponse> login = currentLogin_;
+        if (null != login)
+            login.cancel(true);
+    }
+
+
     /**
      * Login to the SLCS service.
      * <p>
      * As a side effect, fills the {@code certificateRequestUrl_},
      * {@code certificateSubject_}, and {@code certificateExtensions_}
      * member variables.
+     * <p>
+     * The login {@code GET} is retried (with a fresh delegation
+     * context) on network errors, HTTP 5xx responses and ECP or
+     * delegation errors, according to the retry policy.
      */
     public void login()
             throws SLCSException {
-        GetMethod getLoginMethod = new GetMethod(slcsLoginUrl_);
+        final List<CircuitBreaker> breakers = new ArrayList<CircuitBreaker>(2);
+        if (null != wspBreaker_)
+            breakers.add(wspBreaker_);
+        if (null != slcsBreaker_ && slcsBreaker_ != wspBreaker_)
+            breakers.add(slcsBreaker_);
+
+        for (int attempt = 1; ; attempt++) {
+            if (aborted_)
+                throw new SLCSException("SLCS login to '" + slcsLoginUrl_ + "' aborted");
+            if (null != deadline_)
+                deadline_.check("SLCS login");
+            acquirePermissions(breakers);
+            try {
+                if (attempt > 1)
+                    setContext(newDelegationContext());
+                loginOnce();
+                for (CircuitBreaker breaker : breakers)
+                    breaker.onSuccess();
+                return;
+            }
+            catch (TransientFailure x) {
+                if (aborted_) {
+                    for (CircuitBreaker breaker : breakers)
+                        breaker.onIgnored();
+                    throw new SLCSException("SLCS login to '" + slcsLoginUrl_ + "' aborted", x.error);
+                }
+                for (CircuitBreaker breaker : breakers)
+                    if (breaker == x.breaker)
+                        breaker.onFailure();
+                    else
+                        breaker.onIgnored();
+                if (null == retry_ || ! retry_.canRetry(attempt))
+                    throw x.error;
+                LOG.warn("SLCS login attempt " + attempt + " failed (" + x.error.getMessage() + "), retrying.");
+                retry_.backoff(attempt);
+            }
+            catch (SLCSException x) {
+                // the SLCS service answered, with an error
+                for (CircuitBreaker breaker : breakers)
+                    breaker.onSuccess();
+                throw x;
+            }
+            catch (RuntimeException x) {
+                for (CircuitBreaker breaker : breakers)
+                    breaker.onIgnored();
+                throw x;
+            }
+        }
+    }
+
+
+    /**
+     * A failure that might not recur if the step is retried; {@code
+     * breaker} is the circuit breaker of the endpoint to blame.
+     */
+    private static class TransientFailure extends Exception {
+        final SLCSException error;
+        final CircuitBreaker breaker;
+
+        TransientFailure(final SLCSException error, final CircuitBreaker breaker) {
+            super(error);
+            this.error = error;
+            this.breaker = breaker;
+        }
+    }
+
+
+    /** Single login attempt; see {@link #login}. */
+    private void loginOnce()
+            throws SLCSException, TransientFailure {
         try {
             LOG.info("GET login: " + slcsLoginUrl_);
-            int status = wsc_.executeMethod(context_, getLoginMethod);
-            LOG.debug(getLoginMethod.getStatusLine().toString());
+            final Future<TransportResponse> login = transport_.login(context_, slcsLoginUrl_);
+            currentLogin_ = login;
+            if (aborted_)
+                login.cancel(true);
+            final TransportResponse response = await(login, deadline_, "SLCS login");
+            int status = response.getStatus();
+            LOG.debug(response.getStatusLine());
             // XXX: do we need to handle 30x (redirect) codes?
             if (status != 200) {
                 LOG.error("SLCS login failed: "
-                        + getLoginMethod.getStatusLine());
+                        + response.getStatusLine());
                 if (status == 401) {
                     throw new AuthException("SLCS authorization failed: "
-                            + getLoginMethod.getStatusLine() + ": "
+                            + response.getStatusLine() + ": "
                             + slcsLoginUrl_);
+                } else if (status >= 500) {
+                    throw new TransientFailure(
+                        new ServiceException("SLCS login failed: "
+                                             + response.getStatusLine()),
+                        slcsBreaker_);
                 } else {
                     throw new AuthException("SLCS login failed: "
-                            + getLoginMethod.getStatusLine());
+                            + response.getStatusLine());
 
                 }
             }
             // read response
-            InputStream is = getLoginMethod.getResponseBodyAsStream();
+            InputStream is = response.getBodyAsStream();
             Source source = new Source(is);
             checkSLCSResponse(source, "SLCSLoginResponse");
             parseSLCSLoginResponse(source);
         } catch (IOException e) {
             final String message = "Failed to request DN: " + e.getMessage();
             LOG.error(message, e);
-            throw new SLCSException(message, e);
-        } catch (ECPException e) {
-            final String message = "SLCS login failed, ECP error: " + e.getMessage();
-            LOG.error(message, e);
-            throw new SLCSException(message, e);
-        } catch (DelegationException e) {
-            final String message = "SLCS login failed, delegation error: " + e.getMessage();
+            throw new TransientFailure(new SLCSException(message, e), slcsBreaker_);
+        } catch (ExecutionException x) {
+            final Throwable e = x.getCause();
+            final String message;
+            final CircuitBreaker breaker;
+            if (e instanceof ECPException) {
+                message = "SLCS login failed, ECP error: " + e.getMessage();
+                breaker = wspBreaker_;
+            } else if (e instanceof DelegationException) {
+                message = "SLCS login failed, delegation error: " + e.getMessage();
+                breaker = wspBreaker_;
+            } else {
+                message = "Failed to request DN: " + e.getMessage();
+                breaker = slcsBreaker_;
+            }
             LOG.error(message, e);
-            throw new SLCSException(message, e);
+            throw new TransientFailure(new SLCSException(message, e), breaker);
         } finally {
-            getLoginMethod.releaseConnection();
+            currentLogin_ = null;
         }
     }
 
+
+    private static void acquirePermission(final CircuitBreaker breaker)
+        throws CircuitOpenError
+    {
+        if (null != breaker)
+            breaker.acquirePermission();
+    }
+
+    /** Acquire permission from all breakers, or from none. */
+    private static void acquirePermissions(final List<CircuitBreaker> breakers)
+        throws CircuitOpenError
+    {
+        for (int i = 0; i < breakers.size(); i++) {
+            try {
+                breakers.get(i).acquirePermission();
+            }
+            catch (CircuitOpenError x) {
+                for (int j = 0; j < i; j++)
+                    breakers.get(j).onIgnored();
+                throw x;
+            }
+        }
+    }
+
+    private static void succeeded(final CircuitBreaker breaker)
+    {
+        if (null != breaker)
+            breaker.onSuccess();
+    }
+
+    private static void failed(final CircuitBreaker breaker)
+    {
+        if (null != breaker)
+            breaker.onFailure();
+    }
+
+    private static void ignored(final CircuitBreaker breaker)
+    {
+        if (null != breaker)
+            breaker.onIgnored();
+    }
+
     /**
      * Check the return status in an SLCS transaction.
      *
@@ -421,35 +901,56 @@ class SLCSRequestor {
      * @throws org.glite.slcs.SLCSException
      */
     public void requestSlcsCertificate() throws SLCSException {
-        PostMethod postCertificateRequestMethod = new PostMethod(
-                certificateRequestUrl_);
-        postCertificateRequestMethod.addParameter("AuthorizationToken",
-                authorizationToken_);
-        postCertificateRequestMethod.addParameter(
-                "CertificateSigningRequest",
-                certificateRequest_.getPEMEncoded());
+        final Map<String, String> parameters = new LinkedHashMap<String, String>();
+        parameters.put("AuthorizationToken", authorizationToken_);
+        parameters.put("CertificateSigningRequest",
+                       certificateRequest_.getPEMEncoded());
+        // the authorization token is single-use, so this is never retried
+        if (null != deadline_)
+            deadline_.check("SLCS certificate request");
+        acquirePermission(slcsBreaker_);
+        boolean endpointFailed = false;
+        boolean timedOut = false;
         try {
             LOG.info("POST CSR: " + certificateRequestUrl_);
-            int status = wsc_.executeMethod(postCertificateRequestMethod);
-            LOG.debug(postCertificateRequestMethod.getStatusLine().toString());
+            final TransportResponse response =
+                await(transport_.post(certificateRequestUrl_, parameters), deadline_, "SLCS certificate request");
+            int status = response.getStatus();
+            LOG.debug(response.getStatusLine());
             // check status
             if (status != 200) {
                 LOG.error("SLCS certificate request failed: "
-                        + postCertificateRequestMethod.getStatusLine());
+                        + response.getStatusLine());
+                endpointFailed = (status >= 500);
                 throw new ServiceException("SLCS certificate request failed: "
-                        + postCertificateRequestMethod.getStatusLine());
+                        + response.getStatusLine());
             }
             // read response
-            InputStream is = postCertificateRequestMethod.getResponseBodyAsStream();
+            InputStream is = response.getBodyAsStream();
             Source source = new Source(is);
             checkSLCSResponse(source, "SLCSCertificateResponse");
             parseSLCSCertificateResponse(source);
         } catch (IOException e) {
+            endpointFailed = true;
             final String message = "Failed to request certificate, I/O error: " + e.getMessage();
             LOG.error(message, e);
             throw new SLCSException(message, e);
+        } catch (ExecutionException x) {
+            endpointFailed = true;
+            final String message = "Failed to request certificate: " + x.getCause().getMessage();
+            LOG.error(message, x.getCause());
+            throw new SLCSException(message, x.getCause());
+        } catch (DeadlineExceededError x) {
+            // not the endpoint's fault: the caller's budget ran out
+            timedOut = true;
+            throw x;
         } finally {
-            postCertificateRequestMethod.releaseConnection();
+            if (timedOut)
+                ignored(slcsBreaker_);
+            else if (endpointFailed)
+                failed(slcsBreaker_);
+            else
+                succeeded(slcsBreaker_);
         }
     }
 
@@ -520,6 +1021,36 @@ class SLCSRequestor {
         return certificateKeys_;
     }
 
+    /**
+     * Use key pair {@code keys} instead of generating a new one with
+     * {@link #generateCertificateKeys}, e.g., to reuse the keys from
+     * a failed issuance; the certificate request must then be
+     * generated again.
+     */
+    public void setCertificateKeys(final CertificateKeys keys) {
+        certificateKeys_ = keys;
+        certificateRequest_ = null;
+    }
+
+    /**
+     * Set the deadline for {@link #login} and {@link
+     * #requestSlcsCertificate}: a request still in progress when it
+     * passes is cancelled, and a {@link DeadlineExceededError} is
+     * thrown.  {@code null} means no deadline.
+     */
+    public void setDeadline(final Deadline deadline) {
+        deadline_ = deadline;
+    }
+
+    public Deadline getDeadline() {
+        return deadline_;
+    }
+
+    /** Return {@code true} if a certificate request has been generated and can be sent. */
+    public boolean hasCertificateRequest() {
+        return null != certificateRequest_ && null != authorizationToken_;
+    }
+
     public int getKeySize() {
         return keySize_;
     }
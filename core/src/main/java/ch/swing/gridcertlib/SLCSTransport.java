@@ -0,0 +1,90 @@
+/**
+ * @file   SLCSTransport.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class SLCSTransport
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import ch.SWITCH.aai.idwsf.ecp.DelegationContext;
+import org.opensaml.saml2.core.Assertion;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+
+/**
+ * HTTP transport used by {@link SLCSRequestor} to talk to the
+ * assertion URL, the SLCS login URL (through ECP delegation) and the
+ * SLCS certificate request URL.
+ * <p>
+ * All methods start the request and return a {@link Future}; it is up
+ * to the implementation whether the request actually runs in the
+ * background or only when the result is requested.  Failures are
+ * reported by {@link Future#get} as an {@link
+ * java.util.concurrent.ExecutionException} wrapping the original
+ * exception:
+ * <ul>
+ * <li>{@link java.io.IOException} for network errors and timeouts;
+ * <li>{@link ch.SWITCH.aai.idwsf.token.TokenResolverException} or
+ *     {@link AssertionExpiredError} if the assertion cannot be used;
+ * <li>{@link ch.SWITCH.aai.idwsf.ecp.ECPException} or {@link
+ *     ch.SWITCH.aai.idwsf.ecp.DelegationException} if delegated login fails.
+ * </ul>
+ * Cancelling a returned {@code Future} aborts the request.
+ * <p>
+ * Two implementations are provided: {@link BlockingTransport}, which
+ * uses the commons-httpclient client inside the ID-WSF {@link
+ * ch.SWITCH.aai.idwsf.ecp.WebServiceClient}, and {@link NioTransport},
+ * which drives many requests from a few I/O threads.
+ */
+public interface SLCSTransport {
+
+    /** Retrieve the SAML2 assertion at {@code assertionUrl}. */
+    Future<Assertion> fetchAssertion(String assertionUrl)
+        throws IOException;
+
+    /**
+     * {@code GET} the SLCS login page at {@code slcsLoginUrl}, using
+     * the delegated assertion in {@code context} to authenticate.
+     */
+    Future<TransportResponse> login(DelegationContext context, String slcsLoginUrl)
+        throws IOException;
+
+    /** {@code POST} the form {@code parameters} to {@code url}. */
+    Future<TransportResponse> post(String url, Map<String, String> parameters)
+        throws IOException;
+
+    /**
+     * {@code GET} {@code url} and discard the response, so that class
+     * loading, TLS set-up and the TLS handshake with its host (whose
+     * session is cached for later requests) are done ahead of the
+     * first real request; used by the {@link SLCSFactory} warm-up.
+     * Blocks until the response has been read.
+     *
+     * @throws IOException if {@code url} cannot be retrieved
+     */
+    void warmUp(String url)
+        throws IOException;
+
+    /** Release any resources (threads, connections) held by this transport. */
+    void close();
+}
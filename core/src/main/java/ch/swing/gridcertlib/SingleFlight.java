@@ -0,0 +1,273 @@
+/**
+ * @file   SingleFlight.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class SingleFlight
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Coalesce concurrent invocations of the same operation.
+ * <p>
+ * The first caller of {@link #execute} for a given key runs the
+ * operation in its own thread; callers arriving with the same key
+ * while it is still running wait for it to complete, and get the
+ * same result (or the same exception).  Once the operation is
+ * done, the key is forgotten: the next caller starts a new one.
+ * Results are not cached.
+ *
+ * @param <K> type of the keys identifying an operation
+ * @param <V> type of the operation result
+ */
+class SingleFlight<K, V> {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(SingleFlight.class);
+
+    private final ConcurrentMap<K, FutureTask<V>> inFlight_ = new ConcurrentHashMap<K, FutureTask<V>>();
+
+
+    /**
+     * Run {@code task}, unless another task with the same key is
+     * already running; in that case, wait for it and return its result.
+     * <p>
+     * Runtime exceptions and errors thrown by the task are re-thrown
+     * unchanged, to all callers; checked exceptions are wrapped into
+     * an {@link OperationsError}.
+     *
+     * @throws OperationsError if interrupted while waiting for another caller's task
+     */
+    public V execute(final K key, final Callable<V> task)
+        throws OperationsError
+    {
+        return execute(key, task, null);
+    }
+
+
+    /**
+     * Same as {@link #execute(Object,Callable)}, but stop waiting for
+     * another caller's task when {@code deadline} passes; the task
+     * itself is not cancelled, as other callers may still be waiting
+     * for it.
+     * <p>
+     * If the other caller's task fails with a {@link
+     * DeadlineExceededError} (i.e., <em>its</em> deadline passed, or
+     * was cancelled) while {@code deadline} has not passed yet, this
+     * caller does not inherit the error: it starts (or joins) the
+     * operation anew.
+     *
+     * @throws DeadlineExceededError if the deadline passes while waiting for another caller's task
+     */
+    public V execute(final K key, final Callable<V> task, final Deadline deadline)
+        throws OperationsError
+    {
+        while (true) {
+            final FutureTask<V> future = new FutureTask<V>(task);
+            final FutureTask<V> inFlight = inFlight_.putIfAbsent(key, future);
+            if (null == inFlight) {
+                try {
+                    future.run();
+                }
+                finally {
+                    inFlight_.remove(key, future);
+                }
+                return await(key, future, null);
+            }
+            LOG.debug("SingleFlight: joining in-flight operation for key '" + key + "'");
+            try {
+                return await(key, inFlight, deadline);
+            }
+            catch (DeadlineExceededError x) {
+                if (! isOthersDeadline(inFlight, deadline))
+                    throw x;
+                // the other caller may not have removed it yet
+                inFlight_.remove(key, inFlight);
+                LOG.debug("SingleFlight: in-flight operation for key '" + key
+                          + "' ran out of its caller's deadline; starting over");
+            }
+        }
+    }
+
+
+    /**
+     * If an operation with key {@code key} is running, wait for it
+     * and return its result, as {@link #execute(Object,Callable,Deadline)}
+     * would; else, return {@code null} right away.  {@code null} is
+     * also returned if the operation fails because its own caller's
+     * deadline passed before {@code deadline}.
+     *
+     * @throws DeadlineExceededError if the deadline passes while waiting for the running operation
+     */
+    public V join(final K key, final Deadline deadline)
+        throws OperationsError
+    {
+        final FutureTask<V> inFlight = inFlight_.get(key);
+        if (null == inFlight)
+            return null;
+        LOG.debug("SingleFlight: joining in-flight operation for key '" + key + "'");
+        try {
+            return await(key, inFlight, deadline);
+        }
+        catch (DeadlineExceededError x) {
+            if (! isOthersDeadline(inFlight, deadline))
+                throw x;
+            return null;
+        }
+    }
+
+
+    /**
+     * Return {@code true} if a {@link DeadlineExceededError} caught
+     * while waiting for {@code inFlight} comes from the task itself,
+     * and not from {@code deadline} passing.
+     */
+    private static boolean isOthersDeadline(final FutureTask<?> inFlight, final Deadline deadline)
+    {
+        return inFlight.isDone() && (null == deadline || ! deadline.isExpired());
+    }
+
+
+    /** Wait for {@code inFlight} until {@code deadline}, and unwrap its outcome. */
+    private V await(final K key, final FutureTask<V> inFlight, final Deadline deadline)
+        throws OperationsError
+    {
+        try {
+            if (null == deadline)
+                return inFlight.get();
+            return deadline.await(new FutureView<V>(inFlight), "wait for in-flight operation on '" + key + "'");
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new OperationsError("Interrupted while waiting for in-flight operation on '"
+                                      + key + "'", x);
+        }
+        catch (ExecutionException x) {
+            final Throwable cause = x.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new OperationsError("Error in operation on '" + key + "': "
+                                      + cause.getMessage(), cause);
+        }
+    }
+
+
+    /**
+     * View of another caller's task, as seen by one waiting caller:
+     * cancelling it (e.g., by {@link Deadline#cancel}) stops this
+     * caller's wait with a {@link CancellationException}, but leaves
+     * the task running for the other callers.
+     */
+    private static final class FutureView<V> implements Future<V> {
+        private final Future<V> future_;
+
+        private boolean cancelled_ = false;
+        private Thread waiter_ = null;
+        private boolean interrupted_ = false;
+
+        FutureView(final Future<V> future) {
+            future_ = future;
+        }
+
+        public V get() throws InterruptedException, ExecutionException {
+            enter();
+            try {
+                return future_.get();
+            }
+            catch (InterruptedException x) {
+                throw cancelledOr(x);
+            }
+            finally {
+                leave();
+            }
+        }
+
+        public V get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            enter();
+            try {
+                return future_.get(timeout, unit);
+            }
+            catch (InterruptedException x) {
+                throw cancelledOr(x);
+            }
+            finally {
+                leave();
+            }
+        }
+
+        public synchronized boolean cancel(final boolean mayInterruptIfRunning) {
+            if (cancelled_ || future_.isDone())
+                return false;
+            cancelled_ = true;
+            if (null != waiter_) {
+                interrupted_ = true;
+                waiter_.interrupt();
+            }
+            return true;
+        }
+
+        public synchronized boolean isCancelled() { return cancelled_ || future_.isCancelled(); }
+        public synchronized boolean isDone()      { return cancelled_ || future_.isDone(); }
+
+        private synchronized void enter() {
+            if (cancelled_)
+                throw new CancellationException("Stopped waiting for in-flight operation");
+            waiter_ = Thread.currentThread();
+        }
+
+        private synchronized void leave() {
+            waiter_ = null;
+            // do not leak our interrupt to the caller, if `get` returned before seeing it
+            if (interrupted_)
+                Thread.interrupted();
+            interrupted_ = false;
+        }
+
+        private synchronized InterruptedException cancelledOr(final InterruptedException x) {
+            if (interrupted_)
+                throw new CancellationException("Stopped waiting for in-flight operation");
+            return x;
+        }
+    }
+
+
+    /** Return the number of operations currently running. */
+    public int getInFlightCount()
+    {
+        return inFlight_.size();
+    }
+}
@@ -0,0 +1,288 @@
+/**
+ * @file   StagePool.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class StagePool
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Pool of threads running the steps ("stages") of a pipeline, with
+ * queue depth and timing statistics for each stage.
+ * <p>
+ * {@link SLCSFactory} uses two instances: one sized to the number of
+ * processors for CPU-bound stages (key generation, CSR signing,
+ * private key encryption), and a larger one for stages that wait on
+ * the network; this way, CPU work never queues behind network waits,
+ * and network waits never leave processors idle.
+ * <p>
+ * The caller of {@link #run} waits for the stage to complete, so
+ * stages of a single pipeline run one after the other; the queue is
+ * unbounded, callers should limit the number of concurrent pipelines
+ * (e.g., with an {@link AdmissionController}).  A pool with 0
+ * threads runs stages in the calling thread, still collecting
+ * statistics.
+ */
+public class StagePool {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(StagePool.class);
+
+    /** Statistics for one stage. */
+    public static class Stage {
+        private final String name_;
+        private final AtomicInteger queued_ = new AtomicInteger(0);
+        private final AtomicInteger running_ = new AtomicInteger(0);
+        private final AtomicInteger maxQueued_ = new AtomicInteger(0);
+        private final AtomicLong completed_ = new AtomicLong(0);
+        private final AtomicLong failed_ = new AtomicLong(0);
+        private final AtomicLong waitNanos_ = new AtomicLong(0);
+        private final AtomicLong runNanos_ = new AtomicLong(0);
+
+        Stage(final String name) {
+            name_ = name;
+        }
+
+        public String getName()        { return name_; }
+        /** Number of tasks waiting for a thread. */
+        public int getQueued()         { return queued_.get(); }
+        /** Largest number of tasks that were waiting for a thread at the same time. */
+        public int getMaxQueued()      { return maxQueued_.get(); }
+        public int getRunning()        { return running_.get(); }
+        public long getCompleted()     { return completed_.get(); }
+        public long getFailed()        { return failed_.get(); }
+
+        /** Return the average time (in milliseconds) tasks waited for a thread. */
+        public double getAverageWait() {
+            final long n = completed_.get() + failed_.get();
+            return (0 == n) ? 0.0 : waitNanos_.get() / 1e6 / n;
+        }
+
+        /** Return the average time (in milliseconds) tasks took to run. */
+        public double getAverageRun() {
+            final long n = completed_.get() + failed_.get();
+            return (0 == n) ? 0.0 : runNanos_.get() / 1e6 / n;
+        }
+
+        void enqueued() {
+            final int queued = queued_.incrementAndGet();
+            int max;
+            while (queued > (max = maxQueued_.get()))
+                if (maxQueued_.compareAndSet(max, queued))
+                    break;
+        }
+
+        public String toString() {
+            return String.format("%s: queued=%d (max %d), running=%d, completed=%d, failed=%d,"
+                                 + " avgWait=%.1fms, avgRun=%.1fms",
+                                 name_, getQueued(), getMaxQueued(), getRunning(),
+                                 getCompleted(), getFailed(), getAverageWait(), getAverageRun());
+        }
+    }
+
+
+    protected final String name_;
+    protected final int threads_;
+    protected final ExecutorService executor_;
+    private final ConcurrentMap<String, Stage> stages_ = new ConcurrentHashMap<String, Stage>();
+
+
+    /**
+     * Constructor.
+     *
+     * @param name    prefix for the thread names
+     * @param threads number of threads; 0 means run stages in the calling thread
+     */
+    public StagePool(final String name, final int threads)
+    {
+        if (threads < 0)
+            throw new IllegalArgumentException("StagePool: number of threads must not be negative");
+        name_ = name;
+        threads_ = threads;
+        if (0 == threads)
+            executor_ = null;
+        else {
+            final AtomicInteger count = new AtomicInteger(0);
+            executor_ = new ThreadPoolExecutor(threads, threads,
+                                               60, TimeUnit.SECONDS,
+                                               new LinkedBlockingQueue<Runnable>(),
+                                               new ThreadFactory() {
+                                                   public Thread newThread(final Runnable runnable) {
+                                                       final Thread thread =
+                                                           new Thread(runnable, name + "-" + count.incrementAndGet());
+                                                       thread.setDaemon(true);
+                                                       return thread;
+                                                   }
+                                               });
+        }
+        LOG.debug("StagePool: created pool '" + name + "' with " + threads + " threads");
+    }
+
+
+    /**
+     * Constructor for a pool running stages on {@code executor}, e.g.,
+     * one creating a virtual thread per task (see {@link
+     * VirtualThreads}); it is shut down by {@link #shutdown}.
+     */
+    public StagePool(final String name, final ExecutorService executor)
+    {
+        assert(null != executor);
+        name_ = name;
+        threads_ = -1;
+        executor_ = executor;
+    }
+
+
+    /**
+     * Run {@code task} as stage {@code stage} on a pool thread, and
+     * return its result.
+     *
+     * @throws ExecutionException wrapping the exception thrown by {@code task}
+     * @throws OperationsError if interrupted while waiting for the stage to complete
+     */
+    public <T> T run(final String stage, final Callable<T> task)
+        throws ExecutionException
+    {
+        return run(stage, task, null);
+    }
+
+
+    /**
+     * Same as {@link #run(String,Callable)}, but stop waiting when
+     * {@code deadline} passes; the stage is then cancelled, by
+     * interrupting its thread.
+     *
+     * @param deadline deadline for the stage, or {@code null} for none
+     *
+     * @throws DeadlineExceededError if the deadline passes
+     */
+    public <T> T run(final String stage, final Callable<T> task, final Deadline deadline)
+        throws ExecutionException
+    {
+        if (null != deadline)
+            deadline.check(stage);
+        final Stage stats = getStage(stage);
+        final long submitted = System.nanoTime();
+        stats.enqueued();
+        final Callable<T> timed = new Callable<T>() {
+            public T call() throws Exception {
+                final long started = System.nanoTime();
+                stats.queued_.decrementAndGet();
+                stats.running_.incrementAndGet();
+                stats.waitNanos_.addAndGet(started - submitted);
+                boolean ok = false;
+                try {
+                    final T result = task.call();
+                    ok = true;
+                    return result;
+                }
+                finally {
+                    stats.running_.decrementAndGet();
+                    stats.runNanos_.addAndGet(System.nanoTime() - started);
+                    if (ok)
+                        stats.completed_.incrementAndGet();
+                    else
+                        stats.failed_.incrementAndGet();
+                }
+            }
+        };
+
+        if (null == executor_) {
+            try {
+                return timed.call();
+            }
+            catch (Exception x) {
+                throw new ExecutionException(x);
+            }
+        }
+
+        final Future<T> future = executor_.submit(timed);
+        try {
+            if (null == deadline)
+                return future.get();
+            return deadline.await(future, stage);
+        }
+        catch (InterruptedException x) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new OperationsError("Interrupted while waiting for stage '" + stage
+                                      + "' on pool '" + name_ + "'", x);
+        }
+    }
+
+
+    /** Return the statistics of stage {@code stage}, creating them if needed. */
+    public Stage getStage(final String stage)
+    {
+        Stage stats = stages_.get(stage);
+        if (null == stats) {
+            stages_.putIfAbsent(stage, new Stage(stage));
+            stats = stages_.get(stage);
+        }
+        return stats;
+    }
+
+    /** Return the statistics of all stages run so far, sorted by name. */
+    public Map<String, Stage> getStages()
+    {
+        return Collections.unmodifiableMap(new TreeMap<String, Stage>(stages_));
+    }
+
+    /** Return the total number of tasks waiting for a thread, over all stages. */
+    public int getQueueDepth()
+    {
+        int depth = 0;
+        for (Stage stats : stages_.values())
+            depth += stats.getQueued();
+        return depth;
+    }
+
+    public String getName() { return name_; }
+
+    /** Return the number of threads, 0 if stages run in the calling thread, or -1 if an external executor is used. */
+    public int getThreads() { return threads_; }
+
+    /** Stop the threads once the queued stages are done. */
+    public void shutdown()
+    {
+        if (null != executor_)
+            executor_.shutdown();
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * @file   TransportResponse.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class TransportResponse
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+
+
+/**
+ * A complete HTTP response, as returned by an {@link SLCSTransport}:
+ * status, headers and fully-read body.
+ */
+public class TransportResponse {
+
+    protected final int status_;
+    protected final String statusLine_;
+    protected final Map<String, String> headers_;
+    protected final byte[] body_;
+
+
+    /**
+     * Constructor.
+     *
+     * @param status     HTTP status code
+     * @param statusLine HTTP status line, e.g., {@code HTTP/1.1 200 OK}
+     * @param headers    response headers; names must be in lower case
+     * @param body       response body (after removal of any transfer encoding)
+     */
+    public TransportResponse(final int status,
+                             final String statusLine,
+                             final Map<String, String> headers,
+                             final byte[] body)
+    {
+        status_ = status;
+        statusLine_ = statusLine;
+        headers_ = Collections.unmodifiableMap(headers);
+        body_ = body;
+    }
+
+
+    public int getStatus()         { return status_; }
+    public String getStatusLine()  { return statusLine_; }
+    public byte[] getBody()        { return body_; }
+
+    /** Return the value of header {@code name} (case-insensitive), or {@code null}. */
+    public String getHeader(final String name)
+    {
+        return headers_.get(name.toLowerCase());
+    }
+
+    public InputStream getBodyAsStream()
+    {
+        return new ByteArrayInputStream(body_);
+    }
+
+    public String toString()
+    {
+        return statusLine_;
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * @file   VirtualThreads.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class VirtualThreads
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import java.util.concurrent.ExecutorService;
+
+
+/**
+ * Access to virtual threads, where the JVM provides them.
+ * <p>
+ * This is the implementation used on JVMs older than Java 21, where
+ * virtual threads are never available.  The core library jar is a
+ * multi-release jar: on Java 21 and later, the class in {@code
+ * META-INF/versions/21} (compiled from {@code src/main/java21})
+ * replaces this one.
+ */
+public class VirtualThreads {
+
+    /** Return {@code true} if virtual threads can be used. */
+    public static boolean isAvailable()
+    {
+        return false;
+    }
+
+
+    /**
+     * Return an executor running each task in a new virtual thread,
+     * named {@code name} followed by a sequence number.
+     *
+     * @throws UnsupportedOperationException if virtual threads are not available
+     */
+    public static ExecutorService newExecutor(final String name)
+    {
+        throw new UnsupportedOperationException("Virtual threads need Java 21 or later; running on Java "
+                                                + System.getProperty("java.version"));
+    }
+}
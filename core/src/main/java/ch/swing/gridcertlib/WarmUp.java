@@ -0,0 +1,258 @@
+/**
+ * @file   WarmUp.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class WarmUp
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.swing.gridcertlib;
+
+import ch.SWITCH.aai.idwsf.xml.OpenSAML;
+import org.glite.slcs.pki.CertificateExtension;
+import org.glite.slcs.pki.CertificateKeys;
+import org.glite.slcs.pki.CertificateRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Readiness of an {@link SLCSFactory}, and the background warm-up
+ * that brings it about: bootstrap OpenSAML, seed the random number
+ * generator, run key generation, CSR signing and private key
+ * encryption on throwaway data, and (optionally) contact every SLCS
+ * and WSP endpoint, so that TLS handshakes are done ahead of the
+ * first request.  Until {@link #start} is called, the factory is
+ * ready.
+ * <p>
+ * The following properties select the warm-up:
+ * <dl>
+ * <dt>{@code gridcertlib.warmup         }<dd>{@code background} to warm up in a background thread, so that the factory constructor returns at once; {@code off} (default) to bootstrap in the constructor and leave warming up to the first requests
+ * <dt>{@code gridcertlib.warmup.connect }<dd>if {@code true} (default), the background warm-up also contacts the SLCS and WSP endpoints
+ * </dl>
+ */
+public class WarmUp {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(WarmUp.class);
+
+    private volatile SLCSFactory.Readiness readiness_ = SLCSFactory.Readiness.READY;
+
+    /** Counted down when the background bootstrap is done; {@code null} if there is none. */
+    private volatile CountDownLatch bootstrapped_ = null;
+
+    /** Counted down when the background warm-up is done; {@code null} if there is none. */
+    private volatile CountDownLatch warm_ = null;
+
+    /** Why the background bootstrap failed. */
+    private volatile Throwable bootstrapError_ = null;
+
+
+    /**
+     * Return {@code true} if {@code props} select a background
+     * warm-up; see the class description.
+     *
+     * @throws InvalidConfigurationException if {@code gridcertlib.warmup} has an invalid value
+     */
+    public static boolean isBackground(final Properties props)
+        throws InvalidConfigurationException
+    {
+        return "background".equals(ConfigProperties.getChoiceProperty(props, "gridcertlib.warmup", "off",
+                                                                       "off", "background"));
+    }
+
+    /**
+     * Return {@code true} if {@code props} let the background warm-up
+     * contact the remote endpoints; see the class description.
+     *
+     * @throws InvalidConfigurationException if {@code gridcertlib.warmup.connect} has an invalid value
+     */
+    public static boolean isConnect(final Properties props)
+        throws InvalidConfigurationException
+    {
+        return ConfigProperties.getBooleanProperty(props, "gridcertlib.warmup.connect", true);
+    }
+
+
+    /**
+     * Start bootstrapping OpenSAML (if {@code doOpenSamlBootstrap} is
+     * {@code true}) and warming up in a background thread; keys of
+     * {@code keySize} bits are generated, and, if {@code connect} is
+     * {@code true}, every endpoint in {@code endpoints} is contacted
+     * through {@code transport}.  Until done, {@link #getReadiness}
+     * returns {@link SLCSFactory.Readiness#WARMING_UP}.
+     */
+    public void start(final boolean doOpenSamlBootstrap,
+                      final int keySize,
+                      final List<SLCSEndpoint> endpoints,
+                      final SLCSTransport transport,
+                      final boolean connect)
+    {
+        readiness_ = SLCSFactory.Readiness.WARMING_UP;
+        bootstrapped_ = new CountDownLatch(1);
+        warm_ = new CountDownLatch(1);
+        final Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    warmUp(doOpenSamlBootstrap, keySize, endpoints, transport, connect);
+                }
+            }, "gridcertlib-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /** Body of the warm-up thread; see {@link #start}. */
+    private void warmUp(final boolean doOpenSamlBootstrap,
+                        final int keySize,
+                        final List<SLCSEndpoint> endpoints,
+                        final SLCSTransport transport,
+                        final boolean connect)
+    {
+        final long started = System.currentTimeMillis();
+        try {
+            try {
+                if (doOpenSamlBootstrap) {
+                    LOG.debug("WarmUp: performing OpenSAML bootstrap in the background...");
+                    OpenSAML.bootstrap();
+                }
+            }
+            catch (Throwable x) {
+                LOG.error("WarmUp: failed bootstrapping OpenSAML library: " + x.getMessage(), x);
+                bootstrapError_ = x;
+                readiness_ = SLCSFactory.Readiness.FAILED;
+                return;
+            }
+            finally {
+                bootstrapped_.countDown();
+            }
+
+            try {
+                SLCSFactory.passwordGenerator_.randomPassword();
+                final CertificateKeys keys = new CertificateKeys(keySize, "warm-up".toCharArray());
+                new CertificateRequest(keys, "CN=GridCertLib warm-up",
+                                       new ArrayList<CertificateExtension>()).getPEMEncoded();
+                final File scratch = File.createTempFile("gridcertlib-warmup", ".pem");
+                try {
+                    keys.storePEMPrivate(scratch);
+                }
+                finally {
+                    scratch.delete();
+                }
+            }
+            catch (Exception x) {
+                // real requests will report the error, if it persists
+                LOG.warn("WarmUp: warm-up of key generation failed: " + x.getMessage(), x);
+            }
+
+            if (connect)
+                for (SLCSEndpoint endpoint : endpoints)
+                    for (String url : new String[] { endpoint.getWspSessionInitiatorUrl(),
+                                                     endpoint.getSlcsLoginUrl() })
+                        try {
+                            transport.warmUp(url);
+                        }
+                        catch (IOException x) {
+                            // the endpoint may be down now: circuit breakers will deal with it
+                            LOG.warn("WarmUp: warm-up request to '" + url + "' failed: " + x.getMessage());
+                        }
+
+            readiness_ = SLCSFactory.Readiness.READY;
+            LOG.info("WarmUp: warm-up done in " + (System.currentTimeMillis() - started) + "ms");
+        }
+        finally {
+            warm_.countDown();
+        }
+    }
+
+
+    /**
+     * Wait for the background bootstrap of OpenSAML, if any.
+     *
+     * @throws OperationsError if the bootstrap failed
+     * @throws DeadlineExceededError if {@code deadline} passes first
+     */
+    public void awaitBootstrap(final Deadline deadline)
+        throws OperationsError
+    {
+        final CountDownLatch bootstrapped = bootstrapped_;
+        if (null == bootstrapped)
+            return;
+        try {
+            if (null == deadline)
+                bootstrapped.await();
+            else
+                while (! bootstrapped.await(deadline.getRemaining(), TimeUnit.MILLISECONDS))
+                    deadline.check("OpenSAML bootstrap");
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new OperationsError("Interrupted while waiting for OpenSAML bootstrap", x);
+        }
+        checkBootstrap();
+    }
+
+
+    /**
+     * Wait up to {@code timeout} milliseconds for the warm-up to be
+     * done.
+     *
+     * @throws OverloadedError if still warming up after {@code timeout} milliseconds
+     * @throws OperationsError if the warm-up failed
+     */
+    public void awaitReady(final long timeout)
+        throws OperationsError
+    {
+        final CountDownLatch warm = warm_;
+        try {
+            if (null != warm && ! warm.await(timeout, TimeUnit.MILLISECONDS))
+                throw new OverloadedError("GridCertLib is warming up, please retry", 1 + (int) (timeout / 1000));
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new OperationsError("Interrupted while waiting for warm-up", x);
+        }
+        checkBootstrap();
+    }
+
+
+    /** Return the readiness brought about by the warm-up so far. */
+    public SLCSFactory.Readiness getReadiness()
+    {
+        return readiness_;
+    }
+
+
+    /** Throw an {@link OperationsError} if the background bootstrap failed. */
+    private void checkBootstrap()
+        throws OperationsError
+    {
+        if (SLCSFactory.Readiness.FAILED == readiness_)
+            throw new OperationsError("Failed bootstrapping OpenSAML library: "
+                                      + bootstrapError_.getMessage(), bootstrapError_);
+    }
+}
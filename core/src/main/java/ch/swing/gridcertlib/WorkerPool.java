@@ -0,0 +1,251 @@
+/**
+ * @file   WorkerPool.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class WorkerPool
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Bounded pool of worker threads, for running credential issuance
+ * off the servlet container threads (e.g., from asynchronous
+ * servlets).
+ * <p>
+ * At most {@code threads} tasks run at the same time, and at most
+ * {@code queueSize} wait; further tasks are rejected with an {@link
+ * OverloadedError}.
+ * <p>
+ * In {@code platform} mode (the default), tasks run on a fixed set
+ * of daemon threads.  In {@code virtual} mode, each task runs on its
+ * own virtual thread, and waiting for the network does not tie up an
+ * operating system thread, so {@code threads} can be set much higher
+ * (e.g., to 1000) and only bounds concurrency; waiting tasks are
+ * parked virtual threads.  Virtual threads need Java 21; on older
+ * JVMs, {@code virtual} mode falls back to {@code platform} mode with
+ * a warning (see {@link VirtualThreads}).
+ * <p>
+ * The following properties (all optional) configure an instance:
+ * <dl>
+ * <dt>{@code gridcertlib.workers.threads   }<dd>maximum number of tasks running at the same time (default: 20)
+ * <dt>{@code gridcertlib.workers.queueSize }<dd>maximum number of tasks waiting to run (default: 100)
+ * <dt>{@code gridcertlib.workers.mode      }<dd>{@code platform} or {@code virtual} (default: {@code platform})
+ * </dl>
+ * In a webapp, one pool per configuration file is shared by all
+ * servlets and filters through {@link
+ * ch.swing.gridcertlib.servlet.FactoryRegistry#getWorkerPool}, which
+ * also shuts it down when the webapp stops.
+ */
+public class WorkerPool {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(WorkerPool.class);
+
+    protected final ExecutorService executor_;
+    protected final int threads_;
+    protected final int queueSize_;
+
+    /** Thread pool in platform mode; {@code null} in virtual mode. */
+    private final ThreadPoolExecutor platform_;
+
+    /** Virtual mode only: slots for running or waiting tasks, and for running ones. */
+    private final Semaphore admitted_;
+    private final Semaphore running_;
+
+
+    /**
+     * Constructor for a pool in platform mode.
+     *
+     * @param name      prefix for the worker thread names
+     * @param threads   number of worker threads
+     * @param queueSize maximum number of tasks waiting for a thread
+     */
+    public WorkerPool(final String name, final int threads, final int queueSize)
+    {
+        this(name, false, threads, queueSize);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param name      prefix for the worker thread names
+     * @param virtual   if {@code true}, run each task on its own virtual thread, if available
+     * @param threads   maximum number of tasks running at the same time
+     * @param queueSize maximum number of tasks waiting to run
+     */
+    public WorkerPool(final String name, final boolean virtual, final int threads, final int queueSize)
+    {
+        if (threads < 1 || queueSize < 1)
+            throw new IllegalArgumentException("WorkerPool: threads and queueSize must be positive");
+        threads_ = threads;
+        queueSize_ = queueSize;
+        if (virtual && ! VirtualThreads.isAvailable())
+            LOG.warn("WorkerPool: virtual threads need Java 21 or later; pool '" + name
+                     + "' will use platform threads instead.");
+        if (virtual && VirtualThreads.isAvailable()) {
+            platform_ = null;
+            executor_ = VirtualThreads.newExecutor(name);
+            admitted_ = new Semaphore(threads + queueSize);
+            running_ = new Semaphore(threads);
+        }
+        else {
+            final AtomicInteger count = new AtomicInteger(0);
+            platform_ = new ThreadPoolExecutor(threads, threads,
+                                               60, TimeUnit.SECONDS,
+                                               new ArrayBlockingQueue<Runnable>(queueSize),
+                                               new ThreadFactory() {
+                                                   public Thread newThread(final Runnable runnable) {
+                                                       final Thread thread =
+                                                           new Thread(runnable, name + "-" + count.incrementAndGet());
+                                                       thread.setDaemon(true);
+                                                       return thread;
+                                                   }
+                                               });
+            executor_ = platform_;
+            admitted_ = null;
+            running_ = null;
+        }
+        LOG.debug("WorkerPool: created pool '" + name + "' in " + (isVirtual() ? "virtual" : "platform")
+                  + " mode with " + threads + " threads and queue size " + queueSize);
+    }
+
+
+    /**
+     * Constructor taking the configuration from a properties object;
+     * see the class description for the property names.
+     *
+     * @throws IllegalArgumentException if a property has an invalid value
+     */
+    public WorkerPool(final Properties props)
+    {
+        this("gridcertlib-worker",
+             isVirtualMode(props),
+             Integer.parseInt(props.getProperty("gridcertlib.workers.threads", "20")),
+             Integer.parseInt(props.getProperty("gridcertlib.workers.queueSize", "100")));
+    }
+
+
+    /**
+     * Return {@code true} if {@code props} select virtual mode; see
+     * the class description.
+     *
+     * @throws IllegalArgumentException if {@code gridcertlib.workers.mode} has an invalid value
+     */
+    public static boolean isVirtualMode(final Properties props)
+    {
+        final String mode = props.getProperty("gridcertlib.workers.mode", "platform").trim();
+        if ("virtual".equals(mode))
+            return true;
+        if ("platform".equals(mode))
+            return false;
+        throw new IllegalArgumentException("Bad value '" + mode + "' for property 'gridcertlib.workers.mode':"
+                                           + " must be one of 'platform' or 'virtual'.");
+    }
+
+
+    /**
+     * Run {@code task} on a worker thread.
+     *
+     * @throws OverloadedError if all threads are busy and the queue is full
+     */
+    public void execute(final Runnable task)
+        throws OverloadedError
+    {
+        if (null != platform_) {
+            try {
+                platform_.execute(task);
+            }
+            catch (RejectedExecutionException x) {
+                throw new OverloadedError("All " + threads_ + " worker threads busy and "
+                                          + platform_.getQueue().size() + " tasks waiting", 1, x);
+            }
+            return;
+        }
+
+        if (! admitted_.tryAcquire())
+            throw new OverloadedError("All " + threads_ + " worker slots busy and "
+                                      + getQueuedCount() + " tasks waiting", 1);
+        try {
+            executor_.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            running_.acquireUninterruptibly();
+                            try {
+                                task.run();
+                            }
+                            finally {
+                                running_.release();
+                            }
+                        }
+                        finally {
+                            admitted_.release();
+                        }
+                    }
+                });
+        }
+        catch (RejectedExecutionException x) {
+            admitted_.release();
+            throw new OverloadedError("Worker pool is shut down", 1, x);
+        }
+    }
+
+
+    /**
+     * Return the underlying executor, e.g., for submitting {@link
+     * java.util.concurrent.Callable}s; in virtual mode, tasks submitted
+     * directly to it are not subject to the {@code threads} and
+     * {@code queueSize} limits.
+     */
+    public ExecutorService getExecutor() { return executor_; }
+
+    /** Return {@code true} if tasks run on virtual threads. */
+    public boolean isVirtual() { return null == platform_; }
+
+    public int getActiveCount()
+    {
+        if (null != platform_)
+            return platform_.getActiveCount();
+        return threads_ - running_.availablePermits();
+    }
+
+    public int getQueuedCount()
+    {
+        if (null != platform_)
+            return platform_.getQueue().size();
+        return Math.max(0, (threads_ + queueSize_ - admitted_.availablePermits()) - getActiveCount());
+    }
+
+    /** Stop accepting tasks; running and queued tasks are completed. */
+    public void shutdown() { executor_.shutdown(); }
+}
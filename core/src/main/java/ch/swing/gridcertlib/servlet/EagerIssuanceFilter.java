@@ -0,0 +1,304 @@
+/**
+ * @file   EagerIssuanceFilter.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class EagerIssuanceFilter
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.servlet;
+
+import ch.swing.gridcertlib.AssertionExpiredError;
+import ch.swing.gridcertlib.ConfigProperties;
+import ch.swing.gridcertlib.InitializationException;
+import ch.swing.gridcertlib.InvalidConfigurationException;
+import ch.swing.gridcertlib.OperationsError;
+import ch.swing.gridcertlib.OverloadedError;
+import ch.swing.gridcertlib.SLCSFactory;
+import ch.swing.gridcertlib.WorkerPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+
+/** Start issuing an SLCS certificate as soon as a request carries a
+ * fresh SAML assertion, i.e., right after Shibboleth login.
+ * <p>
+ * The assertion is only valid for a few minutes, whereas users often
+ * reach the pages needing a certificate much later, when a {@link
+ * RenewAssertion} round trip is needed.  This filter, mapped onto the
+ * Shibboleth-protected pages, sees the {@code Shib-Assertion-01}
+ * header of the first request of a session, and runs {@link
+ * SLCSFactory#newSLCS} for it on a {@link WorkerPool} thread, while
+ * the request proceeds.  Later requests to {@code SlcsInit} (or
+ * other users of the same {@code SLCSFactory}) for the same
+ * certificate path, private key path and password find the
+ * certificate already issued, or join the issuance in progress (see
+ * {@link SLCSFactory#findSLCS}).
+ * <p>
+ * The private key is encrypted with the password in the {@code
+ * GridCertLib.privateKeyPassword} cookie, which the Django module
+ * sets and later passes on to {@code SlcsInit}; requests without it
+ * are ignored, as a key encrypted with any other password could not
+ * be used.  Likewise, {@code CredentialsPath} must expand to the
+ * directory the Django module uses (see {@code
+ * GRIDCERTLIB_SHARED_STORE} in {@code decorators.py}).
+ * <p>
+ * Each assertion URL triggers one issuance per HTTP session; nothing
+ * is done if a certificate younger than {@code MaxAge}, whose private
+ * key can be decrypted with the cookie password, is already stored,
+ * or if the worker pool is full.
+ * <p>
+ * Filter init parameters:<ul>
+ * <li>{@code GridcertlibPropertiesFile} path to a {@code
+ *     gridcertlib.properties} file (default: the context init
+ *     parameter of the same name); the {@code SLCSFactory} is shared
+ *     through the {@link FactoryRegistry}
+ * <li>{@code CredentialsPath} (required) directory to store the
+ *     certificate and private key into, as {@code usercert.pem} and
+ *     {@code userkey.pem}; {@code ${REMOTE_USER}} is replaced by
+ *     the user name authenticated by the container, and any other
+ *     {@code ${NAME}} by the value of request attribute {@code NAME}
+ *     (e.g., a Shibboleth attribute exported by the SP over AJP),
+ *     e.g., {@code /var/lib/gridcertlib/${REMOTE_USER}}; request
+ *     headers are never used, as clients can set them at will;
+ *     requests whose values are missing or contain characters other
+ *     than letters, digits and {@code @._-} are ignored
+ * <li>{@code MaxAge} age (in seconds) after which a stored
+ *     certificate is renewed (default: property {@code
+ *     gridcertlib.reuse.maxAge}, which {@code SlcsInit} uses too;
+ *     0, the default, means a new certificate is always issued)
+ * </ul>
+ */
+public class EagerIssuanceFilter implements Filter
+{
+    /** Name of the session attribute holding the last assertion URL seen, in an {@code AtomicReference}. */
+    protected static final String ASSERTION_ATTRIBUTE = EagerIssuanceFilter.class.getName() + ".assertion";
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\$\\{([^}]+)\\}");
+    private static final Pattern SAFE_VALUE = Pattern.compile("[A-Za-z0-9@._-]+");
+
+    protected SLCSFactory slcs_;
+    protected WorkerPool workers_;
+    protected String credentialsPath_;
+    protected long maxAge_ = 0;
+
+    /** Servlet context. Used for logging. */
+    protected ServletContext ctx_;
+
+
+    public void init(final FilterConfig conf)
+        throws ServletException
+    {
+        ctx_ = conf.getServletContext();
+
+        String propertiesFile = conf.getInitParameter(FactoryRegistry.PROPERTIES_FILE);
+        if (null == propertiesFile)
+            propertiesFile = ctx_.getInitParameter(FactoryRegistry.PROPERTIES_FILE);
+        if (null == propertiesFile)
+            throwError("EagerIssuanceFilter.init", "Missing required init parameter 'GridcertlibPropertiesFile'");
+        credentialsPath_ = conf.getInitParameter("CredentialsPath");
+        if (null == credentialsPath_)
+            throwError("EagerIssuanceFilter.init", "Missing required init parameter 'CredentialsPath'");
+
+        final FactoryRegistry registry = FactoryRegistry.getInstance(ctx_);
+        try {
+            final Properties props = registry.getProperties(propertiesFile);
+            slcs_ = registry.getSLCSFactory(propertiesFile);
+            workers_ = registry.getWorkerPool(propertiesFile);
+            final String maxAge = conf.getInitParameter("MaxAge");
+            maxAge_ = (null == maxAge)
+                ? SLCSFactory.getReuseMaxAge(props)
+                : 1000 * ConfigProperties.parseLong("MaxAge", maxAge, 0, 0);
+        }
+        catch (IOException x) {
+            throwError("EagerIssuanceFilter.init",
+                       "Got IOException while loading properties from file '"
+                       + propertiesFile + "': " + x.getMessage());
+        }
+        catch (InvalidConfigurationException x) {
+            throwError("EagerIssuanceFilter.init", "Invalid value in configuration data: " + x.getMessage());
+        }
+        catch (InitializationException x) {
+            throwError("EagerIssuanceFilter.init", "Got SLCSFactory initialization error: " + x.getMessage());
+        }
+        catch (IllegalArgumentException x) {
+            throwError("EagerIssuanceFilter.init",
+                       "Invalid value in 'gridcertlib.workers.*' properties: " + x.getMessage());
+        }
+    }
+
+
+    public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain)
+        throws IOException, ServletException
+    {
+        if (request instanceof HttpServletRequest)
+            maybeIssue((HttpServletRequest) request);
+        chain.doFilter(request, response);
+    }
+
+
+    /** Start issuance for {@code request}, if it carries an assertion not seen before in its session. */
+    protected void maybeIssue(final HttpServletRequest request)
+    {
+        final String samlAssertionUrl = request.getHeader("Shib-Assertion-01");
+        if (null == samlAssertionUrl)
+            return;
+        final HttpSession session = request.getSession(true);
+        if (samlAssertionUrl.equals(getLastAssertion(session).getAndSet(samlAssertionUrl)))
+            return;
+
+        final String privateKeyPassword = getPrivateKeyPassword(request);
+        if (null == privateKeyPassword)
+            return;
+        final String credentialsPath = expandCredentialsPath(request);
+        if (null == credentialsPath)
+            return;
+        final String certificatePath = credentialsPath + "/usercert.pem";
+        final String privateKeyPath = credentialsPath + "/userkey.pem";
+        if (null != slcs_.getStoredSLCS(certificatePath, privateKeyPath, privateKeyPassword, maxAge_))
+            return;
+        final File directory = new File(credentialsPath);
+        if (! directory.isDirectory() && ! directory.mkdirs()) {
+            ctx_.log("EagerIssuanceFilter: cannot create directory '" + credentialsPath + "'");
+            return;
+        }
+
+        try {
+            workers_.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            slcs_.newSLCS(samlAssertionUrl, certificatePath, privateKeyPath, privateKeyPassword);
+                            ctx_.log("EagerIssuanceFilter: issued certificate into '" + credentialsPath + "'");
+                        }
+                        catch (AssertionExpiredError x) {
+                            ctx_.log("EagerIssuanceFilter: assertion too old for issuance into '"
+                                     + credentialsPath + "': " + x.getMessage());
+                        }
+                        catch (OperationsError x) {
+                            ctx_.log("EagerIssuanceFilter: issuance into '" + credentialsPath
+                                     + "' failed: " + x.getMessage(), x);
+                        }
+                    }
+                });
+        }
+        catch (OverloadedError x) {
+            // the user will go through `SlcsInit` later
+            ctx_.log("EagerIssuanceFilter: not issuing into '" + credentialsPath + "': " + x.getMessage());
+        }
+    }
+
+
+    /**
+     * Return the holder of the last assertion URL seen in {@code
+     * session}.  Only its creation locks the session; checking and
+     * replacing the URL is done on the holder, so requests in
+     * different sessions never wait for each other.
+     */
+    @SuppressWarnings("unchecked")
+    protected AtomicReference<String> getLastAssertion(final HttpSession session)
+    {
+        AtomicReference<String> last = (AtomicReference<String>) session.getAttribute(ASSERTION_ATTRIBUTE);
+        if (null == last) {
+            synchronized (session) {
+                last = (AtomicReference<String>) session.getAttribute(ASSERTION_ATTRIBUTE);
+                if (null == last) {
+                    last = new AtomicReference<String>();
+                    session.setAttribute(ASSERTION_ATTRIBUTE, last);
+                }
+            }
+        }
+        return last;
+    }
+
+
+    /**
+     * Return the {@code CredentialsPath} init parameter, with
+     * placeholders replaced by values from {@code request}, or
+     * {@code null} if a value is missing or unsafe.  Only values set
+     * by the server are used: the container principal for {@code
+     * REMOTE_USER}, and request attributes for other names.
+     */
+    protected String expandCredentialsPath(final HttpServletRequest request)
+    {
+        final Matcher placeholder = PLACEHOLDER.matcher(credentialsPath_);
+        final StringBuffer result = new StringBuffer();
+        while (placeholder.find()) {
+            final String name = placeholder.group(1);
+            final String value = getPlaceholderValue(request, name);
+            if (null == value || ! SAFE_VALUE.matcher(value).matches()
+                || ".".equals(value) || "..".equals(value))
+                return null;
+            placeholder.appendReplacement(result, Matcher.quoteReplacement(value));
+        }
+        placeholder.appendTail(result);
+        return result.toString();
+    }
+
+
+    /** Return the server-set value of placeholder {@code name} in {@code request}, or {@code null} if there is none. */
+    protected String getPlaceholderValue(final HttpServletRequest request, final String name)
+    {
+        if ("REMOTE_USER".equals(name))
+            return request.getRemoteUser();
+        final Object value = request.getAttribute(name);
+        return (value instanceof String) ? (String) value : null;
+    }
+
+
+    /** Return the password to encrypt the private key with, or {@code null} if the request carries none. */
+    protected String getPrivateKeyPassword(final HttpServletRequest request)
+    {
+        final Cookie[] cookies = request.getCookies();
+        if (null != cookies)
+            for (Cookie cookie : cookies)
+                if ("GridCertLib.privateKeyPassword".equals(cookie.getName())
+                    && null != cookie.getValue() && cookie.getValue().length() > 0)
+                    return cookie.getValue();
+        return null;
+    }
+
+
+    public void destroy()
+    {
+        // factories and worker pool belong to the `FactoryRegistry`,
+        // which shuts them down when the webapp stops
+    }
+
+
+    protected void throwError(final String source, final String message)
+        throws ServletException
+    {
+        ctx_.log(source + ": ERROR: " + message);
+        throw new ServletException(message);
+    }
+}
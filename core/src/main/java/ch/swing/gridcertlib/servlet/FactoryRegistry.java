@@ -0,0 +1,291 @@
+/**
+ * @file   FactoryRegistry.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class FactoryRegistry
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.servlet;
+
+import ch.swing.gridcertlib.FederatedSLCSFactory;
+import ch.swing.gridcertlib.GridProxyFactory;
+import ch.swing.gridcertlib.InitializationException;
+import ch.swing.gridcertlib.InvalidConfigurationException;
+import ch.swing.gridcertlib.SLCSFactory;
+import ch.swing.gridcertlib.WorkerPool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+
+/** Webapp-wide registry of GridCertLib factories, so that all
+ * servlets share one {@link SLCSFactory}, one {@link
+ * GridProxyFactory} (with their connection pools, circuit breakers,
+ * caches and warm state) and one {@link WorkerPool} for each
+ * configuration file.
+ * <p>
+ * Servlets get the registry with {@link #getInstance}, and the
+ * factories with {@link #getSLCSFactory}, {@link
+ * #getGridProxyFactory} and {@link #getWorkerPool}; they are built on first use, and the
+ * configuration file is read once.  The registry is kept as a servlet
+ * context attribute, so it is shared by the servlets of one webapp
+ * only.
+ * <p>
+ * Declaring this class as a listener in {@code web.xml} is optional,
+ * but recommended:<ul>
+ * <li>when the webapp is stopped, the factories' and worker pools'
+ *     threads and connections are released;
+ * <li>if the context init parameter {@code GridcertlibPropertiesFile}
+ *     is set, the {@code SLCSFactory} for that file is built when the
+ *     webapp starts (so that, with {@code gridcertlib.warmup =
+ *     background}, warm-up starts before the first request), and
+ *     servlets without a {@code GridcertlibPropertiesFile} init
+ *     parameter of their own use it.
+ * </ul>
+ * Example {@code web.xml} fragment:
+ * <pre>
+ *   &lt;context-param&gt;
+ *     &lt;param-name&gt;GridcertlibPropertiesFile&lt;/param-name&gt;
+ *     &lt;param-value&gt;/etc/gridcertlib/gridcertlib.properties&lt;/param-value&gt;
+ *   &lt;/context-param&gt;
+ *   &lt;listener&gt;
+ *     &lt;listener-class&gt;ch.swing.gridcertlib.servlet.FactoryRegistry&lt;/listener-class&gt;
+ *   &lt;/listener&gt;
+ * </pre>
+ */
+public class FactoryRegistry implements ServletContextListener
+{
+    /** Name of the servlet context attribute holding the registry. */
+    public static final String ATTRIBUTE = FactoryRegistry.class.getName();
+
+    /** Name of the servlet (or context) init parameter giving the configuration file. */
+    public static final String PROPERTIES_FILE = "GridcertlibPropertiesFile";
+
+    private final Map<String, Properties> properties_ = new HashMap<String, Properties>();
+    private final Map<String, SLCSFactory> slcsFactories_ = new HashMap<String, SLCSFactory>();
+    private final Map<String, GridProxyFactory> proxyFactories_ = new HashMap<String, GridProxyFactory>();
+    private final Map<String, WorkerPool> workerPools_ = new HashMap<String, WorkerPool>();
+
+    /** Servlet context. Used for logging. */
+    protected ServletContext ctx_;
+
+
+    /** Register this instance in the servlet context, and build the default {@code SLCSFactory}, if configured. */
+    public void contextInitialized(final ServletContextEvent event)
+    {
+        ctx_ = event.getServletContext();
+        synchronized (FactoryRegistry.class) {
+            if (null == ctx_.getAttribute(ATTRIBUTE))
+                ctx_.setAttribute(ATTRIBUTE, this);
+        }
+        final String propertiesFile = ctx_.getInitParameter(PROPERTIES_FILE);
+        if (null != propertiesFile) {
+            try {
+                getInstance(ctx_).getSLCSFactory(propertiesFile);
+            }
+            // servlets will report the error again when they are initialized
+            catch (Exception x) {
+                ctx_.log("FactoryRegistry: ERROR: cannot create SLCSFactory from '"
+                         + propertiesFile + "': " + x.getMessage(), x);
+            }
+        }
+    }
+
+
+    /** Shut down all factories built by the registry. */
+    public void contextDestroyed(final ServletContextEvent event)
+    {
+        final FactoryRegistry registry = (FactoryRegistry) event.getServletContext().getAttribute(ATTRIBUTE);
+        event.getServletContext().removeAttribute(ATTRIBUTE);
+        if (null != registry)
+            registry.shutdown();
+    }
+
+
+    /**
+     * Return the registry of the webapp of {@code ctx}, creating it if
+     * the listener has not been declared.
+     */
+    public static FactoryRegistry getInstance(final ServletContext ctx)
+    {
+        synchronized (FactoryRegistry.class) {
+            FactoryRegistry registry = (FactoryRegistry) ctx.getAttribute(ATTRIBUTE);
+            if (null == registry) {
+                registry = new FactoryRegistry();
+                registry.ctx_ = ctx;
+                ctx.setAttribute(ATTRIBUTE, registry);
+            }
+            return registry;
+        }
+    }
+
+
+    /**
+     * Return the configuration file for the servlet configured by
+     * {@code conf}: its {@code GridcertlibPropertiesFile} init
+     * parameter, or else the context init parameter of the same name,
+     * or {@code null} if neither is set.
+     */
+    public static String getPropertiesFile(final ServletConfig conf)
+    {
+        final String propertiesFile = conf.getInitParameter(PROPERTIES_FILE);
+        if (null != propertiesFile)
+            return propertiesFile;
+        return conf.getServletContext().getInitParameter(PROPERTIES_FILE);
+    }
+
+
+    /**
+     * Return the properties loaded from {@code propertiesFile}; the
+     * file is read on the first call only.  Callers must not modify
+     * the returned object.
+     *
+     * @throws java.io.FileNotFoundException if {@code propertiesFile} does not exist
+     * @throws IOException if {@code propertiesFile} cannot be read
+     */
+    public synchronized Properties getProperties(final String propertiesFile)
+        throws IOException
+    {
+        final String key = canonicalPath(propertiesFile);
+        Properties props = properties_.get(key);
+        if (null == props) {
+            props = new Properties();
+            final InputStream in = new FileInputStream(propertiesFile);
+            try {
+                props.load(in);
+            }
+            finally {
+                in.close();
+            }
+            properties_.put(key, props);
+        }
+        return props;
+    }
+
+
+    /**
+     * Return the {@code SLCSFactory} configured by {@code
+     * propertiesFile}, building it on the first call; if property
+     * {@code gridcertlib.federations} is set, this is a {@link
+     * FederatedSLCSFactory}.
+     *
+     * @throws IOException if {@code propertiesFile} cannot be read
+     * @throws InvalidConfigurationException if a property is missing or invalid
+     * @throws InitializationException if the factory cannot be initialized
+     */
+    public synchronized SLCSFactory getSLCSFactory(final String propertiesFile)
+        throws IOException, InvalidConfigurationException, InitializationException
+    {
+        final String key = canonicalPath(propertiesFile);
+        SLCSFactory factory = slcsFactories_.get(key);
+        if (null == factory) {
+            log("FactoryRegistry: creating SLCSFactory from '" + propertiesFile + "'");
+            final Properties props = getProperties(propertiesFile);
+            if (null != props.getProperty("gridcertlib.federations"))
+                factory = new FederatedSLCSFactory(props);
+            else
+                factory = new SLCSFactory(props);
+            slcsFactories_.put(key, factory);
+        }
+        return factory;
+    }
+
+
+    /**
+     * Return the {@code GridProxyFactory} configured by {@code
+     * propertiesFile}, building it on the first call.
+     *
+     * @throws IOException if {@code propertiesFile} cannot be read
+     * @throws IllegalArgumentException if a property has an invalid value
+     */
+    public synchronized GridProxyFactory getGridProxyFactory(final String propertiesFile)
+        throws IOException
+    {
+        final String key = canonicalPath(propertiesFile);
+        GridProxyFactory factory = proxyFactories_.get(key);
+        if (null == factory) {
+            log("FactoryRegistry: creating GridProxyFactory from '" + propertiesFile + "'");
+            factory = new GridProxyFactory(getProperties(propertiesFile));
+            proxyFactories_.put(key, factory);
+        }
+        return factory;
+    }
+
+
+    /**
+     * Return the {@code WorkerPool} configured by the {@code
+     * gridcertlib.workers.*} properties in {@code propertiesFile},
+     * building it on the first call.
+     *
+     * @throws IOException if {@code propertiesFile} cannot be read
+     * @throws IllegalArgumentException if a property has an invalid value
+     */
+    public synchronized WorkerPool getWorkerPool(final String propertiesFile)
+        throws IOException
+    {
+        final String key = canonicalPath(propertiesFile);
+        WorkerPool pool = workerPools_.get(key);
+        if (null == pool) {
+            log("FactoryRegistry: creating WorkerPool from '" + propertiesFile + "'");
+            pool = new WorkerPool(getProperties(propertiesFile));
+            workerPools_.put(key, pool);
+        }
+        return pool;
+    }
+
+
+    /** Shut down and forget all factories and worker pools. */
+    public synchronized void shutdown()
+    {
+        for (SLCSFactory factory : slcsFactories_.values())
+            factory.shutdown();
+        for (WorkerPool pool : workerPools_.values())
+            pool.shutdown();
+        slcsFactories_.clear();
+        proxyFactories_.clear();
+        workerPools_.clear();
+        properties_.clear();
+    }
+
+
+    private void log(final String message)
+    {
+        if (null != ctx_)
+            ctx_.log(message);
+    }
+
+    private static String canonicalPath(final String path)
+    {
+        try {
+            return new File(path).getCanonicalPath();
+        }
+        catch (IOException x) {
+            return new File(path).getAbsolutePath();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * @file   AdmissionControllerTest.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class AdmissionControllerTest
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+
+/** Tests for {@link AdmissionController}: AIMD limit adjustment, bounds, queueing and rejection. */
+public class AdmissionControllerTest {
+
+    /** Controller with a long latency target, so that every call counts as fast. */
+    private static AdmissionController controller(final int initial, final int min, final int max,
+                                                  final int maxQueue, final long queueTimeout)
+    {
+        return new AdmissionController(initial, min, max, maxQueue, queueTimeout, 60000);
+    }
+
+
+    @Test
+    public void testInconsistentLimitsRejected() {
+        final int[][] invalid = {
+            // initial, min, max
+            { 1, 0, 5 },
+            { 1, 2, 5 },
+            { 6, 1, 5 },
+            { 3, 4, 2 },
+        };
+        for (int[] limits : invalid) {
+            try {
+                controller(limits[0], limits[1], limits[2], 0, 0);
+                fail("Expected IllegalArgumentException for limits " + limits[0] + "/" + limits[1] + "/" + limits[2]);
+            }
+            catch (IllegalArgumentException x) {
+                // expected
+            }
+        }
+    }
+
+
+    @Test
+    public void testPropertiesDefaults() {
+        final AdmissionController admission = new AdmissionController(new Properties());
+        assertEquals(10, admission.getLimit());
+        assertEquals(0, admission.getInFlight());
+    }
+
+
+    @Test
+    public void testRejectsWhenLimitReachedAndNoQueue() {
+        final AdmissionController admission = controller(2, 1, 2, 0, 0);
+        admission.acquire();
+        admission.acquire();
+        assertEquals(2, admission.getInFlight());
+        try {
+            admission.acquire();
+            fail("Expected OverloadedError");
+        }
+        catch (OverloadedError x) {
+            assertTrue(x.getRetryAfter() >= 1);
+        }
+        assertEquals(2, admission.getAdmitted());
+        assertEquals(1, admission.getRejected());
+    }
+
+
+    @Test
+    public void testQueueTimeout() {
+        final AdmissionController admission = controller(1, 1, 1, 1, 50);
+        admission.acquire();
+        final long start = System.currentTimeMillis();
+        try {
+            admission.acquire();
+            fail("Expected OverloadedError");
+        }
+        catch (OverloadedError x) {
+            assertTrue(System.currentTimeMillis() - start >= 40);
+        }
+        assertEquals(0, admission.getWaiting());
+        assertEquals(1, admission.getRejected());
+    }
+
+
+    @Test
+    public void testQueuedCallerAdmittedOnRelease() throws Exception {
+        final AdmissionController admission = controller(1, 1, 1, 1, 10000);
+        final long token = admission.acquire();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final Thread waiter = new Thread() {
+                public void run() {
+                    try {
+                        admission.release(admission.acquire(), false);
+                    }
+                    catch (Throwable x) {
+                        error.set(x);
+                    }
+                }
+            };
+        waiter.start();
+        final long giveUp = System.currentTimeMillis() + 5000;
+        while (0 == admission.getWaiting()) {
+            assertTrue("Caller was not queued", System.currentTimeMillis() < giveUp);
+            Thread.sleep(1);
+        }
+        admission.release(token, false);
+        waiter.join(5000);
+        assertTrue(! waiter.isAlive());
+        assertEquals(null, error.get());
+        assertEquals(2, admission.getAdmitted());
+        assertEquals(0, admission.getInFlight());
+    }
+
+
+    @Test
+    public void testAdditiveIncrease() {
+        final AdmissionController admission = controller(2, 1, 10, 0, 0);
+        // 2 -> 2.5 -> 2.9 -> 3.24...: about one more per round of calls
+        admission.release(admission.acquire(), false);
+        admission.release(admission.acquire(), false);
+        assertEquals(2, admission.getLimit());
+        admission.release(admission.acquire(), false);
+        assertEquals(3, admission.getLimit());
+    }
+
+
+    @Test
+    public void testIncreaseBoundedByMaxLimit() {
+        final AdmissionController admission = controller(3, 1, 3, 0, 0);
+        for (int n = 0; n < 20; n++)
+            admission.release(admission.acquire(), false);
+        assertEquals(3, admission.getLimit());
+    }
+
+
+    @Test
+    public void testMultiplicativeDecreaseOncePerRound() {
+        final AdmissionController admission = controller(10, 1, 20, 0, 0);
+        final long first = admission.acquire();
+        final long second = admission.acquire();
+        admission.release(first, true);
+        assertEquals(9, admission.getLimit());
+        // started before the decrease: no further decrease
+        admission.release(second, true);
+        assertEquals(9, admission.getLimit());
+        // started after the decrease: 9 * 0.9 = 8.1
+        admission.release(admission.acquire(), true);
+        assertEquals(8, admission.getLimit());
+    }
+
+
+    @Test
+    public void testDecreaseBoundedByMinLimit() {
+        final AdmissionController admission = controller(5, 5, 10, 0, 0);
+        for (int n = 0; n < 5; n++)
+            admission.release(admission.acquire(), true);
+        assertEquals(5, admission.getLimit());
+    }
+
+
+    @Test
+    public void testSlowCallDecreasesLimit() throws Exception {
+        final AdmissionController admission = new AdmissionController(10, 1, 20, 0, 0, 1);
+        final long token = admission.acquire();
+        Thread.sleep(20);
+        admission.release(token, false);
+        assertEquals(9, admission.getLimit());
+        assertTrue(admission.getAverageLatency() >= 20);
+    }
+}
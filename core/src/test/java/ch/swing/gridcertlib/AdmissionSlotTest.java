@@ -0,0 +1,90 @@
+/**
+ * @file   AdmissionSlotTest.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class AdmissionSlotTest
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.swing.gridcertlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+
+/** Tests for {@link AdmissionSlot}. */
+public class AdmissionSlotTest {
+
+    @Test
+    public void testReleasedAroundCpuStage() {
+        final AdmissionController controller = new AdmissionController(1, 1, 1, 0, 0, 60000);
+        final AdmissionSlot slot = new AdmissionSlot(controller);
+        slot.acquire(null);
+        // acquiring again while held takes no second slot
+        slot.acquire(null);
+        assertEquals(1, controller.getInFlight());
+
+        // e.g., during key generation, another issuance may call the remote services
+        slot.release(false);
+        assertEquals(0, controller.getInFlight());
+        final AdmissionSlot other = new AdmissionSlot(controller);
+        other.acquire(null);
+        try {
+            slot.acquire(null);
+            fail("Expected OverloadedError");
+        }
+        catch (OverloadedError x) {
+            // expected
+        }
+        other.release(false);
+
+        slot.acquire(null);
+        slot.release(false);
+        // releasing a free slot does nothing
+        slot.release(false);
+        assertEquals(0, controller.getInFlight());
+        assertEquals(3, controller.getAdmitted());
+    }
+
+
+    @Test
+    public void testWithoutController() {
+        final AdmissionSlot slot = new AdmissionSlot(null);
+        slot.acquire(null);
+        slot.release(true);
+    }
+
+
+    @Test
+    public void testChecksDeadline() {
+        final AdmissionController controller = new AdmissionController(1, 1, 1, 0, 0, 60000);
+        final AdmissionSlot slot = new AdmissionSlot(controller);
+        final Deadline deadline = new Deadline(10000);
+        deadline.cancel();
+        try {
+            slot.acquire(deadline);
+            fail("Expected DeadlineExceededError");
+        }
+        catch (DeadlineExceededError x) {
+            assertEquals(0, controller.getAdmitted());
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * @file   CircuitBreakerTest.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class CircuitBreakerTest
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import ch.swing.gridcertlib.CircuitBreaker.State;
+
+
+/** Tests for {@link CircuitBreaker} state transitions. */
+public class CircuitBreakerTest {
+
+    /** Records state transitions as {@code "FROM->TO"} strings. */
+    private static class Recorder implements CircuitBreaker.Listener {
+        final List<String> transitions = new ArrayList<String>();
+
+        public synchronized void stateChanged(final CircuitBreaker breaker, final State from, final State to) {
+            transitions.add(from + "->" + to);
+        }
+    }
+
+
+    private static void assertRejected(final CircuitBreaker breaker) {
+        try {
+            breaker.acquirePermission();
+            fail("Expected CircuitOpenError");
+        }
+        catch (CircuitOpenError x) {
+            // expected
+        }
+    }
+
+
+    /** Open {@code breaker} by reporting {@code count} failures. */
+    private static void failCalls(final CircuitBreaker breaker, final int count) {
+        for (int n = 0; n < count; n++) {
+            breaker.acquirePermission();
+            breaker.onFailure();
+        }
+    }
+
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        final CircuitBreaker breaker = new CircuitBreaker("test", 3, 60000);
+        failCalls(breaker, 2);
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(2, breaker.getConsecutiveFailures());
+        failCalls(breaker, 1);
+        assertEquals(State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getTimesOpened());
+
+        assertRejected(breaker);
+        assertEquals(1, breaker.getRejectedCount());
+    }
+
+
+    @Test
+    public void testSuccessResetsFailureCount() {
+        final CircuitBreaker breaker = new CircuitBreaker("test", 3, 60000);
+        failCalls(breaker, 2);
+        breaker.acquirePermission();
+        breaker.onSuccess();
+        assertEquals(0, breaker.getConsecutiveFailures());
+        failCalls(breaker, 2);
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(4, breaker.getFailureCount());
+        assertEquals(1, breaker.getSuccessCount());
+    }
+
+
+    @Test
+    public void testOpenRejectsWithRetryAfter() {
+        final CircuitBreaker breaker = new CircuitBreaker("test", 1, 5000);
+        failCalls(breaker, 1);
+        try {
+            breaker.acquirePermission();
+            fail("Expected CircuitOpenError");
+        }
+        catch (CircuitOpenError x) {
+            final int retryAfter = x.getRetryAfter();
+            if (retryAfter < 1 || retryAfter > 5)
+                fail("Unexpected Retry-After: " + retryAfter);
+        }
+    }
+
+
+    @Test
+    public void testHalfOpenTrialSuccessCloses() {
+        final CircuitBreaker breaker = new CircuitBreaker("test", 1, 0);
+        failCalls(breaker, 1);
+        assertEquals(State.OPEN, breaker.getState());
+
+        // open timeout elapsed: one trial call goes through
+        breaker.acquirePermission();
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertRejected(breaker);
+
+        breaker.onSuccess();
+        assertEquals(State.CLOSED, breaker.getState());
+        breaker.acquirePermission();
+        breaker.acquirePermission();
+    }
+
+
+    @Test
+    public void testHalfOpenTrialFailureReopens() {
+        final CircuitBreaker breaker = new CircuitBreaker("test", 3, 0);
+        failCalls(breaker, 3);
+        breaker.acquirePermission();
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        // a single failure is enough to re-open
+        breaker.onFailure();
+        assertEquals(State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getTimesOpened());
+    }
+
+
+    @Test
+    public void testIgnoredTrialAllowsAnother() {
+        final CircuitBreaker breaker = new CircuitBreaker("test", 1, 0);
+        failCalls(breaker, 1);
+        breaker.acquirePermission();
+        assertRejected(breaker);
+        breaker.onIgnored();
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        breaker.acquirePermission();
+        breaker.onSuccess();
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+
+    @Test
+    public void testListenerSeesTransitions() {
+        final CircuitBreaker breaker = new CircuitBreaker("test", 1, 0);
+        final Recorder recorder = new Recorder();
+        breaker.addListener(recorder);
+        failCalls(breaker, 1);
+        breaker.acquirePermission();
+        breaker.onFailure();
+        breaker.acquirePermission();
+        breaker.onSuccess();
+        // no transition: already closed
+        breaker.acquirePermission();
+        breaker.onSuccess();
+
+        final List<String> expected = new ArrayList<String>();
+        expected.add("CLOSED->OPEN");
+        expected.add("OPEN->HALF_OPEN");
+        expected.add("HALF_OPEN->OPEN");
+        expected.add("OPEN->HALF_OPEN");
+        expected.add("HALF_OPEN->CLOSED");
+        assertEquals(expected, recorder.transitions);
+
+        breaker.removeListener(recorder);
+        failCalls(breaker, 1);
+        assertEquals(5, recorder.transitions.size());
+    }
+
+
+    @Test
+    public void testFailingListenerDoesNotBreakBreaker() {
+        final CircuitBreaker breaker = new CircuitBreaker("test", 1, 60000);
+        breaker.addListener(new CircuitBreaker.Listener() {
+                public void stateChanged(final CircuitBreaker b, final State from, final State to) {
+                    throw new IllegalStateException("listener failure");
+                }
+            });
+        failCalls(breaker, 1);
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreshold() {
+        new CircuitBreaker("test", 0, 1000);
+    }
+}
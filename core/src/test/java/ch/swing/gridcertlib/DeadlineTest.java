@@ -0,0 +1,198 @@
+/**
+ * @file   DeadlineTest.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class DeadlineTest
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package ch.swing.gridcertlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+/** Tests for {@link Deadline}, as passed down the stages of a request. */
+public class DeadlineTest {
+
+    private final StagePool pool_ = new StagePool("test", 2);
+
+    @After
+    public void shutdown() {
+        pool_.shutdown();
+    }
+
+
+    /** Return a task sleeping {@code millis} ms, setting {@code interrupted} if interrupted. */
+    private static Callable<String> sleeper(final long millis, final AtomicBoolean interrupted) {
+        return new Callable<String>() {
+            public String call() throws Exception {
+                try {
+                    Thread.sleep(millis);
+                }
+                catch (InterruptedException x) {
+                    interrupted.set(true);
+                    throw x;
+                }
+                return "done";
+            }
+        };
+    }
+
+
+    @Test
+    public void testLaterStageGetsRemainingTime() throws Exception {
+        final Deadline deadline = new Deadline(500);
+        final AtomicBoolean interrupted = new AtomicBoolean(false);
+        // the first stage fits in the budget, but uses most of it ...
+        assertEquals("done", pool_.run("first", sleeper(300, interrupted), deadline));
+        assertTrue(deadline.getRemaining() <= 200);
+        // ... so the second one, which alone would fit, overruns the deadline
+        final long started = System.currentTimeMillis();
+        try {
+            pool_.run("second", sleeper(400, interrupted), deadline);
+            fail("Expected DeadlineExceededError");
+        }
+        catch (DeadlineExceededError x) {
+            assertTrue(x.getMessage().contains("second"));
+        }
+        assertTrue(System.currentTimeMillis() - started < 400);
+        assertTrue(deadline.isExpired());
+    }
+
+
+    @Test
+    public void testOverrunningStageInterrupted() throws Exception {
+        final AtomicBoolean interrupted = new AtomicBoolean(false);
+        try {
+            pool_.run("slow", sleeper(5000, interrupted), new Deadline(100));
+            fail("Expected DeadlineExceededError");
+        }
+        catch (DeadlineExceededError x) {
+            // expected
+        }
+        final long until = System.currentTimeMillis() + 2000;
+        while (! interrupted.get() && System.currentTimeMillis() < until)
+            Thread.sleep(10);
+        assertTrue(interrupted.get());
+        assertEquals(1, pool_.getStage("slow").getFailed());
+    }
+
+
+    @Test
+    public void testExpiredDeadlineStartsNoStage() throws Exception {
+        final Deadline deadline = new Deadline(0);
+        final AtomicBoolean ran = new AtomicBoolean(false);
+        try {
+            pool_.run("next", new Callable<Object>() {
+                    public Object call() {
+                        ran.set(true);
+                        return null;
+                    }
+                }, deadline);
+            fail("Expected DeadlineExceededError");
+        }
+        catch (DeadlineExceededError x) {
+            // expected
+        }
+        assertFalse(ran.get());
+        assertEquals(0, pool_.getStage("next").getCompleted() + pool_.getStage("next").getFailed());
+    }
+
+
+    @Test
+    public void testCancelStopsAwaitedStage() throws Exception {
+        final Deadline deadline = new Deadline(60000);
+        final AtomicBoolean interrupted = new AtomicBoolean(false);
+        final CountDownLatch waiting = new CountDownLatch(1);
+        final Thread canceller = new Thread() {
+                public void run() {
+                    try {
+                        waiting.await(5, TimeUnit.SECONDS);
+                        Thread.sleep(50);
+                    }
+                    catch (InterruptedException x) {
+                        // cancel anyway
+                    }
+                    deadline.cancel();
+                }
+            };
+        canceller.start();
+        final long started = System.currentTimeMillis();
+        try {
+            waiting.countDown();
+            pool_.run("slow", sleeper(5000, interrupted), deadline);
+            fail("Expected DeadlineExceededError");
+        }
+        catch (DeadlineExceededError x) {
+            assertTrue(x.getMessage().contains("cancelled"));
+        }
+        assertTrue(System.currentTimeMillis() - started < 5000);
+        assertTrue(deadline.isCancelled());
+        assertEquals(0, deadline.getRemaining());
+        canceller.join();
+    }
+
+
+    @Test
+    public void testStageFailureNotMistakenForExpiry() throws Exception {
+        try {
+            pool_.run("failing", new Callable<Object>() {
+                    public Object call() throws Exception {
+                        throw new IOException("boom");
+                    }
+                }, new Deadline(60000));
+            fail("Expected ExecutionException");
+        }
+        catch (ExecutionException x) {
+            assertTrue(x.getCause() instanceof IOException);
+        }
+    }
+
+
+    @Test
+    public void testTimeoutFromProperties() throws Exception {
+        final Properties props = new Properties();
+        assertEquals(0, Deadline.getTimeout(props));
+        props.setProperty("gridcertlib.deadline", " 30000 ");
+        assertEquals(30000, Deadline.getTimeout(props));
+        props.setProperty("gridcertlib.deadline", "soon");
+        try {
+            Deadline.getTimeout(props);
+            fail("Expected InvalidConfigurationException");
+        }
+        catch (InvalidConfigurationException x) {
+            assertTrue(x.getMessage().contains("gridcertlib.deadline"));
+        }
+    }
+}
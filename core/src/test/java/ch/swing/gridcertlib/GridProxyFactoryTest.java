@@ -0,0 +1,270 @@
+/**
+ * @file   GridProxyFactoryTest.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class GridProxyFactoryTest
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+/** Tests for {@link GridProxyFactory} request coalescing and proxy file handling. */
+public class GridProxyFactoryTest {
+
+    /** Stands in for the VOMS servers: each generated proxy is numbered. */
+    private static class FakeProxyFactory extends GridProxyFactory {
+        final AtomicInteger generated = new AtomicInteger(0);
+        final CountDownLatch started = new CountDownLatch(1);
+        volatile CountDownLatch release = new CountDownLatch(0);
+        volatile IOException failure = null;
+
+        FakeProxyFactory() {
+            super(new Properties());
+        }
+
+        protected String generateProxy(final String certificatePath,
+                                       final String privateKeyPath,
+                                       final String privateKeyPassword,
+                                       final String[] vomsArgs,
+                                       final int lifetime,
+                                       final int proxyType,
+                                       final Deadline deadline)
+            throws IOException
+        {
+            final int n = generated.incrementAndGet();
+            started.countDown();
+            try {
+                if (! release.await(5, TimeUnit.SECONDS))
+                    throw new IOException("not released");
+            }
+            catch (InterruptedException x) {
+                throw new IOException("interrupted");
+            }
+            if (null != failure)
+                throw failure;
+            final File file = createPrivateTempFile("fake-proxy", ".pem");
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(("proxy " + n + " of " + certificatePath).getBytes("US-ASCII"));
+            }
+            finally {
+                out.close();
+            }
+            return file.getPath();
+        }
+    }
+
+    private FakeProxyFactory factory_;
+
+    @Before
+    public void setUp() {
+        factory_ = new FakeProxyFactory();
+    }
+
+
+    /** Calls {@link GridProxyFactory#newProxy} in its own thread. */
+    private class Caller extends Thread {
+        final String[] vomsArgs;
+        final AtomicReference<String> result = new AtomicReference<String>();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        Caller(final String[] vomsArgs) {
+            this.vomsArgs = vomsArgs;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                result.set(factory_.newProxy("/tmp/usercert.pem", "/tmp/userkey.pem", "secret", vomsArgs, null));
+            }
+            catch (Throwable x) {
+                error.set(x);
+            }
+        }
+
+        /** Start, and wait until blocked (i.e., waiting for the in-flight request). */
+        Caller startBlocked() throws InterruptedException {
+            start();
+            final long giveUp = System.currentTimeMillis() + 5000;
+            while (State.WAITING != getState() && State.TIMED_WAITING != getState()) {
+                if (System.currentTimeMillis() > giveUp)
+                    fail("Caller thread did not block");
+                Thread.sleep(1);
+            }
+            return this;
+        }
+
+        void finish() throws InterruptedException {
+            join(5000);
+            assertFalse("Caller thread did not finish", isAlive());
+        }
+    }
+
+
+    /** Start a caller whose request blocks in proxy generation until released. */
+    private Caller lead(final String[] vomsArgs) throws InterruptedException {
+        factory_.release = new CountDownLatch(1);
+        final Caller leader = new Caller(vomsArgs);
+        leader.start();
+        assertTrue(factory_.started.await(5, TimeUnit.SECONDS));
+        return leader;
+    }
+
+
+    private static byte[] read(final String path) throws IOException {
+        return Files.readAllBytes(new File(path).toPath());
+    }
+
+
+    @Test
+    public void testConcurrentRequestsShareOneProxy() throws Exception {
+        final Caller leader = lead(new String[] { "atlas", "cms" });
+        // same VOMS arguments, in a different order and with duplicates
+        final Caller joiner = new Caller(new String[] { " cms", "atlas", "cms" }).startBlocked();
+        assertEquals(1, factory_.inFlight_.getInFlightCount());
+
+        factory_.release.countDown();
+        leader.finish();
+        joiner.finish();
+        assertNull(leader.error.get());
+        assertNull(joiner.error.get());
+        assertEquals(1, factory_.generated.get());
+
+        // each caller owns its copy of the same proxy
+        final String path1 = leader.result.get();
+        final String path2 = joiner.result.get();
+        assertFalse(path1.equals(path2));
+        assertArrayEquals(read(path1), read(path2));
+        new File(path1).delete();
+        new File(path2).delete();
+    }
+
+
+    @Test
+    public void testDifferentRequestsAreNotCoalesced() throws Exception {
+        final String first = factory_.newProxy("/tmp/usercert.pem", "/tmp/userkey.pem", "secret",
+                                               new String[] { "atlas" }, null);
+        final String second = factory_.newProxy("/tmp/usercert.pem", "/tmp/userkey.pem", "secret",
+                                                null, null);
+        assertEquals(2, factory_.generated.get());
+        new File(first).delete();
+        new File(second).delete();
+    }
+
+
+    @Test
+    public void testRequestsAreNotCachedOnceDone() throws Exception {
+        final byte[] first = factory_.newProxyContent("/tmp/usercert.pem", "/tmp/userkey.pem", "secret", null, null);
+        final byte[] second = factory_.newProxyContent("/tmp/usercert.pem", "/tmp/userkey.pem", "secret", null, null);
+        assertEquals(2, factory_.generated.get());
+        assertFalse(Arrays.equals(first, second));
+    }
+
+
+    @Test
+    public void testFailureSharedWithJoiners() throws Exception {
+        final IOException failure = new IOException("VOMS server unreachable");
+        factory_.failure = failure;
+        final Caller leader = lead(null);
+        final Caller joiner = new Caller(null).startBlocked();
+
+        factory_.release.countDown();
+        leader.finish();
+        joiner.finish();
+        assertSame(failure, leader.error.get());
+        assertSame(failure, joiner.error.get());
+        assertEquals(1, factory_.generated.get());
+    }
+
+
+    @Test
+    public void testProxyContentLeavesNoFile() throws Exception {
+        final File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+        final int before = countProxyFiles(tmpDir);
+        final byte[] proxy = factory_.newProxyContent("/tmp/usercert.pem", "/tmp/userkey.pem", "secret", null, null);
+        assertEquals("proxy 1 of /tmp/usercert.pem", new String(proxy, "US-ASCII"));
+        assertEquals(before, countProxyFiles(tmpDir));
+    }
+
+    private static int countProxyFiles(final File dir) {
+        final String[] names = dir.list();
+        int n = 0;
+        if (null != names)
+            for (String name : names)
+                if (name.startsWith("fake-proxy"))
+                    ++n;
+        return n;
+    }
+
+
+    @Test
+    public void testProxyFileReadableByOwnerOnly() throws Exception {
+        final String path = factory_.newProxy("/tmp/usercert.pem", "/tmp/userkey.pem", "secret", null, null);
+        try {
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+                assertEquals("rw-------",
+                             PosixFilePermissions.toString(Files.getPosixFilePermissions(new File(path).toPath())));
+            assertEquals("proxy 1 of /tmp/usercert.pem", new String(read(path), "US-ASCII"));
+        }
+        finally {
+            new File(path).delete();
+        }
+    }
+
+
+    @Test
+    public void testPrivateTempFileCreatedOwnerOnly() throws Exception {
+        final File file = GridProxyFactory.createPrivateTempFile("test", ".pem");
+        try {
+            assertTrue(file.exists());
+            assertEquals(0, file.length());
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+                assertEquals("rw-------",
+                             PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+        }
+        finally {
+            file.delete();
+        }
+    }
+}
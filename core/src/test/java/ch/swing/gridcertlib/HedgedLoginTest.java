@@ -0,0 +1,290 @@
+/**
+ * @file   HedgedLoginTest.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class HedgedLoginTest
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package ch.swing.gridcertlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import ch.SWITCH.aai.idwsf.ecp.DelegationContext;
+import ch.SWITCH.aai.idwsf.xml.OpenSAML;
+
+import org.glite.slcs.AuthException;
+import org.glite.slcs.SLCSException;
+import org.opensaml.saml2.core.Assertion;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/** Tests for {@link HedgedLogin}: when a hedge is sent, which login wins, and what is aborted. */
+public class HedgedLoginTest {
+
+    private static final String ASSERTION_XML =
+        "<saml2:Assertion xmlns:saml2=\"urn:oasis:names:tc:SAML:2.0:assertion\""
+        + " ID=\"_hedged-login-test\" IssueInstant=\"2010-01-01T00:00:00Z\" Version=\"2.0\">"
+        + "<saml2:Issuer>https://idp.example.org/idp/shibboleth</saml2:Issuer>"
+        + "<saml2:Subject><saml2:NameID>_user</saml2:NameID></saml2:Subject>"
+        + "<saml2:Conditions NotBefore=\"2010-01-01T00:00:00Z\" NotOnOrAfter=\"2099-01-01T00:00:00Z\"/>"
+        + "</saml2:Assertion>";
+
+    private static AssertionParser parser_;
+
+    private final SLCSEndpoint primary_ = new SLCSEndpoint("https://slcs1.example.org/login", "https://wsp1.example.org/WSP");
+    private final SLCSEndpoint alternate_ = new SLCSEndpoint("https://slcs2.example.org/login", "https://wsp2.example.org/WSP");
+    private final IssuancePools pools_ = new IssuancePools(new StagePool("cpu", 1), new StagePool("io", 2), false);
+
+    /** Behaviour of the logins to each endpoint, and the requestors created so far. */
+    private final Map<SLCSEndpoint, Behaviour> behaviour_ = new ConcurrentHashMap<SLCSEndpoint, Behaviour>();
+    private final Map<SLCSEndpoint, FakeRequestor> created_ = new ConcurrentHashMap<SLCSEndpoint, FakeRequestor>();
+
+
+    @BeforeClass
+    public static void bootstrap() throws Exception {
+        OpenSAML.bootstrap();
+        parser_ = new AssertionParser();
+    }
+
+    @After
+    public void shutdown() {
+        pools_.shutdown();
+    }
+
+
+    /** Transport that is never used: {@link FakeRequestor} does not go to the network. */
+    private static final SLCSTransport NO_TRANSPORT = new SLCSTransport() {
+            public Future<Assertion> fetchAssertion(String assertionUrl) { throw new UnsupportedOperationException(); }
+            public Future<TransportResponse> login(DelegationContext context, String slcsLoginUrl) { throw new UnsupportedOperationException(); }
+            public Future<TransportResponse> post(String url, Map<String, String> parameters) { throw new UnsupportedOperationException(); }
+            public void warmUp(String url) { }
+            public void close() { }
+        };
+
+
+    /** A login that takes {@code delay} ms, then fails with {@code error} if not {@code null}. */
+    private static class Behaviour {
+        final long delay;
+        final SLCSException error;
+
+        Behaviour(final long delay, final SLCSException error) {
+            this.delay = delay;
+            this.error = error;
+        }
+    }
+
+
+    /** Requestor whose login behaves as told, without going to the network. */
+    private static class FakeRequestor extends SLCSRequestor {
+        final Behaviour behaviour;
+        final Assertion assertion;
+        volatile boolean aborted = false;
+
+        FakeRequestor(final Assertion assertion, final SLCSEndpoint endpoint, final Behaviour behaviour)
+            throws GeneralSecurityException, IOException
+        {
+            super(null, assertion, endpoint.getWspSessionInitiatorUrl(), endpoint.getSlcsLoginUrl(),
+                  null, null, null, NO_TRANSPORT);
+            this.behaviour = behaviour;
+            this.assertion = assertion;
+        }
+
+        public void login() throws SLCSException {
+            final long until = System.currentTimeMillis() + behaviour.delay;
+            while (System.currentTimeMillis() < until) {
+                if (aborted)
+                    throw new SLCSException("aborted");
+                try {
+                    Thread.sleep(5);
+                }
+                catch (InterruptedException x) {
+                    throw new SLCSException("interrupted");
+                }
+            }
+            if (null != behaviour.error)
+                throw behaviour.error;
+        }
+
+        public void abort() {
+            aborted = true;
+            super.abort();
+        }
+    }
+
+
+    private HedgedLogin newHedgedLogin(final HedgingPolicy hedging) {
+        return new HedgedLogin(hedging, parser_, pools_, new HedgedLogin.RequestorFactory() {
+                public SLCSRequestor newRequestor(final Assertion assertion, final SLCSEndpoint endpoint)
+                    throws GeneralSecurityException, IOException
+                {
+                    final FakeRequestor requestor = new FakeRequestor(assertion, endpoint, behaviour_.get(endpoint));
+                    created_.put(endpoint, requestor);
+                    return requestor;
+                }
+            });
+    }
+
+    /** Return a policy that hedges after 50ms, with enough samples and tokens for one hedge. */
+    private static HedgingPolicy newWarmPolicy() {
+        final HedgingPolicy hedging = new HedgingPolicy(1.0, 95, 50);
+        for (int n = 0; n < HedgingPolicy.MIN_SAMPLES; n++)
+            hedging.recordLatency(10);
+        return hedging;
+    }
+
+    private Assertion newAssertion() throws IOException {
+        return parser_.parse(ASSERTION_XML, "test");
+    }
+
+
+    @Test
+    public void testNoHedgingWithoutPolicy() throws Exception {
+        behaviour_.put(primary_, new Behaviour(100, null));
+        behaviour_.put(alternate_, new Behaviour(0, null));
+        final Assertion assertion = newAssertion();
+        final HedgedLogin.Attempt login = newHedgedLogin(null).login(assertion, primary_, alternate_, null);
+        assertSame(primary_, login.getEndpoint());
+        // without hedging, the caller's assertion is used as is
+        assertSame(assertion, created_.get(primary_).assertion);
+        assertFalse(created_.containsKey(alternate_));
+    }
+
+
+    @Test
+    public void testFastLoginNotHedged() throws Exception {
+        behaviour_.put(primary_, new Behaviour(0, null));
+        behaviour_.put(alternate_, new Behaviour(0, null));
+        final HedgingPolicy hedging = newWarmPolicy();
+        final HedgedLogin.Attempt login = newHedgedLogin(hedging).login(newAssertion(), primary_, alternate_, null);
+        assertSame(primary_, login.getEndpoint());
+        assertFalse(created_.containsKey(alternate_));
+        assertEquals(0, hedging.getHedgeCount());
+    }
+
+
+    @Test
+    public void testSlowLoginHedged() throws Exception {
+        behaviour_.put(primary_, new Behaviour(5000, null));
+        behaviour_.put(alternate_, new Behaviour(0, null));
+        final HedgingPolicy hedging = newWarmPolicy();
+        final Assertion assertion = newAssertion();
+        final long started = System.currentTimeMillis();
+        final HedgedLogin.Attempt login = newHedgedLogin(hedging).login(assertion, primary_, alternate_, null);
+        assertTrue(System.currentTimeMillis() - started < 5000);
+        assertSame(alternate_, login.getEndpoint());
+        assertEquals(1, hedging.getHedgeCount());
+        // the loser is aborted, and not blamed on its endpoint
+        assertTrue(created_.get(primary_).aborted);
+        assertFalse(created_.get(alternate_).aborted);
+        assertEquals(0, primary_.getErrorCount());
+        // each login works on its own copy of the assertion
+        final Assertion first = created_.get(primary_).assertion;
+        final Assertion second = created_.get(alternate_).assertion;
+        assertNotSame(assertion, first);
+        assertNotSame(assertion, second);
+        assertNotSame(first, second);
+        assertEquals(assertion.getID(), second.getID());
+    }
+
+
+    @Test
+    public void testNoHedgeWithoutTokens() throws Exception {
+        behaviour_.put(primary_, new Behaviour(200, null));
+        behaviour_.put(alternate_, new Behaviour(0, null));
+        // with a tenth of a hedge per request, the first slow login is not hedged
+        final HedgingPolicy hedging = new HedgingPolicy(0.1, 95, 50);
+        for (int n = 0; n < HedgingPolicy.MIN_SAMPLES; n++)
+            hedging.recordLatency(10);
+        final HedgedLogin.Attempt login = newHedgedLogin(hedging).login(newAssertion(), primary_, alternate_, null);
+        assertSame(primary_, login.getEndpoint());
+        assertFalse(created_.containsKey(alternate_));
+    }
+
+
+    @Test
+    public void testBothFailThrowsPrimaryError() throws Exception {
+        final SLCSException primaryError = new SLCSException("primary down");
+        behaviour_.put(primary_, new Behaviour(200, primaryError));
+        behaviour_.put(alternate_, new Behaviour(0, new AuthException("not authorized")));
+        try {
+            newHedgedLogin(newWarmPolicy()).login(newAssertion(), primary_, alternate_, null);
+            fail("Expected SLCSException");
+        }
+        catch (SLCSException x) {
+            assertSame(primaryError, x);
+        }
+        assertEquals(1, primary_.getErrorCount());
+        // an authentication failure means the endpoint works
+        assertEquals(0, alternate_.getErrorCount());
+        assertEquals(1, alternate_.getRequestCount());
+    }
+
+
+    @Test
+    public void testDeadlineAbortsBothLogins() throws Exception {
+        behaviour_.put(primary_, new Behaviour(5000, null));
+        behaviour_.put(alternate_, new Behaviour(5000, null));
+        final long started = System.currentTimeMillis();
+        try {
+            newHedgedLogin(newWarmPolicy()).login(newAssertion(), primary_, alternate_, new Deadline(300));
+            fail("Expected DeadlineExceededError");
+        }
+        catch (DeadlineExceededError x) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - started < 5000);
+        assertTrue(created_.get(primary_).aborted);
+        assertTrue(created_.get(alternate_).aborted);
+    }
+
+
+    @Test
+    public void testPolicyFromProperties() throws Exception {
+        final Properties props = new Properties();
+        props.setProperty("gridcertlib.hedge.percentile", "150");
+        try {
+            new HedgedLogin(props, parser_, pools_, new HedgedLogin.RequestorFactory() {
+                    public SLCSRequestor newRequestor(final Assertion assertion, final SLCSEndpoint endpoint) {
+                        throw new UnsupportedOperationException();
+                    }
+                });
+            fail("Expected InvalidConfigurationException");
+        }
+        catch (InvalidConfigurationException x) {
+            assertTrue(x.getMessage().contains("gridcertlib.hedge"));
+        }
+    }
+}
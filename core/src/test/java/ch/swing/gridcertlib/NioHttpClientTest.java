@@ -0,0 +1,398 @@
+/**
+ * @file   NioHttpClientTest.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class NioHttpClientTest
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.math.BigInteger;
+import java.net.SocketTimeoutException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/** Tests for {@link NioHttpClient} against a local HTTP server. */
+public class NioHttpClientTest {
+
+    private HttpServer server_;
+    private String base_;
+    private NioHttpClient client_;
+    /** Released at tear-down, so that blocked handlers end. */
+    private final CountDownLatch release_ = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws IOException {
+        server_ = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server_.setExecutor(Executors.newCachedThreadPool());
+        server_.createContext("/hello", new HttpHandler() {
+                public void handle(final HttpExchange exchange) throws IOException {
+                    exchange.getResponseHeaders().add("X-Test", "yes");
+                    respond(exchange, 200, "Hello, world!".getBytes("US-ASCII"));
+                }
+            });
+        server_.createContext("/echo", new HttpHandler() {
+                public void handle(final HttpExchange exchange) throws IOException {
+                    final String reply = exchange.getRequestMethod() + " "
+                        + exchange.getRequestHeaders().getFirst("Content-Type") + " "
+                        + new String(readAll(exchange.getRequestBody()), "US-ASCII");
+                    respond(exchange, 200, reply.getBytes("US-ASCII"));
+                }
+            });
+        server_.createContext("/redirect", new HttpHandler() {
+                public void handle(final HttpExchange exchange) throws IOException {
+                    exchange.getResponseHeaders().add("Location", base_ + "/hello");
+                    respond(exchange, 302, new byte[0]);
+                }
+            });
+        server_.createContext("/large", new HttpHandler() {
+                public void handle(final HttpExchange exchange) throws IOException {
+                    respond(exchange, 200, new byte[100000]);
+                }
+            });
+        server_.createContext("/blocked", new HttpHandler() {
+                public void handle(final HttpExchange exchange) throws IOException {
+                    try {
+                        release_.await(10, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException x) {
+                        Thread.currentThread().interrupt();
+                    }
+                    respond(exchange, 200, new byte[0]);
+                }
+            });
+        server_.start();
+        base_ = "http://127.0.0.1:" + server_.getAddress().getPort();
+        client_ = new NioHttpClient(null, 2, 2000);
+    }
+
+    @After
+    public void tearDown() {
+        release_.countDown();
+        client_.close();
+        server_.stop(0);
+    }
+
+
+    private static void respond(final HttpExchange exchange, final int status, final byte[] body)
+        throws IOException
+    {
+        exchange.sendResponseHeaders(status, (0 == body.length) ? -1 : body.length);
+        final OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            data.write(buffer, 0, n);
+        return data.toByteArray();
+    }
+
+    /** Return the cause of the failure of {@code response}. */
+    private static Throwable failure(final Future<TransportResponse> response) throws Exception {
+        try {
+            response.get(10, TimeUnit.SECONDS);
+        }
+        catch (ExecutionException x) {
+            return x.getCause();
+        }
+        fail("Expected the request to fail");
+        return null;
+    }
+
+
+    @Test
+    public void testGet() throws Exception {
+        final TransportResponse response = client_.get(base_ + "/hello").get(10, TimeUnit.SECONDS);
+        assertEquals(200, response.getStatus());
+        assertTrue(response.getStatusLine().startsWith("HTTP/1.1 200"));
+        assertEquals("yes", response.getHeader("X-Test"));
+        assertEquals("yes", response.getHeader("x-test"));
+        assertEquals("Hello, world!", new String(response.getBody(), "US-ASCII"));
+        assertEquals(0, client_.getInFlightCount());
+    }
+
+
+    @Test
+    public void testPostForm() throws Exception {
+        final Map<String, String> form = new LinkedHashMap<String, String>();
+        form.put("a", "1 2");
+        form.put("b&c", "=");
+        final TransportResponse response = client_.postForm(base_ + "/echo", form).get(10, TimeUnit.SECONDS);
+        final String reply = new String(response.getBody(), "US-ASCII");
+        assertTrue(reply, reply.startsWith("POST application/x-www-form-urlencoded"));
+        assertTrue(reply, reply.endsWith(" a=1+2&b%26c=%3D"));
+    }
+
+
+    @Test
+    public void testRedirectNotFollowed() throws Exception {
+        final TransportResponse response = client_.get(base_ + "/redirect").get(10, TimeUnit.SECONDS);
+        assertEquals(302, response.getStatus());
+        assertEquals(base_ + "/hello", response.getHeader("Location"));
+    }
+
+
+    @Test
+    public void testResponseTooLarge() throws Exception {
+        client_.setMaxResponseSize(1000);
+        final Throwable error = failure(client_.get(base_ + "/large"));
+        assertTrue(String.valueOf(error), error instanceof IOException);
+        client_.setMaxResponseSize(100000);
+        assertEquals(100000, client_.get(base_ + "/large").get(10, TimeUnit.SECONDS).getBody().length);
+    }
+
+
+    @Test
+    public void testTimeout() throws Exception {
+        final NioHttpClient client = new NioHttpClient(null, 1, 200);
+        try {
+            final long start = System.currentTimeMillis();
+            final Throwable error = failure(client.get(base_ + "/blocked"));
+            assertTrue(String.valueOf(error), error instanceof SocketTimeoutException);
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+        finally {
+            client.close();
+        }
+    }
+
+
+    @Test
+    public void testCloseFailsRequestsInFlight() throws Exception {
+        final Future<TransportResponse> response = client_.get(base_ + "/blocked");
+        Thread.sleep(100);
+        client_.close();
+        // must not hang
+        assertTrue(failure(response) instanceof IOException);
+        assertEquals(0, client_.getInFlightCount());
+    }
+
+
+    @Test
+    public void testExecuteAfterClose() throws Exception {
+        client_.close();
+        try {
+            client_.get(base_ + "/hello");
+            fail("Expected IOException");
+        }
+        catch (IOException x) {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void testExecuteRacingClose() throws Exception {
+        // requests started while the client closes either fail to
+        // start, or complete one way or the other: none may hang
+        final List<Future<TransportResponse>> started = new ArrayList<Future<TransportResponse>>();
+        final Thread closer = new Thread() {
+                public void run() {
+                    client_.close();
+                }
+            };
+        for (int n = 0; n < 200; n++) {
+            if (50 == n)
+                closer.start();
+            try {
+                started.add(client_.get(base_ + "/hello"));
+            }
+            catch (IOException x) {
+                // closed already
+            }
+        }
+        closer.join(10000);
+        for (Future<TransportResponse> response : started)
+            try {
+                response.get(10, TimeUnit.SECONDS);
+            }
+            catch (ExecutionException x) {
+                // failed because of the close
+            }
+            catch (CancellationException x) {
+                // likewise
+            }
+            catch (TimeoutException x) {
+                fail("Request hung after close");
+            }
+    }
+
+
+    @Test
+    public void testCancel() throws Exception {
+        final Future<TransportResponse> response = client_.get(base_ + "/blocked");
+        Thread.sleep(100);
+        assertTrue(response.cancel(true));
+        assertTrue(response.isCancelled());
+        assertEquals(0, client_.getInFlightCount());
+        try {
+            response.get(1, TimeUnit.SECONDS);
+            fail("Expected CancellationException");
+        }
+        catch (CancellationException x) {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void testUnsupportedRequests() throws Exception {
+        final String[] urls = { "ftp://127.0.0.1/file", "https://127.0.0.1/", "not a URL", "http:relative" };
+        for (String url : urls)
+            try {
+                client_.get(url);
+                fail("Expected IOException for '" + url + "'");
+            }
+            catch (IOException x) {
+                // expected
+            }
+        try {
+            client_.execute("DELETE", base_ + "/hello", null, null);
+            fail("Expected IOException");
+        }
+        catch (IOException x) {
+            // expected
+        }
+        assertEquals(0, client_.getInFlightCount());
+    }
+
+
+    @Test
+    public void testUnresolvableHost() throws Exception {
+        // resolution happens off the calling thread: the error comes through the future
+        final Future<TransportResponse> response = client_.get("http://nonexistent.invalid/");
+        assertTrue(failure(response) instanceof IOException);
+    }
+
+
+    /** Return a TLS context whose key is a self-signed certificate for {@code CN=name}, and trusting it. */
+    @SuppressWarnings("deprecation")
+    private static SSLContext selfSignedContext(final String name) throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        final KeyPair keys = generator.generateKeyPair();
+        final X500Principal subject = new X500Principal("CN=" + name);
+        final X509V3CertificateGenerator gen = new X509V3CertificateGenerator();
+        gen.setSerialNumber(BigInteger.ONE);
+        gen.setIssuerDN(subject);
+        gen.setSubjectDN(subject);
+        gen.setNotBefore(new Date(System.currentTimeMillis() - 60000));
+        gen.setNotAfter(new Date(System.currentTimeMillis() + 3600000));
+        gen.setPublicKey(keys.getPublic());
+        gen.setSignatureAlgorithm("SHA256WithRSAEncryption");
+        // current JDKs only accept CA certificates as trust anchors
+        gen.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(true));
+        final X509Certificate cert = gen.generate(keys.getPrivate(), "BC");
+
+        final char[] password = "test".toCharArray();
+        final KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+        store.load(null, null);
+        store.setKeyEntry("key", keys.getPrivate(), password, new Certificate[] { cert });
+        store.setCertificateEntry("ca", cert);
+        final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(store, password);
+        final TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(store);
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        return context;
+    }
+
+
+    @Test
+    public void testHostnameVerification() throws Exception {
+        final SSLContext context = selfSignedContext("www.example.org");
+        final HttpsServer server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(context));
+        server.createContext("/hello", new HttpHandler() {
+                public void handle(final HttpExchange exchange) throws IOException {
+                    respond(exchange, 200, "Hello, TLS!".getBytes("US-ASCII"));
+                }
+            });
+        server.start();
+        final NioHttpClient client = new NioHttpClient(context, 1, 5000);
+        try {
+            final String url = "https://127.0.0.1:" + server.getAddress().getPort() + "/hello";
+            // trusted certificate, but for another host name
+            assertTrue(client.isHostnameVerification());
+            assertTrue(failure(client.get(url)) instanceof IOException);
+
+            client.setHostnameVerification(false);
+            assertFalse(client.isHostnameVerification());
+            final TransportResponse response = client.get(url).get(10, TimeUnit.SECONDS);
+            assertEquals("Hello, TLS!", new String(response.getBody(), "US-ASCII"));
+        }
+        finally {
+            client.close();
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * @file   PendingIssuancesTest.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class PendingIssuancesTest
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package ch.swing.gridcertlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.glite.slcs.pki.CertificateKeys;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+
+/** Tests for {@link PendingIssuances}: resuming a failed issuance with its key pair. */
+public class PendingIssuancesTest {
+
+    private static CertificateKeys newKeys() throws Exception {
+        return new CertificateKeys(1024, "secret".toCharArray());
+    }
+
+
+    @Test
+    public void testResumedOnceWithSameKeys() throws Exception {
+        final PendingIssuances pending = new PendingIssuances();
+        final CertificateKeys keys = newKeys();
+        pending.suspend("/tmp/usercert.pem", keys, null, "secret");
+
+        final PendingIssuances.Pending resumed = pending.take("/tmp/usercert.pem", "secret");
+        assertSame(keys, resumed.getKeys());
+        assertNull(resumed.getRequestor());
+        // a second retry starts from scratch
+        assertNull(pending.take("/tmp/usercert.pem", "secret"));
+    }
+
+
+    @Test
+    public void testOtherPathNotResumed() throws Exception {
+        final PendingIssuances pending = new PendingIssuances();
+        pending.suspend("/tmp/usercert.pem", newKeys(), null, "secret");
+        assertNull(pending.take("/tmp/othercert.pem", "secret"));
+    }
+
+
+    @Test
+    public void testDifferentPasswordNotResumed() throws Exception {
+        final PendingIssuances pending = new PendingIssuances();
+        pending.suspend("/tmp/usercert.pem", newKeys(), null, "secret");
+        assertNull(pending.take("/tmp/usercert.pem", "other"));
+        // the state is discarded, not kept for the old password
+        assertNull(pending.take("/tmp/usercert.pem", "secret"));
+    }
+
+
+    @Test
+    public void testExpiresAfterWindow() throws Exception {
+        final PendingIssuances pending = new PendingIssuances();
+        pending.setWindow(1);
+        pending.suspend("/tmp/usercert.pem", newKeys(), null, "secret");
+        Thread.sleep(20);
+        assertNull(pending.take("/tmp/usercert.pem", "secret"));
+    }
+
+
+    @Test
+    public void testZeroWindowDisablesResuming() throws Exception {
+        final PendingIssuances pending = new PendingIssuances();
+        pending.suspend("/tmp/usercert.pem", newKeys(), null, "secret");
+        pending.setWindow(0);
+        // pending state is dropped, and new state is not kept
+        assertNull(pending.take("/tmp/usercert.pem", "secret"));
+        pending.suspend("/tmp/usercert.pem", newKeys(), null, "secret");
+        assertNull(pending.take("/tmp/usercert.pem", "secret"));
+    }
+
+
+    @Test
+    public void testWindowFromProperties() throws Exception {
+        final Properties props = new Properties();
+        assertEquals(300000, new PendingIssuances(props).getWindow());
+        props.setProperty("gridcertlib.resume.window", "0");
+        assertEquals(0, new PendingIssuances(props).getWindow());
+        props.setProperty("gridcertlib.resume.window", "-1");
+        try {
+            new PendingIssuances(props);
+            fail("Expected InvalidConfigurationException");
+        }
+        catch (InvalidConfigurationException x) {
+            // expected
+        }
+    }
+}
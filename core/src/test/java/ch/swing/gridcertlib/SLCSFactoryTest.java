@@ -0,0 +1,152 @@
+/**
+ * @file   SLCSFactoryTest.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class SLCSFactoryTest
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openssl.PEMWriter;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/** Tests for {@link SLCSFactory} helpers: reuse of stored credentials. */
+public class SLCSFactoryTest {
+
+    private static final long HOUR = 3600 * 1000L;
+
+    private static KeyPair keys_;
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        keys_ = generator.generateKeyPair();
+    }
+
+    /** Return a self-signed certificate valid from {@code notBefore} to {@code notAfter}. */
+    @SuppressWarnings("deprecation")
+    private static X509Certificate certificate(final long notBefore, final long notAfter) throws Exception {
+        final X500Principal subject = new X500Principal("CN=test");
+        final X509V3CertificateGenerator gen = new X509V3CertificateGenerator();
+        gen.setSerialNumber(BigInteger.ONE);
+        gen.setIssuerDN(subject);
+        gen.setSubjectDN(subject);
+        gen.setNotBefore(new Date(notBefore));
+        gen.setNotAfter(new Date(notAfter));
+        gen.setPublicKey(keys_.getPublic());
+        gen.setSignatureAlgorithm("SHA256WithRSAEncryption");
+        return gen.generate(keys_.getPrivate(), "BC");
+    }
+
+
+    @Test
+    public void testFreshCertificateReusable() throws Exception {
+        final long now = System.currentTimeMillis();
+        final X509Certificate cert = certificate(now - HOUR, now + 24*HOUR);
+        assertTrue(SLCSFactory.isReusable(cert, 2*HOUR, now));
+    }
+
+
+    @Test
+    public void testOldCertificateNotReusable() throws Exception {
+        final long now = System.currentTimeMillis();
+        final X509Certificate cert = certificate(now - 3*HOUR, now + 24*HOUR);
+        assertFalse(SLCSFactory.isReusable(cert, 2*HOUR, now));
+    }
+
+
+    @Test
+    public void testExpiredCertificateNotReusable() throws Exception {
+        // issued recently, yet already expired: its age alone would allow reuse
+        final long now = System.currentTimeMillis();
+        final X509Certificate cert = certificate(now - HOUR, now - 1000);
+        assertFalse(SLCSFactory.isReusable(cert, 2*HOUR, now));
+    }
+
+
+    @Test
+    public void testZeroMaxAgeNeverReuses() throws Exception {
+        final long now = System.currentTimeMillis();
+        final X509Certificate cert = certificate(now, now + 24*HOUR);
+        assertFalse(SLCSFactory.isReusable(cert, 0, now));
+    }
+
+
+    @Test
+    public void testReadCertificate() throws Exception {
+        final long now = System.currentTimeMillis();
+        final X509Certificate cert = certificate(now - HOUR, now + HOUR);
+        final File file = File.createTempFile("usercert", ".pem");
+        try {
+            final PEMWriter writer = new PEMWriter(new FileWriter(file));
+            writer.writeObject(cert);
+            writer.close();
+            final X509Certificate read = SLCSFactory.readCertificate(file.getPath());
+            assertEquals(cert, read);
+
+            // a file just written does not make an old certificate reusable
+            final X509Certificate old = certificate(now - 3*HOUR, now + HOUR);
+            final PEMWriter rewriter = new PEMWriter(new FileWriter(file));
+            rewriter.writeObject(old);
+            rewriter.close();
+            assertFalse(SLCSFactory.isReusable(SLCSFactory.readCertificate(file.getPath()), 2*HOUR, now));
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+
+    @Test
+    public void testReadCertificateMissingOrInvalid() throws IOException {
+        assertNull(SLCSFactory.readCertificate("/nonexistent/usercert.pem"));
+        final File file = File.createTempFile("usercert", ".pem");
+        try {
+            final FileWriter writer = new FileWriter(file);
+            writer.write("not a certificate\n");
+            writer.close();
+            assertNull(SLCSFactory.readCertificate(file.getPath()));
+        }
+        finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ * @file   SingleFlightTest.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class SingleFlightTest
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+
+/** Tests for {@link SingleFlight}: coalescing, error propagation, deadlines of joining callers. */
+public class SingleFlightTest {
+
+    private final SingleFlight<String, String> flight_ = new SingleFlight<String, String>();
+
+
+    /** A task that waits for {@code release}, then returns {@code result}; counts its runs. */
+    private static class BlockingTask implements Callable<String> {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger(0);
+        final String result;
+        final RuntimeException error;
+
+        BlockingTask(final String result) { this(result, null); }
+
+        BlockingTask(final String result, final RuntimeException error) {
+            this.result = result;
+            this.error = error;
+        }
+
+        public String call() throws Exception {
+            runs.incrementAndGet();
+            started.countDown();
+            release.await();
+            if (null != error)
+                throw error;
+            return result;
+        }
+    }
+
+
+    /** Thread calling {@code execute} (or {@code join}), recording its outcome. */
+    private class Caller extends Thread {
+        final String key;
+        final Callable<String> task;
+        final Deadline deadline;
+        final boolean joinOnly;
+        final AtomicReference<String> result = new AtomicReference<String>();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        Caller(final String key, final Callable<String> task, final Deadline deadline, final boolean joinOnly) {
+            this.key = key;
+            this.task = task;
+            this.deadline = deadline;
+            this.joinOnly = joinOnly;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                if (joinOnly)
+                    result.set(flight_.join(key, deadline));
+                else
+                    result.set(flight_.execute(key, task, deadline));
+            }
+            catch (Throwable x) {
+                error.set(x);
+            }
+        }
+
+        /** Start, and wait until blocked (i.e., waiting for the in-flight task). */
+        Caller startBlocked() throws InterruptedException {
+            start();
+            final long giveUp = System.currentTimeMillis() + 5000;
+            while (State.WAITING != getState() && State.TIMED_WAITING != getState()) {
+                if (System.currentTimeMillis() > giveUp)
+                    fail("Caller thread did not block");
+                Thread.sleep(1);
+            }
+            return this;
+        }
+
+        void finish() throws InterruptedException {
+            join(5000);
+            assertTrue("Caller thread did not finish", ! isAlive());
+        }
+    }
+
+
+    /** Run {@code task} as the leader, in a new thread, and wait until it has started. */
+    private Caller lead(final String key, final BlockingTask task) throws InterruptedException {
+        final Caller leader = new Caller(key, task, null, false);
+        leader.start();
+        assertTrue(task.started.await(5, TimeUnit.SECONDS));
+        return leader;
+    }
+
+
+    @Test
+    public void testConcurrentCallersShareOneRun() throws Exception {
+        final BlockingTask task = new BlockingTask("result");
+        final Caller leader = lead("k", task);
+        final BlockingTask other = new BlockingTask("other");
+        final Caller joiner = new Caller("k", other, null, false).startBlocked();
+        assertEquals(1, flight_.getInFlightCount());
+
+        task.release.countDown();
+        leader.finish();
+        joiner.finish();
+        assertEquals("result", leader.result.get());
+        assertEquals("result", joiner.result.get());
+        assertEquals(1, task.runs.get());
+        assertEquals(0, other.runs.get());
+        assertEquals(0, flight_.getInFlightCount());
+    }
+
+
+    @Test
+    public void testDifferentKeysRunIndependently() throws Exception {
+        final BlockingTask a = new BlockingTask("a");
+        final BlockingTask b = new BlockingTask("b");
+        final Caller first = lead("a", a);
+        final Caller second = lead("b", b);
+        assertEquals(2, flight_.getInFlightCount());
+        a.release.countDown();
+        b.release.countDown();
+        first.finish();
+        second.finish();
+        assertEquals("a", first.result.get());
+        assertEquals("b", second.result.get());
+    }
+
+
+    @Test
+    public void testKeyForgottenWhenDone() {
+        final AtomicInteger runs = new AtomicInteger(0);
+        final Callable<String> task = new Callable<String>() {
+            public String call() {
+                return "run " + runs.incrementAndGet();
+            }
+        };
+        assertEquals("run 1", flight_.execute("k", task));
+        assertEquals("run 2", flight_.execute("k", task));
+        assertEquals(0, flight_.getInFlightCount());
+    }
+
+
+    @Test
+    public void testRuntimeExceptionSharedWithJoiners() throws Exception {
+        final IllegalStateException failure = new IllegalStateException("boom");
+        final BlockingTask task = new BlockingTask(null, failure);
+        final Caller leader = lead("k", task);
+        final Caller joiner = new Caller("k", new BlockingTask("other"), null, false).startBlocked();
+
+        task.release.countDown();
+        leader.finish();
+        joiner.finish();
+        assertSame(failure, leader.error.get());
+        assertSame(failure, joiner.error.get());
+    }
+
+
+    @Test
+    public void testCheckedExceptionWrapped() {
+        final IOException failure = new IOException("unreachable");
+        try {
+            flight_.execute("k", new Callable<String>() {
+                    public String call() throws IOException {
+                        throw failure;
+                    }
+                });
+            fail("Expected OperationsError");
+        }
+        catch (OperationsError x) {
+            assertSame(failure, x.getCause());
+        }
+    }
+
+
+    @Test
+    public void testJoinerDeadlineDoesNotCancelTask() throws Exception {
+        final BlockingTask task = new BlockingTask("result");
+        final Caller leader = lead("k", task);
+
+        final Caller joiner = new Caller("k", new BlockingTask("other"), new Deadline(50), false);
+        joiner.start();
+        joiner.finish();
+        assertTrue(joiner.error.get() instanceof DeadlineExceededError);
+
+        // the leader's task goes on, and its result is delivered
+        task.release.countDown();
+        leader.finish();
+        assertEquals("result", leader.result.get());
+        assertEquals(1, task.runs.get());
+    }
+
+
+    @Test
+    public void testJoinerDoesNotInheritLeaderDeadline() throws Exception {
+        // the leader's task fails because the *leader's* deadline passed ...
+        final DeadlineExceededError expired = new DeadlineExceededError("leader deadline exceeded");
+        final BlockingTask task = new BlockingTask(null, expired);
+        final Caller leader = lead("k", task);
+
+        // ... while the joiner still has time: it runs its own task instead
+        final Callable<String> own = new Callable<String>() {
+            public String call() {
+                return "joiner";
+            }
+        };
+        final Caller joiner = new Caller("k", own, new Deadline(10000), false).startBlocked();
+        final Caller unbounded = new Caller("k", own, null, false).startBlocked();
+
+        task.release.countDown();
+        leader.finish();
+        joiner.finish();
+        unbounded.finish();
+        assertSame(expired, leader.error.get());
+        assertNull(joiner.error.get());
+        assertEquals("joiner", joiner.result.get());
+        assertNull(unbounded.error.get());
+        assertEquals("joiner", unbounded.result.get());
+    }
+
+
+    @Test
+    public void testJoinerAfterOwnDeadlineGetsError() throws Exception {
+        final BlockingTask task = new BlockingTask(null, new DeadlineExceededError("leader deadline exceeded"));
+        final Caller leader = lead("k", task);
+        final Caller joiner = new Caller("k", new BlockingTask("other"), new Deadline(50), false);
+        joiner.start();
+        joiner.finish();
+        task.release.countDown();
+        leader.finish();
+        assertTrue(joiner.error.get() instanceof DeadlineExceededError);
+        assertTrue(joiner.error.get() != leader.error.get());
+    }
+
+
+    @Test
+    public void testCancelledDeadlineStopsWaiting() throws Exception {
+        final BlockingTask task = new BlockingTask("result");
+        final Caller leader = lead("k", task);
+        final Deadline deadline = new Deadline(10000);
+        final Caller joiner = new Caller("k", new BlockingTask("other"), deadline, false).startBlocked();
+
+        deadline.cancel();
+        joiner.finish();
+        assertTrue(joiner.error.get() instanceof DeadlineExceededError);
+
+        task.release.countDown();
+        leader.finish();
+        assertEquals("result", leader.result.get());
+    }
+
+
+    @Test
+    public void testJoinWithNothingInFlight() {
+        assertNull(flight_.join("k", new Deadline(1000)));
+        assertNull(flight_.join("k", null));
+    }
+
+
+    @Test
+    public void testJoinGetsLeaderResult() throws Exception {
+        final BlockingTask task = new BlockingTask("result");
+        final Caller leader = lead("k", task);
+        final Caller joiner = new Caller("k", null, new Deadline(10000), true).startBlocked();
+        task.release.countDown();
+        leader.finish();
+        joiner.finish();
+        assertEquals("result", joiner.result.get());
+    }
+
+
+    @Test
+    public void testJoinReturnsNullAfterLeaderDeadline() throws Exception {
+        final BlockingTask task = new BlockingTask(null, new DeadlineExceededError("leader deadline exceeded"));
+        final Caller leader = lead("k", task);
+        final Caller joiner = new Caller("k", null, new Deadline(10000), true).startBlocked();
+        task.release.countDown();
+        leader.finish();
+        joiner.finish();
+        assertNull(joiner.error.get());
+        assertNull(joiner.result.get());
+    }
+}
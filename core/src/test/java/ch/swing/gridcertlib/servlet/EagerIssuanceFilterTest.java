@@ -0,0 +1,164 @@
+/**
+ * @file   EagerIssuanceFilterTest.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class EagerIssuanceFilterTest
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+/** Tests for {@link EagerIssuanceFilter} credentials path expansion and request screening. */
+public class EagerIssuanceFilterTest {
+
+    /** Values a fake request returns; anything not set is {@code null}. */
+    private static class FakeRequest implements InvocationHandler {
+        String remoteUser = null;
+        final Map<String, String> headers = new HashMap<String, String>();
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        Cookie[] cookies = null;
+        int sessionRequests = 0;
+
+        HttpServletRequest proxy() {
+            return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+                                                               new Class<?>[] { HttpServletRequest.class },
+                                                               this);
+        }
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            final String name = method.getName();
+            if ("getRemoteUser".equals(name))
+                return remoteUser;
+            if ("getHeader".equals(name))
+                return headers.get(args[0]);
+            if ("getAttribute".equals(name))
+                return attributes.get(args[0]);
+            if ("getCookies".equals(name))
+                return cookies;
+            if ("getSession".equals(name)) {
+                ++sessionRequests;
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    private EagerIssuanceFilter filter_;
+    private FakeRequest request_;
+
+    @Before
+    public void setUp() {
+        filter_ = new EagerIssuanceFilter();
+        filter_.credentialsPath_ = "/var/lib/gridcertlib/${REMOTE_USER}";
+        request_ = new FakeRequest();
+    }
+
+
+    @Test
+    public void testRemoteUserFromContainer() {
+        request_.remoteUser = "alice@example.org";
+        assertEquals("/var/lib/gridcertlib/alice@example.org", filter_.expandCredentialsPath(request_.proxy()));
+    }
+
+
+    @Test
+    public void testRemoteUserHeaderIgnored() {
+        // no authenticated user: a client-supplied header must not stand in for it
+        request_.headers.put("REMOTE_USER", "alice@example.org");
+        assertNull(filter_.expandCredentialsPath(request_.proxy()));
+    }
+
+
+    @Test
+    public void testOtherPlaceholdersFromAttributes() {
+        filter_.credentialsPath_ = "/var/lib/gridcertlib/${Shib-SwissEP-UniqueID}/${REMOTE_USER}";
+        request_.remoteUser = "alice";
+        request_.attributes.put("Shib-SwissEP-UniqueID", "123456@example.org");
+        assertEquals("/var/lib/gridcertlib/123456@example.org/alice",
+                     filter_.expandCredentialsPath(request_.proxy()));
+    }
+
+
+    @Test
+    public void testOtherPlaceholderHeadersIgnored() {
+        filter_.credentialsPath_ = "/var/lib/gridcertlib/${Shib-SwissEP-UniqueID}";
+        request_.headers.put("Shib-SwissEP-UniqueID", "123456@example.org");
+        assertNull(filter_.expandCredentialsPath(request_.proxy()));
+    }
+
+
+    @Test
+    public void testNonStringAttributeIgnored() {
+        filter_.credentialsPath_ = "/var/lib/gridcertlib/${uid}";
+        request_.attributes.put("uid", new String[] { "alice" });
+        assertNull(filter_.expandCredentialsPath(request_.proxy()));
+    }
+
+
+    @Test
+    public void testUnsafeValuesRejected() {
+        for (String value : new String[] { "..", ".", "../etc", "alice/bob", "alice bob", "" }) {
+            request_.remoteUser = value;
+            assertNull(value, filter_.expandCredentialsPath(request_.proxy()));
+        }
+    }
+
+
+    @Test
+    public void testPathWithoutPlaceholders() {
+        filter_.credentialsPath_ = "/var/lib/gridcertlib/shared";
+        assertEquals("/var/lib/gridcertlib/shared", filter_.expandCredentialsPath(request_.proxy()));
+    }
+
+
+    @Test
+    public void testPasswordFromCookieOnly() {
+        request_.headers.put("GridCertLib.privateKeyPassword", "secret");
+        assertNull(filter_.getPrivateKeyPassword(request_.proxy()));
+        request_.cookies = new Cookie[] { new Cookie("GridCertLib.privateKeyPassword", "") };
+        assertNull(filter_.getPrivateKeyPassword(request_.proxy()));
+        request_.cookies = new Cookie[] { new Cookie("other", "x"),
+                                          new Cookie("GridCertLib.privateKeyPassword", "secret") };
+        assertEquals("secret", filter_.getPrivateKeyPassword(request_.proxy()));
+    }
+
+
+    @Test
+    public void testRequestWithoutAssertionIgnored() {
+        // `slcs_` and `workers_` are not set: any attempt to issue would fail
+        request_.remoteUser = "alice";
+        request_.cookies = new Cookie[] { new Cookie("GridCertLib.privateKeyPassword", "secret") };
+        filter_.maybeIssue(request_.proxy());
+        assertEquals(0, request_.sessionRequests);
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * @file   FactoryRegistryTest.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class FactoryRegistryTest
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import ch.swing.gridcertlib.GridProxyFactory;
+import ch.swing.gridcertlib.InvalidConfigurationException;
+import ch.swing.gridcertlib.WorkerPool;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/** Tests for {@link FactoryRegistry}: one registry per webapp, one set of factories per configuration file. */
+public class FactoryRegistryTest {
+
+    /** Fake servlet context (or servlet configuration) with attributes and init parameters. */
+    private static class FakeContext implements InvocationHandler {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        final Map<String, String> initParameters = new HashMap<String, String>();
+        ServletContext context = null;
+
+        ServletContext proxy() {
+            return (ServletContext) Proxy.newProxyInstance(ServletContext.class.getClassLoader(),
+                                                           new Class<?>[] { ServletContext.class },
+                                                           this);
+        }
+
+        ServletConfig config(final ServletContext context) {
+            this.context = context;
+            return (ServletConfig) Proxy.newProxyInstance(ServletConfig.class.getClassLoader(),
+                                                          new Class<?>[] { ServletConfig.class },
+                                                          this);
+        }
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            final String name = method.getName();
+            if ("getAttribute".equals(name))
+                return attributes.get(args[0]);
+            if ("setAttribute".equals(name))
+                return attributes.put((String) args[0], args[1]);
+            if ("removeAttribute".equals(name))
+                return attributes.remove(args[0]);
+            if ("getInitParameter".equals(name))
+                return initParameters.get(args[0]);
+            if ("getServletContext".equals(name))
+                return context;
+            if ("log".equals(name))
+                return null;
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    private FakeContext context_;
+    private ServletContext ctx_;
+    private File dir_;
+    private File propertiesFile_;
+
+    @Before
+    public void setUp() throws IOException {
+        context_ = new FakeContext();
+        ctx_ = context_.proxy();
+        dir_ = File.createTempFile("factory-registry", "");
+        dir_.delete();
+        dir_.mkdir();
+        propertiesFile_ = writeProperties("gridcertlib.properties", "gridcertlib.workers.threads = 2\n");
+    }
+
+    @After
+    public void tearDown() {
+        final FactoryRegistry registry = (FactoryRegistry) context_.attributes.get(FactoryRegistry.ATTRIBUTE);
+        if (null != registry)
+            registry.shutdown();
+        for (File file : dir_.listFiles())
+            file.delete();
+        dir_.delete();
+    }
+
+
+    private File writeProperties(final String name, final String text) throws IOException {
+        final File file = new File(dir_, name);
+        final FileWriter out = new FileWriter(file);
+        try {
+            out.write(text);
+        }
+        finally {
+            out.close();
+        }
+        return file;
+    }
+
+
+    @Test
+    public void testOneRegistryPerWebapp() {
+        final FactoryRegistry registry = FactoryRegistry.getInstance(ctx_);
+        assertSame(registry, FactoryRegistry.getInstance(ctx_));
+        assertSame(registry, context_.attributes.get(FactoryRegistry.ATTRIBUTE));
+        final FakeContext other = new FakeContext();
+        assertNotSame(registry, FactoryRegistry.getInstance(other.proxy()));
+        ((FactoryRegistry) other.attributes.get(FactoryRegistry.ATTRIBUTE)).shutdown();
+    }
+
+
+    @Test
+    public void testListenerIsTheRegistry() {
+        final FactoryRegistry listener = new FactoryRegistry();
+        listener.contextInitialized(new ServletContextEvent(ctx_));
+        assertSame(listener, FactoryRegistry.getInstance(ctx_));
+    }
+
+
+    @Test
+    public void testFactoriesSharedPerFile() throws Exception {
+        final FactoryRegistry registry = FactoryRegistry.getInstance(ctx_);
+        final String path = propertiesFile_.getPath();
+        // the same file, spelled differently
+        final String samePath = new File(new File(dir_, "."), propertiesFile_.getName()).getPath();
+
+        final GridProxyFactory proxies = registry.getGridProxyFactory(path);
+        assertSame(proxies, registry.getGridProxyFactory(samePath));
+        final WorkerPool workers = registry.getWorkerPool(path);
+        assertSame(workers, registry.getWorkerPool(samePath));
+        assertSame(registry.getProperties(path), registry.getProperties(samePath));
+
+        // another configuration file gets factories of its own
+        final String otherPath = writeProperties("other.properties", "").getPath();
+        assertNotSame(proxies, registry.getGridProxyFactory(otherPath));
+        assertNotSame(workers, registry.getWorkerPool(otherPath));
+    }
+
+
+    @Test
+    public void testPropertiesReadOnce() throws Exception {
+        final FactoryRegistry registry = FactoryRegistry.getInstance(ctx_);
+        final String path = propertiesFile_.getPath();
+        assertEquals("2", registry.getProperties(path).getProperty("gridcertlib.workers.threads"));
+        writeProperties("gridcertlib.properties", "gridcertlib.workers.threads = 3\n");
+        assertEquals("2", registry.getProperties(path).getProperty("gridcertlib.workers.threads"));
+    }
+
+
+    @Test
+    public void testInvalidSLCSFactoryNotCached() throws Exception {
+        final FactoryRegistry registry = FactoryRegistry.getInstance(ctx_);
+        for (int n = 0; n < 2; n++)
+            try {
+                registry.getSLCSFactory(propertiesFile_.getPath());
+                fail("Expected InvalidConfigurationException");
+            }
+            catch (InvalidConfigurationException x) {
+                assertTrue(x.getMessage().contains("gridcertlib.slcsLoginURL"));
+            }
+    }
+
+
+    @Test
+    public void testContextDestroyedShutsDownFactories() throws Exception {
+        final FactoryRegistry listener = new FactoryRegistry();
+        listener.contextInitialized(new ServletContextEvent(ctx_));
+        final WorkerPool workers = listener.getWorkerPool(propertiesFile_.getPath());
+        listener.contextDestroyed(new ServletContextEvent(ctx_));
+        assertTrue(workers.getExecutor().isShutdown());
+        assertNull(context_.attributes.get(FactoryRegistry.ATTRIBUTE));
+        // a later lookup builds everything afresh
+        assertNotSame(workers, FactoryRegistry.getInstance(ctx_).getWorkerPool(propertiesFile_.getPath()));
+    }
+
+
+    @Test
+    public void testPropertiesFileFromServletOrContext() {
+        context_.initParameters.put(FactoryRegistry.PROPERTIES_FILE, "/etc/gridcertlib/context.properties");
+        final FakeContext servlet = new FakeContext();
+        final ServletConfig conf = servlet.config(ctx_);
+        assertEquals("/etc/gridcertlib/context.properties", FactoryRegistry.getPropertiesFile(conf));
+        servlet.initParameters.put(FactoryRegistry.PROPERTIES_FILE, "/etc/gridcertlib/servlet.properties");
+        assertEquals("/etc/gridcertlib/servlet.properties", FactoryRegistry.getPropertiesFile(conf));
+    }
+}
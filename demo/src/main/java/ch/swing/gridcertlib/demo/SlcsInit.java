@@ -24,18 +24,22 @@
 package ch.swing.gridcertlib.demo;
 
 import ch.swing.gridcertlib.AssertionExpiredError;
+import ch.swing.gridcertlib.ConfigProperties;
 import ch.swing.gridcertlib.CredentialsPathInfo;
 import ch.swing.gridcertlib.InitializationException;
 import ch.swing.gridcertlib.InvalidConfigurationException;
 import ch.swing.gridcertlib.OperationsError;
+import ch.swing.gridcertlib.OverloadedError;
 import ch.swing.gridcertlib.SLCSFactory;
 import ch.swing.gridcertlib.servlet.RenewAssertion;
+import ch.swing.gridcertlib.servlet.FactoryRegistry;
 
 import ch.SWITCH.aai.idwsf.token.AssertionException;
 
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
-import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
@@ -55,6 +59,12 @@ import javax.servlet.http.HttpServletResponse;
  * location of the certificate and key files, and the (random)
  * password used to encrypt the private key.
  * <p>
+ * If property {@code gridcertlib.assertion.select} is {@code race},
+ * all {@code Shib-Assertion-NN} URLs are retrieved in parallel, and
+ * the freshest usable assertion is used (see {@link
+ * SLCSFactory#selectAssertion}); by default ({@code first}), only
+ * {@code Shib-Assertion-01} is.
+ * <p>
  * This servlet is provided as sample code to use GridCertLib's
  * functionality; it should not be used in any production environment.
  *
@@ -82,6 +92,9 @@ public class SlcsInit extends HttpServlet
 
     /** Factory for generating SLCS certificates. */
     protected SLCSFactory slcs;
+
+    /** If {@code true}, race all exported assertions instead of using the first one. */
+    protected boolean raceAssertions_ = false;
     
     /** Servlet context. Used for logging. */
     protected ServletContext ctx_;
@@ -91,18 +104,20 @@ public class SlcsInit extends HttpServlet
     {
         ctx_ = conf.getServletContext();
 
-        // Load properties to initialize GridCertLib's SLCSFactory;
-        // the location of the properties file is given by Servlet
-        // init parameter "GridcertlibPropertiesFile" (look into
-        // src/main/rources/override-web.xml).  SLCSFactory could be
-        // initialized by giving the full list of required parameters
-        // instead of a property object.
-        final Properties props = new Properties();
-        final String propertiesFile = conf.getInitParameter("GridcertlibPropertiesFile");
+        // Load properties to initialize GridCertLib's SLCSFactory; the
+        // location of the properties file is given by Servlet init
+        // parameter "GridcertlibPropertiesFile", or by the context
+        // init parameter of the same name (look into
+        // src/main/rources/override-web.xml).  Properties and
+        // factories are shared by all servlets of this webapp through
+        // the `FactoryRegistry`.
+        final FactoryRegistry registry = FactoryRegistry.getInstance(ctx_);
+        Properties props = null;
+        final String propertiesFile = FactoryRegistry.getPropertiesFile(conf);
         if (null == propertiesFile)
             throwError("SlcsInit.init", "Missing required init parameter 'GridcertlibPropertiesFile'");
         try {
-            props.load(new FileInputStream(propertiesFile));
+            props = registry.getProperties(propertiesFile);
         }
         catch (java.io.FileNotFoundException x) {
             throwError("SlcsInit.init", 
@@ -124,14 +139,26 @@ public class SlcsInit extends HttpServlet
         // SLCSFactory bootstraps the OpenSAML library, but this can
         // be turned off by using an alternate constructor.
         try {
-            ctx_.log("SlcsInit.init(): Creating SLCSFactory (will bootstrap OpenSAML as well)...");
-            slcs = new SLCSFactory(props);
+            ctx_.log("SlcsInit.init(): Getting shared SLCSFactory (will bootstrap OpenSAML on first use)...");
+            slcs = registry.getSLCSFactory(propertiesFile);
         } catch (InvalidConfigurationException x) {
             throwError("SlcsInit.init", "Invalid value in configuration data: " + x.getMessage());
+        } catch (java.io.IOException x) {
+            throwError("SlcsInit.init", "Got IOException while loading properties from file '"
+                       + propertiesFile + "': " + x.getMessage());
         } catch (InitializationException x) {
             throwError("SlcsInit.init", "Got SLCSFactory initialization error: " + x.getMessage());
         };
 
+        // With several assertions exported by the SP, either use the
+        // first one, or retrieve them all and use the freshest.
+        try {
+            raceAssertions_ = "race".equals(ConfigProperties.getChoiceProperty(props, "gridcertlib.assertion.select",
+                                                                               "first", "first", "race"));
+        } catch (InvalidConfigurationException x) {
+            throwError("SlcsInit.init", x.getMessage());
+        };
+
         // The visible URL of the RenewAssertion servlet is needed to
         // redirect browsers when the assertion data is expired.
         renewAssertionUrl_ = conf.getInitParameter("RenewAssertionURL");
@@ -165,10 +192,9 @@ public class SlcsInit extends HttpServlet
 
         // Retrieve SAML2 assertion URL; Apache needs to be configured
         // with "ShibExportAssertion On" for this to work.  In case
-        // there are >1 assertions, we just pick the first.  A more
-        // sophisticated servlet could select according to some other
-        // criteria, or let user select one, or just try them all in
-        // turn...
+        // there are >1 assertions, we pick the first; with
+        // `gridcertlib.assertion.select = race`, they are all
+        // retrieved in parallel below, and the freshest is used.
         String samlAssertionUrl = request.getHeader("Shib-Assertion-01");
         if (null == samlAssertionUrl)
             throw new ServletException("Cannot read assertion from HTTP header 'Shib-Assertion-01'");
@@ -184,6 +210,24 @@ public class SlcsInit extends HttpServlet
         // key location and password by using alternate forms of the
         // `newSLCS` method.
         try {
+            // Pre-flight: if the assertion will not last until the
+            // certificate is issued, have it renewed (see below)
+            // before any delegation or key generation is done.
+            // When racing, this is done on all the exported
+            // assertions at once, and the freshest usable one is
+            // kept; the others are cancelled.
+            if (raceAssertions_ && count > 1) {
+                final List<String> urls = new ArrayList<String>();
+                for (int n = 1; n <= count; n++) {
+                    final String url = request.getHeader(String.format("Shib-Assertion-%02d", n));
+                    if (null != url)
+                        urls.add(url);
+                }
+                samlAssertionUrl = slcs.selectAssertion(urls, null);
+                ctx_.log("SlcsInit.doGet(): selected assertion '" + samlAssertionUrl + "' out of " + urls.size());
+            }
+            else
+                slcs.checkAssertion(samlAssertionUrl, null);
             CredentialsPathInfo pathsInfo = slcs.newSLCS(samlAssertionUrl);
 
             response.setStatus(HttpServletResponse.SC_OK);
@@ -239,6 +283,17 @@ public class SlcsInit extends HttpServlet
                                            + "' with UTF-8 charset:" + x.getMessage(), x);
             }
         }
+        // When too many requests are already waiting for the SLCS
+        // service, `newSLCS` rejects new ones right away with an
+        // `OverloadedError`, rather than tying up a servlet thread
+        // for the whole duration of a timeout: tell the client to
+        // come back later.
+        catch (OverloadedError x) {
+            ctx_.log("SlcsInit: rejecting request, SLCS service overloaded: " + x.getMessage());
+            response.setHeader("Retry-After", String.valueOf(x.getRetryAfter()));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, x.getMessage());
+            return;
+        }
         // Any error during the `slcs-init` procedure (e.g., network
         // error, authentication error to the SLCS server, disk or I/O
         // error when saving files, etc.) winds up as an
@@ -25,9 +25,9 @@ package ch.swing.gridcertlib.demo;
  
 import ch.swing.gridcertlib.GridProxyFactory;
 import ch.swing.gridcertlib.servlet.RenewAssertion;
+import ch.swing.gridcertlib.servlet.FactoryRegistry;
 
 import java.util.Properties;
-import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import javax.servlet.ServletConfig;
@@ -77,18 +77,20 @@ public class VomsProxyInit extends HttpServlet
     {
         ctx_ = conf.getServletContext();
 
-        // Load properties to initialize GridCertLib's GridProxyFactory;
-        // the location of the properties file is given by Servlet
-        // init parameter "GridcertlibPropertiesFile" (look into
-        // src/main/rources/override-web.xml).  GridProxyFactory could be
-        // initialized by giving the full list of required parameters
-        // instead of a property object.
-        final Properties props = new Properties();
-        final String propertiesFile = conf.getInitParameter("GridcertlibPropertiesFile");
+        // Load properties to initialize GridCertLib's GridProxyFactory; the
+        // location of the properties file is given by Servlet init
+        // parameter "GridcertlibPropertiesFile", or by the context
+        // init parameter of the same name (look into
+        // src/main/rources/override-web.xml).  Properties and
+        // factories are shared by all servlets of this webapp through
+        // the `FactoryRegistry`.
+        final FactoryRegistry registry = FactoryRegistry.getInstance(ctx_);
+        Properties props = null;
+        final String propertiesFile = FactoryRegistry.getPropertiesFile(conf);
         if (null == propertiesFile)
             throwError("VomsProxyInit.init", "Missing required init parameter 'GridcertlibPropertiesFile'");
         try {
-            props.load(new FileInputStream(propertiesFile));
+            props = registry.getProperties(propertiesFile);
         }
         catch (java.io.FileNotFoundException x) {
             throwError("VomsProxyInit.init", 
@@ -102,7 +104,15 @@ public class VomsProxyInit extends HttpServlet
                        + "': " + x.getMessage());
         };
 
-        proxyFactory = new GridProxyFactory(props);
+        try {
+            proxyFactory = registry.getGridProxyFactory(propertiesFile);
+        }
+        catch (java.io.IOException x) {
+            throwError("VomsProxyInit.init",
+                       "Got IOException while loading properties from file '"
+                       + propertiesFile
+                       + "': " + x.getMessage());
+        };
 
         super.init(conf);
      }
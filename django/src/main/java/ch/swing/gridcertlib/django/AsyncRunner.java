@@ -0,0 +1,322 @@
+/**
+ * @file   AsyncRunner.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class AsyncRunner
+ *
+ */
+/* 
+ * Copyright (c) 2010, 2011, ETH Zurich and University of Zurich.  All rights reserved.
+ * 
+ * This file is part of the GridCertLib software project.
+ * You may copy, distribute and modify this file under the terms of
+ * the LICENSE.txt file at the root of the project directory tree.
+ *
+ * $Id$
+ */
+
+package ch.swing.gridcertlib.django;
+
+import ch.swing.gridcertlib.ConfigProperties;
+import ch.swing.gridcertlib.Deadline;
+import ch.swing.gridcertlib.DeadlineExceededError;
+import ch.swing.gridcertlib.InvalidConfigurationException;
+import ch.swing.gridcertlib.OverloadedError;
+import ch.swing.gridcertlib.WorkerPool;
+import ch.swing.gridcertlib.servlet.FactoryRegistry;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+
+/** Run the slow part of a servlet request on a GridCertLib {@link
+ * WorkerPool} thread, using Servlet 3.0 asynchronous processing, so
+ * that the container thread is released while credentials are being
+ * issued.
+ * <p>
+ * When the {@code AsyncTimeout} passes before the task is done, the
+ * client gets HTTP 504 and the task's {@link Deadline} is cancelled;
+ * whatever the task writes to the response afterwards is discarded.
+ * <p>
+ * Used by {@link AsyncSlcsInit} and {@link AsyncVomsProxyInit}.
+ */
+class AsyncRunner
+{
+    /** The part of request processing that runs on a worker thread. */
+    interface Task {
+        void run(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException;
+    }
+
+    protected final ServletContext ctx_;
+    protected final String source_;
+    protected final WorkerPool workers_;
+    protected final long timeout_;
+
+
+    /**
+     * Constructor.  Uses the {@link WorkerPool} the webapp's {@link
+     * FactoryRegistry} keeps for the servlet's configuration file, and
+     * reads the asynchronous processing timeout (in milliseconds; 0
+     * means no timeout) from the servlet init parameter {@code
+     * AsyncTimeout}.
+     *
+     * @param conf   servlet configuration
+     * @param source servlet name, used in log messages
+     */
+    AsyncRunner(final ServletConfig conf, final String source)
+        throws ServletException
+    {
+        ctx_ = conf.getServletContext();
+        source_ = source;
+        final String propertiesFile = FactoryRegistry.getPropertiesFile(conf);
+        try {
+            workers_ = FactoryRegistry.getInstance(ctx_).getWorkerPool(propertiesFile);
+        }
+        catch (IOException x) {
+            ctx_.log(source + ".init: ERROR: Cannot read properties file '" + propertiesFile + "': " + x.getMessage());
+            throw new ServletException("Cannot read properties file '" + propertiesFile + "': " + x.getMessage(), x);
+        }
+        catch (IllegalArgumentException x) {
+            ctx_.log(source + ".init: ERROR: Invalid value in 'gridcertlib.workers.*' properties: " + x.getMessage());
+            throw new ServletException("Invalid value in 'gridcertlib.workers.*' properties: " + x.getMessage(), x);
+        }
+        try {
+            timeout_ = ConfigProperties.parseLong("AsyncTimeout", conf.getInitParameter("AsyncTimeout"), 0, 0);
+        }
+        catch (InvalidConfigurationException x) {
+            ctx_.log(source + ".init: ERROR: " + x.getMessage());
+            throw new ServletException(x.getMessage(), x);
+        }
+    }
+
+
+    /**
+     * Return the deadline for a task: {@code deadline} milliseconds
+     * (0 meaning no limit), or the {@code AsyncTimeout} if that is
+     * shorter; {@code null} if neither is set.
+     */
+    Deadline newDeadline(final long deadline)
+    {
+        long timeout = deadline;
+        if (timeout_ > 0 && (timeout <= 0 || timeout_ < timeout))
+            timeout = timeout_;
+        return (timeout > 0) ? new Deadline(timeout) : null;
+    }
+
+
+    /**
+     * Put {@code request} into asynchronous mode and run {@code task}
+     * on a worker thread; the request is completed when the task
+     * returns, or when the {@code AsyncTimeout} passes: then the
+     * client gets HTTP 504 and {@code deadline} (if not {@code null})
+     * is cancelled.  If no worker is available, answer with HTTP 503.
+     *
+     * @param deadline deadline the task runs with, see {@link #newDeadline}
+     */
+    void start(final HttpServletRequest request, final HttpServletResponse response,
+               final Deadline deadline, final Task task)
+        throws IOException
+    {
+        final AsyncContext async = request.startAsync(request, response);
+        final GuardedResponse rsp = new GuardedResponse((HttpServletResponse) async.getResponse());
+        async.addListener(new AsyncListener() {
+                public void onTimeout(final AsyncEvent event) throws IOException {
+                    if (null != deadline)
+                        deadline.cancel();
+                    if (rsp.sendTimeout("No response within " + timeout_ + "ms")) {
+                        ctx_.log(source_ + ": request timed out after " + timeout_ + "ms");
+                        async.complete();
+                    }
+                }
+                public void onError(final AsyncEvent event) throws IOException {
+                    if (null != deadline)
+                        deadline.cancel();
+                    if (rsp.finish())
+                        async.complete();
+                }
+                public void onComplete(final AsyncEvent event) { }
+                public void onStartAsync(final AsyncEvent event) { }
+            });
+        async.setTimeout(timeout_);
+        try {
+            workers_.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            task.run((HttpServletRequest) async.getRequest(), rsp);
+                        }
+                        catch (OverloadedError x) {
+                            sendServiceUnavailable(rsp, x);
+                        }
+                        catch (DeadlineExceededError x) {
+                            sendGatewayTimeout(rsp, x);
+                        }
+                        catch (ServletException x) {
+                            sendInternalError(rsp, x);
+                        }
+                        catch (IOException x) {
+                            sendInternalError(rsp, x);
+                        }
+                        catch (RuntimeException x) {
+                            sendInternalError(rsp, x);
+                        }
+                        finally {
+                            if (rsp.finish())
+                                async.complete();
+                            else
+                                ctx_.log(source_ + ": request finished after timing out; response discarded");
+                        }
+                    }
+                });
+        }
+        catch (OverloadedError x) {
+            sendServiceUnavailable(rsp, x);
+            if (rsp.finish())
+                async.complete();
+        }
+    }
+
+
+    /**
+     * Response that can be finished only once, by either the worker
+     * or the timeout listener; once finished, writes are discarded,
+     * so that a late worker never touches a response the container
+     * may have recycled.
+     */
+    static class GuardedResponse extends HttpServletResponseWrapper
+    {
+        private boolean finished_ = false;
+
+        GuardedResponse(final HttpServletResponse response)
+        {
+            super(response);
+        }
+
+        /** Mark the response finished; return {@code false} if it already was. */
+        synchronized boolean finish()
+        {
+            if (finished_)
+                return false;
+            finished_ = true;
+            return true;
+        }
+
+        /** Finish the response with HTTP 504, unless it already was finished; return {@code true} if it was not. */
+        synchronized boolean sendTimeout(final String message)
+            throws IOException
+        {
+            if (! finish())
+                return false;
+            if (! getResponse().isCommitted())
+                ((HttpServletResponse) getResponse()).sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, message);
+            return true;
+        }
+
+        public synchronized void sendError(final int status, final String message)
+            throws IOException
+        {
+            if (! finished_)
+                super.sendError(status, message);
+        }
+
+        public synchronized void sendError(final int status)
+            throws IOException
+        {
+            if (! finished_)
+                super.sendError(status);
+        }
+
+        public synchronized void sendRedirect(final String location)
+            throws IOException
+        {
+            if (! finished_)
+                super.sendRedirect(location);
+        }
+
+        public synchronized void setStatus(final int status)
+        {
+            if (! finished_)
+                super.setStatus(status);
+        }
+
+        public synchronized void setHeader(final String name, final String value)
+        {
+            if (! finished_)
+                super.setHeader(name, value);
+        }
+
+        public synchronized void addHeader(final String name, final String value)
+        {
+            if (! finished_)
+                super.addHeader(name, value);
+        }
+
+        public synchronized PrintWriter getWriter()
+            throws IOException
+        {
+            if (finished_)
+                throw new IllegalStateException("Response already finished");
+            return super.getWriter();
+        }
+
+        public synchronized ServletOutputStream getOutputStream()
+            throws IOException
+        {
+            if (finished_)
+                throw new IllegalStateException("Response already finished");
+            return super.getOutputStream();
+        }
+    }
+
+
+    private void sendServiceUnavailable(final HttpServletResponse response, final OverloadedError x)
+    {
+        ctx_.log(source_ + ": rejecting request, service overloaded: " + x.getMessage());
+        try {
+            if (! response.isCommitted()) {
+                response.setHeader("Retry-After", String.valueOf(x.getRetryAfter()));
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, x.getMessage());
+            }
+        }
+        catch (IOException e) {
+            ctx_.log(source_ + ": ERROR: cannot send error response: " + e.getMessage());
+        }
+    }
+
+
+    private void sendGatewayTimeout(final HttpServletResponse response, final DeadlineExceededError x)
+    {
+        ctx_.log(source_ + ": giving up on request: " + x.getMessage());
+        try {
+            if (! response.isCommitted())
+                response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, x.getMessage());
+        }
+        catch (IOException e) {
+            ctx_.log(source_ + ": ERROR: cannot send error response: " + e.getMessage());
+        }
+    }
+
+
+    /** Do what the container does when a synchronous servlet throws {@code x}. */
+    private void sendInternalError(final HttpServletResponse response, final Exception x)
+    {
+        ctx_.log(source_ + ": ERROR: " + x.getMessage(), x);
+        try {
+            if (! response.isCommitted())
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, x.getMessage());
+        }
+        catch (IOException e) {
+            ctx_.log(source_ + ": ERROR: cannot send error response: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * @file   AsyncSlcsInit.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class AsyncSlcsInit
+ *
+ */
+/* 
+ * Copyright (c) 2010, 2011, ETH Zurich and University of Zurich.  All rights reserved.
+ * 
+ * This file is part of the GridCertLib software project.
+ * You may copy, distribute and modify this file under the terms of
+ * the LICENSE.txt file at the root of the project directory tree.
+ *
+ * $Id$
+ */
+
+package ch.swing.gridcertlib.django;
+
+import ch.swing.gridcertlib.Deadline;
+
+import java.io.IOException;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/** Variant of {@link SlcsInit} using Servlet 3.0 asynchronous
+ * processing.
+ * <p>
+ * Request validation runs in the container thread; the SLCS
+ * certificate request and the final redirect (to the {@code next}
+ * URL, or to {@link RenewAssertion} if the assertion has expired)
+ * run on a GridCertLib {@link ch.swing.gridcertlib.WorkerPool}
+ * thread, so that the container thread pool does not limit the
+ * number of concurrent logins.  When all workers are busy, requests
+ * are answered with HTTP 503.
+ * <p>
+ * Takes the same init parameters as {@link SlcsInit}, plus an
+ * optional {@code AsyncTimeout} (in milliseconds; default: 0, no
+ * timeout): when it passes, the client gets HTTP 504, and the
+ * certificate request is cancelled.  Must be declared with {@code <async-supported>true</async-supported>}
+ * in {@code web.xml}.
+ *
+ * @see SlcsInit
+ * @see AsyncVomsProxyInit
+ */ 
+public class AsyncSlcsInit extends SlcsInit
+{
+    /** Runs the certificate request on a worker thread. */
+    protected AsyncRunner runner_;
+
+
+    public void init(ServletConfig conf) 
+        throws ServletException 
+    {
+        super.init(conf);
+        runner_ = new AsyncRunner(conf, "AsyncSlcsInit");
+    }
+
+
+    /** Run {@link #newSLCS} on a worker thread. */
+    protected void dispatch(HttpServletRequest request, HttpServletResponse response,
+                            final String samlAssertionUrl,
+                            final String credentialsPath,
+                            final String nextUrl,
+                            final String privateKeyPassword)
+        throws ServletException, IOException
+    {
+        final Deadline deadline = runner_.newDeadline(deadline_);
+        runner_.start(request, response, deadline, new AsyncRunner.Task() {
+                public void run(HttpServletRequest req, HttpServletResponse rsp)
+                    throws ServletException, IOException
+                {
+                    newSLCS(req, rsp, 
+                            samlAssertionUrl, credentialsPath, nextUrl, privateKeyPassword,
+                            deadline);
+                }
+            });
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * @file   AsyncVomsProxyInit.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class AsyncVomsProxyInit
+ *
+ */
+/* 
+ * Copyright (c) 2010, 2011, ETH Zurich and University of Zurich.  All rights reserved.
+ * 
+ * This file is part of the GridCertLib software project.
+ * You may copy, distribute and modify this file under the terms of
+ * the LICENSE.txt file at the root of the project directory tree.
+ *
+ * $Id$
+ */
+
+package ch.swing.gridcertlib.django;
+
+import ch.swing.gridcertlib.Deadline;
+
+import java.io.IOException;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/** Variant of {@link VomsProxyInit} using Servlet 3.0 asynchronous
+ * processing.
+ * <p>
+ * Request validation runs in the container thread; proxy generation
+ * and the final redirect run on a GridCertLib {@link
+ * ch.swing.gridcertlib.WorkerPool} thread.  When all workers are
+ * busy, requests are answered with HTTP 503.
+ * <p>
+ * Takes the same init parameters as {@link VomsProxyInit}, plus an
+ * optional {@code AsyncTimeout} (in milliseconds; default: 0, no
+ * timeout): when it passes, the client gets HTTP 504, and waiting
+ * for the proxy is given up.  Must be declared with {@code <async-supported>true</async-supported>}
+ * in {@code web.xml}.
+ *
+ * @see VomsProxyInit
+ * @see AsyncSlcsInit
+ */ 
+public class AsyncVomsProxyInit extends VomsProxyInit
+{
+    /** Runs the proxy generation on a worker thread. */
+    protected AsyncRunner runner_;
+
+
+    public void init(ServletConfig conf) 
+        throws ServletException 
+    {
+        super.init(conf);
+        runner_ = new AsyncRunner(conf, "AsyncVomsProxyInit");
+    }
+
+
+    /** Run {@link #newProxy} on a worker thread. */
+    protected void dispatch(HttpServletRequest request, HttpServletResponse response,
+                            final String credentialsPath,
+                            final String nextUrl,
+                            final String[] vo,
+                            final String privateKeyPassword)
+        throws ServletException, IOException
+    {
+        final Deadline deadline = runner_.newDeadline(deadline_);
+        runner_.start(request, response, deadline, new AsyncRunner.Task() {
+                public void run(HttpServletRequest req, HttpServletResponse rsp)
+                    throws ServletException, IOException
+                {
+                    newProxy(req, rsp, credentialsPath, nextUrl, vo, privateKeyPassword, deadline);
+                }
+            });
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * @file   AuthorizationToken.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class AuthorizationToken
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.django;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Properties;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/** HMAC-signed, time-limited authorization for a credentials store.
+ * <p>
+ * Before redirecting to the {@link SlcsInit} or {@link VomsProxyInit}
+ * servlets, the Django decorators mint a token that binds the
+ * credentials directory (the {@code store} query parameter) to the
+ * session key (the {@code GridCertLib.sessionKey} cookie) until an
+ * expiration time, and pass it in the {@code GridCertLib.authToken}
+ * cookie; the servlets check it in memory, so that a forged request
+ * cannot make them write credentials to an arbitrary directory.
+ * <p>
+ * A token has the form {@code v1.EXPIRES.MAC}, where {@code EXPIRES}
+ * is the expiration time in seconds since the epoch, and {@code MAC}
+ * is the lowercase hexadecimal HMAC-SHA256, keyed with the shared
+ * secret, of the UTF-8 encoding of {@code
+ * "v1\nSTORE\nSESSIONKEY\nEXPIRES"}.  Function {@code make_token} in
+ * {@code tokens.py} mints tokens on the Python side.
+ * <p>
+ * The following properties configure an instance:
+ * <dl>
+ * <dt>{@code gridcertlib.authToken.secret      }<dd>shared secret; must equal the {@code GRIDCERTLIB_TOKEN_SECRET} Django setting
+ * <dt>{@code gridcertlib.authToken.maxLifetime }<dd>tokens expiring more than this many seconds in the future are rejected (default: 600)
+ * </dl>
+ * If no secret is configured, the servlets instead look for the
+ * {@code __OK__<sessionKey>} marker file in the credentials
+ * directory.
+ */
+public class AuthorizationToken
+{
+    /** Name of the cookie carrying the token. */
+    public static final String COOKIE = "GridCertLib.authToken";
+
+    /** Token format version; first field of every token. */
+    public static final String VERSION = "v1";
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final SecretKeySpec key_;
+    private final long maxLifetime_;
+
+    /** {@code Mac} instances are not thread-safe. */
+    private final ThreadLocal<Mac> mac_ = new ThreadLocal<Mac>();
+
+
+    /**
+     * Constructor.
+     *
+     * @param secret      shared secret
+     * @param maxLifetime maximum lifetime (in seconds) of accepted tokens
+     */
+    public AuthorizationToken(final String secret, final long maxLifetime)
+    {
+        if (null == secret || 0 == secret.length())
+            throw new IllegalArgumentException("AuthorizationToken: secret must not be empty");
+        if (maxLifetime <= 0)
+            throw new IllegalArgumentException("AuthorizationToken: maxLifetime must be positive");
+        key_ = new SecretKeySpec(utf8(secret), ALGORITHM);
+        maxLifetime_ = maxLifetime;
+    }
+
+
+    /**
+     * Constructor taking the configuration from a properties object;
+     * see the class description for the property names.
+     *
+     * @throws IllegalArgumentException if a property is missing or has an invalid value
+     */
+    public AuthorizationToken(final Properties props)
+    {
+        this(props.getProperty("gridcertlib.authToken.secret"),
+             Long.parseLong(props.getProperty("gridcertlib.authToken.maxLifetime", "600").trim()));
+    }
+
+
+    /** Return {@code true} if {@code props} configure a token secret. */
+    public static boolean isConfigured(final Properties props)
+    {
+        final String secret = props.getProperty("gridcertlib.authToken.secret");
+        return null != secret && secret.length() > 0;
+    }
+
+
+    /**
+     * Return a token authorizing {@code sessionKey} to store
+     * credentials in {@code store} until {@code expires} (in seconds
+     * since the epoch).
+     */
+    public String mint(final String store, final String sessionKey, final long expires)
+    {
+        return VERSION + "." + expires + "." + sign(store, sessionKey, expires);
+    }
+
+
+    /**
+     * Return {@code true} if {@code token} is a well-formed, unexpired
+     * token for {@code store} and {@code sessionKey}, signed with the
+     * shared secret.
+     */
+    public boolean verify(final String token, final String store, final String sessionKey)
+    {
+        if (null == token || null == store || null == sessionKey)
+            return false;
+        final String[] fields = token.split("\\.");
+        if (3 != fields.length || ! VERSION.equals(fields[0]))
+            return false;
+        final long expires;
+        try {
+            expires = Long.parseLong(fields[1]);
+        }
+        catch (NumberFormatException x) {
+            return false;
+        }
+        final long now = System.currentTimeMillis() / 1000;
+        if (expires <= now || expires > now + maxLifetime_)
+            return false;
+        // compare in constant time, not to leak the correct MAC
+        return MessageDigest.isEqual(utf8(sign(store, sessionKey, expires)), utf8(fields[2]));
+    }
+
+
+    private String sign(final String store, final String sessionKey, final long expires)
+    {
+        final byte[] digest = getMac().doFinal(utf8(VERSION + "\n" + store + "\n" + sessionKey + "\n" + expires));
+        final StringBuilder hex = new StringBuilder(2 * digest.length);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private Mac getMac()
+    {
+        Mac mac = mac_.get();
+        if (null == mac) {
+            try {
+                mac = Mac.getInstance(ALGORITHM);
+                mac.init(key_);
+            }
+            catch (GeneralSecurityException x) {
+                throw new IllegalStateException("AuthorizationToken: " + ALGORITHM + " not available: "
+                                                + x.getMessage(), x);
+            }
+            mac_.set(mac);
+        }
+        return mac;
+    }
+
+    private static byte[] utf8(final String s)
+    {
+        try {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException x) {
+            // cannot happen: UTF-8 is always supported
+            throw new IllegalStateException(x.getMessage());
+        }
+    }
+}
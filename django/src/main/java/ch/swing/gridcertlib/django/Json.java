@@ -0,0 +1,308 @@
+/**
+ * @file   Json.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class Json
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.django;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/** Minimal JSON reader and writer, for the {@link ProxyApi} servlet.
+ * <p>
+ * Objects are read into {@code Map<String,Object>} (keeping key
+ * order), arrays into {@code List<Object>}, numbers into {@code
+ * Long} or {@code Double}, and {@code true}, {@code false}, {@code
+ * null} into {@code Boolean.TRUE}, {@code Boolean.FALSE} and {@code
+ * null}; {@link #write} accepts the same types, plus any other {@code
+ * Number}.
+ */
+final class Json
+{
+    private final String text_;
+    private int pos_ = 0;
+
+
+    private Json(final String text)
+    {
+        text_ = text;
+    }
+
+
+    /**
+     * Parse {@code text} as a single JSON value.
+     *
+     * @throws IllegalArgumentException if {@code text} is not valid JSON
+     */
+    static Object parse(final String text)
+    {
+        final Json parser = new Json(text);
+        final Object value = parser.readValue();
+        parser.skipSpace();
+        if (parser.pos_ < text.length())
+            throw parser.error("unexpected text after JSON value");
+        return value;
+    }
+
+
+    /**
+     * Return the JSON representation of {@code value}.
+     *
+     * @throws IllegalArgumentException if {@code value} (or an element of it) has an unsupported type
+     */
+    static String write(final Object value)
+    {
+        final StringBuilder out = new StringBuilder();
+        write(value, out);
+        return out.toString();
+    }
+
+
+    private static void write(final Object value, final StringBuilder out)
+    {
+        if (null == value)
+            out.append("null");
+        else if (value instanceof String)
+            quote((String) value, out);
+        else if (value instanceof Boolean || value instanceof Number)
+            out.append(value.toString());
+        else if (value instanceof Map) {
+            out.append('{');
+            for (Iterator<?> it = ((Map<?,?>) value).entrySet().iterator(); it.hasNext(); ) {
+                final Map.Entry<?,?> entry = (Map.Entry<?,?>) it.next();
+                quote(String.valueOf(entry.getKey()), out);
+                out.append(':');
+                write(entry.getValue(), out);
+                if (it.hasNext())
+                    out.append(',');
+            }
+            out.append('}');
+        }
+        else if (value instanceof List) {
+            out.append('[');
+            for (Iterator<?> it = ((List<?>) value).iterator(); it.hasNext(); ) {
+                write(it.next(), out);
+                if (it.hasNext())
+                    out.append(',');
+            }
+            out.append(']');
+        }
+        else
+            throw new IllegalArgumentException("Json: cannot write value of type "
+                                               + value.getClass().getName());
+    }
+
+
+    private static void quote(final String s, final StringBuilder out)
+    {
+        out.append('"');
+        for (int n = 0; n < s.length(); n++) {
+            final char c = s.charAt(n);
+            switch (c) {
+            case '"':  out.append("\\\""); break;
+            case '\\': out.append("\\\\"); break;
+            case '\n': out.append("\\n"); break;
+            case '\r': out.append("\\r"); break;
+            case '\t': out.append("\\t"); break;
+            default:
+                if (c < 0x20) {
+                    final String hex = Integer.toHexString(c);
+                    out.append("\\u");
+                    for (int k = hex.length(); k < 4; k++)
+                        out.append('0');
+                    out.append(hex);
+                }
+                else
+                    out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+
+    private Object readValue()
+    {
+        skipSpace();
+        if (pos_ >= text_.length())
+            throw error("unexpected end of input");
+        final char c = text_.charAt(pos_);
+        switch (c) {
+        case '{': return readObject();
+        case '[': return readArray();
+        case '"': return readString();
+        case 't': expectWord("true");  return Boolean.TRUE;
+        case 'f': expectWord("false"); return Boolean.FALSE;
+        case 'n': expectWord("null");  return null;
+        default:
+            if ('-' == c || Character.isDigit(c))
+                return readNumber();
+            throw error("unexpected character '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> readObject()
+    {
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        pos_++; // '{'
+        skipSpace();
+        if (peek('}')) {
+            pos_++;
+            return result;
+        }
+        while (true) {
+            skipSpace();
+            if (! peek('"'))
+                throw error("expected string as object key");
+            final String key = readString();
+            skipSpace();
+            expect(':');
+            result.put(key, readValue());
+            skipSpace();
+            if (peek(',')) {
+                pos_++;
+                continue;
+            }
+            expect('}');
+            return result;
+        }
+    }
+
+    private List<Object> readArray()
+    {
+        final List<Object> result = new ArrayList<Object>();
+        pos_++; // '['
+        skipSpace();
+        if (peek(']')) {
+            pos_++;
+            return result;
+        }
+        while (true) {
+            result.add(readValue());
+            skipSpace();
+            if (peek(',')) {
+                pos_++;
+                continue;
+            }
+            expect(']');
+            return result;
+        }
+    }
+
+    private String readString()
+    {
+        final StringBuilder out = new StringBuilder();
+        pos_++; // '"'
+        while (true) {
+            if (pos_ >= text_.length())
+                throw error("unterminated string");
+            final char c = text_.charAt(pos_++);
+            if ('"' == c)
+                return out.toString();
+            if ('\\' != c) {
+                out.append(c);
+                continue;
+            }
+            if (pos_ >= text_.length())
+                throw error("unterminated string");
+            final char e = text_.charAt(pos_++);
+            switch (e) {
+            case '"':  out.append('"'); break;
+            case '\\': out.append('\\'); break;
+            case '/':  out.append('/'); break;
+            case 'b':  out.append('\b'); break;
+            case 'f':  out.append('\f'); break;
+            case 'n':  out.append('\n'); break;
+            case 'r':  out.append('\r'); break;
+            case 't':  out.append('\t'); break;
+            case 'u':
+                if (pos_ + 4 > text_.length())
+                    throw error("truncated unicode escape");
+                try {
+                    out.append((char) Integer.parseInt(text_.substring(pos_, pos_ + 4), 16));
+                }
+                catch (NumberFormatException x) {
+                    throw error("invalid unicode escape");
+                }
+                pos_ += 4;
+                break;
+            default:
+                throw error("invalid escape '\\" + e + "'");
+            }
+        }
+    }
+
+    private Number readNumber()
+    {
+        final int start = pos_;
+        boolean integral = true;
+        while (pos_ < text_.length()) {
+            final char c = text_.charAt(pos_);
+            if ('.' == c || 'e' == c || 'E' == c)
+                integral = false;
+            else if (! (Character.isDigit(c) || '-' == c || '+' == c))
+                break;
+            pos_++;
+        }
+        final String number = text_.substring(start, pos_);
+        try {
+            if (integral)
+                return Long.valueOf(number);
+            return Double.valueOf(number);
+        }
+        catch (NumberFormatException x) {
+            throw error("invalid number '" + number + "'");
+        }
+    }
+
+    private void expectWord(final String word)
+    {
+        if (! text_.startsWith(word, pos_))
+            throw error("expected '" + word + "'");
+        pos_ += word.length();
+    }
+
+    private void expect(final char c)
+    {
+        if (! peek(c))
+            throw error("expected '" + c + "'");
+        pos_++;
+    }
+
+    private boolean peek(final char c)
+    {
+        return pos_ < text_.length() && c == text_.charAt(pos_);
+    }
+
+    private void skipSpace()
+    {
+        while (pos_ < text_.length() && Character.isWhitespace(text_.charAt(pos_)))
+            pos_++;
+    }
+
+    private IllegalArgumentException error(final String message)
+    {
+        return new IllegalArgumentException("Invalid JSON at offset " + pos_ + ": " + message);
+    }
+}
@@ -0,0 +1,389 @@
+/**
+ * @file   ProxyApi.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class ProxyApi
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.django;
+
+import ch.swing.gridcertlib.ConfigProperties;
+import ch.swing.gridcertlib.Deadline;
+import ch.swing.gridcertlib.DeadlineExceededError;
+import ch.swing.gridcertlib.GridProxyFactory;
+import ch.swing.gridcertlib.InvalidConfigurationException;
+import ch.swing.gridcertlib.OperationsError;
+import ch.swing.gridcertlib.OverloadedError;
+import ch.swing.gridcertlib.servlet.FactoryRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/** Backend JSON API for generating proxies, for use by the portal
+ * server itself (no browser redirects, no cookies).
+ * <p>
+ * A client POSTs a JSON object with a {@code requests} array; each
+ * element describes one proxy:
+ * <dl>
+ * <dt>{@code store              }<dd>credentials directory, holding {@code usercert.pem} and {@code userkey.pem} (required)
+ * <dt>{@code privateKeyPassword }<dd>password of {@code userkey.pem} (required)
+ * <dt>{@code vo                 }<dd>VOMS argument, or array of them (optional; if omitted, a non-VOMS proxy is made)
+ * <dt>{@code output             }<dd>{@code path} (default) to store the proxy as {@code userproxy.pem} in {@code store}, or {@code pem} to return its contents
+ * </dl>
+ * The response is a JSON object whose {@code results} array has, for
+ * each request in order, an object with {@code status} (an HTTP
+ * status code: 200 on success), and {@code proxyPath}, {@code pem} or
+ * {@code error}.  For example:
+ * <pre>
+ *   POST /gridcertlib/api/proxy
+ *   Authorization: Bearer s3cr3t
+ *   Content-Type: application/json
+ *
+ *   {"requests": [{"store": "/var/lib/gridcertlib/alice/42", "privateKeyPassword": "...", "vo": ["smscg"]}]}
+ *
+ *   {"results": [{"status": 200, "proxyPath": "/var/lib/gridcertlib/alice/42/userproxy.pem"}]}
+ * </pre>
+ * Requests must come from the loopback interface, and carry the
+ * shared secret as a bearer token, and may only name credentials
+ * directories inside the store root; the API is disabled unless both
+ * a secret and a store root are configured.  Do not make it reachable through the
+ * front-end web server.  Requests of a batch are served in turn (the
+ * VOMS API serializes proxy generation anyway), and share a single
+ * deadline.
+ * <p>
+ * The following properties configure the servlet:
+ * <dl>
+ * <dt>{@code gridcertlib.api.secret    }<dd>bearer token clients must present (required)
+ * <dt>{@code gridcertlib.api.maxBatch  }<dd>maximum number of proxies per request (default: 20)
+ * <dt>{@code gridcertlib.api.storeRoot }<dd>directory {@code store} directories must be inside (required)
+ * <dt>{@code gridcertlib.deadline      }<dd>time allowed for a whole batch; see {@link Deadline#getTimeout}
+ * </dl>
+ *
+ * @see VomsProxyInit
+ * @see ch.swing.gridcertlib.GridProxyFactory
+ */
+public class ProxyApi extends HttpServlet
+{
+    /** Maximum size (in characters) of a request body. */
+    public static final int MAX_REQUEST_SIZE = 1 << 20;
+
+    /** Factory for generating proxy certificates. */
+    protected GridProxyFactory proxyFactory;
+
+    /** Shared secret; if {@code null}, all requests are refused. */
+    protected String secret_;
+
+    /** Maximum number of proxies per request. */
+    protected int maxBatch_ = 20;
+
+    /** Canonical path of the directory all stores must be in; if {@code null}, all stores are refused. */
+    protected String storeRoot_;
+
+    /** Time (in milliseconds) allowed for a batch; 0 means no limit. */
+    protected long deadline_ = 0;
+
+    /** Servlet context. Used for logging. */
+    protected ServletContext ctx_;
+
+
+    public void init(ServletConfig conf)
+        throws ServletException
+    {
+        ctx_ = conf.getServletContext();
+
+        final FactoryRegistry registry = FactoryRegistry.getInstance(ctx_);
+        final String propertiesFile = FactoryRegistry.getPropertiesFile(conf);
+        if (null == propertiesFile)
+            throwError("ProxyApi.init", "Missing required init parameter 'GridcertlibPropertiesFile'");
+        Properties props = null;
+        try {
+            props = registry.getProperties(propertiesFile);
+            proxyFactory = registry.getGridProxyFactory(propertiesFile);
+        }
+        catch (java.io.FileNotFoundException x) {
+            throwError("ProxyApi.init",
+                       "Properties file '" + propertiesFile
+                       + "' referenced by init parameter 'GridcertlibPropertiesFile' does not exist");
+        }
+        catch (IOException x) {
+            throwError("ProxyApi.init",
+                       "Got IOException while loading properties from file '"
+                       + propertiesFile
+                       + "': " + x.getMessage());
+        };
+
+        secret_ = props.getProperty("gridcertlib.api.secret");
+        if (null == secret_ || 0 == secret_.length()) {
+            secret_ = null;
+            ctx_.log("ProxyApi.init(): WARNING: no 'gridcertlib.api.secret' property set, API is disabled.");
+        }
+        try {
+            maxBatch_ = ConfigProperties.getIntProperty(props, "gridcertlib.api.maxBatch", 20, 1);
+            deadline_ = Deadline.getTimeout(props);
+        }
+        catch (InvalidConfigurationException x) {
+            throwError("ProxyApi.init", x.getMessage());
+        }
+        final String storeRoot = props.getProperty("gridcertlib.api.storeRoot");
+        if (null == storeRoot || 0 == storeRoot.trim().length()) {
+            // any client could otherwise name any directory the servlet container can read
+            secret_ = null;
+            ctx_.log("ProxyApi.init(): WARNING: no 'gridcertlib.api.storeRoot' property set, API is disabled.");
+        }
+        else {
+            try {
+                storeRoot_ = new File(storeRoot.trim()).getCanonicalPath();
+            }
+            catch (IOException x) {
+                throwError("ProxyApi.init",
+                           "Invalid value '" + storeRoot + "' for property 'gridcertlib.api.storeRoot': "
+                           + x.getMessage());
+            }
+        }
+
+        super.init(conf);
+    }
+
+
+    /** Serve a batch of proxy requests. */
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException
+    {
+        if (! isAuthorized(request)) {
+            ctx_.log("ProxyApi.doPost(): refusing unauthorized request from " + request.getRemoteAddr());
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        final List<?> requests;
+        try {
+            final Object body = Json.parse(readBody(request));
+            final Object list = (body instanceof Map) ? ((Map<?,?>) body).get("requests") : null;
+            if (! (list instanceof List))
+                throw new IllegalArgumentException("Request body must be an object with a 'requests' array");
+            requests = (List<?>) list;
+        }
+        catch (IllegalArgumentException x) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, x.getMessage());
+            return;
+        }
+        if (requests.size() > maxBatch_) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                               "At most " + maxBatch_ + " proxies per request");
+            return;
+        }
+
+        final Deadline deadline = (deadline_ > 0) ? new Deadline(deadline_) : null;
+        final List<Object> results = new ArrayList<Object>(requests.size());
+        for (Object item : requests)
+            results.add(serve(item, deadline));
+
+        final Map<String, Object> reply = new LinkedHashMap<String, Object>();
+        reply.put("results", results);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.getWriter().write(Json.write(reply));
+    }
+
+
+    /** Generate the proxy described by {@code item}, and return the result object. */
+    protected Map<String, Object> serve(final Object item, final Deadline deadline)
+    {
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("status", Integer.valueOf(HttpServletResponse.SC_OK));
+        try {
+            if (! (item instanceof Map))
+                throw new IllegalArgumentException("Each request must be a JSON object");
+            final Map<?,?> params = (Map<?,?>) item;
+            final String store = getString(params, "store", true);
+            final String privateKeyPassword = getString(params, "privateKeyPassword", true);
+            final String output = getString(params, "output", false);
+            final boolean returnPem = "pem".equals(output);
+            if (null != output && ! returnPem && ! "path".equals(output))
+                throw new IllegalArgumentException("'output' must be one of 'path' or 'pem'");
+            final String[] vo = getStrings(params, "vo");
+            checkStore(store);
+
+            // XXX: hard-coded values, must match the ones in Python's "gridcertlib" module
+            final String certificatePath = store + "/usercert.pem";
+            final String privateKeyPath = store + "/userkey.pem";
+            if (returnPem) {
+                // no need for a (temporary) file holding the proxy key
+                result.put("pem", new String(proxyFactory.newProxyContent(certificatePath, privateKeyPath,
+                                                                          privateKeyPassword, vo, deadline),
+                                             "US-ASCII"));
+            }
+            else {
+                final String proxyPath = proxyFactory.newProxy(certificatePath, privateKeyPath,
+                                                               privateKeyPassword, vo, deadline);
+                final File proxy = new File(proxyPath);
+                final File finalProxy = new File(store, "userproxy.pem");
+                if (! proxy.renameTo(finalProxy)) {
+                    proxy.delete();
+                    throw new IOException("Could not move file '" + proxyPath
+                                          + "' to final location '" + finalProxy + "'");
+                }
+                result.put("proxyPath", finalProxy.getPath());
+            }
+        }
+        catch (IllegalArgumentException x) {
+            fail(result, HttpServletResponse.SC_BAD_REQUEST, x);
+        }
+        catch (SecurityException x) {
+            fail(result, HttpServletResponse.SC_FORBIDDEN, x);
+        }
+        catch (DeadlineExceededError x) {
+            fail(result, HttpServletResponse.SC_GATEWAY_TIMEOUT, x);
+        }
+        catch (OverloadedError x) {
+            fail(result, HttpServletResponse.SC_SERVICE_UNAVAILABLE, x);
+        }
+        catch (OperationsError x) {
+            fail(result, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, x);
+        }
+        catch (IOException x) {
+            fail(result, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, x);
+        }
+        return result;
+    }
+
+
+    /**
+     * Return {@code true} if {@code request} comes from the loopback
+     * interface and carries the shared secret.
+     */
+    protected boolean isAuthorized(final HttpServletRequest request)
+        throws IOException
+    {
+        if (null == secret_)
+            return false;
+        if (! InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress())
+            return false;
+        final String authorization = request.getHeader("Authorization");
+        if (null == authorization || ! authorization.startsWith("Bearer "))
+            return false;
+        // compare in constant time, not to leak the secret
+        return MessageDigest.isEqual(utf8(authorization.substring("Bearer ".length()).trim()),
+                                     utf8(secret_));
+    }
+
+
+    /**
+     * Check that {@code store} is an existing directory inside the
+     * configured store root.
+     *
+     * @throws SecurityException if it is outside the store root, or no store root is configured
+     * @throws IllegalArgumentException if it is not a directory
+     */
+    protected void checkStore(final String store)
+        throws IOException
+    {
+        final File dir = new File(store);
+        if (! dir.isDirectory())
+            throw new IllegalArgumentException("'" + store + "' is not a directory");
+        if (null == storeRoot_ || ! dir.getCanonicalPath().startsWith(storeRoot_ + File.separator))
+            throw new SecurityException("'" + store + "' is outside the credentials store root");
+    }
+
+
+    private void fail(final Map<String, Object> result, final int status, final Exception x)
+    {
+        ctx_.log("ProxyApi: request failed (" + status + "): " + x.getMessage());
+        result.put("status", Integer.valueOf(status));
+        result.put("error", x.getMessage());
+    }
+
+    private static String getString(final Map<?,?> params, final String name, final boolean required)
+    {
+        final Object value = params.get(name);
+        if (null == value) {
+            if (required)
+                throw new IllegalArgumentException("Missing required parameter '" + name + "'");
+            return null;
+        }
+        if (! (value instanceof String))
+            throw new IllegalArgumentException("Parameter '" + name + "' must be a string");
+        return (String) value;
+    }
+
+    private static String[] getStrings(final Map<?,?> params, final String name)
+    {
+        final Object value = params.get(name);
+        if (null == value)
+            return null;
+        if (value instanceof String)
+            return new String[] { (String) value };
+        if (! (value instanceof List))
+            throw new IllegalArgumentException("Parameter '" + name + "' must be a string or an array of strings");
+        final List<?> list = (List<?>) value;
+        final String[] result = new String[list.size()];
+        for (int n = 0; n < result.length; n++) {
+            if (! (list.get(n) instanceof String))
+                throw new IllegalArgumentException("Parameter '" + name + "' must be a string or an array of strings");
+            result[n] = (String) list.get(n);
+        }
+        return result;
+    }
+
+    private static String readBody(final HttpServletRequest request)
+        throws IOException
+    {
+        final Reader in = request.getReader();
+        final StringBuilder body = new StringBuilder();
+        final char[] buffer = new char[4096];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            body.append(buffer, 0, count);
+            if (body.length() > MAX_REQUEST_SIZE)
+                throw new IllegalArgumentException("Request body exceeds " + MAX_REQUEST_SIZE + " characters");
+        }
+        return body.toString();
+    }
+
+    private static byte[] utf8(final String s)
+        throws UnsupportedEncodingException
+    {
+        return s.getBytes("UTF-8");
+    }
+
+
+    protected void throwError(final String source, final String message)
+        throws ServletException
+    {
+        ctx_.log(source + ": ERROR: " + message);
+        throw new ServletException(message);
+    }
+}
@@ -18,18 +18,27 @@
 package ch.swing.gridcertlib.django;
 
 import ch.swing.gridcertlib.AssertionExpiredError;
+import ch.swing.gridcertlib.ConfigProperties;
 import ch.swing.gridcertlib.CredentialsPathInfo;
 import ch.swing.gridcertlib.InitializationException;
 import ch.swing.gridcertlib.InvalidConfigurationException;
 import ch.swing.gridcertlib.OperationsError;
+import ch.swing.gridcertlib.Deadline;
+import ch.swing.gridcertlib.DeadlineExceededError;
+import ch.swing.gridcertlib.OverloadedError;
 import ch.swing.gridcertlib.SLCSFactory;
+import ch.swing.gridcertlib.servlet.FactoryRegistry;
 
 import ch.SWITCH.aai.idwsf.token.AssertionException;
 
+import org.bouncycastle.util.encoders.Base64;
+
+import java.io.ByteArrayInputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.net.URLDecoder;
@@ -52,6 +61,32 @@ import javax.servlet.http.HttpServletResponse;
  * location of the certificate and key files, and the (random)
  * password used to encrypt the private key.
  * <p>
+ * If the Shibboleth SP exports the assertion itself into the request,
+ * set init parameter {@code InlineAssertion} to {@code header:NAME}
+ * (the assertion XML, or its base64 encoding, is in HTTP header
+ * {@code NAME}) or to {@code attribute:NAME} (it is in request
+ * attribute {@code NAME}, as a string or byte array): the assertion
+ * is then used directly, and not fetched from the assertion URL.
+ * <p>
+ * If property {@code gridcertlib.assertion.select} is {@code race},
+ * all {@code Shib-Assertion-NN} URLs are retrieved in parallel, and
+ * the freshest usable assertion is used (see {@link
+ * SLCSFactory#selectAssertion}); by default ({@code first}), only
+ * {@code Shib-Assertion-01} is.
+ * <p>
+ * If property {@code gridcertlib.reuse.maxAge} (see {@link
+ * SLCSFactory#getReuseMaxAge}) allows it, no new certificate is
+ * requested if a recent one is stored in the requested location with
+ * a private key that the password cookie decrypts, e.g., because {@link
+ * ch.swing.gridcertlib.servlet.EagerIssuanceFilter} issued it at the
+ * start of the Shibboleth session; if such an issuance is still in
+ * progress, it is waited for (see {@link SLCSFactory#findSLCS}).
+ * <p>
+ * Requests must complete within {@code gridcertlib.deadline} (see
+ * {@link Deadline#getTimeout}); requests arriving while the factory
+ * warms up are held for at most {@code gridcertlib.warmup.holdTime}
+ * milliseconds (default: 10000).
+ * <p>
  * This servlet is provided as sample code to use GridCertLib's
  * functionality; it should not be used in any production environment.
  *
@@ -79,7 +114,31 @@ public class SlcsInit extends HttpServlet
 
     /** Factory for generating SLCS certificates. */
     protected SLCSFactory slcs;
+
+    /** GridCertLib configuration, as loaded from the `GridcertlibPropertiesFile`. */
+    protected Properties props_;
+
+    /** Time (in milliseconds) allowed for issuing a certificate; 0 means no limit. */
+    protected long deadline_ = 0;
+
+    /** Age (in milliseconds) until which a stored certificate is reused instead of requesting a new one; 0 means never. */
+    protected long reuseMaxAge_ = 0;
+
+    /** Time (in milliseconds) requests are held while the SLCSFactory is warming up. */
+    protected long warmUpHoldTime_ = 10000;
     
+    /** Verifier of {@code GridCertLib.authToken} cookies; if {@code null}, marker files are used instead. */
+    protected AuthorizationToken token_;
+
+    /** If {@code true}, race all exported assertions instead of using the first one. */
+    protected boolean raceAssertions_ = false;
+
+    /** Name of the HTTP header holding the inline assertion, or {@code null}. */
+    protected String inlineHeader_;
+
+    /** Name of the request attribute holding the inline assertion, or {@code null}. */
+    protected String inlineAttribute_;
+
     /** Servlet context. Used for logging. */
     protected ServletContext ctx_;
 
@@ -88,19 +147,22 @@ public class SlcsInit extends HttpServlet
     {
         ctx_ = conf.getServletContext();
 
-        // Load properties to initialize GridCertLib's SLCSFactory;
-        // the location of the properties file is given by Servlet
-        // init parameter "GridcertlibPropertiesFile" (look into
-        // src/main/rources/override-web.xml).  SLCSFactory could be
-        // initialized by giving the full list of required parameters
-        // instead of a property object.
-        final Properties props = new Properties();
-        final String propertiesFile = conf.getInitParameter("GridcertlibPropertiesFile");
+        // Load properties to initialize GridCertLib's SLCSFactory; the
+        // location of the properties file is given by Servlet init
+        // parameter "GridcertlibPropertiesFile", or by the context
+        // init parameter of the same name (look into
+        // src/main/rources/override-web.xml).  Properties and
+        // factories are shared by all servlets of this webapp through
+        // the `FactoryRegistry`.
+        final FactoryRegistry registry = FactoryRegistry.getInstance(ctx_);
+        Properties props = null;
+        final String propertiesFile = FactoryRegistry.getPropertiesFile(conf);
         if (null == propertiesFile)
             throwError("SlcsInit.init", 
                        "Missing required init parameter 'GridcertlibPropertiesFile'");
         try {
-            props.load(new FileInputStream(propertiesFile));
+            props = registry.getProperties(propertiesFile);
+            props_ = props;
         }
         catch (java.io.FileNotFoundException x) {
             throwError("SlcsInit.init", 
@@ -122,16 +184,63 @@ public class SlcsInit extends HttpServlet
         // SLCSFactory bootstraps the OpenSAML library, but this can
         // be turned off by using an alternate constructor.
         try {
-            ctx_.log("SlcsInit.init(): Creating SLCSFactory (will bootstrap OpenSAML as well)...");
-            slcs = new SLCSFactory(props);
+            ctx_.log("SlcsInit.init(): Getting shared SLCSFactory (will bootstrap OpenSAML on first use)...");
+            slcs = registry.getSLCSFactory(propertiesFile);
         } catch (InvalidConfigurationException x) {
             throwError("SlcsInit.init", 
                        "Invalid value in configuration data: " + x.getMessage());
+        } catch (java.io.IOException x) {
+            throwError("SlcsInit.init", "Got IOException while loading properties from file '"
+                       + propertiesFile + "': " + x.getMessage());
         } catch (InitializationException x) {
             throwError("SlcsInit.init", 
                        "Got SLCSFactory initialization error: " + x.getMessage());
         };
 
+        try {
+            // Issuing a certificate must complete within the time
+            // given by property `gridcertlib.deadline`, if set.
+            deadline_ = Deadline.getTimeout(props);
+            // A certificate already stored with the same private key
+            // password (e.g., by `EagerIssuanceFilter`) may be reused.
+            reuseMaxAge_ = SLCSFactory.getReuseMaxAge(props);
+            warmUpHoldTime_ = ConfigProperties.getLongProperty(props, "gridcertlib.warmup.holdTime", 10000, 0);
+            // With several assertions exported by the SP, either use
+            // the first one, or retrieve them all and use the freshest.
+            raceAssertions_ = "race".equals(ConfigProperties.getChoiceProperty(props, "gridcertlib.assertion.select",
+                                                                               "first", "first", "race"));
+        }
+        catch (InvalidConfigurationException x) {
+            throwError("SlcsInit.init", x.getMessage());
+        }
+        // Requests are authorized by an HMAC-signed token if
+        // `gridcertlib.authToken.secret` is set, and by a marker
+        // file otherwise.
+        if (AuthorizationToken.isConfigured(props)) {
+            try {
+                token_ = new AuthorizationToken(props);
+            }
+            catch (IllegalArgumentException x) {
+                throwError("SlcsInit.init",
+                           "Invalid value in 'gridcertlib.authToken.*' properties: " + x.getMessage());
+            }
+        }
+
+        // The assertion may be exported inline by the SP, which
+        // saves fetching it from the assertion URL.
+        final String inline = conf.getInitParameter("InlineAssertion");
+        if (null != inline) {
+            if (inline.startsWith("header:") && inline.length() > "header:".length())
+                inlineHeader_ = inline.substring("header:".length());
+            else if (inline.startsWith("attribute:") && inline.length() > "attribute:".length())
+                inlineAttribute_ = inline.substring("attribute:".length());
+            else
+                throwError("SlcsInit.init",
+                           "Invalid value '" + inline + "' for init parameter 'InlineAssertion':"
+                           + " must be 'header:NAME' or 'attribute:NAME'");
+            ctx_.log("SlcsInit.init(): Reading assertions inline from " + inline);
+        }
+
         // The visible URL of the RenewAssertion servlet is needed to
         // redirect browsers when the assertion data is expired.
         renewAssertionUrl_ = conf.getInitParameter("RenewAssertionURL");
@@ -154,29 +263,39 @@ public class SlcsInit extends HttpServlet
     {
         ctx_.log("Running SlcsInit.doGetOrPost() ...");
 
-        // There can be more than one assertion; the exact number is
-        // stored in the `Shib-Assertion-Count` HTTP header.
-        String count_ = request.getHeader("Shib-Assertion-Count");
-        if (null == count_) 
-            throwError("SlcsInit.doGetOrPost",
-                       "Cannot read assertions count from HTTP header 'Shib-Assertion-Count'");
-        int count = Integer.parseInt(count_, 10);
-        if (count < 1) // Should not happen: if there's no assertion, there's no "Shib-Assertion-Count"
-            throwError("SlcsInit.doGetOrPost",
-                       "Count of assertions in HTTP header 'Shib-Assertion-Count' is 0");
-        ctx_.log("SlcsInit.doGet(): Shib-Assertion-Count=" + count);
-
-        // Retrieve SAML2 assertion URL; Apache needs to be configured
-        // with "ShibExportAssertion On" for this to work.  In case
-        // there are >1 assertions, we just pick the first.  A more
-        // sophisticated servlet could select according to some other
-        // criteria, or let user select one, or just try them all in
-        // turn...
-        String samlAssertionUrl = request.getHeader("Shib-Assertion-01");
-        if (null == samlAssertionUrl)
-            throwError("SlcsInit.doGetOrPost",
-                       "Cannot read assertion from HTTP header 'Shib-Assertion-01'");
-        ctx_.log("SlcsInit.doGet(): Shib-Assertion-01='" + samlAssertionUrl +"'");
+        // With an inline assertion, there is no URL to fetch it from.
+        String samlAssertionUrl = null;
+        if (isInlineAssertion()) {
+            if (null == getInlineAssertion(request))
+                throwError("SlcsInit.doGetOrPost",
+                           "Cannot read inline assertion from "
+                           + ((null != inlineHeader_) ? "HTTP header '" + inlineHeader_ + "'"
+                              : "request attribute '" + inlineAttribute_ + "'"));
+        }
+        else {
+            // There can be more than one assertion; the exact number is
+            // stored in the `Shib-Assertion-Count` HTTP header.
+            String count_ = request.getHeader("Shib-Assertion-Count");
+            if (null == count_) 
+                throwError("SlcsInit.doGetOrPost",
+                           "Cannot read assertions count from HTTP header 'Shib-Assertion-Count'");
+            int count = Integer.parseInt(count_, 10);
+            if (count < 1) // Should not happen: if there's no assertion, there's no "Shib-Assertion-Count"
+                throwError("SlcsInit.doGetOrPost",
+                           "Count of assertions in HTTP header 'Shib-Assertion-Count' is 0");
+            ctx_.log("SlcsInit.doGet(): Shib-Assertion-Count=" + count);
+
+            // Retrieve SAML2 assertion URL; Apache needs to be configured
+            // with "ShibExportAssertion On" for this to work.  In case
+            // there are >1 assertions, we pick the first here; with
+            // `gridcertlib.assertion.select = race`, `newSLCS` below
+            // retrieves them all in parallel and uses the freshest.
+            samlAssertionUrl = request.getHeader("Shib-Assertion-01");
+            if (null == samlAssertionUrl)
+                throwError("SlcsInit.doGetOrPost",
+                           "Cannot read assertion from HTTP header 'Shib-Assertion-01'");
+            ctx_.log("SlcsInit.doGet(): Shib-Assertion-01='" + samlAssertionUrl +"'");
+        }
 
         // now process the query parameters to determine the output
         // location of certificates
@@ -202,6 +321,7 @@ public class SlcsInit extends HttpServlet
         // extract the session key and password from a browser cookie
         String sessionKey = null;
         String privateKeyPassword = null;
+        String authToken = null;
         for (Cookie cookie : request.getCookies()) {
             final String name = cookie.getName();
             // XXX: hard-coded value, should match what Python django-gridcertlib is doing
@@ -211,6 +331,9 @@ public class SlcsInit extends HttpServlet
             if (name.equals("GridCertLib.sessionKey")) {
                 sessionKey = cookie.getValue();
             };
+            if (name.equals(AuthorizationToken.COOKIE)) {
+                authToken = cookie.getValue();
+            };
         }
         if (null == sessionKey || sessionKey.equals(""))
             throwError("SlcsInit.doGetOrPost", 
@@ -221,27 +344,128 @@ public class SlcsInit extends HttpServlet
 
         // NOTE: We need to prevent that an HTTP GET to
         // http://...?store=/some/dir makes us overwrite files in an
-        // aribtrary directory.  Thus we rely on Django to have
-        // created a file named "__OK__<val>" where <val> is the value
-        // passed through the "key" HTTP query paramater.  Since the
-        // Django code will only create that subdirectory in the
-        // intended directory, if it exists we can safely presume that
-        // the HTTP request comes from a redirect issued by the Django
-        // module and we are safe to process the "credentialsPath"
-        // parameter.
+        // aribtrary directory.  Thus we rely on Django to have signed
+        // the "store" parameter and the session key with the secret
+        // we share (see `AuthorizationToken`), or, if no secret is
+        // configured, to have created a file named "__OK__<val>"
+        // where <val> is the session key.  Since the Django code
+        // will only do that for the intended directory, if the
+        // token checks (or the file exists) we can safely presume
+        // that the HTTP request comes from a redirect issued by the
+        // Django module and we are safe to process the
+        // "credentialsPath" parameter.
         ctx_.log("SlcsInit.doGet(): session key='" + sessionKey +"'");
-        File marker = new File(credentialsPath + "/__OK__" + sessionKey);
-        if (! marker.exists()) {
-            ctx_.log("SlcsInit.doGetOrPut():"
+        final boolean authorized = (null != token_)
+            ? token_.verify(authToken, credentialsPath, sessionKey)
+            : new File(credentialsPath + "/__OK__" + sessionKey).exists();
+        if (! authorized) {
+            ctx_.log("SlcsInit.doGetOrPost():"
                      + " Request for credentials store in '" + credentialsPath 
-                     + "', but it does not contain the marker file for session '" + sessionKey 
+                     + "', but " + ((null != token_) ? "no valid authorization token" : "no marker file")
+                     + " for session '" + sessionKey 
                      + "'. Ignoring possibly forged request.");
             throwError("SlcsInit.doGetOrPost",
                        "Credential location '" + credentialsPath 
                        + "' cannot be trusted. Request forged?");
         }
 
+        dispatch(request, response, 
+                 samlAssertionUrl, credentialsPath, nextUrl, privateKeyPassword);
+    }
+
 
+    /**
+     * Return the URLs in the {@code Shib-Assertion-NN} headers of
+     * {@code request}, for {@code NN} from 1 to the value of the
+     * {@code Shib-Assertion-Count} header.
+     */
+    protected static List<String> getAssertionUrls(HttpServletRequest request)
+    {
+        final List<String> urls = new ArrayList<String>();
+        final String count = request.getHeader("Shib-Assertion-Count");
+        final int n = (null == count) ? 1 : Integer.parseInt(count.trim(), 10);
+        for (int i = 1; i <= n; i++) {
+            final String url = request.getHeader(String.format("Shib-Assertion-%02d", i));
+            if (null != url && ! "".equals(url.trim()))
+                urls.add(url.trim());
+        }
+        return urls;
+    }
+
+
+    /** Return {@code true} if assertions are read inline from the request; see init parameter {@code InlineAssertion}. */
+    protected boolean isInlineAssertion()
+    {
+        return null != inlineHeader_ || null != inlineAttribute_;
+    }
+
+
+    /**
+     * Return the XML form of the assertion exported inline into
+     * {@code request}, or {@code null} if there is none.  Header
+     * values not starting with {@code <} are base64-decoded.
+     */
+    protected byte[] getInlineAssertion(HttpServletRequest request)
+        throws UnsupportedEncodingException
+    {
+        if (null != inlineHeader_) {
+            final String value = request.getHeader(inlineHeader_);
+            if (null == value || "".equals(value.trim()))
+                return null;
+            if (value.trim().startsWith("<"))
+                return value.trim().getBytes("UTF-8");
+            try {
+                final byte[] xml = Base64.decode(value.trim());
+                return (0 == xml.length) ? null : xml;
+            }
+            catch (RuntimeException x) {
+                // not valid base64
+                return null;
+            }
+        }
+        final Object value = request.getAttribute(inlineAttribute_);
+        if (value instanceof byte[])
+            return (byte[]) value;
+        if (value instanceof String && ! "".equals(((String) value).trim()))
+            return ((String) value).getBytes("UTF-8");
+        return null;
+    }
+
+
+    /**
+     * Run {@link #newSLCS} on the validated request parameters.  This
+     * implementation runs it in the calling thread; subclasses may
+     * run it elsewhere (see {@link AsyncSlcsInit}).
+     */
+    protected void dispatch(HttpServletRequest request, HttpServletResponse response,
+                            final String samlAssertionUrl,
+                            final String credentialsPath,
+                            final String nextUrl,
+                            final String privateKeyPassword)
+        throws ServletException, IOException
+    {
+        newSLCS(request, response, 
+                samlAssertionUrl, credentialsPath, nextUrl, privateKeyPassword,
+                (deadline_ > 0) ? new Deadline(deadline_) : null);
+    }
+
+
+    /**
+     * Request a new SLCS certificate into {@code credentialsPath},
+     * and redirect the client to {@code nextUrl} (or to the {@link
+     * RenewAssertion} servlet, if the assertion has expired).  If
+     * the assertion is read inline from the request, {@code
+     * samlAssertionUrl} is {@code null}.  Issuance gives up when
+     * {@code deadline} (if not {@code null}) passes.
+     */
+    protected void newSLCS(HttpServletRequest request, HttpServletResponse response,
+                           final String samlAssertionUrl,
+                           final String credentialsPath,
+                           final String nextUrl,
+                           final String privateKeyPassword,
+                           final Deadline deadline)
+        throws ServletException, IOException
+    {
         // This is the core of the servlet: `SLCSFactory.newSLCS()`
         // generates a new SLCS certificate and writes it to disk, or
         // throws an exception in case of failure.  The returned
@@ -254,10 +478,58 @@ public class SlcsInit extends HttpServlet
         final String certificatePath = credentialsPath + "/usercert.pem";
         final String privateKeyPath = credentialsPath + "/userkey.pem";
         try {
-            CredentialsPathInfo pathsInfo = 
-                slcs.newSLCS(samlAssertionUrl, 
-                             certificatePath, privateKeyPath, 
-                             privateKeyPassword);
+            // If `EagerIssuanceFilter` (or an earlier request) has
+            // issued a certificate into the same store, with the same
+            // private key password, use it; if that issuance is still
+            // running, wait for it instead of starting another one.
+            if (reuseMaxAge_ > 0
+                && null != slcs.findSLCS(certificatePath, privateKeyPath,
+                                         privateKeyPassword, reuseMaxAge_, deadline)) {
+                ctx_.log("SlcsInit: reusing certificate in '" + credentialsPath
+                         + "', redirecting to URL: " + nextUrl);
+                response.sendRedirect(response.encodeRedirectURL(nextUrl));
+                return;
+            }
+
+            // With `gridcertlib.warmup = background`, the factory
+            // may still be warming up: hold the request for a while,
+            // then reject it with an `OverloadedError`.
+            slcs.awaitReady(warmUpHoldTime_);
+            CredentialsPathInfo pathsInfo;
+            if (null == samlAssertionUrl) {
+                // Inline assertion: its validity is checked by
+                // `newSLCS` before any delegation is done.
+                final byte[] xml = getInlineAssertion(request);
+                if (null == xml)
+                    throw new OperationsError("Inline assertion no longer available in request");
+                pathsInfo = slcs.newSLCS(new ByteArrayInputStream(xml),
+                                         certificatePath, privateKeyPath,
+                                         privateKeyPassword,
+                                         deadline);
+            }
+            else {
+                // Pre-flight: if the assertion will not last until the
+                // certificate is issued, have it renewed (see below)
+                // before any delegation or key generation is done.
+                // When racing, this is done on all the exported
+                // assertions at once, and the freshest usable one is
+                // kept; the others are cancelled.
+                String selectedUrl = samlAssertionUrl;
+                if (raceAssertions_) {
+                    final List<String> urls = getAssertionUrls(request);
+                    if (urls.isEmpty())
+                        urls.add(samlAssertionUrl);
+                    selectedUrl = slcs.selectAssertion(urls, deadline);
+                    ctx_.log("SlcsInit: selected assertion '" + selectedUrl + "' out of " + urls.size());
+                }
+                else
+                    slcs.checkAssertion(samlAssertionUrl, deadline);
+                pathsInfo = 
+                    slcs.newSLCS(selectedUrl, 
+                                 certificatePath, privateKeyPath, 
+                                 privateKeyPassword,
+                                 deadline);
+            }
             
             // redirect to "next" URL
             ctx_.log("SlcsInit: redirecting to URL: " + nextUrl);
@@ -305,6 +577,25 @@ public class SlcsInit extends HttpServlet
             response.sendRedirect(response.encodeRedirectURL(redirectUrl));
             return;
         }
+        // When too many requests are already waiting for the SLCS
+        // service, `newSLCS` rejects new ones right away with an
+        // `OverloadedError`, rather than tying up a servlet thread
+        // for the whole duration of a timeout: tell the client to
+        // come back later.
+        catch (OverloadedError x) {
+            ctx_.log("SlcsInit: rejecting request, SLCS service overloaded: " + x.getMessage());
+            response.setHeader("Retry-After", String.valueOf(x.getRetryAfter()));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, x.getMessage());
+            return;
+        }
+        // The SLCS service did not answer in time: do not keep the
+        // client waiting any longer.  The state of the issuance is
+        // kept, so that a retry resumes it.
+        catch (DeadlineExceededError x) {
+            ctx_.log("SlcsInit: giving up on request: " + x.getMessage());
+            response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, x.getMessage());
+            return;
+        }
         // Any error during the `slcs-init` procedure (e.g., network
         // error, authentication error to the SLCS server, disk or I/O
         // error when saving files, etc.) winds up as an
@@ -17,11 +17,14 @@
 
 package ch.swing.gridcertlib.django;
  
+import ch.swing.gridcertlib.Deadline;
+import ch.swing.gridcertlib.DeadlineExceededError;
 import ch.swing.gridcertlib.GridProxyFactory;
+import ch.swing.gridcertlib.InvalidConfigurationException;
+import ch.swing.gridcertlib.servlet.FactoryRegistry;
 
 import java.util.Properties;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -66,6 +69,15 @@ public class VomsProxyInit extends HttpServlet
     /** Factory for generating proxy certificates. */
     protected GridProxyFactory proxyFactory;
 
+    /** GridCertLib configuration, as loaded from the `GridcertlibPropertiesFile`. */
+    protected Properties props_;
+
+    /** Time (in milliseconds) allowed for generating a proxy; 0 means no limit. */
+    protected long deadline_ = 0;
+
+    /** Verifier of {@code GridCertLib.authToken} cookies; if {@code null}, marker files are used instead. */
+    protected AuthorizationToken token_;
+
     /** Servlet context. Used for logging. */
     protected ServletContext ctx_;
 
@@ -75,18 +87,21 @@ public class VomsProxyInit extends HttpServlet
     {
         ctx_ = conf.getServletContext();
 
-        // Load properties to initialize GridCertLib's GridProxyFactory;
-        // the location of the properties file is given by Servlet
-        // init parameter "GridcertlibPropertiesFile" (look into
-        // src/main/rources/override-web.xml).  GridProxyFactory could be
-        // initialized by giving the full list of required parameters
-        // instead of a property object.
-        final Properties props = new Properties();
-        final String propertiesFile = conf.getInitParameter("GridcertlibPropertiesFile");
+        // Load properties to initialize GridCertLib's GridProxyFactory; the
+        // location of the properties file is given by Servlet init
+        // parameter "GridcertlibPropertiesFile", or by the context
+        // init parameter of the same name (look into
+        // src/main/rources/override-web.xml).  Properties and
+        // factories are shared by all servlets of this webapp through
+        // the `FactoryRegistry`.
+        final FactoryRegistry registry = FactoryRegistry.getInstance(ctx_);
+        Properties props = null;
+        final String propertiesFile = FactoryRegistry.getPropertiesFile(conf);
         if (null == propertiesFile)
             throwError("VomsProxyInit.init", "Missing required init parameter 'GridcertlibPropertiesFile'");
         try {
-            props.load(new FileInputStream(propertiesFile));
+            props = registry.getProperties(propertiesFile);
+            props_ = props;
         }
         catch (java.io.FileNotFoundException x) {
             throwError("VomsProxyInit.init", 
@@ -100,7 +115,35 @@ public class VomsProxyInit extends HttpServlet
                        + "': " + x.getMessage());
         };
 
-        proxyFactory = new GridProxyFactory(props);
+        try {
+            proxyFactory = registry.getGridProxyFactory(propertiesFile);
+        }
+        catch (java.io.IOException x) {
+            throwError("VomsProxyInit.init",
+                       "Got IOException while loading properties from file '"
+                       + propertiesFile
+                       + "': " + x.getMessage());
+        };
+
+        try {
+            deadline_ = Deadline.getTimeout(props);
+        }
+        catch (InvalidConfigurationException x) {
+            throwError("VomsProxyInit.init", x.getMessage());
+        }
+
+        // Requests are authorized by an HMAC-signed token if
+        // `gridcertlib.authToken.secret` is set, and by a marker
+        // file otherwise.
+        if (AuthorizationToken.isConfigured(props)) {
+            try {
+                token_ = new AuthorizationToken(props);
+            }
+            catch (IllegalArgumentException x) {
+                throwError("VomsProxyInit.init",
+                           "Invalid value in 'gridcertlib.authToken.*' properties: " + x.getMessage());
+            }
+        }
 
         super.init(conf);
      }
@@ -142,6 +185,7 @@ public class VomsProxyInit extends HttpServlet
         // extract the session key and password from a browser cookie
         String sessionKey = null;
         String privateKeyPassword = null;
+        String authToken = null;
         for (Cookie cookie : request.getCookies()) {
             final String name = cookie.getName();
             // XXX: hard-coded value, should match what Python django-gridcertlib is doing
@@ -151,6 +195,9 @@ public class VomsProxyInit extends HttpServlet
             if (name.equals("GridCertLib.sessionKey")) {
                 sessionKey = cookie.getValue();
             };
+            if (name.equals(AuthorizationToken.COOKIE)) {
+                authToken = cookie.getValue();
+            };
         }
         if (null == sessionKey || sessionKey.equals(""))
             throwError("VomsProxyInit.doGetOrPost", 
@@ -161,24 +208,65 @@ public class VomsProxyInit extends HttpServlet
 
         // NOTE: We need to prevent that an HTTP GET to
         // http://...?store=/some/dir makes us overwrite files in an
-        // aribtrary directory.  Thus we rely on Django to have
-        // created a file named "__OK__<val>" where <val> is the value
-        // passed through the "key" HTTP query paramater.  Since the
-        // Django code will only create that subdirectory in the
-        // intended directory, if it exists we can safely presume that
-        // the HTTP request comes from a redirect issued by the Django
-        // module and we are safe to process the "credentialsPath"
-        // parameter.
-        File marker = new File(credentialsPath + "/__OK__" + sessionKey);
-        if (! marker.exists()) {
-            ctx_.log("SlcsInit.doGetOrPut(): Request for credentials store in '" + credentialsPath 
-                     + "', but it does not contain the marker file for session '" + sessionKey 
+        // aribtrary directory.  Thus we rely on Django to have signed
+        // the "store" parameter and the session key with the secret
+        // we share (see `AuthorizationToken`), or, if no secret is
+        // configured, to have created a file named "__OK__<val>"
+        // where <val> is the session key.  Since the Django code
+        // will only do that for the intended directory, if the
+        // token checks (or the file exists) we can safely presume
+        // that the HTTP request comes from a redirect issued by the
+        // Django module and we are safe to process the
+        // "credentialsPath" parameter.
+        final boolean authorized = (null != token_)
+            ? token_.verify(authToken, credentialsPath, sessionKey)
+            : new File(credentialsPath + "/__OK__" + sessionKey).exists();
+        if (! authorized) {
+            ctx_.log("VomsProxyInit.doGetOrPost():"
+                     + " Request for credentials store in '" + credentialsPath 
+                     + "', but " + ((null != token_) ? "no valid authorization token" : "no marker file")
+                     + " for session '" + sessionKey 
                      + "'. Ignoring possibly forged request.");
-            throwError("VomsProxyInit.doGetOrPost", 
+            throwError("VomsProxyInit.doGetOrPost",
                        "Credential location '" + credentialsPath 
                        + "' cannot be trusted. Request forged?");
         }
-            
+
+        dispatch(request, response, credentialsPath, nextUrl, vo, privateKeyPassword);
+    }
+
+
+    /**
+     * Run {@link #newProxy} on the validated request parameters.
+     * This implementation runs it in the calling thread; subclasses
+     * may run it elsewhere (see {@link AsyncVomsProxyInit}).
+     */
+    protected void dispatch(HttpServletRequest request, HttpServletResponse response,
+                            final String credentialsPath,
+                            final String nextUrl,
+                            final String[] vo,
+                            final String privateKeyPassword)
+        throws ServletException, IOException
+    {
+        newProxy(request, response, credentialsPath, nextUrl, vo, privateKeyPassword,
+                 (deadline_ > 0) ? new Deadline(deadline_) : null);
+    }
+
+
+    /**
+     * Create a new VOMS proxy in {@code credentialsPath}, from the
+     * SLCS certificate stored there, and redirect the client to
+     * {@code nextUrl}.  Proxy generation gives up when {@code
+     * deadline} (if not {@code null}) passes.
+     */
+    protected void newProxy(HttpServletRequest request, HttpServletResponse response,
+                            final String credentialsPath,
+                            final String nextUrl,
+                            final String[] vo,
+                            final String privateKeyPassword,
+                            final Deadline deadline)
+        throws ServletException, IOException
+    {
         // XXX: hard-coded values, must match the ones in Python's "gridcertlib" module
         final String finalProxyPath = credentialsPath + "/userproxy.pem";
         final String certificatePath = credentialsPath + "/usercert.pem";
@@ -194,10 +282,19 @@ public class VomsProxyInit extends HttpServlet
         // VOMSDIR              Directory where voms certificates are located. `Defaults to /etc/grid-security/vomsdir`
         // CADIR                Directory where CA certificates are stored; usual default is `/etc/grid-security/certificates`
         // 
-        final String initialProxyPath = proxyFactory.newProxy(certificatePath, 
-                                                              privateKeyPath, 
-                                                              privateKeyPassword, 
-                                                              vo);
+        final String initialProxyPath;
+        try {
+            initialProxyPath = proxyFactory.newProxy(certificatePath, 
+                                                     privateKeyPath, 
+                                                     privateKeyPassword, 
+                                                     vo,
+                                                     deadline);
+        }
+        catch (DeadlineExceededError x) {
+            ctx_.log("VomsProxyInit: giving up on request: " + x.getMessage());
+            response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, x.getMessage());
+            return;
+        }
         // move proxy to requested location
         File initialProxy = new File(initialProxyPath);
         File finalProxy = new File(finalProxyPath);
@@ -30,6 +30,9 @@ from django.contrib.auth.models import User
 from django.http import HttpResponseRedirect
 from django.utils.http import urlquote
 
+from gridcertlib.proxyapi import request_proxy, ProxyApiError
+from gridcertlib.tokens import make_token
+
 
 _random = random.SystemRandom()
 
@@ -124,36 +127,84 @@ def _set_secure_cookie(response, name, value):
         response.set_cookie(name, value, secure=True)
     
 
-def _gridcertlib_required(view_fn, test_fn, next_url):
+def _credentials_dir(request):
+    """
+    Return the directory holding the credentials of the user making
+    `request`.  If the ``GRIDCERTLIB_SHARED_STORE`` setting is true,
+    this is ``GRIDCERTLIB_ROOT/<username>``, the same for all the
+    user's sessions, so that the GridCertLib ``EagerIssuanceFilter``
+    can store a certificate there at Shibboleth login (its
+    ``CredentialsPath`` must then be
+    ``GRIDCERTLIB_ROOT/${REMOTE_USER}``); else, a new directory is
+    used for every Django session.
+    """
+    if getattr(settings, 'GRIDCERTLIB_SHARED_STORE', False):
+        return os.path.join(settings.GRIDCERTLIB_ROOT, request.user.username)
+    if not request.session.has_key('GridCertLib.sessionId'):
+        request.session['GridCertLib.sessionId'] = _make_random_string()
+    return os.path.join(settings.GRIDCERTLIB_ROOT,
+                        request.user.username, request.session['GridCertLib.sessionId'])
+
+
+def _gridcertlib_required(view_fn, test_fn, next_url, make_fn=None, verify_store=False):
     """
     Return a decorator for views that checks that the user passes the
     given test function; if not, issues an HTTP redirect to the
     specified `next_url`.  Assuming `next_url` points to a GridCertLib
     servlet, sets up the environment to make a successful call.
+
+    If `make_fn` is given, it is called first with the request and
+    the credentials directory, and no redirect is done if it returns
+    `True` and the test then passes.
+
+    With a shared credentials directory (see `_credentials_dir`),
+    files there may have been written in another session, with a
+    different private key password: if `verify_store` is true, the
+    first request of each session is redirected anyway, and the
+    servlet reuses the stored credentials only if the password in the
+    session decrypts them.
     """
+    shared = getattr(settings, 'GRIDCERTLIB_SHARED_STORE', False)
+
     @wraps(view_fn)
     def wrapper(request, *args, **kw):
-        if not request.session.has_key('GridCertLib.sessionId'):
-            request.session['GridCertLib.sessionId'] = _make_random_string()
-        session_id = request.session['GridCertLib.sessionId']
-
-        # ensure the private key password is stored in the session
+        # ensure the private key password is stored in the session;
+        # with a shared store, keep using the one the browser still
+        # has from an earlier session, which `EagerIssuanceFilter`
+        # encrypts the private key with
         if not request.session.has_key('GridCertLib.privateKeyPassword'):
-            request.session['GridCertLib.privateKeyPassword'] = User.objects.make_random_password(32)
+            password = None
+            if shared:
+                password = request.COOKIES.get('GridCertLib.privateKeyPassword')
+            if not password:
+                password = User.objects.make_random_password(32)
+            request.session['GridCertLib.privateKeyPassword'] = password
         #request.session['GridCertLib.privateKeyPassword'] = 'xG3FSfBZUFFb2CwX9KZTxQ7XdPjZeSJn'
 
-        certdir =  os.path.join(settings.GRIDCERTLIB_ROOT,
-                                request.user.username, session_id)
+        certdir = _credentials_dir(request)
         if not os.path.exists(certdir):
-            os.mkdir(certdir)
+            os.makedirs(certdir)
 
-        if test_fn(certdir):
+        verified = not (shared and verify_store) or request.session.get('GridCertLib.storeVerified', False)
+        if verified and test_fn(certdir):
+            return view_fn(request, *args, **kw)
+        elif make_fn is not None and make_fn(request, certdir) and test_fn(certdir):
             return view_fn(request, *args, **kw)
         else:
-            # create a marker file in the chosen usercert directory
+            if shared and verify_store:
+                request.session['GridCertLib.storeVerified'] = True
             session_key = _make_random_string()
-            marker = os.path.join(certdir, "__OK__" + session_key)
-            open(marker, 'w+b').close()
+            # authorize the servlet to write into the chosen usercert
+            # directory: with a signed token if a secret is shared
+            # with the servlets, else with a marker file
+            secret = getattr(settings, 'GRIDCERTLIB_TOKEN_SECRET', None)
+            if secret:
+                token = make_token(secret, certdir, session_key,
+                                   getattr(settings, 'GRIDCERTLIB_TOKEN_LIFETIME', 300))
+            else:
+                token = None
+                marker = os.path.join(certdir, "__OK__" + session_key)
+                open(marker, 'w+b').close()
             # redirect to GridCertLib servlet
             self_url = urlquote(request.build_absolute_uri())
             response = HttpResponseRedirect(_make_url(next_url, 
@@ -162,6 +213,8 @@ def _gridcertlib_required(view_fn, test_fn, next_url):
             _set_secure_cookie(response, 'GridCertLib.privateKeyPassword',
                                request.session['GridCertLib.privateKeyPassword'])
             _set_secure_cookie(response, 'GridCertLib.sessionKey', session_key)
+            if token is not None:
+                _set_secure_cookie(response, 'GridCertLib.authToken', token)
             return response
     return wrapper
 
@@ -196,7 +249,8 @@ def certificate_required(view_fn,
             os.environ["X509_USER_KEY"] = os.path.join(certdir, 'userkey.pem')
         return valid
 
-    wrapper = _gridcertlib_required(view_fn, usercert_is_valid, slcsinit_url)
+    wrapper = _gridcertlib_required(view_fn, usercert_is_valid, slcsinit_url,
+                                    verify_store=True)
     # the `wrapper` above needs to access user data, so the actual
     # decorator is a chain of `login_required` *followed* by the above
     # `wrapper`
@@ -212,6 +266,11 @@ def gridproxy_required(view_fn,
     Decorator for views that checks that user has a valid Grid proxy,
     redirecting to the GridCertLib ``VomsProxyInit`` servlet if
     necessary.
+
+    If the ``GRIDCERTLIB_PROXYAPI_URL`` and
+    ``GRIDCERTLIB_PROXYAPI_SECRET`` settings are defined, the proxy
+    is first requested directly from the ``ProxyApi`` servlet, and
+    the browser is redirected only if that fails.
     
     Chain-calls the `certificate_required` decorator, to which the 
     optional `redirect_field_name` argument is passed unchanged.
@@ -235,7 +294,22 @@ def gridproxy_required(view_fn,
             os.environ["X509_USER_PROXY"] = userproxy
         return valid
 
-    wrapper = _gridcertlib_required(view_fn, userproxy_is_valid, proxyinit_url)
+    proxyapi_url = getattr(settings, 'GRIDCERTLIB_PROXYAPI_URL', None)
+    proxyapi_secret = getattr(settings, 'GRIDCERTLIB_PROXYAPI_SECRET', None)
+
+    def make_userproxy(request, certdir):
+        if not (proxyapi_url and proxyapi_secret):
+            return False
+        try:
+            request_proxy(proxyapi_url, proxyapi_secret, certdir,
+                          request.session['GridCertLib.privateKeyPassword'], vo)
+            return True
+        except ProxyApiError:
+            # fall back to the browser redirect
+            return False
+
+    wrapper = _gridcertlib_required(view_fn, userproxy_is_valid, proxyinit_url,
+                                    make_userproxy)
     # the `wrapper` above needs to access user data and the
     # certificate, so the actual decorator is a chain of
     # `certificate_required` *followed* by the above `wrapper`
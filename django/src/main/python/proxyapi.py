@@ -0,0 +1,70 @@
+#! /usr/bin/env python
+#
+"""
+Client for the GridCertLib ``ProxyApi`` servlet.
+
+The servlet generates VOMS proxies on request of the portal server,
+without any browser redirect: this module sends it a batch of
+requests as JSON, and returns the results.
+"""
+__docformat__ = 'reStructuredText'
+
+import urllib2
+
+try:
+    import json
+except ImportError:
+    import simplejson as json  # Python 2.5 fallback.
+
+
+class ProxyApiError(Exception):
+    """
+    Raised when the ``ProxyApi`` servlet cannot be contacted, or
+    refuses a whole batch.
+    """
+    pass
+
+
+def request_proxies(url, secret, requests, timeout=60):
+    """
+    Send `requests` (a list of dictionaries, with keys ``store``,
+    ``privateKeyPassword``, and optionally ``vo`` and ``output``) to
+    the ``ProxyApi`` servlet at `url`, authenticating with the shared
+    `secret`.  Return the list of results, one dictionary per request,
+    in the same order; each has a ``status`` key (200 on success) and
+    either ``proxyPath``, ``pem`` or ``error``.
+
+    Raise `ProxyApiError` if the whole batch fails.
+    """
+    body = json.dumps({'requests': requests})
+    request = urllib2.Request(url, body, {
+        'Content-Type': 'application/json',
+        'Authorization': 'Bearer ' + secret,
+    })
+    try:
+        response = urllib2.urlopen(request, timeout=timeout)
+        try:
+            return json.loads(response.read())['results']
+        finally:
+            response.close()
+    except urllib2.HTTPError, ex:
+        raise ProxyApiError("ProxyApi at '%s' answered %d: %s" % (url, ex.code, ex.msg))
+    except (urllib2.URLError, IOError, ValueError, KeyError), ex:
+        raise ProxyApiError("Cannot get proxies from ProxyApi at '%s': %s" % (url, ex))
+
+
+def request_proxy(url, secret, store, private_key_password, vo=None, timeout=60):
+    """
+    Request a single proxy, to be stored as ``userproxy.pem`` in
+    directory `store`; return its path.
+
+    Raise `ProxyApiError` if the proxy could not be generated.
+    """
+    request = {'store': store, 'privateKeyPassword': private_key_password}
+    if vo is not None:
+        request['vo'] = vo
+    result = request_proxies(url, secret, [request], timeout)[0]
+    if result.get('status') != 200:
+        raise ProxyApiError("Cannot generate proxy in '%s': %s"
+                            % (store, result.get('error')))
+    return result['proxyPath']
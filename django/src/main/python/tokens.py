@@ -0,0 +1,60 @@
+#! /usr/bin/env python
+#
+"""
+Authorization tokens for the GridCertLib servlets.
+
+A token authorizes the ``SlcsInit`` and ``VomsProxyInit`` servlets
+to store credentials in a given directory, on behalf of a given
+session key, until an expiration time.  It is signed with a secret
+shared with the servlets (Java property
+``gridcertlib.authToken.secret``), and checked by Java class
+``ch.swing.gridcertlib.django.AuthorizationToken``.
+"""
+__docformat__ = 'reStructuredText'
+
+import hashlib
+import hmac
+import time
+
+
+VERSION = 'v1'
+
+
+def _utf8(s):
+    if isinstance(s, unicode):
+        return s.encode('utf-8')
+    return s
+
+
+def make_token(secret, store, session_key, lifetime=300, now=None):
+    """
+    Return a token authorizing `session_key` to store credentials
+    in directory `store` for the next `lifetime` seconds.
+
+    The token has the form ``v1.EXPIRES.MAC``, where ``EXPIRES`` is
+    the expiration time in seconds since the epoch, and ``MAC`` is the
+    hexadecimal HMAC-SHA256 (keyed with `secret`) of
+    ``"v1\\nSTORE\\nSESSION_KEY\\nEXPIRES"``.  Optional argument `now`
+    replaces the current time.
+
+    Example::
+
+      >>> make_token('secret', '/var/lib/gridcertlib/alice/42', 'abc123',
+      ...            lifetime=300, now=1300000000)
+      'v1.1300000300.32d8504645585ac58d8109337e850afbc2fcc3286b9615d5d52b59e32c0c0d62'
+    """
+    if now is None:
+        now = time.time()
+    expires = int(now) + int(lifetime)
+    message = str.join('\n', [VERSION, _utf8(store), _utf8(session_key), str(expires)])
+    mac = hmac.new(_utf8(secret), message, hashlib.sha256).hexdigest()
+    return "%s.%d.%s" % (VERSION, expires, mac)
+
+
+
+## main: run tests
+
+if "__main__" == __name__:
+    import doctest
+    doctest.testmod(name="tokens",
+                    optionflags=doctest.NORMALIZE_WHITESPACE)
@@ -0,0 +1,137 @@
+/**
+ * @file   AuthorizationTokenTest.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class AuthorizationTokenTest
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.django;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+
+/** Tests for {@link AuthorizationToken}: MAC format, tampering and expiry. */
+public class AuthorizationTokenTest {
+
+    private static final String STORE = "/var/lib/gridcertlib/alice/42";
+    private static final String SESSION = "abc123";
+
+    private final AuthorizationToken tokens_ = new AuthorizationToken("secret", 600);
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+
+    @Test
+    public void testSameMacAsPython() {
+        // from the doctest of `make_token` in tokens.py
+        assertEquals("v1.1300000300.32d8504645585ac58d8109337e850afbc2fcc3286b9615d5d52b59e32c0c0d62",
+                     tokens_.mint(STORE, SESSION, 1300000300L));
+    }
+
+
+    @Test
+    public void testValidToken() {
+        final String token = tokens_.mint(STORE, SESSION, now() + 300);
+        assertTrue(tokens_.verify(token, STORE, SESSION));
+    }
+
+
+    @Test
+    public void testTokenBoundToStoreAndSession() {
+        final String token = tokens_.mint(STORE, SESSION, now() + 300);
+        assertFalse(tokens_.verify(token, "/var/lib/gridcertlib/mallory/42", SESSION));
+        assertFalse(tokens_.verify(token, STORE, "other"));
+        assertFalse(tokens_.verify(token, null, SESSION));
+        assertFalse(tokens_.verify(token, STORE, null));
+    }
+
+
+    @Test
+    public void testTamperedToken() {
+        final long expires = now() + 300;
+        final String token = tokens_.mint(STORE, SESSION, expires);
+        // later expiration, same MAC
+        assertFalse(tokens_.verify(token.replace("." + expires + ".", "." + (expires + 60) + "."), STORE, SESSION));
+        // different MAC
+        final char last = token.charAt(token.length() - 1);
+        assertFalse(tokens_.verify(token.substring(0, token.length() - 1) + ('0' == last ? '1' : '0'),
+                                   STORE, SESSION));
+        // other secret
+        assertFalse(new AuthorizationToken("other secret", 600).verify(token, STORE, SESSION));
+    }
+
+
+    @Test
+    public void testExpiredToken() {
+        assertFalse(tokens_.verify(tokens_.mint(STORE, SESSION, now() - 1), STORE, SESSION));
+        assertFalse(tokens_.verify(tokens_.mint(STORE, SESSION, now()), STORE, SESSION));
+    }
+
+
+    @Test
+    public void testLifetimeTooLong() {
+        assertFalse(tokens_.verify(tokens_.mint(STORE, SESSION, now() + 3600), STORE, SESSION));
+    }
+
+
+    @Test
+    public void testMalformedTokens() {
+        final String[] malformed = {
+            null,
+            "",
+            "v1",
+            "v1." + (now() + 300),
+            "v2." + (now() + 300) + ".00",
+            "v1.soon." + tokens_.mint(STORE, SESSION, now() + 300).split("\\.")[2],
+            tokens_.mint(STORE, SESSION, now() + 300) + ".extra",
+        };
+        for (String token : malformed)
+            assertFalse("Accepted malformed token '" + token + "'", tokens_.verify(token, STORE, SESSION));
+    }
+
+
+    @Test
+    public void testPropertiesConfiguration() {
+        final Properties props = new Properties();
+        assertFalse(AuthorizationToken.isConfigured(props));
+        props.setProperty("gridcertlib.authToken.secret", "");
+        assertFalse(AuthorizationToken.isConfigured(props));
+        props.setProperty("gridcertlib.authToken.secret", "secret");
+        props.setProperty("gridcertlib.authToken.maxLifetime", "60");
+        assertTrue(AuthorizationToken.isConfigured(props));
+
+        final AuthorizationToken tokens = new AuthorizationToken(props);
+        assertTrue(tokens.verify(tokens_.mint(STORE, SESSION, now() + 30), STORE, SESSION));
+        assertFalse(tokens.verify(tokens_.mint(STORE, SESSION, now() + 300), STORE, SESSION));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptySecretRejected() {
+        new AuthorizationToken("", 600);
+    }
+}
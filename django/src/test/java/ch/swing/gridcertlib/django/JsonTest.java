@@ -0,0 +1,134 @@
+/**
+ * @file   JsonTest.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class JsonTest
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.django;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+/** Tests for the {@link Json} reader and writer, in particular string escaping. */
+public class JsonTest {
+
+    private static void assertInvalid(final String text) {
+        try {
+            Json.parse(text);
+            fail("Accepted invalid JSON: " + text);
+        }
+        catch (IllegalArgumentException x) {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void testEscapes() {
+        assertEquals("\"plain\"", Json.write("plain"));
+        assertEquals("\"a \\\"quoted\\\" word\"", Json.write("a \"quoted\" word"));
+        assertEquals("\"C:\\\\dir\"", Json.write("C:\\dir"));
+        assertEquals("\"line\\nbreak\\r\\ttab\"", Json.write("line\nbreak\r\ttab"));
+        assertEquals("\"\\u0000\\u0001\\u001f\"", Json.write("\u0000\u0001\u001f"));
+        // not escaped: forward slash, non-ASCII
+        assertEquals("\"/etc/grid-security \u00e9\"", Json.write("/etc/grid-security \u00e9"));
+    }
+
+
+    @Test
+    public void testEscapedStringsRoundTrip() {
+        final String[] strings = {
+            "",
+            "\"\\\"",
+            "\u0000\b\f\n\r\t\u001f",
+            "-----BEGIN CERTIFICATE-----\nMIIB\n-----END CERTIFICATE-----\n",
+            "\u00fcml\u00e4ut \u2603",
+        };
+        for (String s : strings)
+            assertEquals(s, Json.parse(Json.write(s)));
+    }
+
+
+    @Test
+    public void testParseEscapes() {
+        assertEquals("a/b\u00e9\b\f", Json.parse("\"a\\/b\\u00e9\\b\\f\""));
+        assertInvalid("\"\\x\"");
+        assertInvalid("\"\\u12\"");
+        assertInvalid("\"\\u12zz\"");
+        assertInvalid("\"unterminated");
+        assertInvalid("\"trailing backslash\\");
+    }
+
+
+    @Test
+    public void testWriteStructures() {
+        final Map<String, Object> object = new LinkedHashMap<String, Object>();
+        final List<Object> list = new ArrayList<Object>();
+        list.add(Long.valueOf(1));
+        list.add(Double.valueOf(2.5));
+        list.add(Boolean.TRUE);
+        list.add(null);
+        object.put("list", list);
+        object.put("key \"quoted\"", "value");
+        object.put("empty", new LinkedHashMap<String, Object>());
+        final String text = Json.write(object);
+        assertEquals("{\"list\":[1,2.5,true,null],\"key \\\"quoted\\\"\":\"value\",\"empty\":{}}", text);
+        assertEquals(object, Json.parse(text));
+    }
+
+
+    @Test
+    public void testParseValues() {
+        assertEquals(Long.valueOf(-42), Json.parse(" -42 "));
+        assertEquals(Double.valueOf(1e3), Json.parse("1e3"));
+        assertEquals(Boolean.FALSE, Json.parse("false"));
+        assertNull(Json.parse("null"));
+        assertEquals(new ArrayList<Object>(), Json.parse("[ ]"));
+    }
+
+
+    @Test
+    public void testInvalidDocuments() {
+        assertInvalid("");
+        assertInvalid("{");
+        assertInvalid("{\"a\" 1}");
+        assertInvalid("{a: 1}");
+        assertInvalid("[1,]");
+        assertInvalid("[1 2]");
+        assertInvalid("tru");
+        assertInvalid("1-");
+        assertInvalid("{} {}");
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedType() {
+        Json.write(new Object());
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ * @file   ExecutionModeBenchmark.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class ExecutionModeBenchmark
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.loadtest;
+
+import ch.swing.gridcertlib.CredentialsPathInfo;
+import ch.swing.gridcertlib.GridProxyFactory;
+import ch.swing.gridcertlib.SLCSFactory;
+import ch.swing.gridcertlib.VirtualThreads;
+import ch.swing.gridcertlib.WorkerPool;
+import ch.swing.gridcertlib.testbed.SLCSStandInServer;
+import ch.swing.gridcertlib.testbed.VOMSStandInServer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/** Compare the {@code platform} and {@code virtual} modes of {@link
+ * WorkerPool} on credential issuance.
+ * <p>
+ * Starts the test bed stand-ins, then, for each mode, submits a
+ * batch of issuances (an SLCS certificate, and/or a VOMS proxy made
+ * from it) to a {@link WorkerPool} all at once, and waits for all of
+ * them to complete.  Each issuance is timed from submission, so time
+ * spent waiting for a worker is included.  Reports throughput,
+ * latency percentiles and the peak number of live (platform)
+ * threads, for each mode.
+ * <p>
+ * The test bed latency injection ({@code testbed.*} properties in
+ * the file given with {@code -p}) sets how long issuance waits on
+ * the network; {@code gridcertlib.*} properties in the same file
+ * override the GridCertLib configuration, e.g., to raise the
+ * {@code gridcertlib.admission.*} limits, which would otherwise cap
+ * concurrency in both modes alike.
+ * <p>
+ * Virtual threads need Java 21 and the multi-release {@code
+ * gridcertlib-core} jar (not the {@code target/classes} directory)
+ * on the class path; otherwise, the {@code virtual} run falls back
+ * to platform threads, and says so.
+ */
+public class ExecutionModeBenchmark {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(ExecutionModeBenchmark.class);
+
+    protected static final String USAGE =
+        "Usage: ExecutionModeBenchmark [options] <work directory>\n"
+        + "Options:\n"
+        + "  -n N       issuances per mode (default: 2000)\n"
+        + "  -t N       worker threads, i.e., maximum concurrent issuances (default: 200)\n"
+        + "  -m MODE    one of 'platform', 'virtual' or 'both' (default: both)\n"
+        + "  -f FLOW    one of 'slcs', 'proxy' or 'both' (default: slcs)\n"
+        + "  -V VO      VO to request for proxies; may be repeated (default: testbed)\n"
+        + "  -u N       number of distinct portal users (default: 100)\n"
+        + "  -p FILE    properties file with test bed and GridCertLib configuration\n";
+
+    protected int count_ = 2000;
+    protected int threads_ = 200;
+    protected boolean doPlatform_ = true;
+    protected boolean doVirtual_ = true;
+    protected boolean doSlcs_ = true;
+    protected boolean doProxy_ = false;
+    protected final List<String> vos_ = new ArrayList<String>();
+    protected int userCount_ = 100;
+    protected final Properties props_ = new Properties();
+    protected File workDir_;
+
+    protected SLCSStandInServer slcs_;
+    protected VOMSStandInServer voms_;
+
+
+    /** Parse command-line arguments; throws {@code IllegalArgumentException} on errors. */
+    public ExecutionModeBenchmark(final String[] args)
+        throws IOException
+    {
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i += 2) {
+            final String opt = args[i];
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Option " + opt + " requires an argument");
+            final String arg = args[i + 1];
+            if (opt.equals("-n"))
+                count_ = Integer.parseInt(arg);
+            else if (opt.equals("-t"))
+                threads_ = Integer.parseInt(arg);
+            else if (opt.equals("-m")) {
+                if (! (arg.equals("platform") || arg.equals("virtual") || arg.equals("both")))
+                    throw new IllegalArgumentException("Unknown mode '" + arg + "'");
+                doPlatform_ = ! arg.equals("virtual");
+                doVirtual_ = ! arg.equals("platform");
+            }
+            else if (opt.equals("-f")) {
+                if (! (arg.equals("slcs") || arg.equals("proxy") || arg.equals("both")))
+                    throw new IllegalArgumentException("Unknown flow '" + arg + "'");
+                // a proxy needs a certificate, so SLCS issuance is always run
+                doProxy_ = ! arg.equals("slcs");
+            }
+            else if (opt.equals("-V"))
+                vos_.add(arg);
+            else if (opt.equals("-u"))
+                userCount_ = Integer.parseInt(arg);
+            else if (opt.equals("-p")) {
+                FileInputStream in = new FileInputStream(arg);
+                try {
+                    props_.load(in);
+                }
+                finally {
+                    in.close();
+                }
+            }
+            else
+                throw new IllegalArgumentException("Unknown option " + opt);
+        }
+        if (i != args.length - 1)
+            throw new IllegalArgumentException("Exactly one work directory must be given");
+        workDir_ = new File(args[i]);
+        if (vos_.isEmpty())
+            vos_.add("testbed");
+        if (count_ < 1 || threads_ < 1 || userCount_ < 1)
+            throw new IllegalArgumentException("Counts must be positive");
+    }
+
+
+    public void run(final PrintStream out)
+        throws Exception
+    {
+        slcs_ = new SLCSStandInServer(new File(workDir_, "testbed"), props_);
+        slcs_.start();
+        try {
+            if (doProxy_) {
+                voms_ = new VOMSStandInServer(new File(workDir_, "voms"), slcs_.getState().ca,
+                                              props_, vos_.toArray(new String[vos_.size()]));
+                voms_.start();
+                // must be set before `GridProxyFactory` is used
+                voms_.setSystemProperties();
+            }
+            out.println("Java " + System.getProperty("java.version") + ", virtual threads "
+                        + (VirtualThreads.isAvailable() ? "available" : "NOT available"));
+            out.println(count_ + " issuances per mode, at most " + threads_ + " at a time"
+                        + (doProxy_ ? ", with VOMS proxy for " + vos_ : ""));
+            if (doPlatform_)
+                runMode(out, false);
+            if (doVirtual_)
+                runMode(out, true);
+        }
+        finally {
+            try { if (null != voms_) voms_.stop(); }
+            catch (Exception x) { LOG.warn("Error stopping VOMS stand-in: " + x.getMessage()); }
+            try { slcs_.stop(); }
+            catch (Exception x) { LOG.warn("Error stopping SLCS stand-in: " + x.getMessage()); }
+        }
+    }
+
+
+    /** Run one batch of issuances on a pool in the given mode, and print the results. */
+    protected void runMode(final PrintStream out, final boolean virtual)
+        throws Exception
+    {
+        final String mode = virtual ? "virtual" : "platform";
+        final Properties props = slcs_.getGridcertlibProperties();
+        for (Object name : props_.keySet())
+            if (name.toString().startsWith("gridcertlib."))
+                props.setProperty(name.toString(), props_.getProperty(name.toString()));
+        props.setProperty("gridcertlib.workers.mode", mode);
+        final SLCSFactory slcsFactory = new SLCSFactory(props);
+        final GridProxyFactory proxyFactory = doProxy_ ? new GridProxyFactory(props) : null;
+        // the queue takes the whole batch, so no issuance is rejected
+        final WorkerPool pool = new WorkerPool("bench-" + mode, virtual, threads_, count_);
+
+        final FlowStats slcsStats = new FlowStats("slcs (" + (pool.isVirtual() ? "virtual" : "platform") + ")");
+        final FlowStats proxyStats = new FlowStats("proxy (" + (pool.isVirtual() ? "virtual" : "platform") + ")");
+        final CountDownLatch done = new CountDownLatch(count_);
+        final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        mx.resetPeakThreadCount();
+
+        final long start = System.nanoTime();
+        for (int n = 0; n < count_; n++) {
+            final String user = "user" + (n % userCount_);
+            final long submitted = System.nanoTime();
+            pool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            issue(slcsFactory, proxyFactory, user, submitted, slcsStats, proxyStats);
+                        }
+                        finally {
+                            done.countDown();
+                        }
+                    }
+                });
+        }
+        done.await();
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+        pool.getExecutor().awaitTermination(10, TimeUnit.SECONDS);
+
+        out.println();
+        out.println(String.format("Mode %s: %d issuances in %.1fs, peak %d live threads",
+                                  pool.isVirtual() ? "virtual" : "platform (requested: " + mode + ")",
+                                  count_, seconds, mx.getPeakThreadCount()));
+        slcsStats.report(out, seconds);
+        if (doProxy_)
+            proxyStats.report(out, seconds);
+    }
+
+
+    /** Issue a certificate, and maybe a proxy, for {@code user}; record
+     * the latency since {@code submitted} ({@code System.nanoTime()}).
+     */
+    protected void issue(final SLCSFactory slcsFactory,
+                         final GridProxyFactory proxyFactory,
+                         final String user,
+                         final long submitted,
+                         final FlowStats slcsStats,
+                         final FlowStats proxyStats)
+    {
+        CredentialsPathInfo creds = null;
+        try {
+            creds = slcsFactory.newSLCS(slcs_.newAssertionUrl(user));
+            slcsStats.success((System.nanoTime() - submitted) / 1000);
+        }
+        catch (RuntimeException x) {
+            slcsStats.failure((System.nanoTime() - submitted) / 1000, x.getClass().getSimpleName());
+            return;
+        }
+        try {
+            if (null == proxyFactory)
+                return;
+            final long started = System.nanoTime();
+            try {
+                final String proxy = proxyFactory.newProxy(creds, vos_.toArray(new String[vos_.size()]));
+                proxyStats.success((System.nanoTime() - started) / 1000);
+                new File(proxy).delete();
+            }
+            catch (Exception x) {
+                proxyStats.failure((System.nanoTime() - started) / 1000, x.getClass().getSimpleName());
+            }
+        }
+        finally {
+            new File(creds.getCertificatePath()).delete();
+            new File(creds.getPrivateKeyPath()).delete();
+        }
+    }
+
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        ExecutionModeBenchmark benchmark;
+        try {
+            benchmark = new ExecutionModeBenchmark(args);
+        }
+        catch (IllegalArgumentException x) {
+            System.err.println(x.getMessage());
+            System.err.print(USAGE);
+            System.exit(1);
+            return;
+        }
+        benchmark.run(System.out);
+        System.exit(0);
+    }
+}
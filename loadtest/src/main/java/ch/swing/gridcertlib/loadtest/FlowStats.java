@@ -0,0 +1,120 @@
+/**
+ * @file   FlowStats.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class FlowStats
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.loadtest;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/** Latency and outcome statistics for one kind of flow (e.g., the
+ * {@code slcs-init} redirect chain).  Successful and failed flows
+ * are timed separately; failures are also counted by cause.
+ */
+public class FlowStats {
+
+    public static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9, 99.99 };
+
+    protected final String name_;
+    protected final LatencyHistogram ok_ = new LatencyHistogram();
+    protected final LatencyHistogram failed_ = new LatencyHistogram();
+    protected final ConcurrentMap<String, AtomicLong> errors_ = new ConcurrentHashMap<String, AtomicLong>();
+
+
+    public FlowStats(final String name)
+    {
+        name_ = name;
+    }
+
+
+    public String getName()                { return name_; }
+    public LatencyHistogram getSuccesses() { return ok_; }
+    public LatencyHistogram getFailures()  { return failed_; }
+
+
+    /** Record a successful flow that took {@code micros} microseconds. */
+    public void success(final long micros)
+    {
+        ok_.record(micros);
+    }
+
+
+    /** Record a failed flow; {@code cause} is a short description
+     * used to group failures, e.g., {@code "HTTP 500"}.
+     */
+    public void failure(final long micros, final String cause)
+    {
+        failed_.record(micros);
+        AtomicLong counter = errors_.get(cause);
+        if (null == counter) {
+            final AtomicLong fresh = new AtomicLong();
+            counter = errors_.putIfAbsent(cause, fresh);
+            if (null == counter)
+                counter = fresh;
+        }
+        counter.incrementAndGet();
+    }
+
+
+    /** Print a summary: throughput, success latency percentiles (in
+     * milliseconds) and error breakdown.
+     *
+     * @param out     where to print
+     * @param seconds length of the measurement interval, for computing throughput
+     */
+    public void report(final PrintStream out, final double seconds)
+    {
+        final long ok = ok_.getCount();
+        final long failed = failed_.getCount();
+        out.println(String.format("%s: %d ok, %d failed (%.2f%%), %.2f ok/s",
+                                  name_, ok, failed,
+                                  (0 == ok + failed) ? 0.0 : 100.0 * failed / (ok + failed),
+                                  (seconds > 0) ? ok / seconds : 0.0));
+        if (ok > 0) {
+            StringBuilder line = new StringBuilder("  latency ms:");
+            line.append(String.format(" mean=%.1f", ok_.getMean() / 1000.0));
+            for (double p : PERCENTILES)
+                line.append(String.format(" p%s=%.1f", formatPercentile(p),
+                                          ok_.getValueAtPercentile(p) / 1000.0));
+            line.append(String.format(" max=%.1f", ok_.getMax() / 1000.0));
+            out.println(line);
+        }
+        if (failed > 0) {
+            out.println(String.format("  failed flows: p50=%.1f ms, max=%.1f ms",
+                                      failed_.getValueAtPercentile(50.0) / 1000.0,
+                                      failed_.getMax() / 1000.0));
+            for (Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(errors_).entrySet())
+                out.println(String.format("  %8d  %s", e.getValue().get(), e.getKey()));
+        }
+    }
+
+
+    private static String formatPercentile(final double p)
+    {
+        return (p == Math.floor(p)) ? String.valueOf((long)p) : String.valueOf(p);
+    }
+}
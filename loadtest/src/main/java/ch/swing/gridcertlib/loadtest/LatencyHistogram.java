@@ -0,0 +1,142 @@
+/**
+ * @file   LatencyHistogram.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class LatencyHistogram
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/** Lock-free latency histogram with log-linear buckets, in the
+ * style of HdrHistogram.
+ * <p>
+ * Values (in microseconds) below {@value #SUB_BUCKETS} are counted
+ * exactly; above that, each power-of-two range is split into {@code
+ * SUB_BUCKETS/2} linear buckets, so that any recorded value is
+ * reported with a relative error below 0.2%.  Values larger than
+ * {@link #MAX_VALUE} (about 12 days) are clamped.
+ */
+public class LatencyHistogram {
+
+    /** Number of buckets in the first, exact range; must be a power of two. */
+    public static final int SUB_BUCKETS = 1024;
+
+    private static final int SUB_BITS = 10;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int MAX_EXPONENT = 31;
+
+    /** Largest value that can be recorded without clamping. */
+    public static final long MAX_VALUE = ((long)SUB_BUCKETS << MAX_EXPONENT) - 1;
+
+    private final AtomicLongArray counts_ = new AtomicLongArray(SUB_BUCKETS + MAX_EXPONENT * HALF);
+    private final AtomicLong count_ = new AtomicLong();
+    private final AtomicLong sum_ = new AtomicLong();
+    private final AtomicLong max_ = new AtomicLong();
+
+
+    /** Record a single value, in microseconds. */
+    public void record(long micros)
+    {
+        if (micros < 0)
+            micros = 0;
+        if (micros > MAX_VALUE)
+            micros = MAX_VALUE;
+        counts_.incrementAndGet(indexOf(micros));
+        count_.incrementAndGet();
+        sum_.addAndGet(micros);
+        long max;
+        while (micros > (max = max_.get()))
+            if (max_.compareAndSet(max, micros))
+                break;
+    }
+
+
+    public long getCount() { return count_.get(); }
+    public long getMax()   { return max_.get(); }
+
+    public double getMean()
+    {
+        final long n = count_.get();
+        return (0 == n) ? 0.0 : (double)sum_.get() / n;
+    }
+
+
+    /** Return the value below which {@code percentile} percent of
+     * the recorded values fall, as the upper bound of the bucket
+     * holding it.  Returns 0 if no value has been recorded.
+     */
+    public long getValueAtPercentile(final double percentile)
+    {
+        final long n = count_.get();
+        if (0 == n)
+            return 0;
+        long rank = (long)Math.ceil(percentile / 100.0 * n);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < counts_.length(); i++) {
+            seen += counts_.get(i);
+            if (seen >= rank)
+                return Math.min(upperBoundOf(i), max_.get());
+        }
+        return max_.get();
+    }
+
+
+    /** Add all values recorded in {@code other} to this histogram. */
+    public void add(final LatencyHistogram other)
+    {
+        for (int i = 0; i < counts_.length(); i++) {
+            final long c = other.counts_.get(i);
+            if (c > 0)
+                counts_.addAndGet(i, c);
+        }
+        count_.addAndGet(other.count_.get());
+        sum_.addAndGet(other.sum_.get());
+        long max;
+        final long otherMax = other.max_.get();
+        while (otherMax > (max = max_.get()))
+            if (max_.compareAndSet(max, otherMax))
+                break;
+    }
+
+
+    static int indexOf(final long value)
+    {
+        if (value < SUB_BUCKETS)
+            return (int)value;
+        final int exp = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BITS - 1);
+        final int sub = (int)(value >>> exp);  // in [HALF, SUB_BUCKETS)
+        return SUB_BUCKETS + (exp - 1) * HALF + (sub - HALF);
+    }
+
+
+    static long upperBoundOf(final int index)
+    {
+        if (index < SUB_BUCKETS)
+            return index;
+        final int exp = (index - SUB_BUCKETS) / HALF + 1;
+        final long sub = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((sub + 1) << exp) - 1;
+    }
+}
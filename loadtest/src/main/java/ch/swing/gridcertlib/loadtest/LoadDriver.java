@@ -0,0 +1,390 @@
+/**
+ * @file   LoadDriver.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class LoadDriver
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.loadtest;
+
+import ch.swing.gridcertlib.testbed.FaultInjector;
+import ch.swing.gridcertlib.testbed.SLCSStandInServer;
+import ch.swing.gridcertlib.testbed.VOMSStandInServer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/** Command-line load generator for the GridCertLib Django servlets.
+ * <p>
+ * Starts the test bed stand-ins ({@link SLCSStandInServer}, {@link
+ * VOMSStandInServer}) and a local Jetty hosting the servlets ({@link
+ * PortalServer}), then runs {@link VirtualUser}s through the {@code
+ * slcs-init} and/or {@code voms-proxy-init} redirect chains; chains
+ * that hit an expired assertion go through {@code RenewAssertion}
+ * and are also accounted separately.  At the end, prints latency
+ * percentiles and error breakdown for each flow.
+ * <p>
+ * Two load models are supported:
+ * <dl>
+ * <dt>closed loop ({@code -c N})
+ * <dd>N concurrent clients, each starting a new flow as soon as the
+ *     previous one is done; latency is measured from the actual start
+ *     of each flow;
+ * <dt>open loop ({@code -r RATE})
+ * <dd>flows are started at a fixed rate, regardless of how many are
+ *     still in progress; latency is measured from the scheduled start
+ *     time, so that queueing delay in the driver itself is not hidden
+ *     ("coordinated omission").
+ * </dl>
+ * Run without arguments for a list of options.  Latency and error
+ * injection in the stand-ins is configured with the {@code
+ * testbed.*} properties in the file given with {@code -p}.
+ */
+public class LoadDriver {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(LoadDriver.class);
+
+    protected static final String USAGE =
+        "Usage: LoadDriver [options] <work directory>\n"
+        + "Options:\n"
+        + "  -c N       closed loop with N concurrent clients (default: 10)\n"
+        + "  -r RATE    open loop, starting RATE flows per second\n"
+        + "  -d SECS    duration of the run, including warm-up (default: 60)\n"
+        + "  -w SECS    warm-up time, excluded from statistics (default: 10)\n"
+        + "  -u N       number of distinct portal users (default: 100)\n"
+        + "  -f FLOW    one of 'slcs', 'proxy' or 'both' (default: both)\n"
+        + "  -V VO      VO to request in voms-proxy-init; may be repeated (default: testbed)\n"
+        + "  -t MILLIS  HTTP connect/read timeout (default: 300000)\n"
+        + "  -j N       size of the portal Jetty thread pool (default: 200)\n"
+        + "  -m MODE    servlets to drive: 'sync' or 'async' (Servlet 3.0 variants; default: sync)\n"
+        + "  -p FILE    properties file with test bed configuration (latency, error rates, ...)\n"
+        + "  -s SEED    seed for choosing users (default: 42)\n";
+
+    protected int concurrency_ = 10;
+    protected double rate_ = 0;
+    protected long duration_ = 60;
+    protected long warmup_ = 10;
+    protected int userCount_ = 100;
+    protected boolean doSlcs_ = true;
+    protected boolean doProxy_ = true;
+    protected final List<String> vos_ = new ArrayList<String>();
+    protected int timeout_ = 300000;
+    protected int jettyThreads_ = 200;
+    protected boolean async_ = false;
+    protected long seed_ = 42;
+    protected final Properties testbedProps_ = new Properties();
+    protected File workDir_;
+
+    protected SLCSStandInServer slcs_;
+    protected VOMSStandInServer voms_;
+    protected PortalServer portal_;
+    protected final List<VirtualUser> users_ = new ArrayList<VirtualUser>();
+
+    protected final FlowStats slcsStats_ = new FlowStats("slcs-init");
+    protected final FlowStats proxyStats_ = new FlowStats("voms-proxy-init");
+    protected final FlowStats renewStats_ = new FlowStats("(flows through RenewAssertion)");
+
+    /** Flows scheduled before this instant ({@code System.nanoTime()}) are not recorded. */
+    protected long recordFrom_;
+
+
+    /** Parse command-line arguments; throws {@code IllegalArgumentException} on errors. */
+    public LoadDriver(final String[] args)
+        throws IOException
+    {
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i += 2) {
+            final String opt = args[i];
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Option " + opt + " requires an argument");
+            final String arg = args[i + 1];
+            if (opt.equals("-c"))
+                concurrency_ = Integer.parseInt(arg);
+            else if (opt.equals("-r"))
+                rate_ = Double.parseDouble(arg);
+            else if (opt.equals("-d"))
+                duration_ = Long.parseLong(arg);
+            else if (opt.equals("-w"))
+                warmup_ = Long.parseLong(arg);
+            else if (opt.equals("-u"))
+                userCount_ = Integer.parseInt(arg);
+            else if (opt.equals("-f")) {
+                if (! (arg.equals("slcs") || arg.equals("proxy") || arg.equals("both")))
+                    throw new IllegalArgumentException("Unknown flow '" + arg + "'");
+                doSlcs_ = ! arg.equals("proxy");
+                doProxy_ = ! arg.equals("slcs");
+            }
+            else if (opt.equals("-V"))
+                vos_.add(arg);
+            else if (opt.equals("-t"))
+                timeout_ = Integer.parseInt(arg);
+            else if (opt.equals("-j"))
+                jettyThreads_ = Integer.parseInt(arg);
+            else if (opt.equals("-m")) {
+                if (! (arg.equals("sync") || arg.equals("async")))
+                    throw new IllegalArgumentException("Unknown servlet mode '" + arg + "'");
+                async_ = arg.equals("async");
+            }
+            else if (opt.equals("-s"))
+                seed_ = Long.parseLong(arg);
+            else if (opt.equals("-p")) {
+                FileInputStream in = new FileInputStream(arg);
+                try {
+                    testbedProps_.load(in);
+                }
+                finally {
+                    in.close();
+                }
+            }
+            else
+                throw new IllegalArgumentException("Unknown option " + opt);
+        }
+        if (i != args.length - 1)
+            throw new IllegalArgumentException("Exactly one work directory must be given");
+        workDir_ = new File(args[i]);
+        if (vos_.isEmpty())
+            vos_.add("testbed");
+        if (warmup_ >= duration_)
+            throw new IllegalArgumentException("Warm-up time must be shorter than total duration");
+    }
+
+
+    /** Start stand-ins and portal, create users, run the load and print a report. */
+    public void run(final PrintStream out)
+        throws Exception
+    {
+        setUp();
+        try {
+            if (rate_ > 0)
+                runOpenLoop();
+            else
+                runClosedLoop();
+            report(out);
+        }
+        finally {
+            tearDown();
+        }
+    }
+
+
+    protected void setUp()
+        throws Exception
+    {
+        slcs_ = new SLCSStandInServer(new File(workDir_, "testbed"), testbedProps_);
+        slcs_.start();
+        voms_ = new VOMSStandInServer(new File(workDir_, "voms"), slcs_.getState().ca,
+                                      testbedProps_, vos_.toArray(new String[vos_.size()]));
+        voms_.start();
+        // must be set before `GridProxyFactory` is initialized
+        voms_.setSystemProperties();
+        portal_ = new PortalServer(slcs_, new File(slcs_.getFixtureDirectory(), "gridcertlib.properties"),
+                                   jettyThreads_, async_);
+        portal_.start();
+        LOG.info("Portal servlets at " + portal_.getBaseUrl() + PortalServer.CONTEXT_PATH);
+
+        final File storeRoot = new File(workDir_, "store");
+        for (int n = 0; n < userCount_; n++)
+            users_.add(new VirtualUser("user" + n, storeRoot, timeout_));
+
+        if (! doSlcs_) {
+            // `voms-proxy-init` needs a certificate to start with
+            LOG.info("Getting certificates for " + userCount_ + " users ...");
+            for (VirtualUser user : users_) {
+                final VirtualUser.Outcome outcome =
+                    user.follow(user.prepare(portal_.getSlcsInitUrl(), portal_.getHomeUrl()), portal_.getHomeUrl());
+                if (! outcome.isSuccess())
+                    throw new IOException("Cannot get certificate for user '" + user.getName() + "': " + outcome.error);
+            }
+        }
+    }
+
+
+    protected void tearDown()
+    {
+        try { if (null != portal_) portal_.stop(); }
+        catch (Exception x) { LOG.warn("Error stopping portal: " + x.getMessage()); }
+        try { if (null != voms_) voms_.stop(); }
+        catch (Exception x) { LOG.warn("Error stopping VOMS stand-in: " + x.getMessage()); }
+        try { if (null != slcs_) slcs_.stop(); }
+        catch (Exception x) { LOG.warn("Error stopping SLCS stand-in: " + x.getMessage()); }
+    }
+
+
+    protected void runClosedLoop()
+        throws InterruptedException
+    {
+        final long start = System.nanoTime();
+        recordFrom_ = start + TimeUnit.SECONDS.toNanos(warmup_);
+        final long end = start + TimeUnit.SECONDS.toNanos(duration_);
+        LOG.info("Closed loop: " + concurrency_ + " clients for " + duration_ + "s");
+
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency_);
+        for (int c = 0; c < concurrency_; c++) {
+            final Random random = new Random(seed_ + c);
+            clients.execute(new Runnable() {
+                    public void run() {
+                        long now;
+                        while ((now = System.nanoTime()) < end)
+                            runFlows(users_.get(random.nextInt(users_.size())), now);
+                    }
+                });
+        }
+        clients.shutdown();
+        clients.awaitTermination(duration_ + 2 * timeout_ / 1000, TimeUnit.SECONDS);
+    }
+
+
+    protected void runOpenLoop()
+        throws InterruptedException
+    {
+        final long start = System.nanoTime();
+        recordFrom_ = start + TimeUnit.SECONDS.toNanos(warmup_);
+        final long end = start + TimeUnit.SECONDS.toNanos(duration_);
+        final double interval = 1e9 / rate_;
+        LOG.info("Open loop: " + rate_ + " flows/s for " + duration_ + "s");
+
+        // unbounded, so that arrivals are never held back by the driver
+        ExecutorService clients = Executors.newCachedThreadPool();
+        final Random random = new Random(seed_);
+        for (long n = 0; ; n++) {
+            final long scheduled = start + (long)(n * interval);
+            if (scheduled >= end)
+                break;
+            final long wait = scheduled - System.nanoTime();
+            if (wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+            final VirtualUser user = users_.get(random.nextInt(users_.size()));
+            clients.execute(new Runnable() {
+                    public void run() { runFlows(user, scheduled); }
+                });
+        }
+        clients.shutdown();
+        clients.awaitTermination(2 * timeout_ / 1000, TimeUnit.SECONDS);
+    }
+
+
+    /** Run the configured flows for {@code user}; {@code scheduled} is
+     * the instant ({@code System.nanoTime()}) the flow was meant to start.
+     */
+    protected void runFlows(final VirtualUser user, final long scheduled)
+    {
+        final boolean record = (scheduled >= recordFrom_);
+        long started = scheduled;
+        try {
+            if (doSlcs_) {
+                VirtualUser.Outcome outcome =
+                    user.follow(user.prepare(portal_.getSlcsInitUrl(), portal_.getHomeUrl()), portal_.getHomeUrl());
+                if (record)
+                    record(slcsStats_, outcome, started);
+                // `gridproxy_required` only redirects to
+                // `voms-proxy-init` once there is a certificate
+                if (! outcome.isSuccess())
+                    return;
+                started = System.nanoTime();
+            }
+            if (doProxy_) {
+                final String[] vos = vos_.toArray(new String[vos_.size()]);
+                VirtualUser.Outcome outcome =
+                    user.follow(user.prepare(portal_.getVomsProxyInitUrl(), portal_.getHomeUrl(), vos),
+                                portal_.getHomeUrl());
+                if (record)
+                    record(proxyStats_, outcome, started);
+            }
+        }
+        catch (IOException x) {
+            // could not create marker file; this is a driver problem, not a servlet one
+            LOG.error("Error preparing flow for user '" + user.getName() + "': " + x.getMessage());
+        }
+    }
+
+
+    protected void record(final FlowStats stats, final VirtualUser.Outcome outcome, final long started)
+    {
+        final long micros = (System.nanoTime() - started) / 1000;
+        if (outcome.isSuccess())
+            stats.success(micros);
+        else
+            stats.failure(micros, outcome.error);
+        if (outcome.renewed) {
+            if (outcome.isSuccess())
+                renewStats_.success(micros);
+            else
+                renewStats_.failure(micros, stats.getName() + ": " + outcome.error);
+        }
+    }
+
+
+    public void report(final PrintStream out)
+    {
+        final double seconds = duration_ - warmup_;
+        out.println();
+        if (rate_ > 0)
+            out.println("Open loop, " + rate_ + " flows/s");
+        else
+            out.println("Closed loop, " + concurrency_ + " clients");
+        out.println("Measured " + seconds + "s after " + warmup_ + "s warm-up; "
+                    + userCount_ + " users, VOs " + vos_ + ", "
+                    + portal_.getSpSessionCount() + " SP sessions opened");
+        out.println();
+        if (doSlcs_)
+            slcsStats_.report(out, seconds);
+        if (doProxy_)
+            proxyStats_.report(out, seconds);
+        renewStats_.report(out, seconds);
+        out.println();
+        out.println("Stand-in endpoints:");
+        for (FaultInjector faults : slcs_.getFaultInjectors())
+            out.println("  " + faults);
+        for (FaultInjector faults : voms_.getFaultInjectors().values())
+            out.println("  " + faults);
+        out.println("  VOMS ACs issued: " + voms_.getIssuedCount());
+    }
+
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        LoadDriver driver;
+        try {
+            driver = new LoadDriver(args);
+        }
+        catch (IllegalArgumentException x) {
+            System.err.println(x.getMessage());
+            System.err.print(USAGE);
+            System.exit(1);
+            return;
+        }
+        driver.run(System.out);
+        System.exit(0);
+    }
+}
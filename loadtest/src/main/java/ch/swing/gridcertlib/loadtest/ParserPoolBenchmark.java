@@ -0,0 +1,281 @@
+/**
+ * @file   ParserPoolBenchmark.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class ParserPoolBenchmark
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.swing.gridcertlib.loadtest;
+
+import ch.swing.gridcertlib.AssertionParser;
+
+import ch.SWITCH.aai.idwsf.xml.OpenSAML;
+import org.opensaml.Configuration;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.w3c.dom.Element;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/** Compare assertion unmarshalling with a new parser per request
+ * against the pooled parsers of {@link AssertionParser}.
+ * <p>
+ * For each mode, a fixed set of threads unmarshals a batch of
+ * distinct, test-bed-like assertions held in memory, so that only
+ * parsing and unmarshalling are measured.  The {@code per-request}
+ * mode sets up a new OpenSAML {@code BasicParserPool} and looks up
+ * the unmarshaller for each assertion, as assertion retrieval did
+ * before parsers were pooled; the {@code pooled} mode uses a single
+ * {@code AssertionParser}.  Reports throughput, latency percentiles
+ * and garbage collector activity for each mode, and the parser pool
+ * statistics.
+ * <p>
+ * Each mode is run first on a warm-up batch, which is not reported,
+ * so that both are measured on compiled code.
+ */
+public class ParserPoolBenchmark {
+
+    protected static final String USAGE =
+        "Usage: ParserPoolBenchmark [options]\n"
+        + "Options:\n"
+        + "  -n N       assertions per mode (default: 20000)\n"
+        + "  -t N       threads (default: 16)\n"
+        + "  -s N       parser pool size (default: number of processors)\n"
+        + "  -w N       warm-up assertions per mode (default: 2000)\n"
+        + "  -m MODE    one of 'per-request', 'pooled' or 'both' (default: both)\n";
+
+    protected int count_ = 20000;
+    protected int threads_ = 16;
+    protected int poolSize_ = Runtime.getRuntime().availableProcessors();
+    protected int warmUp_ = 2000;
+    protected boolean doPerRequest_ = true;
+    protected boolean doPooled_ = true;
+
+    /** Assertions to unmarshal, in XML form; each thread takes the next one in turn. */
+    protected byte[][] assertions_;
+
+
+    /** Parse command-line arguments; throws {@code IllegalArgumentException} on errors. */
+    public ParserPoolBenchmark(final String[] args)
+    {
+        for (int i = 0; i < args.length; i += 2) {
+            final String opt = args[i];
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Option " + opt + " requires an argument");
+            final String arg = args[i + 1];
+            if (opt.equals("-n"))
+                count_ = Integer.parseInt(arg);
+            else if (opt.equals("-t"))
+                threads_ = Integer.parseInt(arg);
+            else if (opt.equals("-s"))
+                poolSize_ = Integer.parseInt(arg);
+            else if (opt.equals("-w"))
+                warmUp_ = Integer.parseInt(arg);
+            else if (opt.equals("-m")) {
+                if (! (arg.equals("per-request") || arg.equals("pooled") || arg.equals("both")))
+                    throw new IllegalArgumentException("Unknown mode '" + arg + "'");
+                doPerRequest_ = ! arg.equals("pooled");
+                doPooled_ = ! arg.equals("per-request");
+            }
+            else
+                throw new IllegalArgumentException("Unknown option " + opt);
+        }
+        if (count_ < 1 || threads_ < 1 || poolSize_ < 1 || warmUp_ < 0)
+            throw new IllegalArgumentException("Counts must be positive");
+    }
+
+
+    /** Unmarshals one assertion; implemented by each mode. */
+    protected interface Mode {
+        Assertion parse(byte[] xml) throws Exception;
+    }
+
+
+    public void run(final PrintStream out)
+        throws Exception
+    {
+        OpenSAML.bootstrap();
+        assertions_ = new byte[Math.min(count_, 1000)][];
+        for (int n = 0; n < assertions_.length; n++)
+            assertions_[n] = newAssertion(n).getBytes("UTF-8");
+        out.println("Java " + System.getProperty("java.version") + ", "
+                    + Runtime.getRuntime().availableProcessors() + " processors");
+        out.println(count_ + " assertions per mode, on " + threads_ + " threads");
+
+        if (doPerRequest_) {
+            final Mode perRequest = new Mode() {
+                    public Assertion parse(final byte[] xml) throws Exception {
+                        final BasicParserPool pool = new BasicParserPool();
+                        pool.setNamespaceAware(true);
+                        final Element root = pool.parse(new ByteArrayInputStream(xml)).getDocumentElement();
+                        final Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(root);
+                        return (Assertion) unmarshaller.unmarshall(root);
+                    }
+                };
+            runMode(null, "per-request", perRequest, warmUp_);
+            runMode(out, "per-request", perRequest, count_);
+        }
+        if (doPooled_) {
+            // wait long rather than reject: the benchmark has more threads than parsers on purpose
+            final AssertionParser parser = new AssertionParser(poolSize_, 60000);
+            final Mode pooled = new Mode() {
+                    public Assertion parse(final byte[] xml) throws Exception {
+                        return parser.parse(new ByteArrayInputStream(xml), "benchmark assertion");
+                    }
+                };
+            runMode(null, "pooled", pooled, warmUp_);
+            runMode(out, "pooled (" + poolSize_ + " parsers)", pooled, count_);
+            out.println("  " + parser);
+        }
+    }
+
+
+    /** Unmarshal {@code count} assertions with {@code mode}, and print the results to {@code out}, if not {@code null}. */
+    protected void runMode(final PrintStream out, final String name, final Mode mode, final int count)
+        throws InterruptedException
+    {
+        if (0 == count)
+            return;
+        final FlowStats stats = new FlowStats(name);
+        final AtomicInteger next = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(threads_);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads_);
+        System.gc();
+        final long[] gcBefore = gcTotals();
+        final long start = System.nanoTime();
+        for (int t = 0; t < threads_; t++)
+            executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            int n;
+                            while ((n = next.getAndIncrement()) < count) {
+                                final long started = System.nanoTime();
+                                try {
+                                    mode.parse(assertions_[n % assertions_.length]);
+                                    stats.success((System.nanoTime() - started) / 1000);
+                                }
+                                catch (Exception x) {
+                                    stats.failure((System.nanoTime() - started) / 1000,
+                                                  x.getClass().getSimpleName());
+                                }
+                            }
+                        }
+                        finally {
+                            done.countDown();
+                        }
+                    }
+                });
+        done.await();
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        final long[] gcAfter = gcTotals();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        if (null == out)
+            return;
+
+        out.println();
+        out.println(String.format("Mode %s: %d assertions in %.2fs, %d GC runs taking %dms",
+                                  name, count, seconds,
+                                  gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]));
+        stats.report(out, seconds);
+    }
+
+
+    /** Return the total number of collections, and their total time (in milliseconds), over all collectors. */
+    protected static long[] gcTotals()
+    {
+        final long[] totals = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, gc.getCollectionCount());
+            totals[1] += Math.max(0, gc.getCollectionTime());
+        }
+        return totals;
+    }
+
+
+    /** Return the XML form of a test assertion, similar to those released by the test bed, valid for one hour. */
+    protected static String newAssertion(final int n)
+    {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final long now = System.currentTimeMillis();
+        final String issued = format.format(new Date(now));
+        final String expires = format.format(new Date(now + 3600 * 1000));
+        return "<saml2:Assertion xmlns:saml2=\"urn:oasis:names:tc:SAML:2.0:assertion\""
+            + " ID=\"_bench" + n + "\" IssueInstant=\"" + issued + "\" Version=\"2.0\">"
+            + "<saml2:Issuer>https://idp.testbed.example.org/idp/shibboleth</saml2:Issuer>"
+            + "<saml2:Subject>"
+            +   "<saml2:NameID Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:transient\">_user" + n + "</saml2:NameID>"
+            +   "<saml2:SubjectConfirmation Method=\"urn:oasis:names:tc:SAML:2.0:cm:bearer\">"
+            +     "<saml2:SubjectConfirmationData NotOnOrAfter=\"" + expires + "\"/>"
+            +   "</saml2:SubjectConfirmation>"
+            + "</saml2:Subject>"
+            + "<saml2:Conditions NotBefore=\"" + issued + "\" NotOnOrAfter=\"" + expires + "\">"
+            +   "<saml2:AudienceRestriction>"
+            +     "<saml2:Audience>https://portal.testbed.example.org/shibboleth</saml2:Audience>"
+            +   "</saml2:AudienceRestriction>"
+            + "</saml2:Conditions>"
+            + "<saml2:AuthnStatement AuthnInstant=\"" + issued + "\" SessionIndex=\"_session" + n + "\">"
+            +   "<saml2:AuthnContext><saml2:AuthnContextClassRef>"
+            +   "urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport"
+            +   "</saml2:AuthnContextClassRef></saml2:AuthnContext>"
+            + "</saml2:AuthnStatement>"
+            + "<saml2:AttributeStatement>"
+            +   "<saml2:Attribute Name=\"urn:oid:2.5.4.3\" FriendlyName=\"cn\">"
+            +     "<saml2:AttributeValue>user" + n + "</saml2:AttributeValue>"
+            +   "</saml2:Attribute>"
+            +   "<saml2:Attribute Name=\"urn:oid:0.9.2342.19200300.100.1.3\" FriendlyName=\"mail\">"
+            +     "<saml2:AttributeValue>user" + n + "@testbed.example.org</saml2:AttributeValue>"
+            +   "</saml2:Attribute>"
+            + "</saml2:AttributeStatement>"
+            + "</saml2:Assertion>";
+    }
+
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        ParserPoolBenchmark benchmark;
+        try {
+            benchmark = new ParserPoolBenchmark(args);
+        }
+        catch (IllegalArgumentException x) {
+            System.err.println(x.getMessage());
+            System.err.print(USAGE);
+            System.exit(1);
+            return;
+        }
+        benchmark.run(System.out);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,305 @@
+/**
+ * @file   PortalServer.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class PortalServer
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.loadtest;
+
+import ch.swing.gridcertlib.django.AsyncSlcsInit;
+import ch.swing.gridcertlib.django.AsyncVomsProxyInit;
+import ch.swing.gridcertlib.django.SlcsInit;
+import ch.swing.gridcertlib.django.VomsProxyInit;
+import ch.swing.gridcertlib.servlet.RenewAssertion;
+import ch.swing.gridcertlib.testbed.SLCSStandInServer;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.ContextHandlerCollection;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+
+/** Embedded Jetty hosting the Django support servlets ({@code
+ * slcs-init}, {@code voms-proxy-init}) and {@code RenewAssertion},
+ * mapped exactly as in the {@code gridcertlib-django} web
+ * application, plus just enough of a Shibboleth SP to drive them:
+ * <ul>
+ * <li> a filter playing the role of Apache's {@code mod_shib}: the
+ *      first request of a client (identified by the {@value
+ *      #USER_HEADER} header) opens an SP session, for which a SAML2
+ *      assertion is released by the {@link SLCSStandInServer}; all
+ *      requests in the session then carry the {@code
+ *      Shib-Assertion-Count} and {@code Shib-Assertion-01} headers;
+ * <li> the SP logout handler, which drops the SP session and
+ *      redirects to the {@code return} URL, so that a fresh assertion
+ *      is released at the next request;
+ * <li> a portal "home page" under {@value #PORTAL_PATH}, to be used as
+ *      {@code next} URL by clients.
+ * </ul>
+ * The asynchronous variants ({@link AsyncSlcsInit}, {@link
+ * AsyncVomsProxyInit}) are mapped under {@code /async}, as in the
+ * web application; {@link #getSlcsInitUrl} and {@link
+ * #getVomsProxyInitUrl} point to them if the server was constructed
+ * with {@code async} set.
+ */
+public class PortalServer {
+
+    /** Request header carrying the name of the (already authenticated) portal user. */
+    public static final String USER_HEADER = "X-Loadtest-User";
+
+    /** Name of the cookie identifying the simulated SP session. */
+    public static final String SP_SESSION_COOKIE = "_shibsession_portal";
+
+    public static final String CONTEXT_PATH = "/gridcertlib";
+    public static final String LOGOUT_PATH = "/Shibboleth.sso/Logout";
+    public static final String PORTAL_PATH = "/portal";
+
+    protected final SLCSStandInServer slcs_;
+    protected final File gridcertlibProperties_;
+    protected final int maxThreads_;
+    protected final boolean async_;
+    protected Server server_;
+    protected SelectChannelConnector connector_;
+
+    /** Maps SP session ID to the assertion URL released at session start. */
+    protected final ConcurrentMap<String, String> spSessions_ = new ConcurrentHashMap<String, String>();
+    protected final AtomicLong spSessionCount_ = new AtomicLong();
+
+
+    /** Constructor.
+     *
+     * @param slcs                  running SLCS stand-in, used to release assertions
+     * @param gridcertlibProperties GridCertLib configuration for the servlets
+     * @param maxThreads            size of the Jetty thread pool
+     * @param async                 if {@code true}, clients are sent to the asynchronous servlets
+     */
+    public PortalServer(final SLCSStandInServer slcs,
+                        final File gridcertlibProperties,
+                        final int maxThreads,
+                        final boolean async)
+    {
+        slcs_ = slcs;
+        gridcertlibProperties_ = gridcertlibProperties;
+        maxThreads_ = maxThreads;
+        async_ = async;
+    }
+
+
+    public void start()
+        throws Exception
+    {
+        server_ = new Server();
+        QueuedThreadPool pool = new QueuedThreadPool();
+        pool.setMaxThreads(maxThreads_);
+        server_.setThreadPool(pool);
+        connector_ = new SelectChannelConnector();
+        connector_.setHost("127.0.0.1");
+        connector_.setPort(0);
+        server_.addConnector(connector_);
+        // need the port to compute the init parameters
+        connector_.open();
+        final String base = getBaseUrl();
+
+        ContextHandlerCollection contexts = new ContextHandlerCollection();
+        server_.setHandler(contexts);
+
+        ServletContextHandler gridcertlib =
+            new ServletContextHandler(contexts, CONTEXT_PATH, ServletContextHandler.SESSIONS);
+        // the filter is in the chain of the asynchronous servlets, too
+        FilterHolder shibboleth = new FilterHolder(new ShibbolethFilter());
+        shibboleth.setAsyncSupported(true);
+        gridcertlib.addFilter(shibboleth, "/*", EnumSet.of(DispatcherType.REQUEST));
+
+        gridcertlib.addServlet(newSlcsInit(SlcsInit.class, "/slcs-init"), "/slcs-init/*");
+        gridcertlib.addServlet(newVomsProxyInit(VomsProxyInit.class), "/voms-proxy-init/*");
+
+        ServletHolder asyncSlcsInit = newSlcsInit(AsyncSlcsInit.class, "/async/slcs-init");
+        asyncSlcsInit.setAsyncSupported(true);
+        gridcertlib.addServlet(asyncSlcsInit, "/async/slcs-init/*");
+        ServletHolder asyncProxyInit = newVomsProxyInit(AsyncVomsProxyInit.class);
+        asyncProxyInit.setAsyncSupported(true);
+        gridcertlib.addServlet(asyncProxyInit, "/async/voms-proxy-init/*");
+
+        ServletHolder renew = new ServletHolder(RenewAssertion.class);
+        renew.setInitParameter("ShibbolethLogoutURL", base + LOGOUT_PATH);
+        renew.setInitParameter("RenewAssertionURL", base + CONTEXT_PATH + "/renew");
+        gridcertlib.addServlet(renew, "/renew/*");
+
+        ServletContextHandler root = new ServletContextHandler(contexts, "/", ServletContextHandler.NO_SESSIONS);
+        root.addServlet(new ServletHolder(new LogoutServlet()), LOGOUT_PATH);
+        root.addServlet(new ServletHolder(new HomeServlet()), PORTAL_PATH + "/*");
+
+        server_.start();
+    }
+
+
+    /** Return a holder for {@code servletClass}, configured as {@code slcs-init} mapped at {@code path}. */
+    protected ServletHolder newSlcsInit(final Class<? extends SlcsInit> servletClass, final String path)
+    {
+        final String base = getBaseUrl();
+        ServletHolder holder = new ServletHolder(servletClass);
+        holder.setInitParameter("GridcertlibPropertiesFile", gridcertlibProperties_.getAbsolutePath());
+        holder.setInitParameter("VisibleURL", base + CONTEXT_PATH + path);
+        holder.setInitParameter("RenewAssertionURL", base + CONTEXT_PATH + "/renew");
+        holder.setInitOrder(1);
+        return holder;
+    }
+
+
+    /** Return a holder for {@code servletClass}, configured as {@code voms-proxy-init}. */
+    protected ServletHolder newVomsProxyInit(final Class<? extends VomsProxyInit> servletClass)
+    {
+        ServletHolder holder = new ServletHolder(servletClass);
+        holder.setInitParameter("GridcertlibPropertiesFile", gridcertlibProperties_.getAbsolutePath());
+        holder.setInitOrder(1);
+        return holder;
+    }
+
+
+    public void stop()
+        throws Exception
+    {
+        if (null != server_)
+            server_.stop();
+    }
+
+
+    /** Return the base URL (scheme, host and port) of this server. */
+    public String getBaseUrl()            { return "http://127.0.0.1:" + connector_.getLocalPort(); }
+    public String getSlcsInitUrl()        { return getBaseUrl() + CONTEXT_PATH + (async_ ? "/async" : "") + "/slcs-init"; }
+    public String getVomsProxyInitUrl()   { return getBaseUrl() + CONTEXT_PATH + (async_ ? "/async" : "") + "/voms-proxy-init"; }
+    public String getHomeUrl()            { return getBaseUrl() + PORTAL_PATH + "/"; }
+
+    /** Return the number of SP sessions opened so far, i.e., of assertions released. */
+    public long getSpSessionCount()       { return spSessionCount_.get(); }
+
+
+    protected static String getCookie(final HttpServletRequest request, final String name)
+    {
+        final Cookie[] cookies = request.getCookies();
+        if (null != cookies)
+            for (Cookie cookie : cookies)
+                if (name.equals(cookie.getName()))
+                    return cookie.getValue();
+        return null;
+    }
+
+
+    /** Simulates {@code mod_shib} with {@code ShibExportAssertion On}. */
+    protected class ShibbolethFilter implements Filter {
+
+        public void init(FilterConfig conf) { }
+        public void destroy() { }
+
+        public void doFilter(ServletRequest req, ServletResponse rsp, FilterChain chain)
+            throws IOException, ServletException
+        {
+            final HttpServletRequest request = (HttpServletRequest) req;
+            final HttpServletResponse response = (HttpServletResponse) rsp;
+            final String user = request.getHeader(USER_HEADER);
+            if (null == user) {
+                response.sendError(HttpServletResponse.SC_FORBIDDEN, "Missing " + USER_HEADER + " header");
+                return;
+            }
+
+            String sessionId = getCookie(request, SP_SESSION_COOKIE);
+            String assertionUrl = (null == sessionId) ? null : spSessions_.get(sessionId);
+            if (null == assertionUrl) {
+                // new SP session: the IdP releases a fresh assertion
+                sessionId = user + "-" + spSessionCount_.incrementAndGet();
+                assertionUrl = slcs_.newAssertionUrl(user);
+                spSessions_.put(sessionId, assertionUrl);
+                Cookie cookie = new Cookie(SP_SESSION_COOKIE, sessionId);
+                cookie.setPath("/");
+                response.addCookie(cookie);
+            }
+
+            final String assertion = assertionUrl;
+            chain.doFilter(new HttpServletRequestWrapper(request) {
+                    public String getHeader(String name) {
+                        if ("Shib-Assertion-Count".equalsIgnoreCase(name))
+                            return "01";
+                        if ("Shib-Assertion-01".equalsIgnoreCase(name))
+                            return assertion;
+                        return super.getHeader(name);
+                    }
+                    public Enumeration getHeaders(String name) {
+                        final String value = getHeader(name);
+                        if (null == value)
+                            return super.getHeaders(name);
+                        return Collections.enumeration(Collections.singletonList(value));
+                    }
+                }, response);
+        }
+    }
+
+
+    /** Simulates the Shibboleth SP logout handler. */
+    protected class LogoutServlet extends HttpServlet {
+        protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException
+        {
+            final String sessionId = getCookie(request, SP_SESSION_COOKIE);
+            if (null != sessionId)
+                spSessions_.remove(sessionId);
+            final String returnUrl = request.getParameter("return");
+            if (null == returnUrl)
+                response.setStatus(HttpServletResponse.SC_OK);
+            else
+                response.sendRedirect(returnUrl);
+        }
+    }
+
+
+    /** The page clients are sent back to at the end of a successful flow. */
+    protected static class HomeServlet extends HttpServlet {
+        protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException
+        {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("text/plain");
+            response.getWriter().print("OK");
+        }
+    }
+}
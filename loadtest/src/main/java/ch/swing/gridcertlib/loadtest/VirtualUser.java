@@ -0,0 +1,240 @@
+/**
+ * @file   VirtualUser.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class VirtualUser
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/** A portal user with a browser, as seen by the GridCertLib servlets.
+ * <p>
+ * Does what the {@code certificate_required} and {@code
+ * gridproxy_required} decorators in {@code decorators.py} do before
+ * redirecting to a servlet (per-session credentials directory under
+ * the store root, random private key password, {@code __OK__<key>}
+ * marker file and the {@code GridCertLib.*} cookies), then behaves
+ * like a browser: follows redirects, keeping cookies, until a page
+ * that is not a redirect is reached.
+ * <p>
+ * Instances are safe for concurrent use, so that simultaneous
+ * requests by the same user (e.g., double clicks) can be simulated.
+ */
+public class VirtualUser {
+
+    /** Give up following redirects after this many hops. */
+    public static final int MAX_REDIRECTS = 20;
+
+    private static final SecureRandom random_ = new SecureRandom();
+
+    protected final String name_;
+    protected final File certdir_;
+    protected final String privateKeyPassword_;
+    protected final int timeout_;
+    protected final Map<String, String> cookies_ = new ConcurrentHashMap<String, String>();
+
+
+    /** Result of following a redirect chain. */
+    public static class Outcome {
+        /** HTTP status of the last response, or -1 if no response was received. */
+        public int status = -1;
+        /** URL of the last request. */
+        public String url;
+        /** Number of redirects followed. */
+        public int redirects = 0;
+        /** Whether the chain went through the {@code RenewAssertion} servlet. */
+        public boolean renewed = false;
+        /** Short description of the failure, or {@code null} on success. */
+        public String error;
+
+        public boolean isSuccess() { return null == error; }
+    }
+
+
+    /** Constructor.
+     *
+     * @param name      portal user name
+     * @param storeRoot directory corresponding to Django's {@code GRIDCERTLIB_ROOT}
+     * @param timeout   connect and read timeout for each HTTP request, in milliseconds
+     */
+    public VirtualUser(final String name, final File storeRoot, final int timeout)
+        throws IOException
+    {
+        name_ = name;
+        timeout_ = timeout;
+        certdir_ = new File(new File(storeRoot, name), newRandomString());
+        if (! certdir_.isDirectory() && ! certdir_.mkdirs())
+            throw new IOException("Cannot create directory '" + certdir_ + "'");
+        privateKeyPassword_ = newRandomString();
+    }
+
+
+    public String getName()          { return name_; }
+    public File getCertificateDir()  { return certdir_; }
+    public boolean hasCertificate()  { return new File(certdir_, "usercert.pem").exists(); }
+
+
+    /** Set up marker file and cookies the way {@code
+     * _gridcertlib_required} does, and return the URL the portal
+     * would redirect the browser to.
+     *
+     * @param servletUrl URL of the {@code SlcsInit} or {@code VomsProxyInit} servlet
+     * @param nextUrl    URL to return to when done
+     * @param vos        VO names to request ({@code VomsProxyInit} only)
+     */
+    public String prepare(final String servletUrl, final String nextUrl, final String... vos)
+        throws IOException
+    {
+        final String sessionKey = newRandomString();
+        final File marker = new File(certdir_, "__OK__" + sessionKey);
+        if (! marker.createNewFile())
+            throw new IOException("Marker file '" + marker + "' already exists");
+        cookies_.put("GridCertLib.privateKeyPassword", privateKeyPassword_);
+        cookies_.put("GridCertLib.sessionKey", sessionKey);
+
+        StringBuilder url = new StringBuilder(servletUrl);
+        url.append('?');
+        for (String vo : vos)
+            url.append("vo=").append(URLEncoder.encode(vo, "UTF-8")).append('&');
+        url.append("store=").append(URLEncoder.encode(certdir_.getAbsolutePath(), "UTF-8"));
+        url.append("&next=").append(URLEncoder.encode(nextUrl, "UTF-8"));
+        return url.toString();
+    }
+
+
+    /** Issue a GET request for {@code url} and follow redirects.
+     * The flow is successful if it ends with a 200 response from a
+     * URL starting with {@code successPrefix}.
+     */
+    public Outcome follow(final String url, final String successPrefix)
+    {
+        Outcome outcome = new Outcome();
+        String next = url;
+        try {
+            while (null != next) {
+                outcome.url = next;
+                if (next.contains("/renew/"))
+                    outcome.renewed = true;
+                next = get(next, outcome);
+                if (null != next && ++outcome.redirects > MAX_REDIRECTS) {
+                    outcome.error = "too many redirects";
+                    return outcome;
+                }
+            }
+        }
+        catch (IOException x) {
+            outcome.error = x.getClass().getSimpleName();
+            return outcome;
+        }
+        if (HttpURLConnection.HTTP_OK != outcome.status)
+            outcome.error = "HTTP " + outcome.status + " from " + pathOf(outcome.url);
+        else if (! outcome.url.startsWith(successPrefix))
+            outcome.error = "unexpected final page " + pathOf(outcome.url);
+        return outcome;
+    }
+
+
+    /** Perform a single request; return the redirect location, if any. */
+    protected String get(final String url, final Outcome outcome)
+        throws IOException
+    {
+        final URL target = new URL(url);
+        HttpURLConnection conn = (HttpURLConnection) target.openConnection();
+        conn.setInstanceFollowRedirects(false);
+        conn.setConnectTimeout(timeout_);
+        conn.setReadTimeout(timeout_);
+        conn.setRequestProperty(PortalServer.USER_HEADER, name_);
+        final String cookies = getCookieHeader();
+        if (cookies.length() > 0)
+            conn.setRequestProperty("Cookie", cookies);
+
+        outcome.status = conn.getResponseCode();
+        final List<String> setCookies = conn.getHeaderFields().get("Set-Cookie");
+        if (null != setCookies)
+            for (String header : setCookies)
+                storeCookie(header);
+        final String location = conn.getHeaderField("Location");
+
+        // drain the body so that the connection can be reused
+        InputStream body = (outcome.status >= 400) ? conn.getErrorStream() : conn.getInputStream();
+        if (null != body) {
+            byte[] buf = new byte[4096];
+            while (body.read(buf) > 0)
+                ;
+            body.close();
+        }
+
+        if (outcome.status >= 300 && outcome.status < 400 && null != location)
+            return new URL(target, location).toString();
+        return null;
+    }
+
+
+    protected String getCookieHeader()
+    {
+        StringBuilder header = new StringBuilder();
+        for (Map.Entry<String, String> cookie : cookies_.entrySet()) {
+            if (header.length() > 0)
+                header.append("; ");
+            header.append(cookie.getKey()).append('=').append(cookie.getValue());
+        }
+        return header.toString();
+    }
+
+
+    /** Store a cookie from a {@code Set-Cookie} header; attributes are ignored. */
+    protected void storeCookie(final String header)
+    {
+        final String pair = header.split(";", 2)[0];
+        final int eq = pair.indexOf('=');
+        if (eq > 0)
+            cookies_.put(pair.substring(0, eq).trim(), pair.substring(eq + 1).trim());
+    }
+
+
+    private static String pathOf(final String url)
+    {
+        try {
+            return new URL(url).getPath();
+        }
+        catch (java.net.MalformedURLException x) {
+            return url;
+        }
+    }
+
+
+    /** Same as {@code _make_random_string} in {@code decorators.py}: 128 random bits, in hex. */
+    protected static String newRandomString()
+    {
+        return new BigInteger(128, random_).toString(16);
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * @file   AssertionServlet.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class AssertionServlet
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.testbed;
+
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/** Stand-in for the assertion export handler of the portal SP
+ * (what {@code ShibExportAssertion On} makes available as {@code
+ * Shib-Assertion-NN} URLs).
+ * <p>
+ * {@code GET ...?ID=<id>} returns the XML of a previously released
+ * assertion; expired assertions are still returned, as the real SP
+ * does, so that the client gets to detect the expiry.  Assertions are
+ * released with {@link SLCSStandInServer#newAssertionUrl} or through
+ * {@link MintServlet}.
+ */
+public class AssertionServlet extends StandInServlet
+{
+    public AssertionServlet(final TestbedState state, final FaultInjector faults)
+    {
+        super(state, faults);
+    }
+
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException
+    {
+        final String id = request.getParameter("ID");
+        final TestbedState.Released released = (null == id) ? null : state_.assertions.get(id);
+        if (null == released) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such assertion: " + id);
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/samlassertion+xml");
+        response.getWriter().print(released.xml);
+    }
+}
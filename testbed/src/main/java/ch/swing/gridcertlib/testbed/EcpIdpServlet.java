@@ -0,0 +1,98 @@
+/**
+ * @file   EcpIdpServlet.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class EcpIdpServlet
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.testbed;
+
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/** Stand-in for the SAML2 ECP (SOAP) endpoint of a Shibboleth IdP
+ * supporting delegation.
+ * <p>
+ * Accepts a SOAP message carrying an {@code AuthnRequest} in the body
+ * and the delegated assertion (as released by {@link
+ * AssertionServlet}) in the header; if the delegated assertion is
+ * known and still valid, releases a new assertion for the same user,
+ * addressed to the SLCS SP, and returns it in a SAML2 {@code
+ * Response} wrapped into an ECP SOAP envelope.  Otherwise, answers
+ * with a SOAP fault.
+ */
+public class EcpIdpServlet extends StandInServlet
+{
+    public EcpIdpServlet(final TestbedState state, final FaultInjector faults)
+    {
+        super(state, faults);
+    }
+
+
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException
+    {
+        final String message = readBody(request);
+        final String requestId = findAttribute(message, "AuthnRequest", "ID");
+        if (null == requestId) {
+            sendSoapFault(response, "No AuthnRequest in ECP message");
+            return;
+        }
+        // the delegated assertion travels in the SOAP header, so it is
+        // the first `Assertion` element in the message
+        final String delegatedId = findAttribute(message, "Assertion", "ID");
+        final TestbedState.Released delegated =
+            (null == delegatedId) ? null : state_.assertions.get(delegatedId);
+        if (null == delegated) {
+            sendSoapFault(response, "Unknown delegated assertion " + delegatedId);
+            return;
+        }
+        if (! delegated.isValid()) {
+            sendSoapFault(response, "Delegated assertion " + delegatedId + " has expired");
+            return;
+        }
+
+        // taken verbatim from the request XML, so already escaped
+        String consumer = findAttribute(message, "AuthnRequest", "AssertionConsumerServiceURL");
+        if (null == consumer)
+            consumer = state_.getEcpConsumerUrl();
+        final TestbedState.Released released = state_.release(delegated.user, state_.getSlcsEntityId());
+        final long now = System.currentTimeMillis();
+        final String header =
+            "<ecp:Response xmlns:ecp=\"urn:oasis:names:tc:SAML:2.0:profiles:SSO:ecp\""
+            + " S:actor=\"http://schemas.xmlsoap.org/soap/actor/next\" S:mustUnderstand=\"1\""
+            + " AssertionConsumerServiceURL=\"" + consumer + "\"/>";
+        final String body =
+            "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+            + " Destination=\"" + consumer + "\""
+            + " ID=\"" + state_.newId() + "\" InResponseTo=\"" + requestId + "\""
+            + " IssueInstant=\"" + TestbedState.timestamp(now) + "\" Version=\"2.0\">"
+            +   "<saml2:Issuer xmlns:saml2=\"urn:oasis:names:tc:SAML:2.0:assertion\">"
+            +   TestbedState.escape(state_.getIdpEntityId()) + "</saml2:Issuer>"
+            +   "<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/></samlp:Status>"
+            +   released.xml
+            + "</samlp:Response>";
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/xml");
+        response.getWriter().print(soapEnvelope(header, body));
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * @file   FaultInjector.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class FaultInjector
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.testbed;
+
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/** Configurable latency and error injection for one stand-in endpoint.
+ * <p>
+ * Each call to {@link #delay} sleeps for a time drawn uniformly from
+ * {@code [latency - jitter, latency + jitter]} milliseconds, and then
+ * returns {@code true} with probability {@code errorRate} to signal
+ * that the caller should answer with an error.  A fixed seed makes
+ * the sequence of delays and failures reproducible from run to run
+ * (as far as thread scheduling allows).
+ * <p>
+ * The parameters are read off a {@link Properties} object, using
+ * the endpoint name as a prefix:
+ * <dl>
+ * <dt>{@code testbed.<name>.latency   }<dd>mean added latency, in milliseconds (default: 0)
+ * <dt>{@code testbed.<name>.jitter    }<dd>maximum deviation from the mean, in milliseconds (default: 0)
+ * <dt>{@code testbed.<name>.errorRate }<dd>fraction of requests to fail, between 0.0 and 1.0 (default: 0.0)
+ * <dt>{@code testbed.seed             }<dd>seed for the pseudo-random generator (default: 42)
+ * </dl>
+ */
+public class FaultInjector {
+
+    protected final String name_;
+    protected final long latency_;
+    protected final long jitter_;
+    protected final double errorRate_;
+    private final Random random_;
+
+    private final AtomicLong requests_ = new AtomicLong();
+    private final AtomicLong failures_ = new AtomicLong();
+
+
+    public FaultInjector(final String name,
+                         final long latency,
+                         final long jitter,
+                         final double errorRate,
+                         final long seed)
+    {
+        if (latency < 0 || jitter < 0 || jitter > latency)
+            throw new IllegalArgumentException("Invalid latency/jitter for endpoint '" + name
+                                               + "': " + latency + "/" + jitter);
+        if (errorRate < 0.0 || errorRate > 1.0)
+            throw new IllegalArgumentException("Error rate for endpoint '" + name
+                                               + "' must be between 0.0 and 1.0, got " + errorRate);
+        name_ = name;
+        latency_ = latency;
+        jitter_ = jitter;
+        errorRate_ = errorRate;
+        // derive a distinct but reproducible stream for each endpoint
+        random_ = new Random(seed ^ name.hashCode());
+    }
+
+
+    /** Construct from the {@code testbed.<name>.*} properties; see class description. */
+    public FaultInjector(final String name, final Properties props)
+    {
+        this(name,
+             Long.parseLong(props.getProperty("testbed." + name + ".latency", "0")),
+             Long.parseLong(props.getProperty("testbed." + name + ".jitter", "0")),
+             Double.parseDouble(props.getProperty("testbed." + name + ".errorRate", "0.0")),
+             Long.parseLong(props.getProperty("testbed.seed", "42")));
+    }
+
+
+    /** Sleep for the configured latency, then return {@code true}
+     * if this request should fail.
+     */
+    public boolean delay()
+        throws InterruptedException
+    {
+        long sleep;
+        boolean fail;
+        synchronized (random_) {
+            sleep = latency_;
+            if (jitter_ > 0)
+                sleep += (long) ((2 * random_.nextDouble() - 1) * jitter_);
+            fail = (errorRate_ > 0.0 && random_.nextDouble() < errorRate_);
+        }
+        requests_.incrementAndGet();
+        if (sleep > 0)
+            Thread.sleep(sleep);
+        if (fail)
+            failures_.incrementAndGet();
+        return fail;
+    }
+
+
+    public String getName()   { return name_; }
+    public long getRequests() { return requests_.get(); }
+    public long getFailures() { return failures_.get(); }
+
+    public String toString() {
+        return name_ + ": latency=" + latency_ + "ms +/- " + jitter_ + "ms, errorRate=" + errorRate_
+            + " (" + failures_.get() + "/" + requests_.get() + " failed)";
+    }
+}
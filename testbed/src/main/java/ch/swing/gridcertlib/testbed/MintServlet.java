@@ -0,0 +1,64 @@
+/**
+ * @file   MintServlet.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class MintServlet
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.testbed;
+
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/** Test bed control endpoint: simulate a Shibboleth login.
+ * <p>
+ * {@code GET ...?user=<name>} releases a fresh assertion for user
+ * {@code name} and returns its export URL as plain text, i.e., the
+ * value Apache would put in the {@code Shib-Assertion-01} header.
+ * This endpoint is not subject to latency or error injection.
+ */
+public class MintServlet extends HttpServlet
+{
+    protected final TestbedState state_;
+
+    public MintServlet(final TestbedState state)
+    {
+        state_ = state;
+    }
+
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException
+    {
+        final String name = request.getParameter("user");
+        if (null == name || "".equals(name)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing required query parameter 'user'");
+            return;
+        }
+        final TestbedState.Released released =
+            state_.release(state_.getUser(name), state_.portalEntityId);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/plain");
+        response.getWriter().println(state_.getAssertionUrl(released.id));
+    }
+}
@@ -0,0 +1,269 @@
+/**
+ * @file   SLCSStandInServer.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class SLCSStandInServer
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.testbed;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ssl.SslSocketConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+
+/** Embedded HTTPS server imitating the three remote parties that
+ * {@code SLCSRequestor} talks to: the SP assertion export handler,
+ * the ID-WSF ECP delegation chain (WSP session initiator, IdP ECP
+ * endpoint, assertion consumer), and the SLCS service (login and
+ * certificate endpoints).  CSRs are actually signed, by a throwaway
+ * {@link TestCA}, so the certificates written by {@code
+ * SLCSFactory.newSLCS} are real and can be fed to {@code
+ * GridProxyFactory}.
+ * <p>
+ * At {@link #start}, the server writes the following fixtures into
+ * the given directory:
+ * <dl>
+ * <dt>{@code ca.pem                 }<dd>the test CA certificate; use as {@code gridcertlib.pemCACertificatesPath}
+ * <dt>{@code hostcert.pem, hostkey.pem }<dd>portal SP credentials, issued by the test CA
+ * <dt>{@code gridcertlib.properties }<dd>a complete GridCertLib configuration pointing at this server
+ * <dt>{@code testbed.jks            }<dd>keystore used by the server itself
+ * </dl>
+ * Each endpoint has its own latency and error injection, configured
+ * from {@code testbed.<endpoint>.*} properties (see {@link
+ * FaultInjector}); endpoint names are {@code assertion}, {@code wsp},
+ * {@code idp}, {@code acs}, {@code login} and {@code certificate}.  Other
+ * properties:
+ * <dl>
+ * <dt>{@code testbed.port               }<dd>TCP port to listen on (default: 0, i.e., any free port)
+ * <dt>{@code testbed.maxThreads         }<dd>size of the server thread pool (default: 200)
+ * <dt>{@code testbed.assertionLifetime  }<dd>lifetime of released assertions, in seconds (default: 300)
+ * </dl>
+ * <p>
+ * From the command line: {@code java -jar gridcertlib-testbed.jar
+ * <fixture directory> [<properties file>]}; the server runs until
+ * killed, and prints the URL to release new assertions.
+ */
+public class SLCSStandInServer {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(SLCSStandInServer.class);
+
+    public static final String ASSERTION_PATH        = "/Shibboleth.sso/GetAssertion";
+    public static final String MINT_PATH             = "/testbed/assertion";
+    public static final String WSP_PATH              = "/Shibboleth.sso/WSP";
+    public static final String ECP_ACS_PATH          = "/Shibboleth.sso/SAML2/ECP";
+    public static final String IDP_ECP_PATH          = "/idp/profile/SAML2/SOAP/ECP";
+    public static final String SLCS_LOGIN_PATH       = "/SLCS/login";
+    public static final String SLCS_CERTIFICATE_PATH = "/SLCS/certificate";
+
+    /** Password protecting the generated keystore; there is nothing to protect. */
+    protected static final String KEYSTORE_PASSWORD = "testbed";
+
+    /** Entity ID of the (imaginary) portal SP, used as {@code gridcertlib.providerId}. */
+    public static final String PORTAL_ENTITY_ID = "https://portal.testbed.example.org/shibboleth";
+
+    protected final File fixtureDir_;
+    protected final Properties props_;
+    protected final TestbedState state_;
+    protected final List<FaultInjector> faults_ = new ArrayList<FaultInjector>();
+    protected Server server_;
+    protected SslSocketConnector connector_;
+
+
+    public SLCSStandInServer(final File fixtureDir, final Properties props)
+        throws GeneralSecurityException
+    {
+        fixtureDir_ = fixtureDir;
+        props_ = props;
+        state_ = new TestbedState(new TestCA(), PORTAL_ENTITY_ID);
+        state_.setAssertionLifetime(1000 * Long.parseLong(props.getProperty("testbed.assertionLifetime", "300")));
+    }
+
+
+    /** Write fixtures, then start listening on the configured port. */
+    public void start()
+        throws Exception
+    {
+        if (! fixtureDir_.isDirectory() && ! fixtureDir_.mkdirs())
+            throw new IOException("Cannot create fixture directory '" + fixtureDir_ + "'");
+
+        final File keystore = writeKeystore();
+        SslContextFactory ssl = new SslContextFactory();
+        ssl.setKeyStorePath(keystore.getAbsolutePath());
+        ssl.setKeyStorePassword(KEYSTORE_PASSWORD);
+        ssl.setKeyManagerPassword(KEYSTORE_PASSWORD);
+        ssl.setTrustStore(keystore.getAbsolutePath());
+        ssl.setTrustStorePassword(KEYSTORE_PASSWORD);
+        // the SP presents its host certificate to WSP and SLCS
+        ssl.setWantClientAuth(true);
+        connector_ = new SslSocketConnector(ssl);
+        connector_.setHost("127.0.0.1");
+        connector_.setPort(Integer.parseInt(props_.getProperty("testbed.port", "0")));
+
+        server_ = new Server();
+        QueuedThreadPool pool = new QueuedThreadPool();
+        pool.setMaxThreads(Integer.parseInt(props_.getProperty("testbed.maxThreads", "200")));
+        server_.setThreadPool(pool);
+        server_.addConnector(connector_);
+
+        ServletContextHandler root = new ServletContextHandler(server_, "/", ServletContextHandler.NO_SESSIONS);
+        root.addServlet(new ServletHolder(new AssertionServlet(state_, newFaultInjector("assertion"))), ASSERTION_PATH);
+        root.addServlet(new ServletHolder(new WspServlet(state_, newFaultInjector("wsp"))), WSP_PATH);
+        root.addServlet(new ServletHolder(new WspServlet(state_, newFaultInjector("acs"))), ECP_ACS_PATH);
+        root.addServlet(new ServletHolder(new EcpIdpServlet(state_, newFaultInjector("idp"))), IDP_ECP_PATH);
+        root.addServlet(new ServletHolder(new SlcsLoginServlet(state_, newFaultInjector("login"))), SLCS_LOGIN_PATH);
+        root.addServlet(new ServletHolder(new SlcsCertificateServlet(state_, newFaultInjector("certificate"))), SLCS_CERTIFICATE_PATH);
+        root.addServlet(new ServletHolder(new MintServlet(state_)), MINT_PATH);
+
+        server_.start();
+        state_.setBaseUrl("https://localhost:" + connector_.getLocalPort());
+        writeFixtures();
+        LOG.info("SLCS stand-in server listening at " + state_.getBaseUrl());
+    }
+
+
+    /** Stop the server; fixtures are left in place. */
+    public void stop()
+        throws Exception
+    {
+        if (null != server_)
+            server_.stop();
+        for (FaultInjector faults : faults_)
+            LOG.info("Stand-in endpoint " + faults);
+    }
+
+
+    /** Release a fresh assertion for {@code user} and return its URL,
+     * i.e., what Apache would put into the {@code Shib-Assertion-01} header.
+     */
+    public String newAssertionUrl(final String user)
+    {
+        return state_.getAssertionUrl(state_.release(state_.getUser(user), PORTAL_ENTITY_ID).id);
+    }
+
+
+    /** Return the GridCertLib configuration pointing at this server (only valid after {@link #start}). */
+    public Properties getGridcertlibProperties()
+    {
+        Properties props = new Properties();
+        props.setProperty("gridcertlib.slcsLoginURL", state_.getSlcsLoginUrl());
+        props.setProperty("gridcertlib.wspSessionInitiatorURL", state_.getWspSessionInitiatorUrl());
+        props.setProperty("gridcertlib.providerId", PORTAL_ENTITY_ID);
+        props.setProperty("gridcertlib.pemCertificatePath", new File(fixtureDir_, "hostcert.pem").getAbsolutePath());
+        props.setProperty("gridcertlib.pemPrivateKeyPath", new File(fixtureDir_, "hostkey.pem").getAbsolutePath());
+        props.setProperty("gridcertlib.pemPrivateKeyPassword", "");
+        props.setProperty("gridcertlib.pemCACertificatesPath", new File(fixtureDir_, "ca.pem").getAbsolutePath());
+        props.setProperty("gridcertlib.slcsStoreDirectory", new File(fixtureDir_, "store").getAbsolutePath());
+        return props;
+    }
+
+
+    public TestbedState getState()                { return state_; }
+    public List<FaultInjector> getFaultInjectors() { return faults_; }
+    public File getFixtureDirectory()             { return fixtureDir_; }
+
+
+    protected FaultInjector newFaultInjector(final String name)
+    {
+        FaultInjector faults = new FaultInjector(name, props_);
+        faults_.add(faults);
+        return faults;
+    }
+
+
+    protected File writeKeystore()
+        throws GeneralSecurityException, IOException
+    {
+        final TestCA.Credentials server = state_.ca.newHostCredentials("CN=localhost,O=GridCertLib Testbed");
+        KeyStore ks = KeyStore.getInstance("JKS");
+        ks.load(null, null);
+        ks.setKeyEntry("testbed", server.keys.getPrivate(), KEYSTORE_PASSWORD.toCharArray(),
+                       new Certificate[] { server.certificate, state_.ca.getCertificate() });
+        ks.setCertificateEntry("ca", state_.ca.getCertificate());
+        final File file = new File(fixtureDir_, "testbed.jks");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            ks.store(out, KEYSTORE_PASSWORD.toCharArray());
+        }
+        finally {
+            out.close();
+        }
+        return file;
+    }
+
+
+    protected void writeFixtures()
+        throws GeneralSecurityException, IOException
+    {
+        state_.ca.writePEM(new File(fixtureDir_, "ca.pem"));
+        state_.ca.newHostCredentials("CN=portal.testbed.example.org,O=GridCertLib Testbed")
+            .writePEM(new File(fixtureDir_, "hostcert.pem"), new File(fixtureDir_, "hostkey.pem"));
+        OutputStream out = new FileOutputStream(new File(fixtureDir_, "gridcertlib.properties"));
+        try {
+            getGridcertlibProperties().store(out, "Generated by SLCSStandInServer; valid while the server runs");
+        }
+        finally {
+            out.close();
+        }
+    }
+
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        if (args.length < 1) {
+            System.err.println("Usage: SLCSStandInServer <fixture directory> [<properties file>]");
+            System.exit(1);
+        }
+        Properties props = new Properties();
+        if (args.length > 1)
+            props.load(new FileInputStream(args[1]));
+
+        final SLCSStandInServer server = new SLCSStandInServer(new File(args[0]), props);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    try { server.stop(); }
+                    catch (Exception x) { LOG.warn("Error stopping stand-in server: " + x.getMessage()); }
+                }
+            });
+        System.out.println("GridCertLib configuration: " + new File(args[0], "gridcertlib.properties"));
+        System.out.println("New assertions: " + server.getState().getBaseUrl() + MINT_PATH + "?user=<name>");
+        server.server_.join();
+    }
+}
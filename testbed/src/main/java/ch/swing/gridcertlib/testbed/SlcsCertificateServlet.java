@@ -0,0 +1,119 @@
+/**
+ * @file   SlcsCertificateServlet.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class SlcsCertificateServlet
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.testbed;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import javax.naming.ldap.LdapName;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/** Stand-in for the SWITCH SLCS certificate endpoint.
+ * <p>
+ * Accepts a {@code POST} with the {@code AuthorizationToken} and
+ * {@code CertificateSigningRequest} parameters, as sent by {@code
+ * SLCSRequestor.requestSlcsCertificate}.  The token is single-use;
+ * the CSR subject must match the one handed out at login.  On
+ * success, the CSR is signed by the test bed {@link TestCA} and the
+ * certificate (followed by the CA certificate) is returned in a
+ * {@code SLCSCertificateResponse}; errors are reported with a {@code
+ * Status} of {@code Error}, as the real service does.
+ */
+public class SlcsCertificateServlet extends StandInServlet
+{
+    public SlcsCertificateServlet(final TestbedState state, final FaultInjector faults)
+    {
+        super(state, faults);
+    }
+
+
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException
+    {
+        final String token = request.getParameter("AuthorizationToken");
+        final String csr = request.getParameter("CertificateSigningRequest");
+        if (null == token || null == csr) {
+            sendError(response, "Missing AuthorizationToken or CertificateSigningRequest parameter");
+            return;
+        }
+        final TestbedState.User user = state_.tokens.remove(token);
+        if (null == user) {
+            sendError(response, "Invalid or already used AuthorizationToken");
+            return;
+        }
+
+        final X509Certificate cert;
+        try {
+            final String subject = TestCA.getRequestSubject(csr);
+            if (! sameDN(subject, user.subject)) {
+                sendError(response, "CSR subject '" + subject + "' does not match '" + user.subject + "'");
+                return;
+            }
+            cert = state_.ca.signRequest(csr, state_.getCertificateLifetime());
+        }
+        catch (GeneralSecurityException x) {
+            sendError(response, "Cannot sign certificate request: " + x.getMessage());
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/xml");
+        response.getWriter().print(
+            "<SLCSCertificateResponse>"
+            + "<Status>Success</Status>"
+            + "<Certificate>" + TestCA.toPEM(cert, state_.ca.getCertificate()) + "</Certificate>"
+            + "</SLCSCertificateResponse>");
+    }
+
+
+    /** Compare two DNs irrespective of RDN order and formatting. */
+    protected static boolean sameDN(final String a, final String b)
+    {
+        try {
+            LdapName na = new LdapName(a.replace('/', ','));
+            LdapName nb = new LdapName(b.replace('/', ','));
+            return na.getRdns().containsAll(nb.getRdns()) && nb.getRdns().containsAll(na.getRdns());
+        }
+        catch (javax.naming.InvalidNameException x) {
+            return a.equals(b);
+        }
+    }
+
+
+    protected static void sendError(final HttpServletResponse response, final String error)
+        throws IOException
+    {
+        LOG.debug("SLCS certificate: " + error);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/xml");
+        response.getWriter().print(
+            "<SLCSCertificateResponse>"
+            + "<Status>Error</Status>"
+            + "<Error>" + TestbedState.escape(error) + "</Error>"
+            + "</SLCSCertificateResponse>");
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * @file   SlcsLoginServlet.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class SlcsLoginServlet
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.testbed;
+
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/** Stand-in for the SWITCH SLCS login endpoint.
+ * <p>
+ * With a valid SP session (established through {@link WspServlet}),
+ * answers with an {@code SLCSLoginResponse} carrying a fresh
+ * authorization token, the URL of the certificate endpoint ({@link
+ * SlcsCertificateServlet}), and the certificate subject for the
+ * session user.  Without a session, ECP clients get a PAOS {@code
+ * AuthnRequest} (like a Shibboleth lazy session would do), and
+ * everyone else gets a 401.
+ */
+public class SlcsLoginServlet extends StandInServlet
+{
+    public SlcsLoginServlet(final TestbedState state, final FaultInjector faults)
+    {
+        super(state, faults);
+    }
+
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException
+    {
+        final TestbedState.User user = getSessionUser(request);
+        if (null == user) {
+            if (acceptsPaos(request))
+                WspServlet.sendAuthnRequest(state_, response, state_.getSlcsLoginUrl());
+            else
+                response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "No SP session");
+            return;
+        }
+
+        final String token = state_.newId();
+        state_.tokens.put(token, user);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/xml");
+        response.getWriter().print(
+            "<SLCSLoginResponse>"
+            + "<Status>Success</Status>"
+            + "<AuthorizationToken>" + token + "</AuthorizationToken>"
+            + "<CertificateRequest url=\"" + TestbedState.escape(state_.getSlcsCertificateUrl()) + "\">"
+            +   "<Subject>" + TestbedState.escape(user.subject) + "</Subject>"
+            +   "<CertificateExtension name=\"SubjectAltName\">email:"
+            +   TestbedState.escape(user.mail) + "</CertificateExtension>"
+            + "</CertificateRequest>"
+            + "</SLCSLoginResponse>");
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * @file   StandInServlet.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class StandInServlet
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.testbed;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/** Base class of the stand-in endpoints: applies the configured
+ * latency and error injection before handing the request to the
+ * usual {@code doGet}/{@code doPost} methods, and provides a few
+ * helpers for the SOAP/PAOS message handling.
+ */
+public abstract class StandInServlet extends HttpServlet
+{
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(StandInServlet.class);
+
+    /** Name of the SP session cookie set by the ECP assertion consumer. */
+    public static final String SESSION_COOKIE = "_shibsession_testbed";
+
+    /** Media type of PAOS messages. */
+    public static final String PAOS_MEDIA_TYPE = "application/vnd.paos+xml";
+
+    protected final TestbedState state_;
+    protected final FaultInjector faults_;
+
+
+    protected StandInServlet(final TestbedState state, final FaultInjector faults)
+    {
+        state_ = state;
+        faults_ = faults;
+    }
+
+
+    protected void service(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException
+    {
+        boolean fail;
+        try {
+            fail = faults_.delay();
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            fail = true;
+        }
+        if (fail) {
+            LOG.debug(faults_.getName() + ": injecting failure for " + request.getRequestURI());
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                               "Failure injected by test bed");
+            return;
+        }
+        super.service(request, response);
+    }
+
+
+    /** Return {@code true} if the client announced ECP/PAOS support in the request headers. */
+    protected static boolean acceptsPaos(final HttpServletRequest request)
+    {
+        final String accept = request.getHeader("Accept");
+        return (null != accept && accept.indexOf(PAOS_MEDIA_TYPE) >= 0
+                && null != request.getHeader("PAOS"));
+    }
+
+
+    /** Return the user associated with the request SP session cookie, or {@code null}. */
+    protected TestbedState.User getSessionUser(final HttpServletRequest request)
+    {
+        final Cookie[] cookies = request.getCookies();
+        if (null == cookies)
+            return null;
+        for (Cookie cookie : cookies)
+            if (SESSION_COOKIE.equals(cookie.getName()))
+                return state_.sessions.get(cookie.getValue());
+        return null;
+    }
+
+
+    /** Read the whole request body into a string. */
+    protected static String readBody(final HttpServletRequest request)
+        throws IOException
+    {
+        StringBuilder body = new StringBuilder();
+        BufferedReader in = request.getReader();
+        char[] buf = new char[4096];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            body.append(buf, 0, n);
+        return body.toString();
+    }
+
+
+    /** Return the value of attribute {@code attr} on the first XML
+     * element named {@code element} (in any namespace), or {@code null}.
+     * Good enough for the fixed message shapes of the ECP profile;
+     * this is not a general XML parser.
+     */
+    protected static String findAttribute(final String xml, final String element, final String attr)
+    {
+        Matcher m = Pattern.compile("<(?:[\\w-]+:)?" + element + "\\b[^>]*?\\b" + attr + "=\"([^\"]*)\"")
+            .matcher(xml);
+        return m.find() ? m.group(1) : null;
+    }
+
+
+    /** Return the text content of the first XML element named {@code element}, or {@code null}. */
+    protected static String findText(final String xml, final String element)
+    {
+        Matcher m = Pattern.compile("<(?:[\\w-]+:)?" + element + "\\b[^>]*>([^<]*)<")
+            .matcher(xml);
+        return m.find() ? m.group(1).trim() : null;
+    }
+
+
+    /** Wrap {@code header} and {@code body} into a SOAP 1.1 envelope. */
+    protected static String soapEnvelope(final String header, final String body)
+    {
+        return "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+            + "<S:Header>" + header + "</S:Header>"
+            + "<S:Body>" + body + "</S:Body>"
+            + "</S:Envelope>";
+    }
+
+
+    /** Send a SOAP 1.1 fault with the given reason. */
+    protected static void sendSoapFault(final HttpServletResponse response, final String reason)
+        throws IOException
+    {
+        response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        response.setContentType("text/xml");
+        response.getWriter().print(soapEnvelope("",
+            "<S:Fault><faultcode>S:Server</faultcode><faultstring>"
+            + TestbedState.escape(reason) + "</faultstring></S:Fault>"));
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * @file   TestCA.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class TestCA
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.testbed;
+
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.jce.X509Principal;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openssl.PEMReader;
+import org.bouncycastle.openssl.PEMWriter;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+
+/** Throwaway certification authority for the test bed.
+ * <p>
+ * Creates a self-signed CA certificate at construction time, and
+ * then signs host certificates (for the stand-in servers and the
+ * portal SP) and PKCS#10 certificate requests (for the stand-in SLCS
+ * service).  Nothing is persisted unless explicitly written out with
+ * {@link #writePEM(File)} and friends; each test run gets a fresh CA.
+ * <p>
+ * <em>Never</em> use this class to sign anything that leaves the
+ * test environment: keys are short and nothing is protected.
+ */
+public class TestCA {
+
+    /** Signature algorithm used for all issued certificates. */
+    public static final String SIGNATURE_ALGORITHM = "SHA1WithRSAEncryption";
+
+    /** Size (in bits) of the keys generated by this CA. */
+    protected final int keySize_;
+
+    /** CA key pair. */
+    protected final KeyPair caKeys_;
+
+    /** Self-signed CA certificate. */
+    protected final X509Certificate caCert_;
+
+    /** Serial number of the last issued certificate. */
+    private long serial_ = 1;
+
+    protected final SecureRandom random_ = new SecureRandom();
+
+    static {
+        if (null == Security.getProvider("BC"))
+            Security.addProvider(new BouncyCastleProvider());
+    }
+
+
+    /** Constructor: create a new CA with the given subject DN
+     * (e.g., {@code "CN=GridCertLib Test CA,O=GridCertLib,C=CH"}) and
+     * key size.
+     */
+    public TestCA(final String subject, final int keySize)
+        throws GeneralSecurityException
+    {
+        keySize_ = keySize;
+        caKeys_ = newKeyPair();
+        X509V3CertificateGenerator gen = newGenerator(subject, caKeys_.getPublic(), 10L*365*24*3600*1000);
+        gen.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(true));
+        gen.addExtension(X509Extensions.KeyUsage, true,
+                         new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign));
+        caCert_ = gen.generate(caKeys_.getPrivate(), "BC");
+    }
+
+    /** Constructor: create a CA with a default subject and 1024-bit keys. */
+    public TestCA()
+        throws GeneralSecurityException
+    {
+        this("CN=GridCertLib Test CA,O=GridCertLib,C=CH", 1024);
+    }
+
+
+    /** Return the self-signed CA certificate. */
+    public X509Certificate getCertificate() { return caCert_; }
+
+
+    /** Generate a fresh RSA key pair of this CA's key size. */
+    public KeyPair newKeyPair()
+        throws GeneralSecurityException
+    {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(keySize_, random_);
+        return kpg.generateKeyPair();
+    }
+
+
+    /** Issue an end-entity certificate for the given subject and public key.
+     *
+     * @param subject         subject DN, in RFC2253 format
+     * @param publicKey       key to certify
+     * @param lifetimeMillis  validity period of the certificate, starting now
+     */
+    public X509Certificate issue(final String subject,
+                                 final PublicKey publicKey,
+                                 final long lifetimeMillis)
+        throws GeneralSecurityException
+    {
+        X509V3CertificateGenerator gen = newGenerator(subject, publicKey, lifetimeMillis);
+        gen.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(false));
+        gen.addExtension(X509Extensions.KeyUsage, true,
+                         new KeyUsage(KeyUsage.digitalSignature | KeyUsage.keyEncipherment));
+        return gen.generate(caKeys_.getPrivate(), "BC");
+    }
+
+
+    /** Sign a PEM-encoded PKCS#10 certificate request, as posted to
+     * the SLCS certificate endpoint.  The CSR self-signature is
+     * verified; the subject DN of the issued certificate is taken
+     * from the request.
+     *
+     * @throws GeneralSecurityException if the CSR cannot be decoded or its signature does not verify
+     */
+    public X509Certificate signRequest(final String pemCsr, final long lifetimeMillis)
+        throws GeneralSecurityException, IOException
+    {
+        final PKCS10CertificationRequest csr = readRequest(pemCsr);
+        if (! csr.verify("BC"))
+            throw new GeneralSecurityException("Certificate request signature does not verify");
+        return issue(csr.getCertificationRequestInfo().getSubject().toString(),
+                     csr.getPublicKey("BC"),
+                     lifetimeMillis);
+    }
+
+
+    /** Return the subject DN of a PEM-encoded PKCS#10 certificate request. */
+    public static String getRequestSubject(final String pemCsr)
+        throws GeneralSecurityException, IOException
+    {
+        return readRequest(pemCsr).getCertificationRequestInfo().getSubject().toString();
+    }
+
+
+    protected static PKCS10CertificationRequest readRequest(final String pemCsr)
+        throws GeneralSecurityException, IOException
+    {
+        final Object obj = new PEMReader(new StringReader(pemCsr)).readObject();
+        if (! (obj instanceof PKCS10CertificationRequest))
+            throw new GeneralSecurityException("Not a PEM-encoded PKCS#10 certificate request");
+        return (PKCS10CertificationRequest) obj;
+    }
+
+
+    protected synchronized X509V3CertificateGenerator newGenerator(final String subject,
+                                                                   final PublicKey publicKey,
+                                                                   final long lifetimeMillis)
+    {
+        final long now = System.currentTimeMillis();
+        X509V3CertificateGenerator gen = new X509V3CertificateGenerator();
+        gen.setSerialNumber(BigInteger.valueOf(serial_++));
+        gen.setSubjectDN(new X509Principal(subject));
+        // the CA certificate is self-signed, so the issuer of the
+        // first certificate generated is the subject itself
+        if (null == caCert_)
+            gen.setIssuerDN(new X509Principal(subject));
+        else
+            gen.setIssuerDN(caCert_.getSubjectX500Principal());
+        // allow for some clock skew between the stand-ins and the client
+        gen.setNotBefore(new Date(now - 5*60*1000));
+        gen.setNotAfter(new Date(now + lifetimeMillis));
+        gen.setPublicKey(publicKey);
+        gen.setSignatureAlgorithm(SIGNATURE_ALGORITHM);
+        return gen;
+    }
+
+
+    /** Return the PEM encoding of the given objects (certificates or keys), concatenated. */
+    public static String toPEM(final Object... objs)
+        throws IOException
+    {
+        StringWriter out = new StringWriter();
+        PEMWriter pem = new PEMWriter(out);
+        for (Object obj : objs)
+            pem.writeObject(obj);
+        pem.flush();
+        return out.toString();
+    }
+
+
+    /** Write the PEM encoding of the given objects into {@code file}. */
+    public static void writePEM(final File file, final Object... objs)
+        throws IOException
+    {
+        Writer out = new FileWriter(file);
+        try {
+            out.write(toPEM(objs));
+        }
+        finally {
+            out.close();
+        }
+    }
+
+
+    /** Write the CA certificate into {@code file}, in PEM format. */
+    public void writePEM(final File file)
+        throws IOException
+    {
+        writePEM(file, caCert_);
+    }
+
+
+    /** Key pair and certificate issued by this CA. */
+    public static class Credentials {
+        public final KeyPair keys;
+        public final X509Certificate certificate;
+
+        Credentials(final KeyPair keys, final X509Certificate certificate) {
+            this.keys = keys;
+            this.certificate = certificate;
+        }
+
+        /** Write certificate and (unencrypted) private key into the given files, in PEM format. */
+        public void writePEM(final File certificateFile, final File privateKeyFile)
+            throws IOException
+        {
+            TestCA.writePEM(certificateFile, certificate);
+            TestCA.writePEM(privateKeyFile, keys.getPrivate());
+        }
+    }
+
+
+    /** Issue a one-year host certificate for {@code subject}, with a freshly generated key pair. */
+    public Credentials newHostCredentials(final String subject)
+        throws GeneralSecurityException
+    {
+        final KeyPair keys = newKeyPair();
+        return new Credentials(keys, issue(subject, keys.getPublic(), 365L*24*3600*1000));
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * @file   TestbedState.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class TestbedState
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.testbed;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/** State shared by the stand-in servlets of one {@link SLCSStandInServer}.
+ * <p>
+ * Keeps track of the users known to the stand-in IdP, the SAML2
+ * assertions released so far, the SP sessions established via ECP
+ * delegation, and the authorization tokens handed out by the SLCS
+ * login endpoint.  All maps grow without bound: a test bed is
+ * expected to live only as long as a test run.
+ */
+public class TestbedState {
+
+    /** A user known to the stand-in IdP. */
+    public static class User {
+        public final String name;
+        public final String subject;
+        public final String mail;
+
+        User(final String name, final String subject, final String mail) {
+            this.name = name;
+            this.subject = subject;
+            this.mail = mail;
+        }
+    }
+
+    /** An assertion released by the stand-in IdP. */
+    public static class Released {
+        public final String id;
+        public final User user;
+        public final long notOnOrAfter;
+        public final String xml;
+
+        Released(final String id, final User user, final long notOnOrAfter, final String xml) {
+            this.id = id;
+            this.user = user;
+            this.notOnOrAfter = notOnOrAfter;
+            this.xml = xml;
+        }
+
+        public boolean isValid() { return System.currentTimeMillis() < notOnOrAfter; }
+    }
+
+    /** Certificate authority signing the SLCS certificates and the stand-in host certificates. */
+    public final TestCA ca;
+
+    /** Base URL (scheme, host and port) all stand-in endpoints are served from. */
+    protected String baseUrl_;
+
+    /** Entity ID of the stand-in IdP; also used as {@code Issuer} in released assertions. */
+    protected String idpEntityId_;
+
+    /** Entity ID of the portal SP; see {@code gridcertlib.providerId}. */
+    public final String portalEntityId;
+
+    /** Lifetime of released assertions, in milliseconds (Shibboleth's default is 5 minutes). */
+    protected long assertionLifetime_ = 5*60*1000;
+
+    /** Lifetime of issued SLCS certificates, in milliseconds (SWITCH SLCS: 1000000 seconds). */
+    protected long certificateLifetime_ = 1000000L*1000;
+
+    /** Subject DN prefix of issued SLCS certificates. */
+    protected String subjectPrefix_ = "DC=ch,DC=switch,DC=slcs,O=GridCertLib Testbed,CN=";
+
+    public final ConcurrentMap<String, User> users = new ConcurrentHashMap<String, User>();
+    public final ConcurrentMap<String, Released> assertions = new ConcurrentHashMap<String, Released>();
+    /** SP session ID (cookie value) to user. */
+    public final ConcurrentMap<String, User> sessions = new ConcurrentHashMap<String, User>();
+    /** SLCS authorization token to user. */
+    public final ConcurrentMap<String, User> tokens = new ConcurrentHashMap<String, User>();
+
+    private final SecureRandom random_ = new SecureRandom();
+
+
+    public TestbedState(final TestCA ca, final String portalEntityId)
+    {
+        this.ca = ca;
+        this.portalEntityId = portalEntityId;
+    }
+
+
+    /** Set the base URL; called by {@link SLCSStandInServer} once the listening port is known. */
+    void setBaseUrl(final String baseUrl)
+    {
+        baseUrl_ = baseUrl;
+        idpEntityId_ = baseUrl + "/idp/shibboleth";
+    }
+
+    public String getBaseUrl()                  { return baseUrl_; }
+    public String getIdpEntityId()              { return idpEntityId_; }
+    public String getSlcsEntityId()             { return baseUrl_ + "/shibboleth"; }
+    public String getAssertionUrl(String id)    { return baseUrl_ + SLCSStandInServer.ASSERTION_PATH + "?ID=" + id; }
+    public String getEcpIdpUrl()                { return baseUrl_ + SLCSStandInServer.IDP_ECP_PATH; }
+    public String getEcpConsumerUrl()           { return baseUrl_ + SLCSStandInServer.ECP_ACS_PATH; }
+    public String getWspSessionInitiatorUrl()   { return baseUrl_ + SLCSStandInServer.WSP_PATH; }
+    public String getSlcsLoginUrl()             { return baseUrl_ + SLCSStandInServer.SLCS_LOGIN_PATH; }
+    public String getSlcsCertificateUrl()       { return baseUrl_ + SLCSStandInServer.SLCS_CERTIFICATE_PATH; }
+
+    public long getAssertionLifetime()          { return assertionLifetime_; }
+    public void setAssertionLifetime(long ms)   { assertionLifetime_ = ms; }
+    public long getCertificateLifetime()        { return certificateLifetime_; }
+    public void setCertificateLifetime(long ms) { certificateLifetime_ = ms; }
+
+
+    /** Return the user with the given name, creating it if needed. */
+    public User getUser(final String name)
+    {
+        User user = users.get(name);
+        if (null == user) {
+            users.putIfAbsent(name, new User(name, subjectPrefix_ + name, name + "@testbed.example.org"));
+            user = users.get(name);
+        }
+        return user;
+    }
+
+
+    /** Release a new assertion for {@code user}, addressed to {@code audience}. */
+    public Released release(final User user, final String audience)
+    {
+        final String id = newId();
+        final long now = System.currentTimeMillis();
+        final long notOnOrAfter = now + assertionLifetime_;
+        final String xml =
+            "<saml2:Assertion xmlns:saml2=\"urn:oasis:names:tc:SAML:2.0:assertion\""
+            + " xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\""
+            + " ID=\"" + id + "\" IssueInstant=\"" + timestamp(now) + "\" Version=\"2.0\">"
+            + "<saml2:Issuer>" + escape(idpEntityId_) + "</saml2:Issuer>"
+            + "<saml2:Subject>"
+            +   "<saml2:NameID Format=\"urn:oasis:names:tc:SAML:2.0:nameid-format:transient\""
+            +   " NameQualifier=\"" + escape(idpEntityId_) + "\" SPNameQualifier=\"" + escape(audience) + "\">"
+            +   "_" + newId() + "</saml2:NameID>"
+            +   "<saml2:SubjectConfirmation Method=\"urn:oasis:names:tc:SAML:2.0:cm:bearer\">"
+            +     "<saml2:SubjectConfirmationData NotOnOrAfter=\"" + timestamp(notOnOrAfter) + "\"/>"
+            +   "</saml2:SubjectConfirmation>"
+            + "</saml2:Subject>"
+            + "<saml2:Conditions NotBefore=\"" + timestamp(now - 60*1000) + "\""
+            + " NotOnOrAfter=\"" + timestamp(notOnOrAfter) + "\">"
+            +   "<saml2:AudienceRestriction>"
+            +     "<saml2:Audience>" + escape(audience) + "</saml2:Audience>"
+            +     "<saml2:Audience>" + escape(getSlcsEntityId()) + "</saml2:Audience>"
+            +   "</saml2:AudienceRestriction>"
+            + "</saml2:Conditions>"
+            + "<saml2:AuthnStatement AuthnInstant=\"" + timestamp(now) + "\" SessionIndex=\"" + newId() + "\">"
+            +   "<saml2:AuthnContext><saml2:AuthnContextClassRef>"
+            +   "urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport"
+            +   "</saml2:AuthnContextClassRef></saml2:AuthnContext>"
+            + "</saml2:AuthnStatement>"
+            + "<saml2:AttributeStatement>"
+            +   attribute("urn:oid:2.5.4.3", "cn", user.name)
+            +   attribute("urn:oid:0.9.2342.19200300.100.1.3", "mail", user.mail)
+            +   attribute("urn:oid:2.16.756.1.2.5.1.1.1", "swissEduPersonUniqueID", user.name + "@testbed")
+            + "</saml2:AttributeStatement>"
+            + "</saml2:Assertion>";
+        final Released released = new Released(id, user, notOnOrAfter, xml);
+        assertions.put(id, released);
+        return released;
+    }
+
+
+    /** Return a new random identifier, usable as a SAML ID, session ID or token. */
+    public String newId()
+    {
+        // SAML IDs must not start with a digit
+        return "_" + new BigInteger(130, random_).toString(32);
+    }
+
+
+    /** Format {@code millis} as an {@code xs:dateTime} in UTC. */
+    public static String timestamp(final long millis)
+    {
+        // SimpleDateFormat is not thread-safe, so make a new one each time
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return fmt.format(new Date(millis));
+    }
+
+
+    /** Escape XML special characters in {@code text}. */
+    public static String escape(final String text)
+    {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+
+    private static String attribute(final String name, final String friendlyName, final String value)
+    {
+        return "<saml2:Attribute Name=\"" + name + "\" FriendlyName=\"" + friendlyName + "\""
+            + " NameFormat=\"urn:oasis:names:tc:SAML:2.0:attrname-format:uri\">"
+            + "<saml2:AttributeValue>" + escape(value) + "</saml2:AttributeValue>"
+            + "</saml2:Attribute>";
+    }
+}
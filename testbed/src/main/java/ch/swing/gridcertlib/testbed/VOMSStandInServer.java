@@ -0,0 +1,529 @@
+/**
+ * @file   VOMSStandInServer.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class VOMSStandInServer
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.testbed;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.openssl.PEMWriter;
+import org.bouncycastle.util.encoders.Base64;
+import org.bouncycastle.x509.AttributeCertificateHolder;
+import org.bouncycastle.x509.AttributeCertificateIssuer;
+import org.bouncycastle.x509.X509Attribute;
+import org.bouncycastle.x509.X509V2AttributeCertificateGenerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import javax.security.auth.x500.X500Principal;
+
+
+/** Local stand-in for one or more VOMS servers, for exercising
+ * {@code GridProxyFactory.newProxy} without real VOMS endpoints.
+ * <p>
+ * One TLS listening socket is opened per VO, as real VOMS
+ * deployments do.  Clients authenticate with an X.509 certificate
+ * issued by the test bed {@link TestCA}; the server answers the
+ * legacy VOMS XML request with an RFC3281 attribute certificate
+ * carrying the requested FQANs and signed by a throwaway VOMS host
+ * certificate.  Every requested group and role is granted.
+ * <p>
+ * At {@link #start}, the fixtures {@code VOMSProxyInit} needs are
+ * written into the given directory:
+ * <dl>
+ * <dt>{@code vomses/         }<dd>one vomses file per VO; use as {@code VOMSES_LOCATION}
+ * <dt>{@code vomsdir/        }<dd>{@code <vo>/<host>.lsc} files and the VOMS host certificate; use as {@code VOMSDIR}
+ * <dt>{@code certificates/   }<dd>the test CA in hashed form, with its signing policy; use as {@code CADIR}
+ * <dt>{@code user/           }<dd>a user certificate and key (password {@value #USER_KEY_PASSWORD}) known to the VOMS stand-in
+ * </dl>
+ * {@link #setSystemProperties} points the VOMS API at these.
+ * <p>
+ * Latency and failures are injected per VO, as configured by the
+ * {@code testbed.voms.<vo>.*} properties (see {@link
+ * FaultInjector}); a failed request gets a VOMS error answer.  Other
+ * properties:
+ * <dl>
+ * <dt>{@code testbed.voms.threads }<dd>size of the request-serving thread pool (default: 50)
+ * <dt>{@code testbed.voms.port    }<dd>port of the first VO; further VOs use the following ports (default: 0, i.e., any free port)
+ * </dl>
+ * The GSI wire protocol is only imitated to the extent needed by
+ * the VOMS Java API: TLS with client authentication, an optional
+ * one-byte delegation flag, then a single XML request/answer pair.
+ * <p>
+ * From the command line: {@code java -cp gridcertlib-testbed.jar
+ * ch.swing.gridcertlib.testbed.VOMSStandInServer <fixture directory>
+ * <VO> [<VO> ...]}; configuration is taken from system properties.
+ */
+public class VOMSStandInServer {
+
+    /** Logging */
+    static Logger LOG = LoggerFactory.getLogger(VOMSStandInServer.class);
+
+    /** OID of the VOMS FQAN attribute in the AC. */
+    public static final String VOMS_ATTR_OID = "1.3.6.1.4.1.8005.100.100.4";
+
+    /** OID of the VOMS AC extension carrying the signer certificate chain. */
+    public static final String VOMS_CERTS_OID = "1.3.6.1.4.1.8005.100.100.10";
+
+    /** OID of the {@code noRevAvail} AC extension (RFC3281). */
+    public static final String NO_REV_AVAIL_OID = "2.5.29.56";
+
+    /** Password of the user private key written among the fixtures. */
+    public static final String USER_KEY_PASSWORD = "testbed";
+
+    protected static final String HOST = "localhost";
+
+    protected final File fixtureDir_;
+    protected final TestCA ca_;
+    protected final Properties props_;
+    protected final List<String> vos_;
+    protected final TestCA.Credentials vomsHost_;
+    protected final Map<String, SSLServerSocket> sockets_ = new LinkedHashMap<String, SSLServerSocket>();
+    protected final Map<String, FaultInjector> faults_ = new LinkedHashMap<String, FaultInjector>();
+    protected ExecutorService workers_;
+    protected volatile boolean running_ = false;
+
+    private final AtomicLong serial_ = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong issued_ = new AtomicLong();
+
+
+    /** Constructor.
+     *
+     * @param fixtureDir directory where fixtures will be written
+     * @param ca         CA issuing the VOMS host certificate and trusted for client authentication;
+     *                   pass the one from {@link SLCSStandInServer#getState} to accept SLCS certificates it issued
+     * @param props      configuration, see class description
+     * @param vos        names of the VOs to serve
+     */
+    public VOMSStandInServer(final File fixtureDir,
+                             final TestCA ca,
+                             final Properties props,
+                             final String... vos)
+        throws GeneralSecurityException
+    {
+        if (vos.length < 1)
+            throw new IllegalArgumentException("VOMSStandInServer needs at least one VO name");
+        fixtureDir_ = fixtureDir;
+        ca_ = ca;
+        props_ = props;
+        vos_ = new ArrayList<String>();
+        for (String vo : vos)
+            vos_.add(vo);
+        vomsHost_ = ca.newHostCredentials("CN=" + HOST + ",OU=VOMS,O=GridCertLib Testbed");
+    }
+
+
+    /** Open one listening socket per VO, write fixtures and start serving requests. */
+    public void start()
+        throws GeneralSecurityException, IOException
+    {
+        final SSLContext ssl = newSSLContext();
+        int port = Integer.parseInt(props_.getProperty("testbed.voms.port", "0"));
+        for (String vo : vos_) {
+            SSLServerSocket socket = (SSLServerSocket) ssl.getServerSocketFactory().createServerSocket(port);
+            socket.setNeedClientAuth(true);
+            sockets_.put(vo, socket);
+            faults_.put(vo, new FaultInjector("voms." + vo, props_));
+            if (port > 0)
+                port++;
+        }
+        writeFixtures();
+
+        workers_ = Executors.newFixedThreadPool(Integer.parseInt(props_.getProperty("testbed.voms.threads", "50")));
+        running_ = true;
+        for (Map.Entry<String, SSLServerSocket> entry : sockets_.entrySet()) {
+            final String vo = entry.getKey();
+            final SSLServerSocket socket = entry.getValue();
+            Thread acceptor = new Thread("VOMS stand-in acceptor for VO '" + vo + "'") {
+                    public void run() { accept(vo, socket); }
+                };
+            acceptor.setDaemon(true);
+            acceptor.start();
+            LOG.info("VOMS stand-in for VO '" + vo + "' listening on port " + socket.getLocalPort());
+        }
+    }
+
+
+    /** Close all listening sockets and stop serving requests. */
+    public void stop()
+        throws IOException
+    {
+        running_ = false;
+        for (SSLServerSocket socket : sockets_.values())
+            socket.close();
+        if (null != workers_)
+            workers_.shutdownNow();
+        for (FaultInjector faults : faults_.values())
+            LOG.info("VOMS stand-in " + faults);
+    }
+
+
+    /** Set the {@code VOMSES_LOCATION}, {@code VOMSDIR} and {@code
+     * CADIR} system properties to the fixture directories, as
+     * required by {@code org.glite.voms.contact.VOMSProxyInit}.
+     */
+    public void setSystemProperties()
+    {
+        System.setProperty("VOMSES_LOCATION", new File(fixtureDir_, "vomses").getAbsolutePath());
+        System.setProperty("VOMSDIR", new File(fixtureDir_, "vomsdir").getAbsolutePath());
+        System.setProperty("CADIR", new File(fixtureDir_, "certificates").getAbsolutePath());
+    }
+
+
+    /** Return the port the given VO is served on. */
+    public int getPort(final String vo)           { return sockets_.get(vo).getLocalPort(); }
+    public long getIssuedCount()                  { return issued_.get(); }
+    public Map<String, FaultInjector> getFaultInjectors() { return faults_; }
+    public File getUserCertificate()              { return new File(fixtureDir_, "user/usercert.pem"); }
+    public File getUserPrivateKey()               { return new File(fixtureDir_, "user/userkey.pem"); }
+
+
+    protected void accept(final String vo, final SSLServerSocket server)
+    {
+        while (running_) {
+            try {
+                final SSLSocket client = (SSLSocket) server.accept();
+                workers_.execute(new Runnable() {
+                        public void run() { serve(vo, client); }
+                    });
+            }
+            catch (IOException x) {
+                if (running_)
+                    LOG.warn("VOMS stand-in for VO '" + vo + "': error accepting connection: " + x.getMessage());
+            }
+        }
+    }
+
+
+    protected void serve(final String vo, final SSLSocket client)
+    {
+        try {
+            client.startHandshake();
+            final X509Certificate holder = (X509Certificate) client.getSession().getPeerCertificates()[0];
+            final String request = readRequest(client.getInputStream());
+            LOG.debug("VOMS stand-in for VO '" + vo + "': got request " + request);
+
+            boolean fail;
+            try {
+                fail = faults_.get(vo).delay();
+            }
+            catch (InterruptedException x) {
+                return;
+            }
+            String answer;
+            if (fail)
+                answer = errorAnswer(1, "Failure injected by test bed");
+            else {
+                int lifetime = 12*3600;
+                String lt = findText(request, "lifetime");
+                if (null != lt && lt.length() > 0)
+                    lifetime = Integer.parseInt(lt);
+                byte[] ac = newAttributeCertificate(vo, client.getLocalPort(), holder,
+                                                    parseFqans(vo, request), lifetime);
+                issued_.incrementAndGet();
+                answer = "<?xml version=\"1.0\" encoding=\"US-ASCII\"?><vomsans>"
+                    + "<version>3</version>"
+                    + "<ac>" + new String(Base64.encode(ac), "US-ASCII") + "</ac>"
+                    + "</vomsans>";
+            }
+            OutputStream out = client.getOutputStream();
+            out.write(answer.getBytes("US-ASCII"));
+            out.flush();
+        }
+        catch (Exception x) {
+            LOG.warn("VOMS stand-in for VO '" + vo + "': error serving request: " + x.getMessage(), x);
+        }
+        finally {
+            try { client.close(); } catch (IOException x) { /* ignore */ }
+        }
+    }
+
+
+    /** Read the XML request, skipping the GSI delegation flag byte if present. */
+    protected static String readRequest(final InputStream in)
+        throws IOException
+    {
+        StringBuilder request = new StringBuilder();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            request.append(new String(buf, 0, n, "US-ASCII"));
+            if (request.indexOf("</voms>") >= 0)
+                break;
+        }
+        final int start = request.indexOf("<");
+        return (start > 0) ? request.substring(start) : request.toString();
+    }
+
+
+    /** Translate the VOMS request commands into a list of FQANs.
+     * The VO root group is always granted and comes first.
+     */
+    protected static List<String> parseFqans(final String vo, final String request)
+    {
+        List<String> fqans = new ArrayList<String>();
+        fqans.add("/" + vo + "/Role=NULL/Capability=NULL");
+        Matcher m = Pattern.compile("<command>([^<]*)</command>").matcher(request);
+        while (m.find()) {
+            final String command = m.group(1).trim();
+            String fqan = null;
+            if (command.startsWith("G"))           // group
+                fqan = command.substring(1) + "/Role=NULL/Capability=NULL";
+            else if (command.startsWith("B")) {    // group:role
+                String[] parts = command.substring(1).split(":", 2);
+                fqan = parts[0] + "/Role=" + (parts.length > 1 ? parts[1] : "NULL") + "/Capability=NULL";
+            }
+            else if (command.startsWith("R"))      // role in the root group
+                fqan = "/" + vo + "/Role=" + command.substring(1) + "/Capability=NULL";
+            if (null != fqan && ! fqans.contains(fqan))
+                fqans.add(fqan);
+        }
+        return fqans;
+    }
+
+
+    /** Create a VOMS attribute certificate for {@code holder}, signed by the VOMS host key. */
+    protected byte[] newAttributeCertificate(final String vo,
+                                             final int port,
+                                             final X509Certificate holder,
+                                             final List<String> fqans,
+                                             final int lifetime)
+        throws GeneralSecurityException, IOException
+    {
+        final long now = System.currentTimeMillis();
+        X509V2AttributeCertificateGenerator gen = new X509V2AttributeCertificateGenerator();
+        gen.setHolder(new AttributeCertificateHolder(holder));
+        gen.setIssuer(new AttributeCertificateIssuer(vomsHost_.certificate.getSubjectX500Principal()));
+        gen.setSerialNumber(BigInteger.valueOf(serial_.incrementAndGet()));
+        gen.setNotBefore(new Date(now - 5*60*1000));
+        gen.setNotAfter(new Date(now + lifetime * 1000L));
+        gen.setSignatureAlgorithm(TestCA.SIGNATURE_ALGORITHM);
+
+        // FQANs are encoded as an IetfAttrSyntax: the policy
+        // authority is the VOMS server URI, followed by the FQANs as
+        // octet strings
+        ASN1EncodableVector values = new ASN1EncodableVector();
+        for (String fqan : fqans)
+            values.add(new DEROctetString(fqan.getBytes("US-ASCII")));
+        ASN1EncodableVector ietfAttr = new ASN1EncodableVector();
+        ietfAttr.add(new DERTaggedObject(0, new GeneralNames(
+            new GeneralName(GeneralName.uniformResourceIdentifier, vo + "://" + HOST + ":" + port))));
+        ietfAttr.add(new DERSequence(values));
+        gen.addAttribute(new X509Attribute(VOMS_ATTR_OID, new DERSequence(ietfAttr)));
+
+        gen.addExtension(NO_REV_AVAIL_OID, false, new DERNull());
+        ASN1EncodableVector certs = new ASN1EncodableVector();
+        certs.add(new ASN1InputStream(vomsHost_.certificate.getEncoded()).readObject());
+        gen.addExtension(VOMS_CERTS_OID, false, new DERSequence(certs));
+
+        return gen.generate(vomsHost_.keys.getPrivate(), "BC").getEncoded();
+    }
+
+
+    protected static String errorAnswer(final int code, final String message)
+    {
+        return "<?xml version=\"1.0\" encoding=\"US-ASCII\"?><vomsans>"
+            + "<error><item><number>" + code + "</number>"
+            + "<message>" + TestbedState.escape(message) + "</message></item></error>"
+            + "</vomsans>";
+    }
+
+
+    protected static String findText(final String xml, final String element)
+    {
+        Matcher m = Pattern.compile("<" + element + ">([^<]*)</" + element + ">").matcher(xml);
+        return m.find() ? m.group(1).trim() : null;
+    }
+
+
+    protected SSLContext newSSLContext()
+        throws GeneralSecurityException, IOException
+    {
+        final char[] password = "testbed".toCharArray();
+        KeyStore keys = KeyStore.getInstance("JKS");
+        keys.load(null, null);
+        keys.setKeyEntry("voms", vomsHost_.keys.getPrivate(), password,
+                         new Certificate[] { vomsHost_.certificate, ca_.getCertificate() });
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keys, password);
+
+        KeyStore trust = KeyStore.getInstance("JKS");
+        trust.load(null, null);
+        trust.setCertificateEntry("ca", ca_.getCertificate());
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trust);
+
+        SSLContext ssl = SSLContext.getInstance("TLS");
+        ssl.init(kmf.getKeyManagers(), tmf.getTrustManagers(), new SecureRandom());
+        return ssl;
+    }
+
+
+    /** Write the vomses, vomsdir, CA directory and user credential fixtures. */
+    protected void writeFixtures()
+        throws GeneralSecurityException, IOException
+    {
+        final File vomses = mkdir(new File(fixtureDir_, "vomses"));
+        final File vomsdir = mkdir(new File(fixtureDir_, "vomsdir"));
+        final File cadir = mkdir(new File(fixtureDir_, "certificates"));
+        final File userdir = mkdir(new File(fixtureDir_, "user"));
+
+        final String hostDN = toGlobusDN(vomsHost_.certificate.getSubjectX500Principal());
+        final String caDN = toGlobusDN(ca_.getCertificate().getSubjectX500Principal());
+        for (String vo : vos_) {
+            writeText(new File(vomses, vo + "-" + HOST),
+                      "\"" + vo + "\" \"" + HOST + "\" \"" + getPort(vo) + "\" \"" + hostDN + "\" \"" + vo + "\"\n");
+            writeText(new File(mkdir(new File(vomsdir, vo)), HOST + ".lsc"),
+                      hostDN + "\n" + caDN + "\n");
+        }
+        TestCA.writePEM(new File(vomsdir, HOST + ".pem"), vomsHost_.certificate);
+
+        final String hash = opensslHash(ca_.getCertificate().getSubjectX500Principal());
+        ca_.writePEM(new File(cadir, hash + ".0"));
+        writeText(new File(cadir, hash + ".signing_policy"),
+                  "access_id_CA      X509         '" + caDN + "'\n"
+                  + "pos_rights        globus        CA:sign\n"
+                  + "cond_subjects     globus       '\"*\"'\n");
+
+        final TestCA.Credentials user = ca_.newHostCredentials("CN=VOMS Test User,O=GridCertLib Testbed");
+        TestCA.writePEM(getUserCertificate(), user.certificate);
+        Writer out = new FileWriter(getUserPrivateKey());
+        try {
+            PEMWriter pem = new PEMWriter(out);
+            pem.writeObject(user.keys.getPrivate(), "DES-EDE3-CBC",
+                            USER_KEY_PASSWORD.toCharArray(), new SecureRandom());
+            pem.flush();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+
+    /** Format a DN the way Globus and VOMS do: {@code /C=CH/O=.../CN=...}. */
+    public static String toGlobusDN(final X500Principal principal)
+    {
+        final String[] rdns = principal.getName(X500Principal.RFC2253).split("(?<!\\\\),");
+        StringBuilder dn = new StringBuilder();
+        for (int i = rdns.length - 1; i >= 0; i--)
+            dn.append('/').append(rdns[i].replace("\\,", ","));
+        return dn.toString();
+    }
+
+
+    /** Return the OpenSSL (pre-1.0, MD5-based) hash of a subject name, as used to name CA files. */
+    public static String opensslHash(final X500Principal principal)
+        throws GeneralSecurityException
+    {
+        final byte[] md5 = MessageDigest.getInstance("MD5").digest(principal.getEncoded());
+        final long hash = ((md5[0] & 0xffL) | ((md5[1] & 0xffL) << 8)
+                           | ((md5[2] & 0xffL) << 16) | ((md5[3] & 0xffL) << 24));
+        return String.format("%08x", hash);
+    }
+
+
+    private static File mkdir(final File dir)
+        throws IOException
+    {
+        if (! dir.isDirectory() && ! dir.mkdirs())
+            throw new IOException("Cannot create directory '" + dir + "'");
+        return dir;
+    }
+
+
+    private static void writeText(final File file, final String text)
+        throws IOException
+    {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("US-ASCII"));
+        }
+        finally {
+            out.close();
+        }
+    }
+
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        if (args.length < 2) {
+            System.err.println("Usage: VOMSStandInServer <fixture directory> <VO> [<VO> ...]");
+            System.exit(1);
+        }
+        final String[] vos = new String[args.length - 1];
+        System.arraycopy(args, 1, vos, 0, vos.length);
+
+        final File fixtureDir = mkdir(new File(args[0]));
+        final TestCA ca = new TestCA();
+        ca.writePEM(new File(fixtureDir, "ca.pem"));
+        final VOMSStandInServer server = new VOMSStandInServer(fixtureDir, ca, System.getProperties(), vos);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    try { server.stop(); }
+                    catch (IOException x) { LOG.warn("Error stopping VOMS stand-in: " + x.getMessage()); }
+                }
+            });
+        System.out.println("-DVOMSES_LOCATION=" + new File(fixtureDir, "vomses").getAbsolutePath()
+                           + " -DVOMSDIR=" + new File(fixtureDir, "vomsdir").getAbsolutePath()
+                           + " -DCADIR=" + new File(fixtureDir, "certificates").getAbsolutePath());
+        Thread.sleep(Long.MAX_VALUE);
+    }
+}
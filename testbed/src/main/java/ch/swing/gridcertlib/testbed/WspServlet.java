@@ -0,0 +1,135 @@
+/**
+ * @file   WspServlet.java
+ * @author riccardo.murri@gmail.com
+ *
+ * Source code for class WspServlet
+ *
+ */
+/*
+ * Copyright (c) 2010-2011 ETH Zurich and University of Zurich.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.swing.gridcertlib.testbed;
+
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/** Stand-in for the Shibboleth SP protecting the SLCS service, as
+ * seen by an ID-WSF ECP client doing delegation.
+ * <p>
+ * Serves two endpoints:<ul>
+ * <li>The WSP session initiator ({@code GET .../Shibboleth.sso/WSP?target=<url>}):
+ *     answers with a PAOS envelope containing a SAML2 {@code AuthnRequest},
+ *     which the client relays to the IdP ECP endpoint ({@link EcpIdpServlet}).
+ * <li>The ECP assertion consumer ({@code POST .../Shibboleth.sso/SAML2/ECP}):
+ *     accepts the PAOS response carrying the IdP's SAML2 {@code Response},
+ *     establishes an SP session (cookie {@value StandInServlet#SESSION_COOKIE})
+ *     and redirects to the original target.
+ * </ul>
+ */
+public class WspServlet extends StandInServlet
+{
+    public WspServlet(final TestbedState state, final FaultInjector faults)
+    {
+        super(state, faults);
+    }
+
+
+    /** Session initiator: start a new ECP exchange. */
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException
+    {
+        String target = request.getParameter("target");
+        if (null == target)
+            target = state_.getSlcsLoginUrl();
+        sendAuthnRequest(state_, response, target);
+    }
+
+
+    /** Assertion consumer: turn the IdP response into an SP session. */
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException
+    {
+        final String body = readBody(request);
+        final String assertionId = findAttribute(body, "Assertion", "ID");
+        final TestbedState.Released released =
+            (null == assertionId) ? null : state_.assertions.get(assertionId);
+        if (null == released || ! released.isValid()) {
+            LOG.debug("WSP: rejecting ECP response with unknown or expired assertion " + assertionId);
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Invalid or expired assertion");
+            return;
+        }
+
+        final String sessionId = state_.newId();
+        state_.sessions.put(sessionId, released.user);
+        Cookie cookie = new Cookie(SESSION_COOKIE, sessionId);
+        cookie.setPath("/");
+        cookie.setSecure(request.isSecure());
+        response.addCookie(cookie);
+
+        String target = findText(body, "RelayState");
+        if (null == target || "".equals(target))
+            target = state_.getSlcsLoginUrl();
+        LOG.debug("WSP: new session " + sessionId + " for user " + released.user.name
+                  + ", redirecting to " + target);
+        response.setStatus(HttpServletResponse.SC_MOVED_TEMPORARILY);
+        response.setHeader("Location", target.replace("&amp;", "&"));
+    }
+
+
+    /** Answer with a PAOS {@code AuthnRequest} envelope, asking the
+     * client to come back to {@code target} once authenticated.
+     * Shared with {@link SlcsLoginServlet}, which behaves like a
+     * lazy-session protected resource.
+     */
+    static void sendAuthnRequest(final TestbedState state,
+                                 final HttpServletResponse response,
+                                 final String target)
+        throws IOException
+    {
+        final String consumer = state.getEcpConsumerUrl();
+        final String header =
+            "<paos:Request xmlns:paos=\"urn:liberty:paos:2003-08\""
+            + " S:actor=\"http://schemas.xmlsoap.org/soap/actor/next\" S:mustUnderstand=\"1\""
+            + " responseConsumerURL=\"" + TestbedState.escape(consumer) + "\""
+            + " service=\"urn:oasis:names:tc:SAML:2.0:profiles:SSO:ecp\"/>"
+            + "<ecp:Request xmlns:ecp=\"urn:oasis:names:tc:SAML:2.0:profiles:SSO:ecp\""
+            + " S:actor=\"http://schemas.xmlsoap.org/soap/actor/next\" S:mustUnderstand=\"1\" IsPassive=\"0\">"
+            +   "<saml2:Issuer xmlns:saml2=\"urn:oasis:names:tc:SAML:2.0:assertion\">"
+            +   TestbedState.escape(state.getSlcsEntityId()) + "</saml2:Issuer>"
+            + "</ecp:Request>"
+            + "<ecp:RelayState xmlns:ecp=\"urn:oasis:names:tc:SAML:2.0:profiles:SSO:ecp\""
+            + " S:actor=\"http://schemas.xmlsoap.org/soap/actor/next\" S:mustUnderstand=\"1\">"
+            + TestbedState.escape(target)
+            + "</ecp:RelayState>";
+        final String body =
+            "<samlp:AuthnRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+            + " AssertionConsumerServiceURL=\"" + TestbedState.escape(consumer) + "\""
+            + " ID=\"" + state.newId() + "\""
+            + " IssueInstant=\"" + TestbedState.timestamp(System.currentTimeMillis()) + "\""
+            + " ProtocolBinding=\"urn:oasis:names:tc:SAML:2.0:bindings:PAOS\" Version=\"2.0\">"
+            +   "<saml2:Issuer xmlns:saml2=\"urn:oasis:names:tc:SAML:2.0:assertion\">"
+            +   TestbedState.escape(state.getSlcsEntityId()) + "</saml2:Issuer>"
+            +   "<samlp:NameIDPolicy AllowCreate=\"1\"/>"
+            + "</samlp:AuthnRequest>";
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(PAOS_MEDIA_TYPE);
+        response.getWriter().print(soapEnvelope(header, body));
+    }
+}